@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.utils.Utils;
+
+
+/**
+ * an unbounded pool which keeps released buffers to reuse them for later allocations of a similar size, so that the
+ * many small buffers of short lived receives are not allocated (and zeroed) one by one. buffers are kept in power of
+ * two size classes from {@link #MIN_BUFFER_SIZE} up to the max pooled buffer size, and at most maxCachedBytes of
+ * released buffers are kept in total. larger allocations are not pooled.
+ *
+ * like the buffers of the other pools, the buffers returned by {@link #tryAllocate(int)} have the requested size as
+ * their limit, but they may have a larger capacity. a buffer must not be used anymore once it is released.
+ */
+public class RecyclingMemoryPool implements MemoryPool {
+    public static final int MIN_BUFFER_SIZE = 128;
+
+    private final int maxPooledBufferSize;
+    private final List<ArrayBlockingQueue<ByteBuffer>> freeBuffers;
+    private final AtomicLong reusedBuffers = new AtomicLong();
+
+    public RecyclingMemoryPool(long maxCachedBytes, int maxPooledBufferSize) {
+        if (maxCachedBytes <= 0 || maxPooledBufferSize < MIN_BUFFER_SIZE || Integer.bitCount(maxPooledBufferSize) != 1)
+            throw new IllegalArgumentException("must provide a positive cache size and a max pooled buffer size which is a "
+                + "power of two of at least " + MIN_BUFFER_SIZE + ". provided " + maxCachedBytes + " and "
+                + maxPooledBufferSize + " respectively");
+        this.maxPooledBufferSize = maxPooledBufferSize;
+        int numSizeClasses = sizeClass(maxPooledBufferSize) + 1;
+        this.freeBuffers = new ArrayList<>(numSizeClasses);
+        // every size class gets the same share of the cached bytes
+        for (int i = 0; i < numSizeClasses; i++) {
+            long capacity = maxCachedBytes / numSizeClasses / sizeOfClass(i);
+            freeBuffers.add(new ArrayBlockingQueue<ByteBuffer>((int) Math.max(1, Math.min(capacity, Integer.MAX_VALUE))));
+        }
+    }
+
+    @Override
+    public ByteBuffer tryAllocate(int sizeBytes) {
+        if (sizeBytes < 0)
+            throw new IllegalArgumentException("requested size " + sizeBytes + "<0");
+        if (sizeBytes > maxPooledBufferSize)
+            return ByteBuffer.allocate(sizeBytes);
+
+        int sizeClass = sizeClass(sizeBytes);
+        ByteBuffer buffer = freeBuffers.get(sizeClass).poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocate(sizeOfClass(sizeClass));
+        else
+            reusedBuffers.incrementAndGet();
+        buffer.limit(sizeBytes);
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer previouslyAllocated) {
+        if (previouslyAllocated == null)
+            throw new IllegalArgumentException("provided null buffer");
+
+        int capacity = previouslyAllocated.capacity();
+        // buffers larger than the max pooled buffer size were not allocated from a size class
+        if (capacity < MIN_BUFFER_SIZE || capacity > maxPooledBufferSize || Integer.bitCount(capacity) != 1)
+            return;
+        previouslyAllocated.clear();
+        freeBuffers.get(sizeClass(capacity)).offer(previouslyAllocated);
+    }
+
+    @Override
+    public long size() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public long availableMemory() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public boolean isOutOfMemory() {
+        return false;
+    }
+
+    /**
+     * the number of released buffers currently kept for reuse
+     */
+    public int cachedBuffers() {
+        int cached = 0;
+        for (ArrayBlockingQueue<ByteBuffer> buffers : freeBuffers)
+            cached += buffers.size();
+        return cached;
+    }
+
+    /**
+     * the number of allocations which were served with a released buffer
+     */
+    public long reusedBuffers() {
+        return reusedBuffers.get();
+    }
+
+    private static int sizeClass(int sizeBytes) {
+        if (sizeBytes <= MIN_BUFFER_SIZE)
+            return 0;
+        // the smallest power of two which is at least sizeBytes
+        int roundedSize = Integer.highestOneBit(sizeBytes - 1) << 1;
+        return Integer.numberOfTrailingZeros(roundedSize) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    private static int sizeOfClass(int sizeClass) {
+        return MIN_BUFFER_SIZE << sizeClass;
+    }
+
+    @Override
+    public String toString() {
+        return "RecyclingMemoryPool{" + cachedBuffers() + " buffers cached, max pooled buffer size "
+            + Utils.formatBytes(maxPooledBufferSize) + "}";
+    }
+}
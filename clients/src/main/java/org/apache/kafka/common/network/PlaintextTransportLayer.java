@@ -184,20 +184,24 @@ public class PlaintextTransportLayer implements TransportLayer {
     }
 
     /**
-     * Adds the interestOps to selectionKey.
+     * Adds the interestOps to selectionKey. The key is only updated if some of the ops are not set yet, since every
+     * update of the interest set has to be applied to the underlying poller by the nioSelector.
      */
     @Override
     public void addInterestOps(int ops) {
-        key.interestOps(key.interestOps() | ops);
-
+        int interestOps = key.interestOps();
+        if ((interestOps & ops) != ops)
+            key.interestOps(interestOps | ops);
     }
 
     /**
-     * Removes the interestOps from selectionKey.
+     * Removes the interestOps from selectionKey. The key is only updated if some of the ops are set.
      */
     @Override
     public void removeInterestOps(int ops) {
-        key.interestOps(key.interestOps() & ~ops);
+        int interestOps = key.interestOps();
+        if ((interestOps & ops) != 0)
+            key.interestOps(interestOps & ~ops);
     }
 
     @Override
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.network;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An array backed replacement for the selected-key set of a {@link java.nio.channels.Selector}. The JDK
+ * implementation is a HashSet which allocates a map entry for every key added by a select and an iterator for every
+ * traversal. This set only supports what the JDK and {@link Selector#poll(long)} need: keys are appended by the
+ * nioSelector, iterated once and then the whole set is cleared.
+ *
+ * Note that {@link #contains(Object)} always returns false. The set is therefore only installed in the epoll selector,
+ * which reports every channel at most once per select and only calls it to find out whether a ready key is still in
+ * the set from a previous select, which cannot happen since the set is cleared after every poll. Other selectors, such
+ * as the kqueue, poll and Windows ones, use it to merge several events of a key within a select and would add the key
+ * twice.
+ */
+final class SelectedKeySet extends AbstractSet<SelectionKey> {
+    private static final Logger log = LoggerFactory.getLogger(SelectedKeySet.class);
+    static final String EPOLL_SELECTOR_CLASS_NAME = "sun.nio.ch.EPollSelectorImpl";
+
+    private SelectionKey[] keys = new SelectionKey[1024];
+    private int size;
+
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null)
+            return false;
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, size << 1);
+        keys[size++] = key;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == o) {
+                System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+                keys[--size] = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return keys[index++];
+            }
+        };
+    }
+
+    /**
+     * Replace the selected-key set of the given nioSelector with a new SelectedKeySet. This relies on the private
+     * fields of the JDK selector implementation, so null is returned and the default set is kept if they cannot be
+     * accessed (for example if the sun.nio.ch package is not opened on Java 9 and later) or if the nioSelector is not
+     * the epoll one.
+     */
+    static SelectedKeySet install(java.nio.channels.Selector nioSelector) {
+        if (!EPOLL_SELECTOR_CLASS_NAME.equals(nioSelector.getClass().getName()))
+            return null;
+        try {
+            Class<?> selectorImplClass = Class.forName("sun.nio.ch.SelectorImpl", false,
+                    java.nio.channels.Selector.class.getClassLoader());
+            if (!selectorImplClass.isInstance(nioSelector))
+                return null;
+            Field selectedKeysField = selectorImplClass.getDeclaredField("selectedKeys");
+            Field publicSelectedKeysField = selectorImplClass.getDeclaredField("publicSelectedKeys");
+            selectedKeysField.setAccessible(true);
+            publicSelectedKeysField.setAccessible(true);
+            SelectedKeySet selectedKeySet = new SelectedKeySet();
+            selectedKeysField.set(nioSelector, selectedKeySet);
+            publicSelectedKeysField.set(nioSelector, selectedKeySet);
+            return selectedKeySet;
+        } catch (Exception e) {
+            log.debug("Could not replace the selected-key set of {}, using the default set", nioSelector, e);
+            return null;
+        }
+    }
+}
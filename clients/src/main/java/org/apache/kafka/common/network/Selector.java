@@ -140,6 +140,10 @@ public class Selector implements Selectable, AutoCloseable {
      * @param metricTags Additional tags to add to metrics registered by Selector
      * @param metricsPerConnection Whether or not to enable per-connection metrics
      * @param channelBuilder Channel builder for every new connection
+     * @param memoryPool Pool from which the buffers of network receives are allocated
+     * @param optimizeSelectedKeys Whether to replace the selected-key set of the nioSelector by an array backed set
+     *                             which does not allocate on every select, only possible with the epoll nioSelector
+     *                             (see {@link SelectedKeySet})
      * @param logContext Context for logging with additional info
      */
     public Selector(int maxReceiveSize,
@@ -153,12 +157,16 @@ public class Selector implements Selectable, AutoCloseable {
             boolean recordTimePerConnection,
             ChannelBuilder channelBuilder,
             MemoryPool memoryPool,
+            boolean optimizeSelectedKeys,
             LogContext logContext) {
         try {
             this.nioSelector = java.nio.channels.Selector.open();
         } catch (IOException e) {
             throw new KafkaException(e);
         }
+        this.log = logContext.logger(Selector.class);
+        if (optimizeSelectedKeys && SelectedKeySet.install(nioSelector) == null)
+            log.info("The selected-key set of the nioSelector could not be replaced, using the default set");
         this.maxReceiveSize = maxReceiveSize;
         this.time = time;
         this.channels = new HashMap<>();
@@ -179,11 +187,26 @@ public class Selector implements Selectable, AutoCloseable {
         this.idleExpiryManager = connectionMaxIdleMs < 0 ? null : new IdleExpiryManager(time, connectionMaxIdleMs);
         this.memoryPool = memoryPool;
         this.lowMemThreshold = (long) (0.1 * this.memoryPool.size());
-        this.log = logContext.logger(Selector.class);
         this.failedAuthenticationDelayMs = failedAuthenticationDelayMs;
         this.delayedClosingChannels = (failedAuthenticationDelayMs > NO_FAILED_AUTHENTICATION_DELAY) ? new LinkedHashMap<String, DelayedAuthenticationFailureClose>() : null;
     }
 
+    public Selector(int maxReceiveSize,
+                    long connectionMaxIdleMs,
+                    int failedAuthenticationDelayMs,
+                    Metrics metrics,
+                    Time time,
+                    String metricGrpPrefix,
+                    Map<String, String> metricTags,
+                    boolean metricsPerConnection,
+                    boolean recordTimePerConnection,
+                    ChannelBuilder channelBuilder,
+                    MemoryPool memoryPool,
+                    LogContext logContext) {
+        this(maxReceiveSize, connectionMaxIdleMs, failedAuthenticationDelayMs, metrics, time, metricGrpPrefix, metricTags,
+                metricsPerConnection, recordTimePerConnection, channelBuilder, memoryPool, false, logContext);
+    }
+
     public Selector(int maxReceiveSize,
                     long connectionMaxIdleMs,
                     Metrics metrics,
@@ -462,7 +485,9 @@ public class Selector implements Selectable, AutoCloseable {
 
             // Poll from channels that have buffered data (but nothing more from the underlying socket)
             if (dataInBuffers) {
-                keysWithBufferedRead.removeAll(readyKeys); //so no channel gets polled twice
+                //so no channel gets polled twice. removeAll() is not used since the selected-key set may not support contains()
+                for (SelectionKey key : readyKeys)
+                    keysWithBufferedRead.remove(key);
                 Set<SelectionKey> toPoll = keysWithBufferedRead;
                 keysWithBufferedRead = new HashSet<>(); //poll() calls will repopulate if needed
                 pollSelectionKeys(toPoll, false, endSelect);
@@ -69,6 +69,9 @@ public class SslTransportLayer implements TransportLayer {
     private ByteBuffer appReadBuffer;
     private boolean hasBytesBuffered;
     private ByteBuffer emptyBuf = ByteBuffer.allocate(0);
+    private ByteBuffer fileChannelBuffer;
+    private FileChannel bufferedFileChannel;
+    private long bufferedFilePosition;
 
     public static SslTransportLayer create(String channelId, SelectionKey key, SSLEngine sslEngine) throws IOException {
         return new SslTransportLayer(channelId, key, sslEngine);
@@ -185,6 +188,8 @@ public class SslTransportLayer implements TransportLayer {
             netReadBuffer = null;
             netWriteBuffer = null;
             appReadBuffer = null;
+            fileChannelBuffer = null;
+            bufferedFileChannel = null;
         }
     }
 
@@ -755,7 +760,9 @@ public class SslTransportLayer implements TransportLayer {
         else if (state != State.READY)
             throw new IllegalStateException("handshake is not completed");
 
-        key.interestOps(key.interestOps() | ops);
+        int interestOps = key.interestOps();
+        if ((interestOps & ops) != ops)
+            key.interestOps(interestOps | ops);
     }
 
     /**
@@ -769,7 +776,9 @@ public class SslTransportLayer implements TransportLayer {
         else if (state != State.READY)
             throw new IllegalStateException("handshake is not completed");
 
-        key.interestOps(key.interestOps() & ~ops);
+        int interestOps = key.interestOps();
+        if ((interestOps & ops) != 0)
+            key.interestOps(interestOps & ~ops);
     }
 
 
@@ -900,8 +909,53 @@ public class SslTransportLayer implements TransportLayer {
             hasBytesBuffered = false;
     }
 
+    /**
+     * Transfers file data by reading it into a direct buffer owned by this channel and encrypting it from there. The
+     * buffer is allocated on the first transfer and reused for the lifetime of the channel. Data read from the file
+     * which could not be written because the socket is full is kept in the buffer for the next call for the same
+     * position, so that it is not read again. kTLS is not available from the JVM, so the data is still copied once
+     * into user space.
+     */
     @Override
     public long transferFrom(FileChannel fileChannel, long position, long count) throws IOException {
-        return fileChannel.transferTo(position, count, this);
+        if (state == State.CLOSING)
+            throw closingException();
+        if (state != State.READY)
+            return 0;
+
+        if (fileChannelBuffer == null)
+            fileChannelBuffer = ByteBuffer.allocateDirect(applicationBufferSize());
+        // discard buffered data unless it continues where the previous transfer stopped
+        if (fileChannel != bufferedFileChannel || position != bufferedFilePosition) {
+            fileChannelBuffer.clear().flip();
+            bufferedFileChannel = fileChannel;
+            bufferedFilePosition = position;
+        }
+
+        long totalWritten = 0;
+        while (totalWritten < count) {
+            long remaining = count - totalWritten;
+            int buffered = fileChannelBuffer.remaining();
+            // top up the buffer so that each write can fill a TLS record rather than sending the tail of the buffer
+            if (buffered < remaining && buffered < fileChannelBuffer.capacity() / 2) {
+                fileChannelBuffer.compact();
+                if (remaining < fileChannelBuffer.capacity())
+                    fileChannelBuffer.limit((int) remaining);
+                fileChannel.read(fileChannelBuffer, position + totalWritten + buffered);
+                fileChannelBuffer.flip();
+                if (!fileChannelBuffer.hasRemaining())
+                    break;
+            } else if (buffered > remaining) {
+                fileChannelBuffer.limit(fileChannelBuffer.position() + (int) remaining);
+            }
+
+            int written = write(fileChannelBuffer);
+            totalWritten += written;
+            bufferedFilePosition += written;
+            // stop once the socket cannot take any more data
+            if (written == 0 || hasPendingWrites())
+                break;
+        }
+        return totalWritten;
     }
 }
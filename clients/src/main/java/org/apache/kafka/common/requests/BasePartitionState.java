@@ -17,6 +17,7 @@
 package org.apache.kafka.common.requests;
 
 import java.util.List;
+import java.util.Objects;
 
 // This class contains the common fields shared between LeaderAndIsrRequest.PartitionState and UpdateMetadataRequest.PartitionState
 public class BasePartitionState {
@@ -37,4 +38,24 @@ public class BasePartitionState {
         this.replicas = replicas;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        BasePartitionState that = (BasePartitionState) o;
+        return controllerEpoch == that.controllerEpoch &&
+            leader == that.leader &&
+            leaderEpoch == that.leaderEpoch &&
+            zkVersion == that.zkVersion &&
+            isr.equals(that.isr) &&
+            replicas.equals(that.replicas);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(controllerEpoch, leader, leaderEpoch, isr, zkVersion, replicas);
+    }
+
 }
@@ -44,7 +44,6 @@ import static org.apache.kafka.common.protocol.CommonFields.PARTITION_ID;
 import static org.apache.kafka.common.protocol.CommonFields.THROTTLE_TIME_MS;
 import static org.apache.kafka.common.protocol.CommonFields.TOPIC_NAME;
 import static org.apache.kafka.common.protocol.types.Type.RECORDS;
-import static org.apache.kafka.common.protocol.types.Type.STRING;
 import static org.apache.kafka.common.requests.FetchMetadata.INVALID_SESSION_ID;
 
 /**
@@ -362,20 +361,50 @@ public class FetchResponse<T extends BaseRecords> extends AbstractResponse {
         return toStruct(version, throttleTimeMs, error, responseData.entrySet().iterator(), sessionId);
     }
 
+    /**
+     * Build the send without the struct graph of {@link #toStruct(short)}. All the fields other than the record sets
+     * are written to a single buffer, and the record sets are sent in between the slices of that buffer.
+     */
     @Override
     protected Send toSend(String dest, ResponseHeader responseHeader, short apiVersion) {
-        Struct responseHeaderStruct = responseHeader.toStruct();
-        Struct responseBodyStruct = toStruct(apiVersion);
-
-        // write the total size and the response header
-        ByteBuffer buffer = ByteBuffer.allocate(responseHeaderStruct.sizeOf() + 4);
-        buffer.putInt(responseHeaderStruct.sizeOf() + responseBodyStruct.sizeOf());
-        responseHeaderStruct.writeTo(buffer);
-        buffer.rewind();
+        // Validates the version like toStruct does
+        ApiKeys.FETCH.responseSchema(apiVersion);
+        List<FetchRequest.TopicAndPartitionData<PartitionData<T>>> topicsData =
+                FetchRequest.TopicAndPartitionData.batchByTopic(responseData.entrySet().iterator());
+
+        // write the total size, the response header and the top level fields
+        int fieldsSize = responseHeader.sizeOf() + sizeOfFields(apiVersion, topicsData);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + fieldsSize);
+        buffer.putInt(fieldsSize + sizeOfRecords(topicsData));
+        responseHeader.writeTo(buffer);
+        if (apiVersion >= 1)
+            buffer.putInt(throttleTimeMs);
+        if (apiVersion >= 7) {
+            buffer.putShort(error.code());
+            buffer.putInt(sessionId);
+        }
+        buffer.putInt(topicsData.size());
 
         Queue<Send> sends = new ArrayDeque<>();
-        sends.add(new ByteBufferSend(dest, buffer));
-        addResponseData(responseBodyStruct, throttleTimeMs, dest, sends);
+        int sliceStart = 0;
+        for (FetchRequest.TopicAndPartitionData<PartitionData<T>> topicEntry : topicsData) {
+            // include the topic header and the count for the number of partitions
+            RequestUtils.writeString(buffer, topicEntry.topic);
+            buffer.putInt(topicEntry.partitions.size());
+            for (Map.Entry<Integer, PartitionData<T>> partitionEntry : topicEntry.partitions.entrySet()) {
+                // include the partition header and the size of the record set
+                PartitionData<T> partitionData = partitionEntry.getValue();
+                writePartitionHeader(buffer, apiVersion, partitionEntry.getKey(), partitionData);
+                buffer.putInt(partitionData.records.sizeInBytes());
+                sends.add(new ByteBufferSend(dest, slice(buffer, sliceStart)));
+                sliceStart = buffer.position();
+
+                // finally the send for the record set itself
+                sends.add(partitionData.records.toSend(dest));
+            }
+        }
+        if (sliceStart < buffer.position())
+            sends.add(new ByteBufferSend(dest, slice(buffer, sliceStart)));
         return new MultiRecordsSend(dest, sends);
     }
 
@@ -408,62 +437,76 @@ public class FetchResponse<T extends BaseRecords> extends AbstractResponse {
         return parse(ApiKeys.FETCH.responseSchema(version).read(buffer));
     }
 
-    private static void addResponseData(Struct struct, int throttleTimeMs, String dest, Queue<Send> sends) {
-        Object[] allTopicData = struct.getArray(RESPONSES_KEY_NAME);
-
-        if (struct.hasField(ERROR_CODE)) {
-            ByteBuffer buffer = ByteBuffer.allocate(14);
-            buffer.putInt(throttleTimeMs);
-            buffer.putShort(struct.get(ERROR_CODE));
-            buffer.putInt(struct.get(SESSION_ID));
-            buffer.putInt(allTopicData.length);
-            buffer.rewind();
-            sends.add(new ByteBufferSend(dest, buffer));
-        } else if (struct.hasField(THROTTLE_TIME_MS)) {
-            ByteBuffer buffer = ByteBuffer.allocate(8);
-            buffer.putInt(throttleTimeMs);
-            buffer.putInt(allTopicData.length);
-            buffer.rewind();
-            sends.add(new ByteBufferSend(dest, buffer));
-        } else {
-            ByteBuffer buffer = ByteBuffer.allocate(4);
-            buffer.putInt(allTopicData.length);
-            buffer.rewind();
-            sends.add(new ByteBufferSend(dest, buffer));
+    private static <T extends BaseRecords> int sizeOfFields(short version,
+                                                            List<FetchRequest.TopicAndPartitionData<PartitionData<T>>> topicsData) {
+        int size = 4;
+        if (version >= 1)
+            size += 4;
+        if (version >= 7)
+            size += 2 + 4;
+        for (FetchRequest.TopicAndPartitionData<PartitionData<T>> topicEntry : topicsData) {
+            size += RequestUtils.sizeOfString(topicEntry.topic) + 4;
+            for (PartitionData<T> partitionData : topicEntry.partitions.values())
+                size += sizeOfPartitionHeader(version, partitionData) + 4;
         }
-
-        for (Object topicData : allTopicData)
-            addTopicData(dest, sends, (Struct) topicData);
+        return size;
     }
 
-    private static void addTopicData(String dest, Queue<Send> sends, Struct topicData) {
-        String topic = topicData.get(TOPIC_NAME);
-        Object[] allPartitionData = topicData.getArray(PARTITIONS_KEY_NAME);
-
-        // include the topic header and the count for the number of partitions
-        ByteBuffer buffer = ByteBuffer.allocate(STRING.sizeOf(topic) + 4);
-        STRING.write(buffer, topic);
-        buffer.putInt(allPartitionData.length);
-        buffer.rewind();
-        sends.add(new ByteBufferSend(dest, buffer));
-
-        for (Object partitionData : allPartitionData)
-            addPartitionData(dest, sends, (Struct) partitionData);
+    private static <T extends BaseRecords> int sizeOfRecords(List<FetchRequest.TopicAndPartitionData<PartitionData<T>>> topicsData) {
+        int size = 0;
+        for (FetchRequest.TopicAndPartitionData<PartitionData<T>> topicEntry : topicsData) {
+            for (PartitionData<T> partitionData : topicEntry.partitions.values()) {
+                if (partitionData.records != null)
+                    size += partitionData.records.sizeInBytes();
+            }
+        }
+        return size;
     }
 
-    private static void addPartitionData(String dest, Queue<Send> sends, Struct partitionData) {
-        Struct header = partitionData.getStruct(PARTITION_HEADER_KEY_NAME);
-        BaseRecords records = partitionData.getRecords(RECORD_SET_KEY_NAME);
+    private static int sizeOfPartitionHeader(short version, PartitionData<?> partitionData) {
+        int size = 4 + 2 + 8;
+        if (version >= 4) {
+            size += 8 + 4;
+            if (partitionData.abortedTransactions != null)
+                size += (8 + 8) * partitionData.abortedTransactions.size();
+        }
+        if (version >= 5)
+            size += 8;
+        return size;
+    }
 
-        // include the partition header and the size of the record set
-        ByteBuffer buffer = ByteBuffer.allocate(header.sizeOf() + 4);
-        header.writeTo(buffer);
-        buffer.putInt(records.sizeInBytes());
-        buffer.rewind();
-        sends.add(new ByteBufferSend(dest, buffer));
+    private static void writePartitionHeader(ByteBuffer buffer, short version, int partition, PartitionData<?> partitionData) {
+        short errorCode = partitionData.error.code();
+        // See toStruct for why KafkaStorageException is translated for older versions
+        if (errorCode == Errors.KAFKA_STORAGE_ERROR.code() && version <= 5)
+            errorCode = Errors.NOT_LEADER_FOR_PARTITION.code();
+        buffer.putInt(partition);
+        buffer.putShort(errorCode);
+        buffer.putLong(partitionData.highWatermark);
+        if (version >= 4) {
+            buffer.putLong(partitionData.lastStableOffset);
+            if (version >= 5)
+                buffer.putLong(partitionData.logStartOffset);
+            if (partitionData.abortedTransactions == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(partitionData.abortedTransactions.size());
+                for (AbortedTransaction abortedTransaction : partitionData.abortedTransactions) {
+                    buffer.putLong(abortedTransaction.producerId);
+                    buffer.putLong(abortedTransaction.firstOffset);
+                }
+            }
+        }
+    }
 
-        // finally the send for the record set itself
-        sends.add(records.toSend(dest));
+    /**
+     * A view of the bytes of the buffer from the given start up to its current position.
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int start) {
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        view.position(start);
+        return view.slice();
     }
 
     private static <T extends BaseRecords> Struct toStruct(short version, int throttleTimeMs, Errors error,
@@ -532,9 +575,9 @@ public class FetchResponse<T extends BaseRecords> extends AbstractResponse {
      */
     public static <T extends BaseRecords> int sizeOf(short version,
                                                      Iterator<Map.Entry<TopicPartition, PartitionData<T>>> partIterator) {
-        // Since the throttleTimeMs and metadata field sizes are constant and fixed, we can
-        // use arbitrary values here without affecting the result.
-        return 4 + toStruct(version, 0, Errors.NONE, partIterator, INVALID_SESSION_ID).sizeOf();
+        List<FetchRequest.TopicAndPartitionData<PartitionData<T>>> topicsData =
+                FetchRequest.TopicAndPartitionData.batchByTopic(partIterator);
+        return 4 + sizeOfFields(version, topicsData) + sizeOfRecords(topicsData);
     }
 
     @Override
@@ -25,6 +25,7 @@ import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.protocol.types.Field;
 import org.apache.kafka.common.protocol.types.Schema;
 import org.apache.kafka.common.protocol.types.Struct;
+import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.utils.Utils;
 
 import java.nio.ByteBuffer;
@@ -610,6 +611,105 @@ public class MetadataResponse extends AbstractResponse {
         return struct;
     }
 
+    /**
+     * Serialize the response straight into a buffer of the exact size, without building the struct graph of
+     * {@link #toStruct(short)}, which has several objects per partition and is costly for large clusters.
+     */
+    @Override
+    public ByteBuffer serialize(short version, ResponseHeader responseHeader) {
+        // Validates the version like toStruct does
+        ApiKeys.METADATA.responseSchema(version);
+        ByteBuffer buffer = ByteBuffer.allocate(responseHeader.sizeOf() + sizeOf(version));
+        responseHeader.writeTo(buffer);
+        writeTo(buffer, version);
+        buffer.rewind();
+        return buffer;
+    }
+
+    private int sizeOf(short version) {
+        int size = 0;
+        // This field only exists in v3+
+        if (version >= 3)
+            size += 4;
+        size += 4;
+        for (Node node : brokers) {
+            size += 4 + RequestUtils.sizeOfString(node.host()) + 4;
+            // This field only exists in v1+
+            if (version >= 1)
+                size += RequestUtils.sizeOfNullableString(node.rack());
+        }
+        // This field only exists in v2+
+        if (version >= 2)
+            size += RequestUtils.sizeOfNullableString(clusterId);
+        // This field only exists in v1+
+        if (version >= 1)
+            size += 4;
+
+        size += 4;
+        for (TopicMetadata metadata : topicMetadata) {
+            size += 2 + RequestUtils.sizeOfString(metadata.topic);
+            // This field only exists in v1+
+            if (version >= 1)
+                size += 1;
+            size += 4;
+            for (PartitionMetadata partitionMetadata : metadata.partitionMetadata) {
+                size += 2 + 4 + 4;
+                // Leader epoch exists in v7 forward
+                if (version >= 7)
+                    size += 4;
+                size += 4 + 4 * partitionMetadata.replicas.size();
+                size += 4 + 4 * partitionMetadata.isr.size();
+                // This field only exists in v5+
+                if (version >= 5)
+                    size += 4 + 4 * partitionMetadata.offlineReplicas.size();
+            }
+        }
+        return size;
+    }
+
+    private void writeTo(ByteBuffer buffer, short version) {
+        if (version >= 3)
+            buffer.putInt(throttleTimeMs);
+        buffer.putInt(brokers.size());
+        for (Node node : brokers) {
+            buffer.putInt(node.id());
+            RequestUtils.writeString(buffer, node.host());
+            buffer.putInt(node.port());
+            if (version >= 1)
+                RequestUtils.writeNullableString(buffer, node.rack());
+        }
+        if (version >= 2)
+            RequestUtils.writeNullableString(buffer, clusterId);
+        if (version >= 1)
+            buffer.putInt(controller == null ? NO_CONTROLLER_ID : controller.id());
+
+        buffer.putInt(topicMetadata.size());
+        for (TopicMetadata metadata : topicMetadata) {
+            buffer.putShort(metadata.error.code());
+            RequestUtils.writeString(buffer, metadata.topic);
+            if (version >= 1)
+                buffer.put((byte) (metadata.isInternal ? 1 : 0));
+            buffer.putInt(metadata.partitionMetadata.size());
+            for (PartitionMetadata partitionMetadata : metadata.partitionMetadata) {
+                buffer.putShort(partitionMetadata.error.code());
+                buffer.putInt(partitionMetadata.partition);
+                buffer.putInt(partitionMetadata.leaderId());
+                if (version >= 7)
+                    buffer.putInt(partitionMetadata.leaderEpoch.orElse(RecordBatch.NO_PARTITION_LEADER_EPOCH));
+                writeNodeIds(buffer, partitionMetadata.replicas);
+                writeNodeIds(buffer, partitionMetadata.isr);
+                if (version >= 5)
+                    writeNodeIds(buffer, partitionMetadata.offlineReplicas);
+            }
+        }
+    }
+
+    private static void writeNodeIds(ByteBuffer buffer, List<Node> nodes) {
+        buffer.putInt(nodes.size());
+        for (Node node : nodes)
+            buffer.putInt(node.id());
+    }
+
     @Override
     public boolean shouldClientThrottle(short version) {
         return version >= 6;
@@ -298,6 +298,49 @@ public class ProduceRequest extends AbstractRequest {
         return struct;
     }
 
+    /**
+     * Serialize the request straight into a buffer of the exact size, without building the struct graph of
+     * {@link #toStruct()}.
+     */
+    @Override
+    public ByteBuffer serialize(RequestHeader header) {
+        // Store it in a local variable to protect against concurrent updates
+        Map<TopicPartition, MemoryRecords> partitionRecords = partitionRecordsOrFail();
+        short version = version();
+        Map<String, Map<Integer, MemoryRecords>> recordsByTopic = CollectionUtils.groupPartitionDataByTopic(partitionRecords);
+
+        int size = header.sizeOf();
+        // This field only exists in v3+
+        if (version >= 3)
+            size += RequestUtils.sizeOfNullableString(transactionalId);
+        size += 2 + 4 + 4;
+        for (Map.Entry<String, Map<Integer, MemoryRecords>> topicEntry : recordsByTopic.entrySet()) {
+            size += RequestUtils.sizeOfString(topicEntry.getKey()) + 4;
+            for (MemoryRecords records : topicEntry.getValue().values())
+                size += 4 + 4 + records.sizeInBytes();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        header.writeTo(buffer);
+        if (version >= 3)
+            RequestUtils.writeNullableString(buffer, transactionalId);
+        buffer.putShort(acks);
+        buffer.putInt(timeout);
+        buffer.putInt(recordsByTopic.size());
+        for (Map.Entry<String, Map<Integer, MemoryRecords>> topicEntry : recordsByTopic.entrySet()) {
+            RequestUtils.writeString(buffer, topicEntry.getKey());
+            buffer.putInt(topicEntry.getValue().size());
+            for (Map.Entry<Integer, MemoryRecords> partitionEntry : topicEntry.getValue().entrySet()) {
+                ByteBuffer recordsBuffer = partitionEntry.getValue().buffer();
+                buffer.putInt(partitionEntry.getKey());
+                buffer.putInt(recordsBuffer.remaining());
+                buffer.put(recordsBuffer);
+            }
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
     @Override
     public String toString(boolean verbose) {
         // Use the same format as `Struct.toString()`
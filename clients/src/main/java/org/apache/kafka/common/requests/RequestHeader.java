@@ -92,6 +92,34 @@ public class RequestHeader extends AbstractRequestResponse {
         return struct;
     }
 
+    public int sizeOf() {
+        int size = INT16.sizeOf(apiKey.id) + INT16.sizeOf(apiVersion) + INT32.sizeOf(correlationId);
+        // only v0 of the controlled shutdown request is missing the clientId
+        if (hasClientId())
+            size += RequestUtils.sizeOfString(clientIdOrDefault());
+        return size;
+    }
+
+    /**
+     * Write the header like {@link #toStruct()} would, without building the struct.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putShort(apiKey.id);
+        buffer.putShort(apiVersion);
+        buffer.putInt(correlationId);
+        if (hasClientId())
+            RequestUtils.writeString(buffer, clientIdOrDefault());
+    }
+
+    // the struct writes the default of the field if the clientId is null
+    private String clientIdOrDefault() {
+        return clientId == null ? "" : clientId;
+    }
+
+    private boolean hasClientId() {
+        return schema(apiKey.id, apiVersion) != CONTROLLED_SHUTDOWN_V0_SCHEMA;
+    }
+
     public ApiKeys apiKey() {
         return apiKey;
     }
@@ -21,13 +21,16 @@ import org.apache.kafka.common.acl.AccessControlEntryFilter;
 import org.apache.kafka.common.acl.AclOperation;
 import org.apache.kafka.common.acl.AclPermissionType;
 import org.apache.kafka.common.protocol.types.Field;
+import org.apache.kafka.common.protocol.types.SchemaException;
 import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.resource.PatternType;
 import org.apache.kafka.common.resource.ResourcePattern;
 import org.apache.kafka.common.resource.ResourcePatternFilter;
 import org.apache.kafka.common.protocol.types.Struct;
 import org.apache.kafka.common.resource.ResourceType;
+import org.apache.kafka.common.utils.Utils;
 
+import java.nio.ByteBuffer;
 import java.util.Optional;
 
 import static org.apache.kafka.common.protocol.CommonFields.HOST;
@@ -117,4 +120,48 @@ final class RequestUtils {
         return leaderEpochOpt;
     }
 
+    /*
+     * The methods below size and write the fields of requests and responses which are serialized directly into a
+     * buffer instead of through a Struct. They produce the same bytes as the corresponding protocol types.
+     */
+
+    static int sizeOfString(String string) {
+        return 2 + Utils.utf8Length(string);
+    }
+
+    static int sizeOfNullableString(String string) {
+        return string == null ? 2 : sizeOfString(string);
+    }
+
+    /**
+     * Write the string like {@link org.apache.kafka.common.protocol.types.Type#STRING}. ASCII strings, which topic
+     * names and host names typically are, are written char by char so that no byte array has to be encoded first.
+     */
+    static void writeString(ByteBuffer buffer, String string) {
+        int length = string.length();
+        if (Utils.utf8Length(string) != length) {
+            writeBytes(buffer, Utils.utf8(string));
+            return;
+        }
+        if (length > Short.MAX_VALUE)
+            throw new SchemaException("String length " + length + " is larger than the maximum string length.");
+        buffer.putShort((short) length);
+        for (int i = 0; i < length; i++)
+            buffer.put((byte) string.charAt(i));
+    }
+
+    static void writeNullableString(ByteBuffer buffer, String string) {
+        if (string == null)
+            buffer.putShort((short) -1);
+        else
+            writeString(buffer, string);
+    }
+
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes.length > Short.MAX_VALUE)
+            throw new SchemaException("String length " + bytes.length + " is larger than the maximum string length.");
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
 }
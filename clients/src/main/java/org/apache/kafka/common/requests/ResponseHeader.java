@@ -44,7 +44,14 @@ public class ResponseHeader extends AbstractRequestResponse {
     }
 
     public int sizeOf() {
-        return toStruct().sizeOf();
+        return INT32.sizeOf(correlationId);
+    }
+
+    /**
+     * Write the header like {@link #toStruct()} would, without building the struct.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(correlationId);
     }
 
     public Struct toStruct() {
@@ -31,10 +31,12 @@ import org.apache.kafka.common.utils.Utils;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import static org.apache.kafka.common.protocol.CommonFields.PARTITION_ID;
@@ -42,9 +44,18 @@ import static org.apache.kafka.common.protocol.CommonFields.TOPIC_NAME;
 import static org.apache.kafka.common.protocol.types.Type.INT32;
 
 public class UpdateMetadataRequest extends AbstractControlRequest {
+    public static final long NO_METADATA_EPOCH = -1L;
+
     private static final Field.ComplexArray TOPIC_STATES = new Field.ComplexArray("topic_states", "Topic states");
     private static final Field.ComplexArray PARTITION_STATES = new Field.ComplexArray("partition_states", "Partition states");
     private static final Field.ComplexArray LIVE_BROKERS = new Field.ComplexArray("live_brokers", "Live broekrs");
+    private static final Field.Int64 METADATA_EPOCH = new Field.Int64("metadata_epoch",
+            "The position of this update in the sequence of updates sent by the controller to the broker, or -1 " +
+            "if the update is not part of a sequence");
+    private static final Field.Bool FULL_UPDATE = new Field.Bool("full_update",
+            "Whether the update carries the whole metadata, which replaces the metadata known by the broker");
+    private static final Field.Array REMOVED_BROKERS = new Field.Array("removed_brokers", INT32,
+            "The ids of the brokers which are no longer live, only set by incremental updates");
 
     // PartitionState fields
     private static final Field.Int32 LEADER = new Field.Int32("leader", "The broker id for the leader.");
@@ -176,20 +187,46 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
             TOPIC_STATES_V5,
             LIVE_BROKERS_V3);
 
+    // UPDATE_METADATA_REQUEST_V6 added the metadata_epoch, full_update and removed_brokers fields. An update with a
+    // metadata epoch which is not a full update only carries the partitions and brokers which changed since the
+    // previous update of the sequence, the broker rejects it if it did not apply the previous update.
+    private static final Schema UPDATE_METADATA_REQUEST_V6 = new Schema(
+            CONTROLLER_ID,
+            CONTROLLER_EPOCH,
+            BROKER_EPOCH,
+            METADATA_EPOCH,
+            FULL_UPDATE,
+            TOPIC_STATES_V5,
+            LIVE_BROKERS_V3,
+            REMOVED_BROKERS);
+
     public static Schema[] schemaVersions() {
         return new Schema[] {UPDATE_METADATA_REQUEST_V0, UPDATE_METADATA_REQUEST_V1, UPDATE_METADATA_REQUEST_V2,
-            UPDATE_METADATA_REQUEST_V3, UPDATE_METADATA_REQUEST_V4, UPDATE_METADATA_REQUEST_V5};
+            UPDATE_METADATA_REQUEST_V3, UPDATE_METADATA_REQUEST_V4, UPDATE_METADATA_REQUEST_V5, UPDATE_METADATA_REQUEST_V6};
     }
 
     public static class Builder extends AbstractControlRequest.Builder<UpdateMetadataRequest> {
         private final Map<TopicPartition, PartitionState> partitionStates;
         private final Set<Broker> liveBrokers;
+        private final long metadataEpoch;
+        private final boolean fullUpdate;
+        private final Set<Integer> removedBrokers;
 
         public Builder(short version, int controllerId, int controllerEpoch, long brokerEpoch,
                        Map<TopicPartition, PartitionState> partitionStates, Set<Broker> liveBrokers) {
+            this(version, controllerId, controllerEpoch, brokerEpoch, partitionStates, liveBrokers, NO_METADATA_EPOCH,
+                false, Collections.<Integer>emptySet());
+        }
+
+        public Builder(short version, int controllerId, int controllerEpoch, long brokerEpoch,
+                       Map<TopicPartition, PartitionState> partitionStates, Set<Broker> liveBrokers,
+                       long metadataEpoch, boolean fullUpdate, Set<Integer> removedBrokers) {
             super(ApiKeys.UPDATE_METADATA, version, controllerId, controllerEpoch, brokerEpoch);
             this.partitionStates = partitionStates;
             this.liveBrokers = liveBrokers;
+            this.metadataEpoch = metadataEpoch;
+            this.fullUpdate = fullUpdate;
+            this.removedBrokers = removedBrokers;
         }
 
         @Override
@@ -201,7 +238,10 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
                     }
                 }
             }
-            return new UpdateMetadataRequest(version, controllerId, controllerEpoch, brokerEpoch, partitionStates, liveBrokers);
+            if (version < 6 && metadataEpoch != NO_METADATA_EPOCH)
+                throw new UnsupportedVersionException("UpdateMetadataRequest v" + version + " does not support metadata epochs");
+            return new UpdateMetadataRequest(version, controllerId, controllerEpoch, brokerEpoch, partitionStates, liveBrokers,
+                metadataEpoch, fullUpdate, removedBrokers);
         }
 
         @Override
@@ -211,8 +251,11 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
                 append(", controllerId=").append(controllerId).
                 append(", controllerEpoch=").append(controllerEpoch).
                 append(", brokerEpoch=").append(brokerEpoch).
+                append(", metadataEpoch=").append(metadataEpoch).
+                append(", fullUpdate=").append(fullUpdate).
                 append(", partitionStates=").append(partitionStates).
                 append(", liveBrokers=").append(Utils.join(liveBrokers, ", ")).
+                append(", removedBrokers=").append(Utils.join(removedBrokers, ", ")).
                 append(")");
             return bld.toString();
         }
@@ -271,6 +314,22 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
                 ", offlineReplicas=" + Arrays.toString(offlineReplicas.toArray()) + ")";
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            PartitionState that = (PartitionState) o;
+            return basePartitionState.equals(that.basePartitionState) &&
+                offlineReplicas.equals(that.offlineReplicas);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(basePartitionState, offlineReplicas);
+        }
+
         private void setStruct(Struct struct) {
             struct.set(CONTROLLER_EPOCH, basePartitionState.controllerEpoch);
             struct.set(LEADER, basePartitionState.leader);
@@ -326,12 +385,19 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
 
     private final Map<TopicPartition, PartitionState> partitionStates;
     private final Set<Broker> liveBrokers;
+    private final long metadataEpoch;
+    private final boolean fullUpdate;
+    private final Set<Integer> removedBrokers;
 
     private UpdateMetadataRequest(short version, int controllerId, int controllerEpoch, long brokerEpoch,
-                                  Map<TopicPartition, PartitionState> partitionStates, Set<Broker> liveBrokers) {
+                                  Map<TopicPartition, PartitionState> partitionStates, Set<Broker> liveBrokers,
+                                  long metadataEpoch, boolean fullUpdate, Set<Integer> removedBrokers) {
         super(ApiKeys.UPDATE_METADATA, version, controllerId, controllerEpoch, brokerEpoch);
         this.partitionStates = partitionStates;
         this.liveBrokers = liveBrokers;
+        this.metadataEpoch = metadataEpoch;
+        this.fullUpdate = fullUpdate;
+        this.removedBrokers = removedBrokers;
     }
 
     public UpdateMetadataRequest(Struct struct, short versionId) {
@@ -396,6 +462,15 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
         }
         this.partitionStates = partitionStates;
         this.liveBrokers = liveBrokers;
+
+        this.metadataEpoch = struct.getOrElse(METADATA_EPOCH, NO_METADATA_EPOCH);
+        this.fullUpdate = struct.getOrElse(FULL_UPDATE, false);
+        Set<Integer> removedBrokers = new HashSet<>();
+        if (struct.hasField(REMOVED_BROKERS)) {
+            for (Object brokerIdObj : struct.get(REMOVED_BROKERS))
+                removedBrokers.add((Integer) brokerIdObj);
+        }
+        this.removedBrokers = removedBrokers;
     }
 
     @Override
@@ -405,6 +480,9 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
         struct.set(CONTROLLER_ID, controllerId);
         struct.set(CONTROLLER_EPOCH, controllerEpoch);
         struct.setIfExists(BROKER_EPOCH, brokerEpoch);
+        struct.setIfExists(METADATA_EPOCH, metadataEpoch);
+        struct.setIfExists(FULL_UPDATE, fullUpdate);
+        struct.setIfExists(REMOVED_BROKERS, removedBrokers.toArray());
 
         if (struct.hasField(TOPIC_STATES)) {
             Map<String, Map<Integer, PartitionState>> topicStates = CollectionUtils.groupPartitionDataByTopic(partitionStates);
@@ -474,7 +552,7 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
     @Override
     public AbstractResponse getErrorResponse(int throttleTimeMs, Throwable e) {
         short versionId = version();
-        if (versionId <= 5)
+        if (versionId <= 6)
             return new UpdateMetadataResponse(Errors.forException(e));
         else
             throw new IllegalArgumentException(String.format("Version %d is not valid. Valid versions for %s are 0 to %d",
@@ -485,10 +563,34 @@ public class UpdateMetadataRequest extends AbstractControlRequest {
         return partitionStates;
     }
 
+    /**
+     * The live brokers. For an incremental update, only the brokers which were added or changed since the previous
+     * update, see {@link #isIncremental()}.
+     */
     public Set<Broker> liveBrokers() {
         return liveBrokers;
     }
 
+    public long metadataEpoch() {
+        return metadataEpoch;
+    }
+
+    public boolean isFullUpdate() {
+        return fullUpdate;
+    }
+
+    /**
+     * Whether the update only carries the brokers and partitions which changed since the previous update of the
+     * sequence, which the broker must have applied before this one.
+     */
+    public boolean isIncremental() {
+        return metadataEpoch != NO_METADATA_EPOCH && !fullUpdate;
+    }
+
+    public Set<Integer> removedBrokers() {
+        return removedBrokers;
+    }
+
     public static UpdateMetadataRequest parse(ByteBuffer buffer, short version) {
         return new UpdateMetadataRequest(ApiKeys.UPDATE_METADATA.parseRequest(version, buffer), version);
     }
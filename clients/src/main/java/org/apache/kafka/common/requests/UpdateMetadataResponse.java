@@ -34,9 +34,13 @@ public class UpdateMetadataResponse extends AbstractResponse {
     private static final Schema UPDATE_METADATA_RESPONSE_V4 = UPDATE_METADATA_RESPONSE_V3;
     private static final Schema UPDATE_METADATA_RESPONSE_V5 = UPDATE_METADATA_RESPONSE_V4;
 
+    // UPDATE_METADATA_RESPONSE_V6 may return the METADATA_UPDATE_OUT_OF_ORDER error
+    private static final Schema UPDATE_METADATA_RESPONSE_V6 = UPDATE_METADATA_RESPONSE_V5;
+
     public static Schema[] schemaVersions() {
         return new Schema[]{UPDATE_METADATA_RESPONSE_V0, UPDATE_METADATA_RESPONSE_V1, UPDATE_METADATA_RESPONSE_V2,
-            UPDATE_METADATA_RESPONSE_V3, UPDATE_METADATA_RESPONSE_V4, UPDATE_METADATA_RESPONSE_V5};
+            UPDATE_METADATA_RESPONSE_V3, UPDATE_METADATA_RESPONSE_V4, UPDATE_METADATA_RESPONSE_V5,
+            UPDATE_METADATA_RESPONSE_V6};
     }
 
     /**
@@ -44,6 +48,7 @@ public class UpdateMetadataResponse extends AbstractResponse {
      *
      * STALE_CONTROLLER_EPOCH (11)
      * STALE_BROKER_EPOCH (77)
+     * METADATA_UPDATE_OUT_OF_ORDER (79)
      */
     private final Errors error;
 
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.common.memory;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class RecyclingMemoryPoolTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroCacheSize() {
+        new RecyclingMemoryPool(0, 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxPooledBufferSizeNotPowerOfTwo() {
+        new RecyclingMemoryPool(1024 * 1024, 1000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseNull() {
+        new RecyclingMemoryPool(1024 * 1024, 1024).release(null);
+    }
+
+    @Test
+    public void testAllocationHasRequestedSize() {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(1024 * 1024, 1024);
+        for (int size : new int[] {0, 1, 128, 129, 1000, 1024, 1025, 4096}) {
+            ByteBuffer buffer = pool.tryAllocate(size);
+            Assert.assertEquals(0, buffer.position());
+            Assert.assertEquals(size, buffer.limit());
+            Assert.assertEquals(size, buffer.remaining());
+            pool.release(buffer);
+        }
+        // buffers larger than the max pooled buffer size are not kept
+        Assert.assertEquals(3, pool.cachedBuffers());
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(1024 * 1024, 1024);
+        ByteBuffer buffer = pool.tryAllocate(300);
+        Assert.assertEquals(512, buffer.capacity());
+        buffer.put(new byte[300]);
+        pool.release(buffer);
+        Assert.assertEquals(1, pool.cachedBuffers());
+
+        // a buffer of another size class is allocated
+        ByteBuffer smaller = pool.tryAllocate(200);
+        Assert.assertNotSame(buffer, smaller);
+        Assert.assertEquals(256, smaller.capacity());
+
+        ByteBuffer reused = pool.tryAllocate(400);
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(400, reused.limit());
+        Assert.assertEquals(0, pool.cachedBuffers());
+        Assert.assertEquals(1, pool.reusedBuffers());
+    }
+
+    @Test
+    public void testCachedBytesAreBounded() {
+        // 4 size classes from 128 to 1024 bytes get 1024 bytes each, so at most 8 buffers of 128 bytes are kept
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(4096, 1024);
+        ByteBuffer[] buffers = new ByteBuffer[10];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = pool.tryAllocate(100);
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+        Assert.assertEquals(8, pool.cachedBuffers());
+    }
+
+    @Test
+    public void testForeignBufferIsNotKept() {
+        RecyclingMemoryPool pool = new RecyclingMemoryPool(1024 * 1024, 1024);
+        pool.release(ByteBuffer.allocate(300));
+        Assert.assertEquals(0, pool.cachedBuffers());
+    }
+}
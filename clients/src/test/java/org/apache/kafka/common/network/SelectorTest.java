@@ -22,6 +22,8 @@ import org.apache.kafka.common.memory.MemoryPool;
 import org.apache.kafka.common.memory.SimpleMemoryPool;
 import org.apache.kafka.common.metrics.KafkaMetric;
 import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.record.DefaultRecordsSend;
+import org.apache.kafka.common.record.FileRecords;
 import org.apache.kafka.common.security.auth.SecurityProtocol;
 import org.apache.kafka.common.utils.LogContext;
 import org.apache.kafka.common.utils.MockTime;
@@ -35,6 +37,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.InetSocketAddress;
@@ -43,6 +46,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -59,6 +63,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -250,6 +255,49 @@ public class SelectorTest {
         }
     }
 
+    @Test
+    public void testOptimizedSelectedKeys() throws Exception {
+        this.selector.close();
+        this.selector = new Selector(5000, Selector.NO_IDLE_TIMEOUT_MS, Selector.NO_FAILED_AUTHENTICATION_DELAY, metrics,
+                time, "MetricGroup", Collections.<String, String>emptyMap(), true, false, channelBuilder, MemoryPool.NONE,
+                true, new LogContext());
+        Field field = Selector.class.getDeclaredField("nioSelector");
+        field.setAccessible(true);
+        java.nio.channels.Selector nioSelector = (java.nio.channels.Selector) field.get(selector);
+        // the set is only replaced in the epoll selector and if the JDK selector internals are accessible, on Java 16
+        // and later they are not unless the sun.nio.ch package is opened
+        assumeTrue(SelectedKeySet.EPOLL_SELECTOR_CLASS_NAME.equals(nioSelector.getClass().getName()));
+        assumeTrue(selectorInternalsAccessible());
+        assertTrue(nioSelector.selectedKeys() instanceof SelectedKeySet);
+
+        int conns = 5;
+        for (int i = 0; i < conns; i++)
+            blockingConnect(Integer.toString(i));
+        for (int i = 0; i < conns; i++)
+            sendAndReceive(Integer.toString(i), "request", 0, 100);
+
+        // the reply to a request is reported through the array backed set
+        String node = "0";
+        selector.send(createSend(node, "ping"));
+        while (selector.completedSends().isEmpty())
+            selector.poll(1000L);
+        assertTrue("The reply was not selected", nioSelector.select(15000L) > 0);
+        assertTrue(nioSelector.selectedKeys().size() > 0);
+        nioSelector.selectedKeys().clear();
+        while (selector.completedReceives().isEmpty())
+            selector.poll(1000L);
+        assertEquals("ping", asString(selector.completedReceives().get(0)));
+    }
+
+    private static boolean selectorInternalsAccessible() {
+        try {
+            Class.forName("sun.nio.ch.SelectorImpl").getDeclaredField("selectedKeys").setAccessible(true);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * Validate that we can send and receive a message larger than the receive and send buffer size
      */
@@ -272,6 +320,32 @@ public class SelectorTest {
         sendAndReceive(node, requestPrefix, 0, reqs);
     }
 
+    @Test
+    public void testSendFileRecords() throws Exception {
+        String node = "0";
+        blockingConnect(node);
+        String payload = TestUtils.randomString(20 * BUFFER_SIZE);
+        // FileRecords sends the file contents as they are, so the file holds a complete size delimited request
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(request);
+        out.writeInt(payload.length());
+        out.write(payload.getBytes());
+        File file = TestUtils.tempFile();
+        Files.write(file.toPath(), request.toByteArray());
+        try (FileRecords records = FileRecords.open(file)) {
+            selector.send(new DefaultRecordsSend(node, records));
+            selector.poll(1000L);
+            while (true) {
+                selector.poll(1000L);
+                List<NetworkReceive> receives = selector.completedReceives();
+                if (!receives.isEmpty()) {
+                    assertEquals(payload, asString(receives.get(0)));
+                    break;
+                }
+            }
+        }
+    }
+
     @Test
     public void testEmptyRequest() throws Exception {
         String node = "0";
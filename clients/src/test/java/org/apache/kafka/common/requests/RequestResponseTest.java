@@ -245,6 +245,9 @@ public class RequestResponseTest {
         checkRequest(createUpdateMetadataRequest(5, "rack1"));
         checkRequest(createUpdateMetadataRequest(5, null));
         checkErrorResponse(createUpdateMetadataRequest(5, "rack1"), new UnknownServerException());
+        checkRequest(createUpdateMetadataRequest(6, "rack1"));
+        checkRequest(createUpdateMetadataRequest(6, null));
+        checkErrorResponse(createUpdateMetadataRequest(6, "rack1"), new UnknownServerException());
         checkResponse(createUpdateMetadataResponse(), 0);
         checkRequest(createListOffsetRequest(0));
         checkErrorResponse(createListOffsetRequest(0), new UnknownServerException());
@@ -570,6 +573,64 @@ public class RequestResponseTest {
         assertEquals(size, responseHeader.sizeOf() + responseBody.sizeOf());
     }
 
+    @Test
+    public void testFetchResponseSendWithoutStructs() throws Exception {
+        verifyFetchResponseSendMatchesStruct(ApiKeys.FETCH.latestVersion(), createFetchResponse(123));
+        verifyFetchResponseSendMatchesStruct(ApiKeys.FETCH.latestVersion(),
+            createFetchResponse(Errors.FETCH_SESSION_ID_NOT_FOUND, 123));
+        for (short version = 0; version <= ApiKeys.FETCH.latestVersion(); version++) {
+            verifyFetchResponseSendMatchesStruct(version, createFetchResponse());
+        }
+    }
+
+    private void verifyFetchResponseSendMatchesStruct(short apiVersion, FetchResponse<MemoryRecords> fetchResponse) throws Exception {
+        ResponseHeader responseHeader = new ResponseHeader(15);
+        Send send = fetchResponse.toSend("1", responseHeader, apiVersion);
+        ByteBufferChannel channel = new ByteBufferChannel(send.size());
+        send.writeTo(channel);
+        channel.close();
+
+        ByteBuffer buf = channel.buffer();
+        assertEquals(buf.remaining() - 4, buf.getInt());
+        assertEquals(AbstractRequestResponse.serialize(responseHeader.toStruct(), fetchResponse.toStruct(apiVersion)),
+            buf.slice());
+    }
+
+    @Test
+    public void testSerializeWithoutStructs() {
+        for (short version = 2; version <= ApiKeys.PRODUCE.latestVersion(); version++) {
+            RequestHeader requestHeader = new RequestHeader(ApiKeys.PRODUCE, version, "client", 10);
+            ProduceRequest request = createProduceRequest(version);
+            assertEquals(AbstractRequestResponse.serialize(requestHeader.toStruct(), request.toStruct()),
+                request.serialize(requestHeader));
+        }
+        RequestHeader controlledShutdownHeader = new RequestHeader(ApiKeys.CONTROLLED_SHUTDOWN, (short) 0, "client", 10);
+        assertEquals(controlledShutdownHeader.toStruct().sizeOf(), controlledShutdownHeader.sizeOf());
+
+        ResponseHeader responseHeader = new ResponseHeader(10);
+        MetadataResponse metadataResponse = createMetadataResponse();
+        for (short version = 0; version <= ApiKeys.METADATA.latestVersion(); version++) {
+            assertEquals(AbstractRequestResponse.serialize(responseHeader.toStruct(), metadataResponse.toStruct(version)),
+                metadataResponse.serialize(version, responseHeader));
+        }
+
+        // Non ASCII names are encoded like the struct does
+        Node node = new Node(1, "h\u00f4st", 1001, "r\u00e4ck");
+        MetadataResponse nonAsciiResponse = new MetadataResponse(asList(node), "cl\u00fcster", 1,
+            asList(new MetadataResponse.TopicMetadata(Errors.NONE, "t\u00f8pic\uD83D\uDE00", false,
+                asList(new MetadataResponse.PartitionMetadata(Errors.NONE, 0, node, Optional.of(2),
+                    asList(node), asList(node), Collections.<Node>emptyList())))));
+        short latestVersion = ApiKeys.METADATA.latestVersion();
+        assertEquals(AbstractRequestResponse.serialize(responseHeader.toStruct(), nonAsciiResponse.toStruct(latestVersion)),
+            nonAsciiResponse.serialize(latestVersion, responseHeader));
+
+        FetchResponse<MemoryRecords> fetchResponse = createFetchResponse();
+        for (short version = 0; version <= ApiKeys.FETCH.latestVersion(); version++) {
+            assertEquals(4 + fetchResponse.toStruct(version).sizeOf(),
+                FetchResponse.sizeOf(version, fetchResponse.responseData().entrySet().iterator()));
+        }
+    }
+
     @Test
     public void testControlledShutdownResponse() {
         ControlledShutdownResponse response = createControlledShutdownResponse();
@@ -620,6 +681,32 @@ public class RequestResponseTest {
         assertEquals(request.isolationLevel(), deserialized.isolationLevel());
     }
 
+    @Test
+    public void testUpdateMetadataRequestMetadataEpoch() throws Exception {
+        UpdateMetadataRequest request = createUpdateMetadataRequest(6, "rack1");
+        UpdateMetadataRequest deserialized = (UpdateMetadataRequest) deserialize(request, request.toStruct(),
+            request.version());
+        assertEquals(5L, deserialized.metadataEpoch());
+        assertFalse(deserialized.isFullUpdate());
+        assertTrue(deserialized.isIncremental());
+        assertEquals(Utils.mkSet(2, 3), deserialized.removedBrokers());
+        assertEquals(request.partitionStates(), deserialized.partitionStates());
+
+        request = createUpdateMetadataRequest(5, "rack1");
+        deserialized = (UpdateMetadataRequest) deserialize(request, request.toStruct(), request.version());
+        assertEquals(UpdateMetadataRequest.NO_METADATA_EPOCH, deserialized.metadataEpoch());
+        assertFalse(deserialized.isIncremental());
+        assertTrue(deserialized.removedBrokers().isEmpty());
+    }
+
+    @Test(expected = UnsupportedVersionException.class)
+    public void testUpdateMetadataRequestV5FailsWithMetadataEpoch() {
+        new UpdateMetadataRequest.Builder((short) 5, 1, 10, 0,
+            Collections.<TopicPartition, UpdateMetadataRequest.PartitionState>emptyMap(),
+            Collections.<UpdateMetadataRequest.Broker>emptySet(), 0L, true,
+            Collections.<Integer>emptySet()).build();
+    }
+
     @Test
     public void testJoinGroupRequestVersion0RebalanceTimeout() {
         final short version = 0;
@@ -985,6 +1072,9 @@ public class RequestResponseTest {
                 new UpdateMetadataRequest.Broker(0, endPoints1, rack),
                 new UpdateMetadataRequest.Broker(1, endPoints2, rack)
         );
+        if (version >= 6)
+            return new UpdateMetadataRequest.Builder((short) version, 1, 10, 0, partitionStates,
+                    liveBrokers, 5L, false, Utils.mkSet(2, 3)).build();
         return new UpdateMetadataRequest.Builder((short) version, 1, 10, 0, partitionStates,
                 liveBrokers).build();
     }
@@ -86,7 +86,9 @@ object ApiVersion {
     // LeaderAdnIsrRequest V2, UpdateMetadataRequest V5, StopReplicaRequest V1
     KAFKA_2_2_IV0,
     // New error code for ListOffsets when a new leader is lagging behind former HW (KIP-207)
-    KAFKA_2_2_IV1
+    KAFKA_2_2_IV1,
+    // Introduced UpdateMetadataRequest V6 with incremental metadata updates
+    KAFKA_2_2_IV2
   )
 
   // Map keys are the union of the short and full versions
@@ -298,6 +300,13 @@ case object KAFKA_2_2_IV1 extends DefaultApiVersion {
   val id: Int = 21
 }
 
+case object KAFKA_2_2_IV2 extends DefaultApiVersion {
+  val shortVersion: String = "2.2"
+  val subVersion = "IV2"
+  val recordVersion = RecordVersion.V2
+  val id: Int = 22
+}
+
 object ApiVersionValidator extends Validator {
 
   override def ensureValid(name: String, value: Any): Unit = {
@@ -17,7 +17,9 @@
 package kafka.cluster
 
 import java.util.Optional
-import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.{Lock, ReentrantLock, ReentrantReadWriteLock}
 
 import com.yammer.metrics.core.Gauge
 import kafka.api.{LeaderAndIsr, Request}
@@ -26,7 +28,6 @@ import kafka.controller.KafkaController
 import kafka.log._
 import kafka.metrics.KafkaMetricsGroup
 import kafka.server._
-import kafka.utils.CoreUtils.{inReadLock, inWriteLock}
 import kafka.utils._
 import kafka.zk.{AdminZkClient, KafkaZkClient}
 import org.apache.kafka.common.TopicPartition
@@ -57,6 +58,22 @@ object Partition {
   }
 }
 
+/**
+ * The leadership and ISR state of a partition. It is replaced as a whole whenever any of its fields changes, so
+ * that readers get a consistent view of all of them from a single volatile read without taking a lock.
+ *
+ * @param leaderEpoch The leader epoch of the current leader
+ * @param leaderEpochStartOffsetOpt The start offset of the leader epoch, defined when this broker is the leader
+ * @param leaderReplicaIdOpt The broker id of the current leader, if known
+ * @param inSyncReplicas The ISR, which is only maintained when this broker is the leader
+ * @param zkVersion The version of the partition state znode the ISR was last read from or written to
+ */
+case class LeaderIsrState(leaderEpoch: Int,
+                          leaderEpochStartOffsetOpt: Option[Long],
+                          leaderReplicaIdOpt: Option[Int],
+                          inSyncReplicas: Set[Replica],
+                          zkVersion: Int)
+
 /**
  * Data structure that represents a topic partition. The leader maintains the AR, ISR, CUR, RAR
  */
@@ -74,15 +91,37 @@ class Partition(val topicPartition: TopicPartition,
 
   // allReplicasMap includes both assigned replicas and the future replica if there is ongoing replica movement
   private val allReplicasMap = new Pool[Int, Replica]
-  // The read lock is only required when multiple reads are executed and needs to be in a consistent manner
+  // The write lock is only taken by leadership changes and by operations which replace or delete the local logs. The
+  // read lock is held by operations which must not overlap with them, such as appends. ISR changes only need to be
+  // serialized with each other and with leadership changes, so they hold the read lock together with isrChangeLock.
   private val leaderIsrUpdateLock = new ReentrantReadWriteLock
-  private var zkVersion: Int = LeaderAndIsr.initialZKVersion
-  @volatile private var leaderEpoch: Int = LeaderAndIsr.initialLeaderEpoch - 1
+  private val isrChangeLock = new ReentrantLock
+  // Serializes the check-and-set of the high watermark, which is done by both appends and ISR changes
+  private val highWatermarkUpdateLock = new Object
+  // Total time spent waiting for leaderIsrUpdateLock and isrChangeLock
+  private val lockWaitTimeNs = new LongAdder
+  @volatile private var leaderIsrState = LeaderIsrState(
+    leaderEpoch = LeaderAndIsr.initialLeaderEpoch - 1,
+    leaderEpochStartOffsetOpt = None,
+    leaderReplicaIdOpt = None,
+    inSyncReplicas = Set.empty[Replica],
+    zkVersion = LeaderAndIsr.initialZKVersion)
+
+  private def leaderEpoch: Int = leaderIsrState.leaderEpoch
   // start offset for 'leaderEpoch' above (leader epoch of the current leader for this partition),
   // defined when this broker is leader for partition
-  @volatile private var leaderEpochStartOffsetOpt: Option[Long] = None
-  @volatile var leaderReplicaIdOpt: Option[Int] = None
-  @volatile var inSyncReplicas: Set[Replica] = Set.empty[Replica]
+  private def leaderEpochStartOffsetOpt: Option[Long] = leaderIsrState.leaderEpochStartOffsetOpt
+  private def zkVersion: Int = leaderIsrState.zkVersion
+
+  def leaderReplicaIdOpt: Option[Int] = leaderIsrState.leaderReplicaIdOpt
+  def leaderReplicaIdOpt_=(newLeaderReplicaIdOpt: Option[Int]): Unit =
+    leaderIsrState = leaderIsrState.copy(leaderReplicaIdOpt = newLeaderReplicaIdOpt)
+
+  def inSyncReplicas: Set[Replica] = leaderIsrState.inSyncReplicas
+  def inSyncReplicas_=(newInSyncReplicas: Set[Replica]): Unit =
+    leaderIsrState = leaderIsrState.copy(inSyncReplicas = newInSyncReplicas)
+
+  def currentLeaderIsrState: LeaderIsrState = leaderIsrState
 
   /* Epoch of the controller that last changed the leader. This needs to be initialized correctly upon broker startup.
    * One way of doing that is through the controller's start replica state change command. When a new broker starts up
@@ -134,6 +173,13 @@ class Partition(val topicPartition: TopicPartition,
       tags
     )
 
+    newGauge("LeaderIsrLockWaitTimeMs",
+      new Gauge[Long] {
+        def value = TimeUnit.NANOSECONDS.toMillis(lockWaitTimeNs.sum)
+      },
+      tags
+    )
+
     newGauge("LastStableOffsetLag",
       new Gauge[Long] {
         def value = {
@@ -148,13 +194,16 @@ class Partition(val topicPartition: TopicPartition,
 
   private def isLeaderReplicaLocal: Boolean = leaderReplicaIfLocal.isDefined
 
-  def isUnderReplicated: Boolean =
-    isLeaderReplicaLocal && inSyncReplicas.size < assignedReplicas.size
+  def isUnderReplicated: Boolean = {
+    val state = leaderIsrState
+    leaderReplicaIfLocal(state).isDefined && state.inSyncReplicas.size < assignedReplicas.size
+  }
 
   def isUnderMinIsr: Boolean = {
-    leaderReplicaIfLocal match {
+    val state = leaderIsrState
+    leaderReplicaIfLocal(state) match {
       case Some(leaderReplica) =>
-        inSyncReplicas.size < leaderReplica.log.get.config.minInSyncReplicas
+        state.inSyncReplicas.size < leaderReplica.log.get.config.minInSyncReplicas
       case None =>
         false
     }
@@ -262,8 +311,10 @@ class Partition(val topicPartition: TopicPartition,
       s"on broker $localBrokerId")
   }
 
-  def leaderReplicaIfLocal: Option[Replica] = {
-    if (leaderReplicaIdOpt.contains(localBrokerId))
+  def leaderReplicaIfLocal: Option[Replica] = leaderReplicaIfLocal(leaderIsrState)
+
+  private def leaderReplicaIfLocal(state: LeaderIsrState): Option[Replica] = {
+    if (state.leaderReplicaIdOpt.contains(localBrokerId))
       localReplica
     else
       None
@@ -347,9 +398,8 @@ class Partition(val topicPartition: TopicPartition,
     // need to hold the lock to prevent appendMessagesToLeader() from hitting I/O exceptions due to log being deleted
     inWriteLock(leaderIsrUpdateLock) {
       allReplicasMap.clear()
-      inSyncReplicas = Set.empty[Replica]
-      leaderReplicaIdOpt = None
-      leaderEpochStartOffsetOpt = None
+      leaderIsrState = leaderIsrState.copy(leaderEpochStartOffsetOpt = None, leaderReplicaIdOpt = None,
+        inSyncReplicas = Set.empty[Replica])
       removePartitionMetrics()
       logManager.asyncDelete(topicPartition)
       if (logManager.getLog(topicPartition, isFuture = true).isDefined)
@@ -374,7 +424,6 @@ class Partition(val topicPartition: TopicPartition,
       val newInSyncReplicas = partitionStateInfo.basePartitionState.isr.asScala.map(r => getOrCreateReplica(r, partitionStateInfo.isNew)).toSet
       // remove assigned replicas that have been removed by the controller
       (assignedReplicas.map(_.brokerId) -- newAssignedReplicas).foreach(removeReplica)
-      inSyncReplicas = newInSyncReplicas
       newAssignedReplicas.foreach(id => getOrCreateReplica(id, partitionStateInfo.isNew))
 
       val leaderReplica = localReplicaOrException
@@ -383,9 +432,7 @@ class Partition(val topicPartition: TopicPartition,
         s"offset $leaderEpochStartOffset. Previous Leader Epoch was: $leaderEpoch")
 
       //We cache the leader epoch here, persisting it only if it's local (hence having a log dir)
-      leaderEpoch = partitionStateInfo.basePartitionState.leaderEpoch
-      leaderEpochStartOffsetOpt = Some(leaderEpochStartOffset)
-      zkVersion = partitionStateInfo.basePartitionState.zkVersion
+      val newLeaderEpoch = partitionStateInfo.basePartitionState.leaderEpoch
 
       // In the case of successive leader elections in a short time period, a follower may have
       // entries in its log from a later epoch than any entry in the new leader's log. In order
@@ -393,7 +440,7 @@ class Partition(val topicPartition: TopicPartition,
       // leader epoch and the start offset since it should be larger than any epoch that a follower
       // would try to query.
       leaderReplica.epochs.foreach { epochCache =>
-        epochCache.assign(leaderEpoch, leaderEpochStartOffset)
+        epochCache.assign(newLeaderEpoch, leaderEpochStartOffset)
       }
 
       val isNewLeader = !leaderReplicaIdOpt.contains(localBrokerId)
@@ -401,18 +448,23 @@ class Partition(val topicPartition: TopicPartition,
       val curTimeMs = time.milliseconds
       // initialize lastCaughtUpTime of replicas as well as their lastFetchTimeMs and lastFetchLeaderLogEndOffset.
       (assignedReplicas - leaderReplica).foreach { replica =>
-        val lastCaughtUpTimeMs = if (inSyncReplicas.contains(replica)) curTimeMs else 0L
+        val lastCaughtUpTimeMs = if (newInSyncReplicas.contains(replica)) curTimeMs else 0L
         replica.resetLastCaughtUpTime(curLeaderLogEndOffset, curTimeMs, lastCaughtUpTimeMs)
       }
 
       if (isNewLeader) {
         // construct the high watermark metadata for the new leader replica
         leaderReplica.convertHWToLocalOffsetMetadata()
-        // mark local replica as the leader after converting hw
-        leaderReplicaIdOpt = Some(localBrokerId)
         // reset log end offset for remote replicas
         assignedReplicas.filter(_.brokerId != localBrokerId).foreach(_.updateLogReadResult(LogReadResult.UnknownLogReadResult))
       }
+      // mark local replica as the leader after converting hw
+      leaderIsrState = LeaderIsrState(
+        leaderEpoch = newLeaderEpoch,
+        leaderEpochStartOffsetOpt = Some(leaderEpochStartOffset),
+        leaderReplicaIdOpt = Some(localBrokerId),
+        inSyncReplicas = newInSyncReplicas,
+        zkVersion = partitionStateInfo.basePartitionState.zkVersion)
       // we may need to increment high watermark since ISR could be down to 1
       (maybeIncrementLeaderHW(leaderReplica), isNewLeader)
     }
@@ -440,17 +492,15 @@ class Partition(val topicPartition: TopicPartition,
       newAssignedReplicas.foreach(r => getOrCreateReplica(r, partitionStateInfo.isNew))
       // remove assigned replicas that have been removed by the controller
       (assignedReplicas.map(_.brokerId) -- newAssignedReplicas).foreach(removeReplica)
-      inSyncReplicas = Set.empty[Replica]
-      leaderEpoch = partitionStateInfo.basePartitionState.leaderEpoch
-      leaderEpochStartOffsetOpt = None
-      zkVersion = partitionStateInfo.basePartitionState.zkVersion
-
-      if (leaderReplicaIdOpt.contains(newLeaderBrokerId) && leaderEpoch == oldLeaderEpoch) {
-        false
-      } else {
-        leaderReplicaIdOpt = Some(newLeaderBrokerId)
-        true
-      }
+      val newLeaderEpoch = partitionStateInfo.basePartitionState.leaderEpoch
+      val leaderChanged = !(leaderReplicaIdOpt.contains(newLeaderBrokerId) && newLeaderEpoch == oldLeaderEpoch)
+      leaderIsrState = LeaderIsrState(
+        leaderEpoch = newLeaderEpoch,
+        leaderEpochStartOffsetOpt = None,
+        leaderReplicaIdOpt = Some(newLeaderBrokerId),
+        inSyncReplicas = Set.empty[Replica],
+        zkVersion = partitionStateInfo.basePartitionState.zkVersion)
+      leaderChanged
     }
   }
 
@@ -499,23 +549,29 @@ class Partition(val topicPartition: TopicPartition,
    * @return true if the high watermark has been updated
    */
   def maybeExpandIsr(replicaId: Int, logReadResult: LogReadResult): Boolean = {
-    inWriteLock(leaderIsrUpdateLock) {
+    inReadLock(leaderIsrUpdateLock) {
       // check if this replica needs to be added to the ISR
       leaderReplicaIfLocal match {
         case Some(leaderReplica) =>
           val replica = getReplica(replicaId).get
-          val leaderHW = leaderReplica.highWatermark
-          val fetchOffset = logReadResult.info.fetchOffsetMetadata.messageOffset
-          if (!inSyncReplicas.contains(replica) &&
-             assignedReplicas.map(_.brokerId).contains(replicaId) &&
-             replica.logEndOffset.offsetDiff(leaderHW) >= 0 &&
-             leaderEpochStartOffsetOpt.exists(fetchOffset >= _)) {
-            val newInSyncReplicas = inSyncReplicas + replica
-            info(s"Expanding ISR from ${inSyncReplicas.map(_.brokerId).mkString(",")} " +
-              s"to ${newInSyncReplicas.map(_.brokerId).mkString(",")}")
-            // update ISR in ZK and cache
-            updateIsr(newInSyncReplicas)
-            replicaManager.isrExpandRate.mark()
+          // most fetches come from replicas which are already in the ISR, so only take the ISR change lock
+          // when the replica may have to be added
+          if (!inSyncReplicas.contains(replica)) {
+            inLockWithWaitTime(isrChangeLock) {
+              val leaderHW = leaderReplica.highWatermark
+              val fetchOffset = logReadResult.info.fetchOffsetMetadata.messageOffset
+              if (!inSyncReplicas.contains(replica) &&
+                 assignedReplicas.map(_.brokerId).contains(replicaId) &&
+                 replica.logEndOffset.offsetDiff(leaderHW) >= 0 &&
+                 leaderEpochStartOffsetOpt.exists(fetchOffset >= _)) {
+                val newInSyncReplicas = inSyncReplicas + replica
+                info(s"Expanding ISR from ${inSyncReplicas.map(_.brokerId).mkString(",")} " +
+                  s"to ${newInSyncReplicas.map(_.brokerId).mkString(",")}")
+                // update ISR in ZK and cache
+                updateIsr(newInSyncReplicas)
+                replicaManager.isrExpandRate.mark()
+              }
+            }
           }
           // check if the HW of the partition can now be incremented
           // since the replica may already be in the ISR and its LEO has just incremented
@@ -534,10 +590,11 @@ class Partition(val topicPartition: TopicPartition,
    * produce request.
    */
   def checkEnoughReplicasReachOffset(requiredOffset: Long): (Boolean, Errors) = {
-    leaderReplicaIfLocal match {
+    // keep the current immutable leader and replica list reference
+    val state = leaderIsrState
+    leaderReplicaIfLocal(state) match {
       case Some(leaderReplica) =>
-        // keep the current immutable replica list reference
-        val curInSyncReplicas = inSyncReplicas
+        val curInSyncReplicas = state.inSyncReplicas
 
         if (isTraceEnabled) {
           def logEndOffsetString(r: Replica) = s"broker ${r.brokerId}: ${r.logEndOffset.messageOffset}"
@@ -580,12 +637,13 @@ class Partition(val topicPartition: TopicPartition,
    * will never be added to ISR.
    *
    * Returns true if the HW was incremented, and false otherwise.
-   * Note There is no need to acquire the leaderIsrUpdate lock here
-   * since all callers of this private API acquire that lock
+   * Note all callers of this private API hold the leaderIsrUpdate lock, but since appends and ISR changes may
+   * call it concurrently under the read lock, the HW is read and updated under highWatermarkUpdateLock.
    */
-  private def maybeIncrementLeaderHW(leaderReplica: Replica, curTime: Long = time.milliseconds): Boolean = {
+  private def maybeIncrementLeaderHW(leaderReplica: Replica, curTime: Long = time.milliseconds): Boolean = highWatermarkUpdateLock synchronized {
+    val curInSyncReplicas = inSyncReplicas
     val allLogEndOffsets = assignedReplicas.filter { replica =>
-      curTime - replica.lastCaughtUpTimeMs <= replicaLagTimeMaxMs || inSyncReplicas.contains(replica)
+      curTime - replica.lastCaughtUpTimeMs <= replicaLagTimeMaxMs || curInSyncReplicas.contains(replica)
     }.map(_.logEndOffset)
     val newHighWatermark = allLogEndOffsets.min(new LogOffsetMetadata.OffsetOrdering)
     val oldHighWatermark = leaderReplica.highWatermark
@@ -630,21 +688,28 @@ class Partition(val topicPartition: TopicPartition,
   }
 
   def maybeShrinkIsr(replicaMaxLagTimeMs: Long) {
-    val leaderHWIncremented = inWriteLock(leaderIsrUpdateLock) {
+    val leaderHWIncremented = inReadLock(leaderIsrUpdateLock) {
       leaderReplicaIfLocal match {
         case Some(leaderReplica) =>
-          val outOfSyncReplicas = getOutOfSyncReplicas(leaderReplica, replicaMaxLagTimeMs)
-          if(outOfSyncReplicas.nonEmpty) {
-            val newInSyncReplicas = inSyncReplicas -- outOfSyncReplicas
-            assert(newInSyncReplicas.nonEmpty)
-            info("Shrinking ISR from %s to %s".format(inSyncReplicas.map(_.brokerId).mkString(","),
-              newInSyncReplicas.map(_.brokerId).mkString(",")))
-            // update ISR in zk and in cache
-            updateIsr(newInSyncReplicas)
-            // we may need to increment high watermark since ISR could be down to 1
-
-            replicaManager.isrShrinkRate.mark()
-            maybeIncrementLeaderHW(leaderReplica)
+          // the ISR is checked without the ISR change lock first since it usually does not need to shrink
+          if (getOutOfSyncReplicas(leaderReplica, replicaMaxLagTimeMs).nonEmpty) {
+            inLockWithWaitTime(isrChangeLock) {
+              val outOfSyncReplicas = getOutOfSyncReplicas(leaderReplica, replicaMaxLagTimeMs)
+              if (outOfSyncReplicas.nonEmpty) {
+                val newInSyncReplicas = inSyncReplicas -- outOfSyncReplicas
+                assert(newInSyncReplicas.nonEmpty)
+                info("Shrinking ISR from %s to %s".format(inSyncReplicas.map(_.brokerId).mkString(","),
+                  newInSyncReplicas.map(_.brokerId).mkString(",")))
+                // update ISR in zk and in cache
+                updateIsr(newInSyncReplicas)
+                // we may need to increment high watermark since ISR could be down to 1
+
+                replicaManager.isrShrinkRate.mark()
+                maybeIncrementLeaderHW(leaderReplica)
+              } else {
+                false
+              }
+            }
           } else {
             false
           }
@@ -725,21 +790,25 @@ class Partition(val topicPartition: TopicPartition,
     }
   }
 
-  def appendRecordsToLeader(records: MemoryRecords, isFromClient: Boolean, requiredAcks: Int = 0): LogAppendInfo = {
+  def appendRecordsToLeader(records: MemoryRecords, isFromClient: Boolean, requiredAcks: Int = 0,
+                            trustedProducer: Boolean = false): LogAppendInfo = {
     val (info, leaderHWIncremented) = inReadLock(leaderIsrUpdateLock) {
-      leaderReplicaIfLocal match {
+      // The leadership cannot change while the read lock is held, but the ISR may shrink concurrently. In that case
+      // checkEnoughReplicasReachOffset() fails the produce request with NOT_ENOUGH_REPLICAS_AFTER_APPEND.
+      val state = leaderIsrState
+      leaderReplicaIfLocal(state) match {
         case Some(leaderReplica) =>
           val log = leaderReplica.log.get
           val minIsr = log.config.minInSyncReplicas
-          val inSyncSize = inSyncReplicas.size
+          val inSyncSize = state.inSyncReplicas.size
 
           // Avoid writing to leader if there are not enough insync replicas to make it safe
           if (inSyncSize < minIsr && requiredAcks == -1) {
-            throw new NotEnoughReplicasException(s"The size of the current ISR ${inSyncReplicas.map(_.brokerId)} " +
+            throw new NotEnoughReplicasException(s"The size of the current ISR ${state.inSyncReplicas.map(_.brokerId)} " +
               s"is insufficient to satisfy the min.isr requirement of $minIsr for partition $topicPartition")
           }
 
-          val info = log.appendAsLeader(records, leaderEpoch = this.leaderEpoch, isFromClient)
+          val info = log.appendAsLeader(records, leaderEpoch = state.leaderEpoch, isFromClient, trustedProducer)
           // we may need to increment high watermark since ISR could be down to 1
           (info, maybeIncrementLeaderHW(leaderReplica))
 
@@ -982,6 +1051,10 @@ class Partition(val topicPartition: TopicPartition,
     }
   }
 
+  /**
+   * Update the ISR in ZK and then in the cached leader and ISR state. The caller must hold the read lock of
+   * leaderIsrUpdateLock and isrChangeLock, so that neither the leadership nor the ISR can change concurrently.
+   */
   private def updateIsr(newIsr: Set[Replica]) {
     val newLeaderAndIsr = new LeaderAndIsr(localBrokerId, leaderEpoch, newIsr.map(_.brokerId).toList, zkVersion)
     val (updateSucceeded, newVersion) = ReplicationUtils.updateLeaderAndIsr(zkClient, topicPartition, newLeaderAndIsr,
@@ -989,8 +1062,7 @@ class Partition(val topicPartition: TopicPartition,
 
     if (updateSucceeded) {
       replicaManager.recordIsrChange(topicPartition)
-      inSyncReplicas = newIsr
-      zkVersion = newVersion
+      leaderIsrState = leaderIsrState.copy(inSyncReplicas = newIsr, zkVersion = newVersion)
       trace("ISR updated to [%s] and zkVersion updated to [%d]".format(newIsr.mkString(","), zkVersion))
     } else {
       replicaManager.failedIsrUpdatesRate.mark()
@@ -1007,6 +1079,27 @@ class Partition(val topicPartition: TopicPartition,
     removeMetric("InSyncReplicasCount", tags)
     removeMetric("ReplicasCount", tags)
     removeMetric("LastStableOffsetLag", tags)
+    removeMetric("LeaderIsrLockWaitTimeMs", tags)
+  }
+
+  private def inReadLock[T](lock: ReentrantReadWriteLock)(fun: => T): T = inLockWithWaitTime(lock.readLock)(fun)
+
+  private def inWriteLock[T](lock: ReentrantReadWriteLock)(fun: => T): T = inLockWithWaitTime(lock.writeLock)(fun)
+
+  /**
+   * Execute the given function holding the lock and add the time spent waiting for the lock to the
+   * LeaderIsrLockWaitTimeMs metric. The lock is always taken with `lock()`: unlike `lock()`, `tryLock()` on the read
+   * lock does not give way to a queued writer, so a fast path with it could starve the writers.
+   */
+  private def inLockWithWaitTime[T](lock: Lock)(fun: => T): T = {
+    val startNs = time.nanoseconds
+    lock.lock()
+    lockWaitTimeNs.add(time.nanoseconds - startNs)
+    try {
+      fun
+    } finally {
+      lock.unlock()
+    }
   }
 
   override def equals(that: Any): Boolean = that match {
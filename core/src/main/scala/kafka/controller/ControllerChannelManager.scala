@@ -107,14 +107,21 @@ class ControllerChannelManager(controllerContext: ControllerContext, config: Kaf
   private def addNewBroker(broker: Broker) {
     val messageQueue = new LinkedBlockingQueue[QueueItem]
     debug(s"Controller ${config.brokerId} trying to connect to broker ${broker.id}")
-    val brokerNode = broker.node(config.interBrokerListenerName)
+    // the requests of the controller are sent to the control plane listener of the brokers if there is one
+    val (listenerName, securityProtocol) = config.controlPlaneListenerName match {
+      case Some(controlPlaneListenerName) =>
+        (controlPlaneListenerName, config.listenerSecurityProtocolMap(controlPlaneListenerName))
+      case None =>
+        (config.interBrokerListenerName, config.interBrokerSecurityProtocol)
+    }
+    val brokerNode = broker.node(listenerName)
     val logContext = new LogContext(s"[Controller id=${config.brokerId}, targetBrokerId=${brokerNode.idString}] ")
     val networkClient = {
       val channelBuilder = ChannelBuilders.clientChannelBuilder(
-        config.interBrokerSecurityProtocol,
+        securityProtocol,
         JaasContext.Type.SERVER,
         config,
-        config.interBrokerListenerName,
+        listenerName,
         config.saslMechanismInterBrokerProtocol,
         time,
         config.saslInterBrokerHandshakeRequestEnable
@@ -362,37 +369,117 @@ class ControllerBrokerRequestBatch(controller: KafkaController, stateChangeLogge
   /** Send UpdateMetadataRequest to the given brokers for the given partitions and partitions that are being deleted */
   def addUpdateMetadataRequestForBrokers(brokerIds: Seq[Int],
                                          partitions: collection.Set[TopicPartition]) {
+    updateMetadataRequestBrokerSet ++= brokerIds.filter(_ >= 0)
+    partitions.foreach { partition =>
+      updateMetadataPartitionState(partition) match {
+        case Some(partitionState) => updateMetadataRequestPartitionInfoMap.put(partition, partitionState)
+        case None => info(s"Leader not yet assigned for partition $partition. Skip sending UpdateMetadataRequest.")
+      }
+    }
+  }
 
-    def updateMetadataRequestPartitionInfo(partition: TopicPartition, beingDeleted: Boolean) {
-      val leaderIsrAndControllerEpochOpt = controllerContext.partitionLeadershipInfo.get(partition)
-      leaderIsrAndControllerEpochOpt match {
-        case Some(l @ LeaderIsrAndControllerEpoch(leaderAndIsr, controllerEpoch)) =>
-          val replicas = controllerContext.partitionReplicaAssignment(partition)
-          val offlineReplicas = replicas.filter(!controllerContext.isReplicaOnline(_, partition))
-          val leaderIsrAndControllerEpoch = if (beingDeleted) {
-            val leaderDuringDelete = LeaderAndIsr.duringDelete(leaderAndIsr.isr)
-            LeaderIsrAndControllerEpoch(leaderDuringDelete, controllerEpoch)
-          } else {
-            l
-          }
+  private def updateMetadataPartitionState(partition: TopicPartition): Option[UpdateMetadataRequest.PartitionState] = {
+    controllerContext.partitionLeadershipInfo.get(partition).map {
+      case l @ LeaderIsrAndControllerEpoch(leaderAndIsr, controllerEpoch) =>
+        val replicas = controllerContext.partitionReplicaAssignment(partition)
+        val offlineReplicas = replicas.filter(!controllerContext.isReplicaOnline(_, partition))
+        val leaderIsrAndControllerEpoch = if (controller.topicDeletionManager.topicsToBeDeleted.contains(partition.topic)) {
+          val leaderDuringDelete = LeaderAndIsr.duringDelete(leaderAndIsr.isr)
+          LeaderIsrAndControllerEpoch(leaderDuringDelete, controllerEpoch)
+        } else {
+          l
+        }
 
-          val partitionStateInfo = new UpdateMetadataRequest.PartitionState(leaderIsrAndControllerEpoch.controllerEpoch,
-            leaderIsrAndControllerEpoch.leaderAndIsr.leader,
-            leaderIsrAndControllerEpoch.leaderAndIsr.leaderEpoch,
-            leaderIsrAndControllerEpoch.leaderAndIsr.isr.map(Integer.valueOf).asJava,
-            leaderIsrAndControllerEpoch.leaderAndIsr.zkVersion,
-            replicas.map(Integer.valueOf).asJava,
-            offlineReplicas.map(Integer.valueOf).asJava)
-          updateMetadataRequestPartitionInfoMap.put(partition, partitionStateInfo)
+        new UpdateMetadataRequest.PartitionState(leaderIsrAndControllerEpoch.controllerEpoch,
+          leaderIsrAndControllerEpoch.leaderAndIsr.leader,
+          leaderIsrAndControllerEpoch.leaderAndIsr.leaderEpoch,
+          leaderIsrAndControllerEpoch.leaderAndIsr.isr.map(Integer.valueOf).asJava,
+          leaderIsrAndControllerEpoch.leaderAndIsr.zkVersion,
+          replicas.map(Integer.valueOf).asJava,
+          offlineReplicas.map(Integer.valueOf).asJava)
+    }
+  }
 
-        case None =>
-          info(s"Leader not yet assigned for partition $partition. Skip sending UpdateMetadataRequest.")
+  private def updateMetadataRequestBrokers(brokers: Set[Broker], version: Short): Set[UpdateMetadataRequest.Broker] = {
+    if (version == 0) {
+      // Version 0 of UpdateMetadataRequest only supports PLAINTEXT.
+      brokers.map { broker =>
+        val securityProtocol = SecurityProtocol.PLAINTEXT
+        val listenerName = ListenerName.forSecurityProtocol(securityProtocol)
+        val node = broker.node(listenerName)
+        val endPoints = Seq(new EndPoint(node.host, node.port, securityProtocol, listenerName))
+        new UpdateMetadataRequest.Broker(broker.id, endPoints.asJava, broker.rack.orNull)
+      }
+    } else {
+      brokers.map { broker =>
+        val endPoints = broker.endPoints.map { endPoint =>
+          new UpdateMetadataRequest.EndPoint(endPoint.host, endPoint.port, endPoint.securityProtocol, endPoint.listenerName)
+        }
+        new UpdateMetadataRequest.Broker(broker.id, endPoints.asJava, broker.rack.orNull)
       }
     }
+  }
 
-    updateMetadataRequestBrokerSet ++= brokerIds.filter(_ >= 0)
-    partitions.foreach(partition => updateMetadataRequestPartitionInfo(partition,
-      beingDeleted = controller.topicDeletionManager.topicsToBeDeleted.contains(partition.topic)))
+  /**
+   * Send the UpdateMetadata requests of the batch as a sequence of metadata epochs per broker. A broker without a
+   * metadata state, which joined or was never sent an update by this controller or missed an update, is sent the whole
+   * metadata. Any other broker is only sent the partitions and brokers which changed since its previous update.
+   */
+  private def sendIncrementalUpdateMetadataRequests(controllerEpoch: Int, brokerIds: collection.Set[Int], version: Short,
+                                                    partitionStates: Map[TopicPartition, UpdateMetadataRequest.PartitionState]): Unit = {
+    val publishedPartitionStates = controllerContext.publishedPartitionStates
+    val brokerMetadataStates = controllerContext.brokerMetadataStates
+    // The brokers with a metadata state hold the published partition states, so an update sent to all of them can
+    // leave out the partitions whose state was already published. An update sent to some of them only makes the
+    // states of its partitions differ between brokers, the brokers without a state are sent the full metadata anyway.
+    val changedPartitionStates =
+      if (brokerMetadataStates.keySet.subsetOf(brokerIds)) {
+        val changed = partitionStates.filter { case (tp, state) => !publishedPartitionStates.get(tp).contains(state) }
+        publishedPartitionStates ++= changed
+        changed
+      } else {
+        if (brokerIds.exists(brokerMetadataStates.contains))
+          publishedPartitionStates --= partitionStates.keys
+        partitionStates
+      }
+
+    lazy val fullPartitionStates: Map[TopicPartition, UpdateMetadataRequest.PartitionState] =
+      controllerContext.partitionLeadershipInfo.keys.flatMap { tp =>
+        updateMetadataPartitionState(tp).map(tp -> _)
+      }.toMap
+    val liveBrokers = controllerContext.liveOrShuttingDownBrokers
+
+    brokerIds.foreach { broker =>
+      val updateMetadataRequestOpt = brokerMetadataStates.get(broker) match {
+        case Some(state) =>
+          val changedBrokers = liveBrokers -- state.liveBrokers
+          val removedBrokerIds = state.liveBrokers.map(_.id) -- liveBrokers.map(_.id)
+          if (changedPartitionStates.isEmpty && changedBrokers.isEmpty && removedBrokerIds.isEmpty) {
+            None
+          } else {
+            val metadataEpoch = state.metadataEpoch + 1
+            brokerMetadataStates.put(broker, state.copy(metadataEpoch = metadataEpoch, liveBrokers = liveBrokers))
+            Some((metadataEpoch, false, changedPartitionStates, changedBrokers, removedBrokerIds))
+          }
+        case None =>
+          val metadataEpoch = controllerContext.lastMetadataEpoch + 1
+          brokerMetadataStates.put(broker, BrokerMetadataState(metadataEpoch, metadataEpoch, liveBrokers))
+          // the broker now holds the current state of every partition, which may differ from a published state
+          // sent to some brokers only
+          publishedPartitionStates.retain { case (tp, state) => fullPartitionStates.get(tp).contains(state) }
+          Some((metadataEpoch, true, fullPartitionStates, liveBrokers, Set.empty[Int]))
+      }
+
+      updateMetadataRequestOpt.foreach { case (metadataEpoch, fullUpdate, states, brokers, removedBrokerIds) =>
+        controllerContext.lastMetadataEpoch = math.max(controllerContext.lastMetadataEpoch, metadataEpoch)
+        val brokerEpoch = controllerContext.liveBrokerIdAndEpochs(broker)
+        val updateMetadataRequest = new UpdateMetadataRequest.Builder(version, controllerId, controllerEpoch,
+          brokerEpoch, states.asJava, updateMetadataRequestBrokers(brokers, version).asJava, metadataEpoch, fullUpdate,
+          removedBrokerIds.map(Integer.valueOf).asJava)
+        controller.sendRequest(broker, ApiKeys.UPDATE_METADATA, updateMetadataRequest,
+          (r: AbstractResponse) => controller.eventManager.put(controller.UpdateMetadataResponseReceived(r, broker, metadataEpoch)))
+      }
+    }
   }
 
   def sendRequestsToBrokers(controllerEpoch: Int) {
@@ -433,37 +520,27 @@ class ControllerBrokerRequestBatch(controller: KafkaController, stateChangeLogge
 
       val partitionStates = Map.empty ++ updateMetadataRequestPartitionInfoMap
       val updateMetadataRequestVersion: Short =
-        if (controller.config.interBrokerProtocolVersion >= KAFKA_2_2_IV0) 5
+        if (controller.config.interBrokerProtocolVersion >= KAFKA_2_2_IV2) 6
+        else if (controller.config.interBrokerProtocolVersion >= KAFKA_2_2_IV0) 5
         else if (controller.config.interBrokerProtocolVersion >= KAFKA_1_0_IV0) 4
         else if (controller.config.interBrokerProtocolVersion >= KAFKA_0_10_2_IV0) 3
         else if (controller.config.interBrokerProtocolVersion >= KAFKA_0_10_0_IV1) 2
         else if (controller.config.interBrokerProtocolVersion >= KAFKA_0_9_0) 1
         else 0
 
-      val liveBrokers = if (updateMetadataRequestVersion == 0) {
-        // Version 0 of UpdateMetadataRequest only supports PLAINTEXT.
-        controllerContext.liveOrShuttingDownBrokers.map { broker =>
-          val securityProtocol = SecurityProtocol.PLAINTEXT
-          val listenerName = ListenerName.forSecurityProtocol(securityProtocol)
-          val node = broker.node(listenerName)
-          val endPoints = Seq(new EndPoint(node.host, node.port, securityProtocol, listenerName))
-          new UpdateMetadataRequest.Broker(broker.id, endPoints.asJava, broker.rack.orNull)
-        }
+      val updateMetadataBrokerIds = updateMetadataRequestBrokerSet.intersect(controllerContext.liveOrShuttingDownBrokerIds)
+      if (updateMetadataRequestVersion >= 6) {
+        sendIncrementalUpdateMetadataRequests(controllerEpoch, updateMetadataBrokerIds, updateMetadataRequestVersion,
+          partitionStates)
       } else {
-        controllerContext.liveOrShuttingDownBrokers.map { broker =>
-          val endPoints = broker.endPoints.map { endPoint =>
-            new UpdateMetadataRequest.EndPoint(endPoint.host, endPoint.port, endPoint.securityProtocol, endPoint.listenerName)
-          }
-          new UpdateMetadataRequest.Broker(broker.id, endPoints.asJava, broker.rack.orNull)
+        val liveBrokers = updateMetadataRequestBrokers(controllerContext.liveOrShuttingDownBrokers, updateMetadataRequestVersion)
+        updateMetadataBrokerIds.foreach { broker =>
+          val brokerEpoch = controllerContext.liveBrokerIdAndEpochs(broker)
+          val updateMetadataRequest = new UpdateMetadataRequest.Builder(updateMetadataRequestVersion, controllerId, controllerEpoch,
+            brokerEpoch, partitionStates.asJava, liveBrokers.asJava)
+          controller.sendRequest(broker, ApiKeys.UPDATE_METADATA, updateMetadataRequest, null)
         }
       }
-
-      updateMetadataRequestBrokerSet.intersect(controllerContext.liveOrShuttingDownBrokerIds).foreach { broker =>
-        val brokerEpoch = controllerContext.liveBrokerIdAndEpochs(broker)
-        val updateMetadataRequest = new UpdateMetadataRequest.Builder(updateMetadataRequestVersion, controllerId, controllerEpoch,
-          brokerEpoch, partitionStates.asJava, liveBrokers.asJava)
-        controller.sendRequest(broker, ApiKeys.UPDATE_METADATA, updateMetadataRequest, null)
-      }
       updateMetadataRequestBrokerSet.clear()
       updateMetadataRequestPartitionInfoMap.clear()
 
@@ -19,9 +19,19 @@ package kafka.controller
 
 import kafka.cluster.Broker
 import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.requests.UpdateMetadataRequest
 
 import scala.collection.{Seq, Set, mutable}
 
+/**
+ * The position of a broker in the sequence of UpdateMetadata requests sent to it by the controller.
+ *
+ * @param fullUpdateEpoch the metadata epoch of the last full update sent to the broker
+ * @param metadataEpoch the metadata epoch of the last update sent to the broker
+ * @param liveBrokers the live brokers known by the broker once it applied the last update
+ */
+case class BrokerMetadataState(fullUpdateEpoch: Long, metadataEpoch: Long, liveBrokers: Set[Broker])
+
 class ControllerContext {
   val stats = new ControllerStats
 
@@ -39,6 +49,15 @@ class ControllerContext {
   private var liveBrokersUnderlying: Set[Broker] = Set.empty
   private var liveBrokerIdAndEpochsUnderlying: Map[Int, Long] = Map.empty
 
+  // The brokers which are sent incremental UpdateMetadata requests, a broker without a state is sent a full update
+  val brokerMetadataStates: mutable.Map[Int, BrokerMetadataState] = mutable.Map.empty
+  // The partition states which were sent to all the brokers with a metadata state, the incremental UpdateMetadata
+  // requests leave out the partitions which did not change since
+  val publishedPartitionStates: mutable.Map[TopicPartition, UpdateMetadataRequest.PartitionState] = mutable.Map.empty
+  // The highest metadata epoch sent to any broker, full updates start after it so that the epochs sent to a broker
+  // keep increasing across resyncs
+  var lastMetadataEpoch: Long = UpdateMetadataRequest.NO_METADATA_EPOCH
+
   def partitionReplicaAssignment(topicPartition: TopicPartition): Seq[Int] = {
     partitionReplicaAssignmentUnderlying.getOrElse(topicPartition.topic, mutable.Map.empty)
       .getOrElse(topicPartition.partition, Seq.empty)
@@ -50,6 +69,7 @@ class ControllerContext {
     partitionLeadershipInfo.clear()
     partitionsBeingReassigned.clear()
     replicasOnOfflineDirs.clear()
+    publishedPartitionStates.clear()
   }
 
   def updatePartitionReplicaAssignment(topicPartition: TopicPartition, newReplicas: Seq[Int]): Unit = {
@@ -86,6 +106,7 @@ class ControllerContext {
   def removeLiveBrokersAndEpochs(brokerIds : Set[Int]): Unit = {
     liveBrokersUnderlying = liveBrokersUnderlying.filter(broker => !brokerIds.contains(broker.id))
     liveBrokerIdAndEpochsUnderlying = liveBrokerIdAndEpochsUnderlying.filterKeys(id => !brokerIds.contains(id))
+    brokerMetadataStates --= brokerIds
   }
 
   def updateBrokerMetadata(oldMetadata: Option[Broker], newMetadata: Option[Broker]): Unit = {
@@ -165,6 +186,8 @@ class ControllerContext {
     epochZkVersion = 0
     clearTopicsState()
     setLiveBrokerAndEpochs(Map.empty)
+    brokerMetadataStates.clear()
+    lastMetadataEpoch = UpdateMetadataRequest.NO_METADATA_EPOCH
   }
 
   def removeTopic(topic: String): Unit = {
@@ -174,5 +197,6 @@ class ControllerContext {
       case (topicPartition, _) if topicPartition.topic == topic => partitionLeadershipInfo.remove(topicPartition)
       case _ =>
     }
+    publishedPartitionStates.retain { case (topicPartition, _) => topicPartition.topic != topic }
   }
 }
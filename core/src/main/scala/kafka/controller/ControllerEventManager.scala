@@ -20,7 +20,8 @@ package kafka.controller
 import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.locks.ReentrantLock
 
-import com.yammer.metrics.core.Gauge
+import com.yammer.metrics.core.{Gauge, Histogram}
+import kafka.controller.ControllerEventManager._
 import kafka.metrics.{KafkaMetricsGroup, KafkaTimer}
 import kafka.utils.CoreUtils.inLock
 import kafka.utils.ShutdownableThread
@@ -31,14 +32,29 @@ import scala.collection._
 
 object ControllerEventManager {
   val ControllerEventThreadName = "controller-event-thread"
+
+  // The simple name of the class of the event, `getSimpleName` can fail for classes nested in Scala objects
+  private[controller] def eventName(event: ControllerEvent): String = {
+    val className = event.getClass.getName.stripSuffix("$")
+    className.substring(math.max(className.lastIndexOf('$'), className.lastIndexOf('.')) + 1)
+  }
+
+  private case class QueuedEvent(event: ControllerEvent, enqueueTimeMs: Long)
+
+  private class EventMetrics(val queueTimeHist: Histogram, val processingTimeHist: Histogram)
 }
+
 class ControllerEventManager(controllerId: Int, rateAndTimeMetrics: Map[ControllerState, KafkaTimer],
                              eventProcessedListener: ControllerEvent => Unit,
                              controllerMovedListener: () => Unit) extends KafkaMetricsGroup {
 
   @volatile private var _state: ControllerState = ControllerState.Idle
   private val putLock = new ReentrantLock()
-  private val queue = new LinkedBlockingQueue[ControllerEvent]
+  private val queue = new LinkedBlockingQueue[QueuedEvent]
+  // The coalescable events that are in the queue, guarded by putLock
+  private val queuedCoalescableEvents = mutable.Set[ControllerEvent]()
+  // Only accessed by the event thread, and by `close` once the thread has stopped
+  private val eventMetrics = mutable.Map[String, EventMetrics]()
   // Visible for test
   private[controller] val thread = new ControllerEventThread(ControllerEventManager.ControllerEventThreadName)
   private val time = Time.SYSTEM
@@ -62,27 +78,55 @@ class ControllerEventManager(controllerId: Int, rateAndTimeMetrics: Map[Controll
   def close(): Unit = {
     clearAndPut(KafkaController.ShutdownEventThread)
     thread.awaitShutdown()
+    eventMetrics.keys.foreach { name =>
+      val tags = Map("event" -> name)
+      removeMetric("EventQueueTimeMs", tags)
+      removeMetric("EventProcessingTimeMs", tags)
+    }
+    eventMetrics.clear()
   }
 
+  /**
+   * Queues the event. A coalescable event is dropped if an equal event is still in the queue: that event has not
+   * started processing yet, so it will see the changes that triggered this one.
+   */
   def put(event: ControllerEvent): Unit = inLock(putLock) {
-    queue.put(event)
+    if (!event.coalescable || queuedCoalescableEvents.add(event))
+      queue.put(QueuedEvent(event, time.milliseconds()))
   }
 
   def clearAndPut(event: ControllerEvent): Unit = inLock(putLock) {
     queue.clear()
+    queuedCoalescableEvents.clear()
     put(event)
   }
 
+  private def metricsFor(event: ControllerEvent): EventMetrics = {
+    val name = eventName(event)
+    eventMetrics.getOrElseUpdate(name, {
+      val tags = Map("event" -> name)
+      new EventMetrics(newHistogram("EventQueueTimeMs", tags = tags), newHistogram("EventProcessingTimeMs", tags = tags))
+    })
+  }
+
   class ControllerEventThread(name: String) extends ShutdownableThread(name = name, isInterruptible = false) {
     logIdent = s"[ControllerEventThread controllerId=$controllerId] "
 
     override def doWork(): Unit = {
       queue.take() match {
-        case KafkaController.ShutdownEventThread => initiateShutdown()
-        case controllerEvent =>
+        case QueuedEvent(KafkaController.ShutdownEventThread, _) => initiateShutdown()
+        case QueuedEvent(controllerEvent, enqueueTimeMs) =>
+          // Equal events put from now on are queued again, they may be triggered by changes that this processing misses
+          if (controllerEvent.coalescable)
+            inLock(putLock) {
+              queuedCoalescableEvents.remove(controllerEvent)
+            }
           _state = controllerEvent.state
 
-          eventQueueTimeHist.update(time.milliseconds() - controllerEvent.enqueueTimeMs)
+          val metrics = metricsFor(controllerEvent)
+          val startTimeMs = time.milliseconds()
+          eventQueueTimeHist.update(startTimeMs - enqueueTimeMs)
+          metrics.queueTimeHist.update(startTimeMs - enqueueTimeMs)
 
           try {
             rateAndTimeMetrics(state).time {
@@ -94,6 +138,7 @@ class ControllerEventManager(controllerId: Int, rateAndTimeMetrics: Map[Controll
               controllerMovedListener()
             case e: Throwable => error(s"Error processing event $controllerEvent", e)
           }
+          metrics.processingTimeHist.update(time.milliseconds() - startTimeMs)
 
           try eventProcessedListener(controllerEvent)
           catch {
@@ -32,7 +32,7 @@ import org.apache.kafka.common.{KafkaException, TopicPartition}
 import org.apache.kafka.common.errors.{BrokerNotAvailableException, ControllerMovedException, StaleBrokerEpochException}
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.protocol.{ApiKeys, Errors}
-import org.apache.kafka.common.requests.{AbstractControlRequest, AbstractResponse, LeaderAndIsrResponse, StopReplicaResponse}
+import org.apache.kafka.common.requests.{AbstractControlRequest, AbstractResponse, LeaderAndIsrResponse, StopReplicaResponse, UpdateMetadataResponse}
 import org.apache.kafka.common.utils.Time
 import org.apache.zookeeper.KeeperException
 import org.apache.zookeeper.KeeperException.Code
@@ -1123,6 +1123,32 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
     }
   }
 
+  case class UpdateMetadataResponseReceived(updateMetadataResponseObj: AbstractResponse, brokerId: Int,
+                                            metadataEpoch: Long) extends ControllerEvent {
+
+    def state = ControllerState.UpdateMetadataResponseReceived
+
+    override def process(): Unit = {
+      if (!isActive) return
+      val updateMetadataResponse = updateMetadataResponseObj.asInstanceOf[UpdateMetadataResponse]
+      if (updateMetadataResponse.error == Errors.METADATA_UPDATE_OUT_OF_ORDER) {
+        // The broker missed an update of its sequence, so it rejects every update until it is sent the whole metadata
+        // again. The updates sent before the resync are rejected as well and are ignored here.
+        controllerContext.brokerMetadataStates.get(brokerId).foreach { metadataState =>
+          if (metadataEpoch > metadataState.fullUpdateEpoch) {
+            info(s"Broker $brokerId rejected UpdateMetadata request with metadata epoch $metadataEpoch, sending it " +
+              "the full metadata")
+            controllerContext.brokerMetadataStates.remove(brokerId)
+            sendUpdateMetadataRequest(Seq(brokerId), Set.empty)
+          }
+        }
+      } else if (updateMetadataResponse.error != Errors.NONE) {
+        stateChangeLogger.error(s"Received error ${updateMetadataResponse.error} in UpdateMetadata response from " +
+          s"broker $brokerId")
+      }
+    }
+  }
+
   case class TopicDeletionStopReplicaResponseReceived(stopReplicaResponseObj: AbstractResponse, replicaId: Int) extends ControllerEvent {
 
     def state = ControllerState.TopicDeletion
@@ -1260,6 +1286,8 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
   case object BrokerChange extends ControllerEvent {
     override def state: ControllerState = ControllerState.BrokerChange
 
+    override def coalescable: Boolean = true
+
     override def process(): Unit = {
       if (!isActive) return
       val curBrokerAndEpochs = zkClient.getAllBrokerAndEpochsInCluster
@@ -1309,6 +1337,8 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
   case class BrokerModifications(brokerId: Int) extends ControllerEvent {
     override def state: ControllerState = ControllerState.BrokerChange
 
+    override def coalescable: Boolean = true
+
     override def process(): Unit = {
       if (!isActive) return
       val newMetadata = zkClient.getBroker(brokerId)
@@ -1325,6 +1355,8 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
   case object TopicChange extends ControllerEvent {
     override def state: ControllerState = ControllerState.TopicChange
 
+    override def coalescable: Boolean = true
+
     override def process(): Unit = {
       if (!isActive) return
       val topics = zkClient.getAllTopicsInCluster.toSet
@@ -1348,6 +1380,8 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
   case object LogDirEventNotification extends ControllerEvent {
     override def state: ControllerState = ControllerState.LogDirChange
 
+    override def coalescable: Boolean = true
+
     override def process(): Unit = {
       if (!isActive) return
       val sequenceNumbers = zkClient.getAllLogDirEventNotifications
@@ -1364,6 +1398,8 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
   case class PartitionModifications(topic: String) extends ControllerEvent {
     override def state: ControllerState = ControllerState.TopicChange
 
+    override def coalescable: Boolean = true
+
     def restorePartitionReplicaAssignment(topic: String, newPartitionReplicaAssignment : immutable.Map[TopicPartition, Seq[Int]]): Unit = {
       info("Restoring the partition replica assignment for topic %s".format(topic))
 
@@ -1405,6 +1441,8 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
   case object TopicDeletion extends ControllerEvent {
     override def state: ControllerState = ControllerState.TopicDeletion
 
+    override def coalescable: Boolean = true
+
     override def process(): Unit = {
       if (!isActive) return
       var topicsToBeDeleted = zkClient.getTopicDeletions.toSet
@@ -1463,6 +1501,8 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
   case class PartitionReassignmentIsrChange(partition: TopicPartition) extends ControllerEvent {
     override def state: ControllerState = ControllerState.PartitionReassignment
 
+    override def coalescable: Boolean = true
+
     override def process(): Unit = {
       if (!isActive) return
       // check if this partition is still being reassigned or not
@@ -1493,6 +1533,8 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
   case object IsrChangeNotification extends ControllerEvent {
     override def state: ControllerState = ControllerState.IsrChange
 
+    override def coalescable: Boolean = true
+
     override def process(): Unit = {
       if (!isActive) return
       val sequenceNumbers = zkClient.getAllIsrChangeNotifications
@@ -1518,6 +1560,8 @@ class KafkaController(val config: KafkaConfig, zkClient: KafkaZkClient, time: Ti
   case object PreferredReplicaLeaderElection extends ControllerEvent {
     override def state: ControllerState = ControllerState.ManualLeaderBalance
 
+    override def coalescable: Boolean = true
+
     override def process(): Unit = {
       if (!isActive) return
 
@@ -1705,8 +1749,13 @@ private[controller] class ControllerStats extends KafkaMetricsGroup {
 }
 
 sealed trait ControllerEvent {
-  val enqueueTimeMs: Long = Time.SYSTEM.milliseconds()
-
   def state: ControllerState
   def process(): Unit
+
+  /**
+   * Whether the event can be dropped while an equal event is waiting in the queue of the ControllerEventManager.
+   * This is the case for events that read the state they act on (e.g. from ZooKeeper) when they are processed, so that
+   * a single processing pass covers a burst of notifications.
+   */
+  def coalescable: Boolean = false
 }
@@ -19,12 +19,15 @@ package kafka.log
 
 import java.io.{Closeable, File, RandomAccessFile}
 import java.nio.channels.FileChannel
-import java.nio.file.Files
+import java.nio.file.{Files, StandardOpenOption}
 import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.util.concurrent.atomic.{AtomicInteger, LongAdder}
 import java.util.concurrent.locks.{Lock, ReentrantLock}
 
+import com.yammer.metrics.core.Gauge
 import kafka.common.IndexOffsetOverflowException
 import kafka.log.IndexSearchType.IndexSearchEntity
+import kafka.metrics.KafkaMetricsGroup
 import kafka.utils.CoreUtils.inLock
 import kafka.utils.{CoreUtils, Logging}
 import org.apache.kafka.common.utils.{MappedByteBuffers, OperatingSystem, Utils}
@@ -107,8 +110,26 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
 
   protected val lock = new ReentrantLock
 
+  /*
+   The index file is only memory mapped when the index is first accessed, and the mapping may be released again by
+   IndexMmapBudget when too many indexes are mapped. A lookup which does not hold the lock pins the index while it uses
+   the mapping (see maybeLock), and a mapping is only released while holding the lock if the index is not pinned.
+   */
+  @volatile
+  private var _mmap: MappedByteBuffer = _
+
+  /* the number of threads using the mapping without holding the lock */
+  private val pins = new AtomicInteger
+
+  /* set once the index is closed, after which it is never mapped again */
+  @volatile
+  private var closed = false
+
+  /* set whenever the mapping is used, and cleared by IndexMmapBudget when it looks for a mapping to release */
   @volatile
-  protected var mmap: MappedByteBuffer = {
+  private[log] var referenced = false
+
+  private val initialEntries: Int = {
     val newlyCreated = file.createNewFile()
     val raf = if (writable) new RandomAccessFile(file, "rw") else new RandomAccessFile(file, "r")
     try {
@@ -119,8 +140,42 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
         raf.setLength(roundDownToExactMultiple(maxIndexSize, entrySize))
       }
 
-      /* memory-map the file */
       _length = raf.length()
+      if(newlyCreated)
+        0
+      else
+        // if this is a pre-existing index, assume it is valid up to its last entry
+        roundDownToExactMultiple(_length.toInt, entrySize) / entrySize
+    } finally {
+      CoreUtils.swallow(raf.close(), this)
+    }
+  }
+
+  /**
+   * The memory map of the index file, which is mapped on first access. This must only be used while holding the lock
+   * or within `maybeLock`. It is null once the index is closed.
+   */
+  protected def mmap: MappedByteBuffer = {
+    val current = _mmap
+    if (current != null) {
+      if (!referenced)
+        referenced = true
+      current
+    } else if (closed) {
+      null
+    } else {
+      inLock(lock) {
+        if (_mmap == null && !closed)
+          map()
+        _mmap
+      }
+    }
+  }
+
+  private def map(): Unit = {
+    val raf = if (writable) new RandomAccessFile(file, "rw") else new RandomAccessFile(file, "r")
+    try {
+      /* memory-map the file */
       val idx = {
         if (writable)
           raf.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, _length)
@@ -128,26 +183,78 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
           raf.getChannel.map(FileChannel.MapMode.READ_ONLY, 0, _length)
       }
       /* set the position in the index for the next entry */
-      if(newlyCreated)
-        idx.position(0)
-      else
-        // if this is a pre-existing index, assume it is valid and set position to last entry
-        idx.position(roundDownToExactMultiple(idx.limit(), entrySize))
-      idx
+      idx.position(_entries * entrySize)
+      referenced = true
+      _mmap = idx
     } finally {
       CoreUtils.swallow(raf.close(), this)
     }
+    IndexMmapBudget.onMapped(this)
+  }
+
+  /**
+   * Release the memory map of this index unless it is in use. The index is mapped again on its next access.
+   *
+   * @return true if the index is no longer mapped
+   */
+  private[log] def tryRelease(): Boolean = {
+    if (!lock.tryLock())
+      return false
+    try {
+      val current = _mmap
+      if (current == null) {
+        true
+      } else {
+        // readers pin the index before reading the mapping, so a reader which has not pinned the index yet cannot
+        // see the mapping once it is cleared
+        _mmap = null
+        if (pins.get > 0) {
+          _mmap = current
+          false
+        } else {
+          try {
+            if (writable)
+              current.force()
+            MappedByteBuffers.unmap(file.getAbsolutePath, current)
+          } catch {
+            case t: Throwable => error(s"Error unmapping index $file", t)
+          }
+          true
+        }
+      }
+    } finally {
+      lock.unlock()
+    }
+  }
+
+  private[log] def isMapped: Boolean = _mmap != null
+
+  /**
+   * Read the nth entry through the memory map if the index is mapped, or from the file otherwise so that reading
+   * an entry when the index is loaded does not map it. This must be called while holding the lock.
+   */
+  protected def readEntry(n: Int): IndexEntry = {
+    val current = _mmap
+    if (current != null) {
+      parseEntry(current, n)
+    } else {
+      val buffer = ByteBuffer.allocate(entrySize)
+      val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+      try Utils.readFully(channel, buffer, n.toLong * entrySize)
+      finally channel.close()
+      parseEntry(buffer, 0)
+    }
   }
 
   /**
    * The maximum number of entries this index can hold
    */
   @volatile
-  private[this] var _maxEntries = mmap.limit() / entrySize
+  private[this] var _maxEntries = (_length / entrySize).toInt
 
   /** The number of entries in this index */
   @volatile
-  protected var _entries = mmap.position() / entrySize
+  protected var _entries = initialEntries
 
   /**
    * True iff there are no more slots available in this index
@@ -178,16 +285,22 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
       } else {
         val raf = new RandomAccessFile(file, "rw")
         try {
-          val position = mmap.position()
+          val mapped = _mmap != null
 
           /* Windows won't let us modify the file length while the file is mmapped :-( */
           if (OperatingSystem.IS_WINDOWS)
-            safeForceUnmap()
+            safeUnmap()
           raf.setLength(roundedNewSize)
           _length = roundedNewSize
-          mmap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, roundedNewSize)
-          _maxEntries = mmap.limit() / entrySize
-          mmap.position(position)
+          _maxEntries = roundedNewSize / entrySize
+          /* an index which is not mapped is mapped with its new size on the next access */
+          if (mapped) {
+            val idx = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, roundedNewSize)
+            idx.position(_entries * entrySize)
+            _mmap = idx
+            if (OperatingSystem.IS_WINDOWS)
+              IndexMmapBudget.onMapped(this)
+          }
           true
         } finally {
           CoreUtils.swallow(raf.close(), this)
@@ -211,7 +324,10 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
    */
   def flush() {
     inLock(lock) {
-      mmap.force()
+      // a mapping is forced when it is released, so there is nothing to flush if the index is not mapped
+      val current = _mmap
+      if (current != null)
+        current.force()
     }
   }
 
@@ -254,7 +370,8 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
     // To prevent this, we forcefully cleanup memory mapping within proper execution which never affects API responsiveness.
     // See https://issues.apache.org/jira/browse/KAFKA-4614 for the details.
     inLock(lock) {
-      safeForceUnmap()
+      closed = true
+      safeUnmap()
     }
   }
 
@@ -304,33 +421,46 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
     toRelative(offset).isDefined
   }
 
-  protected def safeForceUnmap(): Unit = {
-    try forceUnmap()
+  private def safeUnmap(): Unit = {
+    try unmap()
     catch {
       case t: Throwable => error(s"Error unmapping index $file", t)
     }
   }
 
   /**
-   * Forcefully free the buffer's mmap.
+   * Forcefully free the buffer's mmap and close the index.
    */
   protected[log] def forceUnmap() {
-    try MappedByteBuffers.unmap(file.getAbsolutePath, mmap)
-    finally mmap = null // Accessing unmapped mmap crashes JVM by SEGV so we null it out to be safe
+    closed = true
+    unmap()
+  }
+
+  private def unmap(): Unit = {
+    val current = _mmap
+    _mmap = null // Accessing unmapped mmap crashes JVM by SEGV so we null it out to be safe
+    IndexMmapBudget.onUnmapped(this)
+    if (current != null)
+      MappedByteBuffers.unmap(file.getAbsolutePath, current)
   }
 
   /**
    * Execute the given function in a lock only if we are running on windows. We do this
    * because Windows won't let us resize a file while it is mmapped. As a result we have to force unmap it
-   * and this requires synchronizing reads.
+   * and this requires synchronizing reads. Elsewhere the index is pinned instead, so that IndexMmapBudget
+   * does not release the mapping while the function uses it.
    */
   protected def maybeLock[T](lock: Lock)(fun: => T): T = {
     if (OperatingSystem.IS_WINDOWS)
       lock.lock()
+    else
+      pins.incrementAndGet()
     try fun
     finally {
       if (OperatingSystem.IS_WINDOWS)
         lock.unlock()
+      else
+        pins.decrementAndGet()
     }
   }
 
@@ -389,9 +519,16 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
     val firstHotEntry = Math.max(0, _entries - 1 - _warmEntries)
     // check if the target offset is in the warm section of the index
     if(compareIndexEntry(parseEntry(idx, firstHotEntry), target, searchEntity) < 0) {
+      IndexLookupStats.recordWarmLookup()
       return binarySearch(firstHotEntry, _entries - 1)
     }
 
+    // the rest of the lookup may touch pages which are not in the page cache
+    if (firstHotEntry > 0)
+      IndexLookupStats.recordColdLookup()
+    else
+      IndexLookupStats.recordWarmLookup()
+
     // check if the target offset is smaller than the least offset
     if(compareIndexEntry(parseEntry(idx, 0), target, searchEntity) > 0)
       return (-1, 0)
@@ -422,6 +559,39 @@ abstract class AbstractIndex[K, V](@volatile var file: File, val baseOffset: Lon
 
 }
 
+/**
+ * Counts the index lookups which were answered from the warm section at the end of an index, and the lookups which
+ * had to search the rest of the index and are therefore prone to page faults. See the comment on the warm section in
+ * AbstractIndex.
+ */
+object IndexLookupStats extends KafkaMetricsGroup {
+  // lookups are on the fetch path, so use striped counters rather than meters
+  private val warmLookups = new LongAdder
+  private val coldLookups = new LongAdder
+
+  newGauge(
+    "WarmIndexLookups",
+    new Gauge[Long] {
+      def value = numWarmLookups
+    }
+  )
+
+  newGauge(
+    "ColdIndexLookups",
+    new Gauge[Long] {
+      def value = numColdLookups
+    }
+  )
+
+  def recordWarmLookup(): Unit = warmLookups.increment()
+
+  def recordColdLookup(): Unit = coldLookups.increment()
+
+  def numWarmLookups: Long = warmLookups.sum
+
+  def numColdLookups: Long = coldLookups.sum
+}
+
 object IndexSearchType extends Enumeration {
   type IndexSearchEntity = Value
   val KEY, VALUE = Value
@@ -21,6 +21,7 @@ package kafka.log
  * Configuration parameters for the log cleaner
  * 
  * @param numThreads The number of cleaner threads to run
+ * @param numWorkerThreads The number of threads shared by the cleaner threads for rewriting segment groups concurrently
  * @param dedupeBufferSize The total memory used for log deduplication
  * @param dedupeBufferLoadFactor The maximum percent full for the deduplication buffer
  * @param maxMessageSize The maximum size of a message that can appear in the log
@@ -28,8 +29,10 @@ package kafka.log
  * @param backOffMs The amount of time to wait before rechecking if no logs are eligible for cleaning
  * @param enableCleaner Allows completely disabling the log cleaner
  * @param hashAlgorithm The hash algorithm to use in key comparison.
+ * @param dedupeBufferType The memory backing the deduplication buffer: heap, direct or mmap
  */
 case class CleanerConfig(numThreads: Int = 1,
+                         numWorkerThreads: Int = 0,
                          dedupeBufferSize: Long = 4*1024*1024L,
                          dedupeBufferLoadFactor: Double = 0.9d,
                          ioBufferSize: Int = 1024*1024,
@@ -37,5 +40,6 @@ case class CleanerConfig(numThreads: Int = 1,
                          maxIoBytesPerSecond: Double = Double.MaxValue,
                          backOffMs: Long = 15 * 1000,
                          enableCleaner: Boolean = true,
-                         hashAlgorithm: String = "MD5") {
+                         hashAlgorithm: String = "MD5",
+                         dedupeBufferType: String = "heap") {
 }
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+import com.yammer.metrics.core.Gauge
+import kafka.metrics.KafkaMetricsGroup
+import org.apache.kafka.common.record.BufferSupplier
+
+import scala.collection.mutable
+
+/**
+ * A buffer supplier which keeps one released buffer of each size and counts how often it has to allocate a new one.
+ * Like the other buffer suppliers it is not thread safe; use `DecompressionBufferSupplier.forCurrentThread` to get
+ * the instance of the calling thread.
+ */
+private[log] class DecompressionBufferSupplier extends BufferSupplier {
+  private val cached = mutable.Map[Int, ByteBuffer]()
+
+  override def get(capacity: Int): ByteBuffer = {
+    cached.remove(capacity) match {
+      case Some(buffer) =>
+        DecompressionBufferSupplier.recordReuse()
+        buffer
+      case None =>
+        DecompressionBufferSupplier.recordAllocation(capacity)
+        ByteBuffer.allocate(capacity)
+    }
+  }
+
+  override def release(buffer: ByteBuffer): Unit = {
+    buffer.clear()
+    cached.put(buffer.capacity, buffer)
+  }
+
+  override def close(): Unit = cached.clear()
+}
+
+/**
+ * The buffer suppliers used to decompress record batches on the broker, one per thread so that the request handler
+ * and cleaner threads reuse their decompression buffers across requests and segments instead of allocating them for
+ * every batch.
+ */
+object DecompressionBufferSupplier extends KafkaMetricsGroup {
+
+  private val suppliers = new ThreadLocal[DecompressionBufferSupplier] {
+    override def initialValue(): DecompressionBufferSupplier = new DecompressionBufferSupplier
+  }
+
+  private val allocations = new LongAdder
+  private val reuses = new LongAdder
+  private val allocationBytesMeter = newMeter("DecompressionBufferAllocatedBytesPerSec", "bytes", TimeUnit.SECONDS)
+
+  newGauge(
+    "DecompressionBufferAllocations",
+    new Gauge[Long] {
+      def value = numAllocations
+    }
+  )
+
+  newGauge(
+    "DecompressionBufferReuses",
+    new Gauge[Long] {
+      def value = numReuses
+    }
+  )
+
+  def forCurrentThread: BufferSupplier = suppliers.get
+
+  def numAllocations: Long = allocations.sum
+
+  def numReuses: Long = reuses.sum
+
+  private def recordAllocation(capacity: Int): Unit = {
+    allocations.increment()
+    allocationBytesMeter.mark(capacity)
+  }
+
+  private def recordReuse(): Unit = reuses.increment()
+
+}
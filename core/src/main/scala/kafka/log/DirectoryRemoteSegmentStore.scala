@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.{File, FileInputStream, FileOutputStream}
+import java.nio.file.{Files, StandardCopyOption}
+import java.util
+import java.util.Properties
+
+import kafka.server.KafkaConfig
+import kafka.utils.Logging
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.config.ConfigException
+import org.apache.kafka.common.utils.Utils
+
+/**
+ * A [[RemoteSegmentStore]] which keeps segments in a directory, typically on a different disk or a mounted file system
+ * rather than in `log.dirs`. Each partition has a subdirectory named like its log directory which holds the log and
+ * index files of its segments with the usual names, plus a small metadata file per segment. The metadata file is
+ * written last, so a segment whose copy was interrupted is never listed.
+ *
+ * The store does not coordinate between brokers, so each broker must be configured with its own directory.
+ */
+class DirectoryRemoteSegmentStore extends RemoteSegmentStore with Logging {
+  import DirectoryRemoteSegmentStore._
+
+  @volatile private var baseDir: File = _
+
+  override def configure(configs: util.Map[String, _]): Unit = {
+    val dir = configs.get(KafkaConfig.LogRemoteStoreDirProp)
+    if (dir == null || dir.toString.trim.isEmpty)
+      throw new ConfigException(s"${KafkaConfig.LogRemoteStoreDirProp} must be set to use ${getClass.getName}")
+    baseDir = new File(dir.toString.trim).getAbsoluteFile
+    Files.createDirectories(baseDir.toPath)
+    info(s"Storing remote log segments in $baseDir")
+  }
+
+  override def copySegment(topicPartition: TopicPartition, segment: LogSegment): RemoteSegmentMetadata = {
+    val dir = partitionDir(topicPartition)
+    Files.createDirectories(dir.toPath)
+    val baseOffset = segment.baseOffset
+
+    // hide any previous copy of the segment until the new one is complete
+    Files.deleteIfExists(metadataFile(dir, baseOffset).toPath)
+    copy(segment.log.file, Log.logFile(dir, baseOffset))
+    copy(segment.offsetIndex.file, Log.offsetIndexFile(dir, baseOffset))
+    copy(segment.timeIndex.file, Log.timeIndexFile(dir, baseOffset))
+    if (segment.txnIndex.file.exists)
+      copy(segment.txnIndex.file, Log.transactionIndexFile(dir, baseOffset))
+    else
+      Files.deleteIfExists(Log.transactionIndexFile(dir, baseOffset).toPath)
+
+    val metadata = RemoteSegmentMetadata(topicPartition,
+      baseOffset = baseOffset,
+      nextOffset = segment.readNextOffset,
+      sizeInBytes = segment.size,
+      largestTimestamp = segment.largestTimestamp,
+      hasAbortedTxns = segment.txnIndex.allAbortedTxns.nonEmpty)
+    writeMetadata(dir, metadata)
+    debug(s"Copied segment $baseOffset of $topicPartition to $dir")
+    metadata
+  }
+
+  override def listSegments(topicPartition: TopicPartition): Seq[RemoteSegmentMetadata] = {
+    val dir = partitionDir(topicPartition)
+    val files = Option(dir.listFiles).getOrElse(Array.empty[File])
+    files.filter(_.getName.endsWith(MetadataFileSuffix))
+      .map(readMetadata(topicPartition, _))
+      .sortBy(_.baseOffset)
+      .toSeq
+  }
+
+  override def fetchSegment(metadata: RemoteSegmentMetadata, dir: File): Unit = {
+    val sourceDir = partitionDir(metadata.topicPartition)
+    val baseOffset = metadata.baseOffset
+    copy(Log.logFile(sourceDir, baseOffset), Log.logFile(dir, baseOffset))
+    copy(Log.offsetIndexFile(sourceDir, baseOffset), Log.offsetIndexFile(dir, baseOffset))
+    copy(Log.timeIndexFile(sourceDir, baseOffset), Log.timeIndexFile(dir, baseOffset))
+    val txnIndexFile = Log.transactionIndexFile(sourceDir, baseOffset)
+    if (txnIndexFile.exists)
+      copy(txnIndexFile, Log.transactionIndexFile(dir, baseOffset))
+  }
+
+  override def deleteSegment(metadata: RemoteSegmentMetadata): Unit = {
+    val dir = partitionDir(metadata.topicPartition)
+    val baseOffset = metadata.baseOffset
+    Files.deleteIfExists(metadataFile(dir, baseOffset).toPath)
+    Files.deleteIfExists(Log.logFile(dir, baseOffset).toPath)
+    Files.deleteIfExists(Log.offsetIndexFile(dir, baseOffset).toPath)
+    Files.deleteIfExists(Log.timeIndexFile(dir, baseOffset).toPath)
+    Files.deleteIfExists(Log.transactionIndexFile(dir, baseOffset).toPath)
+  }
+
+  override def deletePartition(topicPartition: TopicPartition): Unit = {
+    Utils.delete(partitionDir(topicPartition))
+  }
+
+  override def close(): Unit = {}
+
+  private def partitionDir(topicPartition: TopicPartition): File =
+    new File(baseDir, Log.logDirName(topicPartition))
+
+  private def copy(source: File, dest: File): Unit =
+    Files.copy(source.toPath, dest.toPath, StandardCopyOption.REPLACE_EXISTING)
+
+  private def writeMetadata(dir: File, metadata: RemoteSegmentMetadata): Unit = {
+    val props = new Properties()
+    props.put(NextOffsetKey, metadata.nextOffset.toString)
+    props.put(SizeInBytesKey, metadata.sizeInBytes.toString)
+    props.put(LargestTimestampKey, metadata.largestTimestamp.toString)
+    props.put(HasAbortedTxnsKey, metadata.hasAbortedTxns.toString)
+
+    val file = metadataFile(dir, metadata.baseOffset)
+    val tempFile = new File(file.getPath + ".tmp")
+    val out = new FileOutputStream(tempFile)
+    try {
+      props.store(out, null)
+      out.getFD.sync()
+    } finally {
+      out.close()
+    }
+    Utils.atomicMoveWithFallback(tempFile.toPath, file.toPath)
+  }
+
+  private def readMetadata(topicPartition: TopicPartition, file: File): RemoteSegmentMetadata = {
+    val props = new Properties()
+    val in = new FileInputStream(file)
+    try {
+      props.load(in)
+    } finally {
+      in.close()
+    }
+    RemoteSegmentMetadata(topicPartition,
+      baseOffset = Log.offsetFromFile(file),
+      nextOffset = props.getProperty(NextOffsetKey).toLong,
+      sizeInBytes = props.getProperty(SizeInBytesKey).toInt,
+      largestTimestamp = props.getProperty(LargestTimestampKey).toLong,
+      hasAbortedTxns = props.getProperty(HasAbortedTxnsKey).toBoolean)
+  }
+
+}
+
+object DirectoryRemoteSegmentStore {
+  /** a file describing a segment in the store, which is only present once all the files of the segment are */
+  val MetadataFileSuffix = ".metadata"
+
+  private val NextOffsetKey = "next.offset"
+  private val SizeInBytesKey = "size.bytes"
+  private val LargestTimestampKey = "largest.timestamp"
+  private val HasAbortedTxnsKey = "has.aborted.txns"
+
+  private def metadataFile(dir: File, baseOffset: Long): File =
+    new File(dir, Log.filenamePrefixFromOffset(baseOffset) + MetadataFileSuffix)
+}
@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util.concurrent.TimeUnit
+
+import com.yammer.metrics.core.Gauge
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.Logging
+import kafka.utils.threadsafe
+
+/**
+ * Bounds the number of index files which are memory mapped at the same time across all the logs of the broker.
+ *
+ * Indexes register themselves when they are mapped. When more than `maxMappings` indexes are mapped, the mappings
+ * of the least recently used indexes are released, and those indexes are mapped again on their next access. Recency
+ * is approximated with the second chance (CLOCK) algorithm: an index sets a flag whenever its mapping is used, and an
+ * index whose flag is set is skipped once and moved to the back of the queue. This keeps lookups free of any global
+ * lock. Indexes which are in use when they are picked for eviction are also skipped, so the number of mappings may
+ * briefly exceed the limit.
+ */
+@threadsafe
+object IndexMmapBudget extends KafkaMetricsGroup with Logging {
+
+  @volatile var maxMappings: Int = kafka.server.Defaults.LogIndexMmapMaxCount
+
+  /* the mapped indexes in the order in which they are considered for eviction */
+  private val mapped = new java.util.LinkedHashSet[AbstractIndex[_, _]]()
+
+  private val evictionMeter = newMeter("IndexEvictionsPerSec", "evictions", TimeUnit.SECONDS)
+
+  newGauge(
+    "MappedIndexCount",
+    new Gauge[Int] {
+      def value = numMapped
+    }
+  )
+
+  def numMapped: Int = mapped synchronized { mapped.size }
+
+  /**
+   * Register a newly mapped index and release the mappings of other indexes if there are too many.
+   */
+  private[log] def onMapped(index: AbstractIndex[_, _]): Unit = {
+    mapped synchronized {
+      mapped.add(index)
+      // bound the number of attempts since indexes which are in use cannot be evicted
+      var attempts = 2 * mapped.size
+      while (mapped.size > maxMappings && attempts > 0) {
+        attempts -= 1
+        val candidate = mapped.iterator.next()
+        mapped.remove(candidate)
+        if (candidate eq index) {
+          mapped.add(candidate)
+        } else if (candidate.referenced) {
+          candidate.referenced = false
+          mapped.add(candidate)
+        } else if (candidate.tryRelease()) {
+          debug(s"Released the memory map of index ${candidate.file.getAbsolutePath}")
+          evictionMeter.mark()
+        } else {
+          mapped.add(candidate)
+        }
+      }
+    }
+  }
+
+  /**
+   * Forget an index whose mapping has been released because it is closed.
+   */
+  private[log] def onUnmapped(index: AbstractIndex[_, _]): Unit = {
+    mapped synchronized {
+      mapped.remove(index)
+    }
+  }
+
+}
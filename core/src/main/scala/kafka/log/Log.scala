@@ -24,18 +24,20 @@ import java.text.NumberFormat
 import java.util.Map.{Entry => JEntry}
 import java.util.Optional
 import java.util.concurrent.atomic._
-import java.util.concurrent.{ConcurrentNavigableMap, ConcurrentSkipListMap, TimeUnit}
+import java.util.concurrent.{Callable, ConcurrentNavigableMap, ConcurrentSkipListMap, ForkJoinTask, TimeUnit}
+import java.util.concurrent.locks.ReentrantLock
 import java.util.regex.Pattern
 
 import com.yammer.metrics.core.Gauge
 import kafka.api.KAFKA_0_10_0_IV0
 import kafka.common.{LogSegmentOffsetOverflowException, LongRef, OffsetsOutOfOrderException, UnexpectedAppendOffsetException}
 import kafka.message.{BrokerCompressionCodec, CompressionCodec, NoCompressionCodec}
-import kafka.metrics.KafkaMetricsGroup
+import kafka.metrics.{KafkaMetricsGroup, KafkaTimer}
 import kafka.server.checkpoints.{LeaderEpochCheckpointFile, LeaderEpochFile}
 import kafka.server.epoch.LeaderEpochFileCache
 import kafka.server.{BrokerTopicStats, FetchDataInfo, LogDirFailureChannel, LogOffsetMetadata}
 import kafka.utils._
+import kafka.utils.CoreUtils.inLock
 import org.apache.kafka.common.errors._
 import org.apache.kafka.common.record.FileRecords.TimestampAndOffset
 import org.apache.kafka.common.record._
@@ -47,6 +49,7 @@ import org.apache.kafka.common.{KafkaException, TopicPartition}
 import scala.collection.JavaConverters._
 import scala.collection.mutable.{ArrayBuffer, ListBuffer}
 import scala.collection.{Seq, Set, mutable}
+import scala.util.Try
 
 object LogAppendInfo {
   val UnknownLogAppendInfo = LogAppendInfo(None, -1, RecordBatch.NO_TIMESTAMP, -1L, RecordBatch.NO_TIMESTAMP, -1L,
@@ -194,6 +197,9 @@ object RollParams {
  * @param time The time instance used for checking the clock
  * @param maxProducerIdExpirationMs The maximum amount of time to wait before a producer id is considered expired
  * @param producerIdExpirationCheckIntervalMs How often to check for producer ids which need to be expired
+ * @param remoteSegmentCache If defined, old segments are moved to the remote segment store of the cache and read
+ *                           back through it. See [[kafka.log.Log#offloadSegments]].
+ * @param loadStats If defined, the time spent in each phase of loading the log is recorded there
  */
 @threadsafe
 class Log(@volatile var dir: File,
@@ -207,7 +213,9 @@ class Log(@volatile var dir: File,
           val producerIdExpirationCheckIntervalMs: Int,
           val topicPartition: TopicPartition,
           val producerStateManager: ProducerStateManager,
-          logDirFailureChannel: LogDirFailureChannel) extends Logging with KafkaMetricsGroup {
+          logDirFailureChannel: LogDirFailureChannel,
+          val remoteSegmentCache: Option[RemoteSegmentCache] = None,
+          loadStats: Option[LogLoadStats] = None) extends Logging with KafkaMetricsGroup {
 
   import kafka.log.Log._
 
@@ -222,6 +230,13 @@ class Log(@volatile var dir: File,
   /* last time it was flushed */
   private val lastFlushedTime = new AtomicLong(time.milliseconds)
 
+  /* Guards the file prepared for the next segment, see prepareNextSegment(). It is held while the file is created so
+   * that the log directory is not renamed or deleted at the same time, and it is acquired after the log lock. */
+  private val prepareLock = new ReentrantLock
+
+  /* the size the file prepared for the next segment was created with, if there is one */
+  @volatile private var preparedSegmentFileSize: Option[Int] = None
+
   def initFileSize: Int = {
     if (config.preallocate)
       config.segmentSize
@@ -270,6 +285,10 @@ class Log(@volatile var dir: File,
   /* the actual segments of the log */
   private val segments: ConcurrentNavigableMap[java.lang.Long, LogSegment] = new ConcurrentSkipListMap[java.lang.Long, LogSegment]
 
+  /* the segments which have been moved to the remote segment store, all of which are below the first local segment */
+  private val remoteSegments: ConcurrentNavigableMap[java.lang.Long, RemoteSegmentMetadata] =
+    new ConcurrentSkipListMap[java.lang.Long, RemoteSegmentMetadata]
+
   @volatile private var _leaderEpochCache: LeaderEpochFileCache = initializeLeaderEpochCache()
 
   locally {
@@ -282,7 +301,9 @@ class Log(@volatile var dir: File,
 
     _leaderEpochCache.truncateFromEnd(nextOffsetMetadata.messageOffset)
 
-    logStartOffset = math.max(logStartOffset, segments.firstEntry.getValue.baseOffset)
+    loadRemoteSegments()
+
+    logStartOffset = math.max(logStartOffset, firstSegmentBaseOffset)
 
     // The earliest leader epoch may not be flushed during a hard failure. Recover it here.
     _leaderEpochCache.truncateFromStart(logStartOffset)
@@ -291,10 +312,14 @@ class Log(@volatile var dir: File,
     // from scratch.
     if (!producerStateManager.isEmpty)
       throw new IllegalStateException("Producer state must be empty during log initialization")
+    val producerStateStartNs = time.nanoseconds
     loadProducerState(logEndOffset, reloadFromCleanShutdown = hasCleanShutdownFile)
+    loadStats.foreach(_.recordProducerStateLoad(time.nanoseconds - producerStateStartNs))
+
+    info(s"Completed load of log with ${segments.size} segments (${remoteSegments.size} remote), log start offset " +
+      s"$logStartOffset and log end offset $logEndOffset in ${time.milliseconds() - startMs} ms")
 
-    info(s"Completed load of log with ${segments.size} segments, log start offset $logStartOffset and " +
-      s"log end offset $logEndOffset in ${time.milliseconds() - startMs} ms")
+    schedulePrepareNextSegment()
   }
 
   private val tags = {
@@ -326,6 +351,12 @@ class Log(@volatile var dir: File,
     },
     tags)
 
+  newGauge("RemoteSize",
+    new Gauge[Long] {
+      def value = remoteSize
+    },
+    tags)
+
   scheduler.schedule(name = "PeriodicProducerExpirationCheck", fun = () => {
     lock synchronized {
       producerStateManager.removeExpiredProducers(time.milliseconds)
@@ -369,7 +400,7 @@ class Log(@volatile var dir: File,
       if (!file.canRead)
         throw new IOException(s"Could not read file $file")
       val filename = file.getName
-      if (filename.endsWith(DeletedFileSuffix)) {
+      if (filename.endsWith(DeletedFileSuffix) || filename.endsWith(PreparedFileSuffix)) {
         debug(s"Deleting stray temporary file ${file.getAbsolutePath}")
         Files.deleteIfExists(file.toPath)
       } else if (filename.endsWith(CleanedFileSuffix)) {
@@ -464,13 +495,25 @@ class Log(@volatile var dir: File,
    */
   private def recoverSegment(segment: LogSegment,
                              leaderEpochCache: Option[LeaderEpochFileCache] = None): Int = lock synchronized {
+    val bytesTruncated = segment.recoverIndexes()
+    recoverProducerState(segment, leaderEpochCache)
+    bytesTruncated
+  }
+
+  /**
+   * Rebuild the transaction index of a segment whose offset and time indexes have already been recovered, and take a
+   * snapshot of the producer state at its end.
+   * @param segment Segment to recover
+   * @param leaderEpochCache Optional cache for updating the leader epoch during recovery
+   */
+  private def recoverProducerState(segment: LogSegment,
+                                   leaderEpochCache: Option[LeaderEpochFileCache]): Unit = lock synchronized {
     val producerStateManager = new ProducerStateManager(topicPartition, dir, maxProducerIdExpirationMs)
     rebuildProducerState(segment.baseOffset, reloadFromCleanShutdown = false, producerStateManager)
-    val bytesTruncated = segment.recover(producerStateManager, leaderEpochCache)
+    segment.recoverProducerState(producerStateManager, leaderEpochCache)
     // once we have recovered the segment's data, take a snapshot to ensure that we won't
     // need to reload the same segment again while recovering another segment.
     producerStateManager.takeSnapshot()
-    bytesTruncated
   }
 
   /**
@@ -525,6 +568,7 @@ class Log(@volatile var dir: File,
     // Now do a second pass and load all the log and index files.
     // We might encounter legacy log segments with offset overflow (KAFKA-6264). We need to split such segments. When
     // this happens, restart loading segment files from scratch.
+    val loadStartNs = time.nanoseconds
     retryOnOffsetOverflow {
       // In case we encounter a segment with offset overflow, the retry logic will split it after which we need to retry
       // loading of segments. In that case, we also need to close all segments that could have been left open in previous
@@ -538,6 +582,7 @@ class Log(@volatile var dir: File,
     // log files that are replaced by the swap segment should be renamed to .deleted
     // before the swap file is restored as the new segment file.
     completeSwapOperations(swapFiles)
+    loadStats.foreach(_.recordSegmentLoad(segments.size, time.nanoseconds - loadStartNs))
 
     if (logSegments.isEmpty) {
       // no existing segments, create a new mutable segment beginning at offset 0
@@ -560,6 +605,35 @@ class Log(@volatile var dir: File,
     } else 0
   }
 
+  /**
+   * Load the metadata of the segments of this log in the remote segment store. Remote segments which overlap the local
+   * segments are ignored; this happens if the broker stopped after copying a segment but before deleting its local
+   * files, and the remote copy is replaced when the segment is moved again. Future logs do not use the remote segments,
+   * as they replicate the whole log from the current log.
+   */
+  private def loadRemoteSegments(): Unit = {
+    remoteSegmentCache.foreach { cache =>
+      if (!isFuture && !dir.getName.endsWith(Log.DeleteDirSuffix)) {
+        val localStartOffset = segments.firstEntry.getValue.baseOffset
+        cache.store.listSegments(topicPartition).foreach { metadata =>
+          if (metadata.nextOffset <= localStartOffset)
+            remoteSegments.put(metadata.baseOffset, metadata)
+        }
+      }
+    }
+  }
+
+  /**
+   * The base offset of the first segment of the log, which may be a remote segment
+   */
+  private def firstSegmentBaseOffset: Long = {
+    val firstRemoteEntry = remoteSegments.firstEntry
+    if (firstRemoteEntry != null)
+      firstRemoteEntry.getValue.baseOffset
+    else
+      segments.firstEntry.getValue.baseOffset
+  }
+
   private def updateLogEndOffset(messageOffset: Long) {
     nextOffsetMetadata = new LogOffsetMetadata(messageOffset, activeSegment.baseOffset, activeSegment.size)
   }
@@ -574,13 +648,19 @@ class Log(@volatile var dir: File,
     // if we have the clean shutdown marker, skip recovery
     if (!hasCleanShutdownFile) {
       // okay we need to actually recover this log
-      val unflushed = logSegments(this.recoveryPoint, Long.MaxValue).iterator
+      val startNs = time.nanoseconds
+      val unflushedSegments = logSegments(this.recoveryPoint, Long.MaxValue).toList
+      val recoveredIndexes = recoverIndexes(unflushedSegments)
+      val unflushed = unflushedSegments.iterator
+      var numRecovered = 0
       while (unflushed.hasNext) {
         val segment = unflushed.next
         info(s"Recovering unflushed segment ${segment.baseOffset}")
         val truncatedBytes =
           try {
-            recoverSegment(segment, Some(_leaderEpochCache))
+            val bytesTruncated = recoveredIndexes.next().get
+            recoverProducerState(segment, Some(_leaderEpochCache))
+            bytesTruncated
           } catch {
             case _: InvalidOffsetException =>
               val startOffset = segment.baseOffset
@@ -588,17 +668,41 @@ class Log(@volatile var dir: File,
                 s"creating an empty one with starting offset $startOffset")
               segment.truncateTo(startOffset)
           }
+        // the recovery point is checkpointed as soon as the log is loaded, so the recovered data must be on disk
+        segment.flush()
+        numRecovered += 1
         if (truncatedBytes > 0) {
           // we had an invalid message, delete all remaining log
           warn(s"Corruption found in segment ${segment.baseOffset}, truncating to offset ${segment.readNextOffset}")
           unflushed.foreach(deleteSegment)
         }
       }
+      loadStats.foreach(_.recordSegmentRecovery(numRecovered, time.nanoseconds - startNs))
     }
     recoveryPoint = activeSegment.readNextOffset
     recoveryPoint
   }
 
+  /**
+   * Rebuild the offset and time indexes of the given segments, returning the number of bytes truncated from each segment
+   * or the error recovering it, in the same order. This only depends on the files of each segment, so if the log is
+   * being loaded by a thread of a [[java.util.concurrent.ForkJoinPool]] the segments are recovered concurrently by the
+   * threads of the pool, and all of them are done when this returns. Otherwise, each segment is only recovered when the
+   * result for it is read, so that the segments following a corrupt one are not recovered before being deleted.
+   */
+  private def recoverIndexes(unflushed: Seq[LogSegment]): Iterator[Try[Int]] = {
+    if (unflushed.size > 1 && ForkJoinTask.inForkJoinPool) {
+      val tasks = unflushed.map { segment =>
+        ForkJoinTask.adapt(new Callable[Try[Int]] {
+          override def call(): Try[Int] = Try(segment.recoverIndexes())
+        }).fork()
+      }
+      tasks.map(_.join()).iterator
+    } else {
+      unflushed.iterator.map(segment => Try(segment.recoverIndexes()))
+    }
+  }
+
   // Rebuild producer state until lastOffset. This method may be called from the recovery code path, and thus must be
   // free of all side-effects, i.e. it must not update any log-specific state.
   private def rebuildProducerState(lastOffset: Long,
@@ -700,6 +804,11 @@ class Log(@volatile var dir: File,
    */
   def numberOfSegments: Int = segments.size
 
+  /**
+   * The number of segments of the log in the remote segment store
+   */
+  def numberOfRemoteSegments: Int = remoteSegments.size
+
   /**
    * Close this log.
    * The memory mapped buffer for index files of this log will be left open until the log is deleted.
@@ -714,6 +823,10 @@ class Log(@volatile var dir: File,
         // (the clean shutdown file is written after the logs are all closed).
         producerStateManager.takeSnapshot()
         logSegments.foreach(_.close())
+        inLock(prepareLock) {
+          Files.deleteIfExists(preparedLogFile(dir).toPath)
+          preparedSegmentFileSize = None
+        }
       }
     }
   }
@@ -727,7 +840,9 @@ class Log(@volatile var dir: File,
     lock synchronized {
       maybeHandleIOException(s"Error while renaming dir for $topicPartition in log dir ${dir.getParent}") {
         val renamedDir = new File(dir.getParent, name)
-        Utils.atomicMoveWithFallback(dir.toPath, renamedDir.toPath)
+        inLock(prepareLock) {
+          Utils.atomicMoveWithFallback(dir.toPath, renamedDir.toPath)
+        }
         if (renamedDir != dir) {
           dir = renamedDir
           logSegments.foreach(_.updateDir(renamedDir))
@@ -756,11 +871,14 @@ class Log(@volatile var dir: File,
    *
    * @param records The records to append
    * @param isFromClient Whether or not this append is from a producer
+   * @param trustedProducer Whether the producer is trusted to send valid records, so that only the batch headers
+   *                        need to be validated
    * @throws KafkaStorageException If the append fails due to an I/O error.
    * @return Information about the appended messages including the first and last offset.
    */
-  def appendAsLeader(records: MemoryRecords, leaderEpoch: Int, isFromClient: Boolean = true): LogAppendInfo = {
-    append(records, isFromClient, assignOffsets = true, leaderEpoch)
+  def appendAsLeader(records: MemoryRecords, leaderEpoch: Int, isFromClient: Boolean = true,
+                     trustedProducer: Boolean = false): LogAppendInfo = {
+    append(records, isFromClient, assignOffsets = true, leaderEpoch, trustedProducer)
   }
 
   /**
@@ -771,7 +889,7 @@ class Log(@volatile var dir: File,
    * @return Information about the appended messages including the first and last offset.
    */
   def appendAsFollower(records: MemoryRecords): LogAppendInfo = {
-    append(records, isFromClient = false, assignOffsets = false, leaderEpoch = -1)
+    append(records, isFromClient = false, assignOffsets = false, leaderEpoch = -1, trustedProducer = false)
   }
 
   /**
@@ -784,12 +902,14 @@ class Log(@volatile var dir: File,
    * @param isFromClient Whether or not this append is from a producer
    * @param assignOffsets Should the log assign offsets to this message set or blindly apply what it is given
    * @param leaderEpoch The partition's leader epoch which will be applied to messages when offsets are assigned on the leader
+   * @param trustedProducer Whether only the batch headers of records from a producer need to be validated
    * @throws KafkaStorageException If the append fails due to an I/O error.
    * @throws OffsetsOutOfOrderException If out of order offsets found in 'records'
    * @throws UnexpectedAppendOffsetException If the first or last offset in append is less than next offset
    * @return Information about the appended messages including the first and last offset.
    */
-  private def append(records: MemoryRecords, isFromClient: Boolean, assignOffsets: Boolean, leaderEpoch: Int): LogAppendInfo = {
+  private def append(records: MemoryRecords, isFromClient: Boolean, assignOffsets: Boolean, leaderEpoch: Int,
+                     trustedProducer: Boolean): LogAppendInfo = {
     maybeHandleIOException(s"Error while appending records to $topicPartition in dir ${dir.getParent}") {
       val appendInfo = analyzeAndValidateRecords(records, isFromClient = isFromClient)
 
@@ -820,7 +940,8 @@ class Log(@volatile var dir: File,
               config.messageTimestampType,
               config.messageTimestampDifferenceMaxMs,
               leaderEpoch,
-              isFromClient)
+              isFromClient,
+              trustedProducer)
           } catch {
             case e: IOException =>
               throw new KafkaException(s"Error validating messages while appending to log $name", e)
@@ -1160,12 +1281,22 @@ class Log(@volatile var dir: File,
       }
 
       var segmentEntry = segments.floorEntry(startOffset)
+      // offsets below the first local segment may be in a segment which has been moved to the remote segment store
+      val remoteEntry = if (segmentEntry == null) remoteSegments.floorEntry(startOffset) else null
 
       // return error on attempt to read beyond the log end offset or read below log start offset
-      if (startOffset > next || segmentEntry == null || startOffset < logStartOffset)
+      if (startOffset > next || (segmentEntry == null && remoteEntry == null) || startOffset < logStartOffset)
         throw new OffsetOutOfRangeException(s"Received request for offset $startOffset for partition $topicPartition, " +
           s"but we only have log segments in the range $logStartOffset to $next.")
 
+      if (remoteEntry != null) {
+        val fetchInfo = readRemote(startOffset, maxLength, maxOffset, minOneMessage, includeAbortedTxns, remoteEntry)
+        if (fetchInfo != null)
+          return fetchInfo
+        // none of the remote segments from the start offset have any messages, continue with the local segments
+        segmentEntry = segments.firstEntry
+      }
+
       // Do the read on the segment with a base offset less than the target offset
       // but if that segment doesn't contain any messages with an offset greater than that
       // continue to read from successive segments until we get some messages or we reach the end of the log
@@ -1207,6 +1338,79 @@ class Log(@volatile var dir: File,
     }
   }
 
+  /**
+   * Read messages from the remote segments, starting with the given one and moving on to the following remote segments
+   * until some messages are read.
+   *
+   * @return The fetch data information, or null if the remote segments have no messages at or after the start offset
+   */
+  private def readRemote(startOffset: Long,
+                         maxLength: Int,
+                         maxOffset: Option[Long],
+                         minOneMessage: Boolean,
+                         includeAbortedTxns: Boolean,
+                         startingRemoteEntry: JEntry[JLong, RemoteSegmentMetadata]): FetchDataInfo = {
+    var remoteEntry = startingRemoteEntry
+    while (remoteEntry != null) {
+      val segment = remoteSegment(remoteEntry)
+      val fetchInfo = segment.read(startOffset, maxOffset, maxLength, segment.size, minOneMessage)
+      if (fetchInfo != null) {
+        return if (includeAbortedTxns)
+          addRemoteAbortedTransactions(startOffset, remoteEntry, segment, fetchInfo)
+        else
+          fetchInfo
+      }
+      remoteEntry = remoteSegments.higherEntry(remoteEntry.getKey)
+    }
+    null
+  }
+
+  /**
+   * Get a remote segment from the cache, which starts fetching the remote segments after it in the background
+   */
+  private def remoteSegment(remoteEntry: JEntry[JLong, RemoteSegmentMetadata]): LogSegment = {
+    val cache = remoteSegmentCache.get
+    val following = remoteSegments.tailMap(remoteEntry.getKey, false).values.asScala.take(cache.readAheadSegments)
+    cache.segment(remoteEntry.getValue, following.toSeq)
+  }
+
+  private def addRemoteAbortedTransactions(startOffset: Long, remoteEntry: JEntry[JLong, RemoteSegmentMetadata],
+                                           segment: LogSegment, fetchInfo: FetchDataInfo): FetchDataInfo = {
+    val fetchSize = fetchInfo.records.sizeInBytes
+    val startOffsetPosition = OffsetPosition(fetchInfo.fetchOffsetMetadata.messageOffset,
+      fetchInfo.fetchOffsetMetadata.relativePositionInSegment)
+    val upperBoundOffset = segment.fetchUpperBoundOffset(startOffsetPosition, fetchSize).getOrElse {
+      val nextRemoteEntry = remoteSegments.higherEntry(remoteEntry.getKey)
+      if (nextRemoteEntry != null)
+        nextRemoteEntry.getValue.baseOffset
+      else
+        segments.firstEntry.getValue.baseOffset
+    }
+
+    val abortedTransactions = ListBuffer.empty[AbortedTransaction]
+    def accumulator(abortedTxns: List[AbortedTxn]): Unit = abortedTransactions ++= abortedTxns.map(_.asAbortedTransaction)
+
+    // Like for local segments, the following segments are searched until a transaction ending after the upper bound is
+    // found. Remote segments without any aborted transactions are skipped rather than fetched.
+    var searchResult = segment.collectAbortedTxns(startOffset, upperBoundOffset)
+    accumulator(searchResult.abortedTransactions)
+    var nextRemoteEntry = remoteSegments.higherEntry(remoteEntry.getKey)
+    while (!searchResult.isComplete && nextRemoteEntry != null) {
+      if (nextRemoteEntry.getValue.hasAbortedTxns) {
+        searchResult = remoteSegment(nextRemoteEntry).collectAbortedTxns(startOffset, upperBoundOffset)
+        accumulator(searchResult.abortedTransactions)
+      }
+      nextRemoteEntry = remoteSegments.higherEntry(nextRemoteEntry.getKey)
+    }
+    if (!searchResult.isComplete)
+      collectAbortedTransactions(startOffset, upperBoundOffset, segments.firstEntry, accumulator)
+
+    FetchDataInfo(fetchOffsetMetadata = fetchInfo.fetchOffsetMetadata,
+      records = fetchInfo.records,
+      firstEntryIncomplete = fetchInfo.firstEntryIncomplete,
+      abortedTransactions = Some(abortedTransactions.toList))
+  }
+
   private[log] def collectAbortedTransactions(startOffset: Long, upperBoundOffset: Long): List[AbortedTxn] = {
     val segmentEntry = segments.floorEntry(startOffset)
     val allAbortedTxns = ListBuffer.empty[AbortedTxn]
@@ -1299,6 +1503,11 @@ class Log(@volatile var dir: File,
         return Some(new TimestampAndOffset(RecordBatch.NO_TIMESTAMP, logEndOffset, epochOpt))
       }
 
+      // The remote segments are older than all the local segments, so they are searched first
+      val remoteTarget = remoteSegments.entrySet.asScala.find(_.getValue.largestTimestamp >= targetTimestamp)
+      if (remoteTarget.isDefined)
+        return remoteSegment(remoteTarget.get).findOffsetByTimestamp(targetTimestamp, logStartOffset)
+
       val targetSeg = {
         // Get all the segments whose largest timestamp is smaller than target timestamp
         val earlierSegs = segmentsCopy.takeWhile(_.largestTimestamp < targetTimestamp)
@@ -1403,7 +1612,7 @@ class Log(@volatile var dir: File,
           checkIfMemoryMappedBufferClosed()
           // remove the segments for lookups
           deletable.foreach(deleteSegment)
-          maybeIncrementLogStartOffset(segments.firstEntry.getValue.baseOffset)
+          maybeIncrementLogStartOffset(firstSegmentBaseOffset)
         }
       }
       numToDelete
@@ -1455,13 +1664,69 @@ class Log(@volatile var dir: File,
    * Whether or not deletion is enabled, delete any log segments that are before the log start offset
    */
   def deleteOldSegments(): Int = {
-    if (config.delete) {
-      deleteRetentionMsBreachedSegments() + deleteRetentionSizeBreachedSegments() + deleteLogStartOffsetBreachedSegments()
+    val numRemoteDeleted = deleteOldRemoteSegments()
+    // the remote segments are older than all the local segments, so no local segment can be deleted while any is left
+    if (!remoteSegments.isEmpty) {
+      numRemoteDeleted
+    } else if (config.delete) {
+      numRemoteDeleted + deleteRetentionMsBreachedSegments() + deleteRetentionSizeBreachedSegments() +
+        deleteLogStartOffsetBreachedSegments()
     } else {
-      deleteLogStartOffsetBreachedSegments()
+      numRemoteDeleted + deleteLogStartOffsetBreachedSegments()
     }
   }
 
+  /**
+   * Delete remote segments starting from the oldest until one is found which is above the log start offset and, if
+   * topic deletion is enabled, within both the time and size based retention. The size of the remote segments counts
+   * towards the retention size.
+   *
+   * @return The number of remote segments deleted
+   */
+  private def deleteOldRemoteSegments(): Int = {
+    if (remoteSegments.isEmpty || replicaHighWatermark.isEmpty)
+      return 0
+
+    val startMs = time.milliseconds
+    val deletable = lock synchronized {
+      var sizeDiff = if (config.retentionSize < 0) 0L else remoteSize + size - config.retentionSize
+      def shouldDelete(metadata: RemoteSegmentMetadata, nextBaseOffset: Long): Boolean = {
+        nextBaseOffset <= logStartOffset || (config.delete &&
+          ((config.retentionMs >= 0 && startMs - metadata.largestTimestamp > config.retentionMs) ||
+            (config.retentionSize >= 0 && sizeDiff - metadata.sizeInBytes >= 0)))
+      }
+
+      val deletable = ArrayBuffer.empty[RemoteSegmentMetadata]
+      var remoteEntry = remoteSegments.firstEntry
+      while (remoteEntry != null) {
+        val metadata = remoteEntry.getValue
+        val nextRemoteEntry = remoteSegments.higherEntry(remoteEntry.getKey)
+        val nextBaseOffset = if (nextRemoteEntry != null)
+          nextRemoteEntry.getValue.baseOffset
+        else
+          segments.firstEntry.getValue.baseOffset
+
+        if (shouldDelete(metadata, nextBaseOffset)) {
+          deletable += metadata
+          sizeDiff -= metadata.sizeInBytes
+          remoteEntry = nextRemoteEntry
+        } else {
+          remoteEntry = null
+        }
+      }
+
+      if (deletable.nonEmpty) {
+        info(s"Found deletable remote segments with base offsets [${deletable.map(_.baseOffset).mkString(",")}] due to " +
+          s"retention or log start offset $logStartOffset breach")
+        deletable.foreach(metadata => remoteSegments.remove(metadata.baseOffset))
+        maybeIncrementLogStartOffset(firstSegmentBaseOffset)
+      }
+      deletable
+    }
+    deletable.foreach(deleteRemoteSegment)
+    deletable.size
+  }
+
   private def deleteRetentionMsBreachedSegments(): Int = {
     if (config.retentionMs < 0) return 0
     val startMs = time.milliseconds
@@ -1498,6 +1763,105 @@ class Log(@volatile var dir: File,
    */
   def size: Long = Log.sizeInBytes(logSegments)
 
+  /**
+   * The size in bytes of the segments of the log in the remote segment store
+   */
+  def remoteSize: Long = remoteSegments.values.asScala.map(_.sizeInBytes.toLong).sum
+
+  /**
+   * Move the oldest closed segments which are older than `local.retention.ms` to the remote segment store. Segments are
+   * moved in offset order and only once they are below both the high watermark and the recovery point, so the remote
+   * segments are always a prefix of the log which has been flushed and will not be truncated by replication. Compacted
+   * logs are not moved as the cleaner only works on local segments.
+   *
+   * @return The number of segments moved
+   */
+  def offloadSegments(): Int = {
+    remoteSegmentCache match {
+      case Some(cache) if config.localRetentionMs >= 0 && !config.compact && !isFuture && replicaHighWatermark.isDefined =>
+        val startMs = time.milliseconds
+        val upperBoundOffset = math.min(replicaHighWatermark.get, recoveryPoint)
+        var numOffloaded = 0
+        var segmentEntry = segments.firstEntry
+        while (segmentEntry != null) {
+          val segment = segmentEntry.getValue
+          val nextSegmentEntry = segments.higherEntry(segmentEntry.getKey)
+          if (nextSegmentEntry != null && nextSegmentEntry.getValue.baseOffset <= upperBoundOffset &&
+              startMs - segment.largestTimestamp > config.localRetentionMs && offloadSegment(cache.store, segment)) {
+            numOffloaded += 1
+            segmentEntry = nextSegmentEntry
+          } else {
+            segmentEntry = null
+          }
+        }
+        numOffloaded
+      case _ => 0
+    }
+  }
+
+  /**
+   * Copy a segment to the remote segment store and replace it with the remote copy. The copy is done without holding
+   * the lock, so the segment is only replaced if it is still the first local segment afterwards.
+   *
+   * @return True iff the segment was moved
+   */
+  private def offloadSegment(store: RemoteSegmentStore, segment: LogSegment): Boolean = {
+    val metadata = try {
+      store.copySegment(topicPartition, segment)
+    } catch {
+      case e: IOException =>
+        warn(s"Error while copying segment ${segment.baseOffset} to the remote segment store", e)
+        return false
+    }
+
+    val offloaded = maybeHandleIOException(s"Error while moving segment ${segment.baseOffset} of $topicPartition in dir " +
+      s"${dir.getParent} to the remote segment store") {
+      lock synchronized {
+        if (!isMemoryMappedBufferClosed && (segments.firstEntry.getValue eq segment)) {
+          info(s"Moved segment [baseOffset ${segment.baseOffset}, size ${segment.size}] to the remote segment store")
+          // make the remote segment visible to readers before removing the local one
+          remoteSegments.put(segment.baseOffset, metadata)
+          deleteSegment(segment)
+          true
+        } else {
+          false
+        }
+      }
+    }
+    // the segment was deleted while it was being copied
+    if (!offloaded)
+      deleteRemoteSegment(metadata)
+    offloaded
+  }
+
+  /**
+   * Delete all the segments of this log from the remote segment store. This is done when the partition is deleted
+   * from the broker, rather than when its local files are deleted some time later.
+   */
+  private[log] def deleteAllRemoteSegments(): Unit = {
+    remoteSegmentCache.foreach { cache =>
+      remoteSegments.clear()
+      cache.invalidate(topicPartition)
+      try {
+        cache.store.deletePartition(topicPartition)
+      } catch {
+        case e: IOException => warn("Error while deleting the segments of the log from the remote segment store", e)
+      }
+    }
+  }
+
+  private def deleteRemoteSegment(metadata: RemoteSegmentMetadata): Unit = {
+    remoteSegmentCache.foreach { cache =>
+      cache.invalidate(metadata)
+      try {
+        cache.store.deleteSegment(metadata)
+      } catch {
+        case e: IOException =>
+          warn(s"Error while deleting segment ${metadata.baseOffset} from the remote segment store", e)
+      }
+    }
+  }
+
   /**
    * The offset metadata of the next message that will be appended to the log
    */
@@ -1565,7 +1929,7 @@ class Log(@volatile var dir: File,
   def roll(expectedNextOffset: Option[Long] = None): LogSegment = {
     maybeHandleIOException(s"Error while rolling log segment for $topicPartition in dir ${dir.getParent}") {
       val start = time.hiResClockMs()
-      lock synchronized {
+      lock synchronized LogRollStats.logRollTimer.time {
         checkIfMemoryMappedBufferClosed()
         val newOffset = math.max(expectedNextOffset.getOrElse(0L), logEndOffset)
         val logFile = Log.logFile(dir, newOffset)
@@ -1610,6 +1974,9 @@ class Log(@volatile var dir: File,
         producerStateManager.updateMapEndOffset(newOffset)
         producerStateManager.takeSnapshot()
 
+        // use the file prepared in the background if there is one, so that it does not have to be created here
+        val prepared = takePreparedSegmentFile()
+        prepared.foreach(file => Utils.atomicMoveWithFallback(file.toPath, logFile.toPath))
         val segment = LogSegment.open(dir,
           baseOffset = newOffset,
           config,
@@ -1623,14 +1990,68 @@ class Log(@volatile var dir: File,
         updateLogEndOffset(nextOffsetMetadata.messageOffset)
         // schedule an asynchronous flush of the old segment
         scheduler.schedule("flush-log", () => flush(newOffset), delay = 0L)
+        schedulePrepareNextSegment()
 
-        info(s"Rolled new log segment at offset $newOffset in ${time.hiResClockMs() - start} ms.")
+        info(s"Rolled new log segment at offset $newOffset${if (prepared.isDefined) " from a prepared file" else ""} " +
+          s"in ${time.hiResClockMs() - start} ms.")
 
         segment
       }
     }
   }
 
+  private def schedulePrepareNextSegment(): Unit = {
+    if (config.segmentPrepareEnable)
+      scheduler.schedule("prepare-segment", () => prepareNextSegment(), delay = 0L)
+  }
+
+  /**
+   * Create the file of the next segment ahead of time, so that rolling the log only has to rename it. This runs on
+   * the scheduler without holding the log lock, since creating the file may block, especially if it is preallocated.
+   * The indexes of the new segment are still created when the log is rolled, but their files are sparse and they are
+   * only mapped on first use.
+   */
+  private[log] def prepareNextSegment(): Unit = {
+    inLock(prepareLock) {
+      if (!isMemoryMappedBufferClosed && config.segmentPrepareEnable && preparedSegmentFileSize.isEmpty) {
+        val file = preparedLogFile(dir)
+        val fileSize = initFileSize
+        try {
+          Files.deleteIfExists(file.toPath)
+          // closing the records would truncate the file to its (empty) size
+          FileRecords.open(file, false, fileSize, config.preallocate).closeHandlers()
+          preparedSegmentFileSize = Some(fileSize)
+          debug(s"Prepared the file of the next segment with initial size $fileSize")
+        } catch {
+          case e: IOException =>
+            // the file is created when the log is rolled instead, which reports the failure if the disk is bad
+            warn(s"Failed to prepare the file of the next segment ${file.getAbsolutePath}", e)
+        }
+      }
+    }
+  }
+
+  /**
+   * Take the file prepared for the next segment, if there is one and it was created with the current segment settings.
+   * Must be called with the log lock held. Does not wait if the file is being created.
+   */
+  private def takePreparedSegmentFile(): Option[File] = {
+    if (!prepareLock.tryLock())
+      None
+    else {
+      try {
+        val file = preparedLogFile(dir)
+        val prepared = preparedSegmentFileSize.filter(_ == initFileSize).map(_ => file).filter(_.exists)
+        if (preparedSegmentFileSize.isDefined && prepared.isEmpty)
+          Files.deleteIfExists(file.toPath)
+        preparedSegmentFileSize = None
+        prepared
+      } finally {
+        prepareLock.unlock()
+      }
+    }
+  }
+
   /**
    * The number of messages appended to the log since the last flush
    */
@@ -1712,9 +2133,12 @@ class Log(@volatile var dir: File,
         logSegments.foreach(_.deleteIfExists())
         segments.clear()
         _leaderEpochCache.clear()
-        Utils.delete(dir)
-        // File handlers will be closed if this log is deleted
-        isMemoryMappedBufferClosed = true
+        inLock(prepareLock) {
+          Utils.delete(dir)
+          preparedSegmentFileSize = None
+          // File handlers will be closed if this log is deleted
+          isMemoryMappedBufferClosed = true
+        }
       }
     }
   }
@@ -1787,6 +2211,9 @@ class Log(@volatile var dir: File,
         checkIfMemoryMappedBufferClosed()
         val segmentsToDelete = logSegments.toList
         segmentsToDelete.foreach(deleteSegment)
+        val remoteSegmentsToDelete = remoteSegments.values.asScala.toList
+        remoteSegments.clear()
+        remoteSegmentsToDelete.foreach(deleteRemoteSegment)
         addSegment(LogSegment.open(dir,
           baseOffset = newOffset,
           config = config,
@@ -1949,6 +2376,7 @@ class Log(@volatile var dir: File,
     removeMetric("LogStartOffset", tags)
     removeMetric("LogEndOffset", tags)
     removeMetric("Size", tags)
+    removeMetric("RemoteSize", tags)
   }
 
   /**
@@ -2073,6 +2501,9 @@ object Log {
   /** A temporary file used when swapping files into the log */
   val SwapFileSuffix = ".swap"
 
+  /** A file created ahead of time for the next segment of the log */
+  val PreparedFileSuffix = ".prepared"
+
   /** Clean shutdown file that indicates the broker was cleanly shutdown in 0.8 and higher.
    * This is used to avoid unnecessary recovery after a clean shutdown. In theory this could be
    * avoided by passing in the recovery point, however finding the correct position to do this
@@ -2101,11 +2532,14 @@ object Log {
             time: Time = Time.SYSTEM,
             maxProducerIdExpirationMs: Int,
             producerIdExpirationCheckIntervalMs: Int,
-            logDirFailureChannel: LogDirFailureChannel): Log = {
+            logDirFailureChannel: LogDirFailureChannel,
+            remoteSegmentCache: Option[RemoteSegmentCache] = None,
+            loadStats: Option[LogLoadStats] = None): Log = {
     val topicPartition = Log.parseTopicPartitionName(dir)
     val producerStateManager = new ProducerStateManager(topicPartition, dir, maxProducerIdExpirationMs)
     new Log(dir, config, logStartOffset, recoveryPoint, scheduler, brokerTopicStats, time, maxProducerIdExpirationMs,
-      producerIdExpirationCheckIntervalMs, topicPartition, producerStateManager, logDirFailureChannel)
+      producerIdExpirationCheckIntervalMs, topicPartition, producerStateManager, logDirFailureChannel, remoteSegmentCache,
+      loadStats)
   }
 
   /**
@@ -2133,6 +2567,15 @@ object Log {
   def logFile(dir: File, offset: Long, suffix: String = ""): File =
     new File(dir, filenamePrefixFromOffset(offset) + LogFileSuffix + suffix)
 
+  /**
+   * Construct the file prepared for the next segment of the log, which is renamed to the log file of the segment
+   * once its base offset is known
+   *
+   * @param dir The directory in which the log will reside
+   */
+  def preparedLogFile(dir: File): File =
+    new File(dir, "next" + LogFileSuffix + PreparedFileSuffix)
+
   /**
    * Return a directory name to rename the log directory to for async deletion. The name will be in the following
    * format: topic-partition.uniqueId-delete where topic, partition and uniqueId are variables.
@@ -2267,3 +2710,7 @@ object Log {
     file.getPath.endsWith(LogFileSuffix)
 
 }
+
+object LogRollStats extends KafkaMetricsGroup {
+  val logRollTimer = new KafkaTimer(newTimer("LogRollRateAndTimeMs", TimeUnit.MILLISECONDS, TimeUnit.SECONDS))
+}
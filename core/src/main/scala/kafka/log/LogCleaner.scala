@@ -20,7 +20,8 @@ package kafka.log
 import java.io.{File, IOException}
 import java.nio._
 import java.util.Date
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+import java.util.concurrent.{Callable, ExecutionException, ExecutorService, Executors, ThreadFactory, TimeUnit}
 
 import com.yammer.metrics.core.Gauge
 import kafka.common._
@@ -33,7 +34,7 @@ import org.apache.kafka.common.errors.{CorruptRecordException, KafkaStorageExcep
 import org.apache.kafka.common.record.MemoryRecords.RecordFilter
 import org.apache.kafka.common.record.MemoryRecords.RecordFilter.BatchRetention
 import org.apache.kafka.common.record._
-import org.apache.kafka.common.utils.Time
+import org.apache.kafka.common.utils.{KafkaThread, Time}
 
 import scala.collection.JavaConverters._
 import scala.collection.{Iterable, Set, mutable}
@@ -113,6 +114,9 @@ class LogCleaner(initialConfig: CleanerConfig,
   /* the threads */
   private val cleaners = mutable.ArrayBuffer[CleanerThread]()
 
+  /* the threads shared by all cleaner threads for rewriting segment groups concurrently, if enabled */
+  @volatile private var workerPool: Option[ExecutorService] = None
+
   /* a metric to track the maximum utilization of any thread's buffer in the last cleaning */
   newGauge("max-buffer-utilization-percent",
            new Gauge[Int] {
@@ -138,6 +142,13 @@ class LogCleaner(initialConfig: CleanerConfig,
    */
   def startup() {
     info("Starting the log cleaner")
+    if (config.numWorkerThreads > 0) {
+      val workerId = new AtomicInteger(0)
+      workerPool = Some(Executors.newFixedThreadPool(config.numWorkerThreads, new ThreadFactory {
+        override def newThread(runnable: Runnable): Thread =
+          KafkaThread.daemon(s"kafka-log-cleaner-worker-${workerId.getAndIncrement()}", runnable)
+      }))
+    }
     (0 until config.numThreads).foreach { i =>
       val cleaner = new CleanerThread(i)
       cleaners += cleaner
@@ -152,6 +163,9 @@ class LogCleaner(initialConfig: CleanerConfig,
     info("Shutting down the log cleaner.")
     cleaners.foreach(_.shutdown())
     cleaners.clear()
+    // the cleaner threads wait for all the groups they submitted, so the workers are idle by now
+    workerPool.foreach(_.shutdown())
+    workerPool = None
   }
 
   override def reconfigurableConfigs: Set[String] = {
@@ -271,21 +285,39 @@ class LogCleaner(initialConfig: CleanerConfig,
 
     protected override def loggerName = classOf[LogCleaner].getName
 
-    if (config.dedupeBufferSize / config.numThreads > Int.MaxValue)
-      warn("Cannot use more than 2G of cleaner buffer space per cleaner thread, ignoring excess buffer space...")
-
     val cleaner = new Cleaner(id = threadId,
-                              offsetMap = new SkimpyOffsetMap(memory = math.min(config.dedupeBufferSize / config.numThreads, Int.MaxValue).toInt,
-                                                              hashAlgorithm = config.hashAlgorithm),
-                              ioBufferSize = config.ioBufferSize / config.numThreads / 2,
+                              offsetMap = createOffsetMap(),
+                              // the worker threads each clean one group at a time with buffers of the same size, so
+                              // they share the I/O buffer memory with the cleaner threads
+                              ioBufferSize = config.ioBufferSize / (config.numThreads + config.numWorkerThreads) / 2,
                               maxIoBufferSize = config.maxMessageSize,
                               dupBufferLoadFactor = config.dedupeBufferLoadFactor,
                               throttler = throttler,
                               time = time,
-                              checkDone = checkDone)
+                              checkDone = checkDone,
+                              workerPool = workerPool)
 
     @volatile var lastStats: CleanerStats = new CleanerStats()
 
+    private def createOffsetMap(): OffsetMap = {
+      val memory = config.dedupeBufferSize / config.numThreads
+      config.dedupeBufferType match {
+        case kafka.server.Defaults.DirectDedupeBuffer =>
+          new OffHeapOffsetMap(memory)
+        case kafka.server.Defaults.MmapDedupeBuffer =>
+          new OffHeapOffsetMap(memory, Some(new File(logDirs.head, s"cleaner-offset-map-$threadId")))
+        case _ =>
+          if (memory > Int.MaxValue)
+            warn("Cannot use more than 2G of cleaner buffer space per cleaner thread, ignoring excess buffer space...")
+          new SkimpyOffsetMap(memory = math.min(memory, Int.MaxValue).toInt, hashAlgorithm = config.hashAlgorithm)
+      }
+    }
+
+    override def shutdown(): Unit = {
+      super.shutdown()
+      cleaner.offsetMap.close()
+    }
+
     private def checkDone(topicPartition: TopicPartition) {
       if (!isRunning)
         throw new ThreadShutdownException
@@ -397,7 +429,9 @@ class LogCleaner(initialConfig: CleanerConfig,
 object LogCleaner {
   val ReconfigurableConfigs = Set(
     KafkaConfig.LogCleanerThreadsProp,
+    KafkaConfig.LogCleanerWorkerThreadsProp,
     KafkaConfig.LogCleanerDedupeBufferSizeProp,
+    KafkaConfig.LogCleanerDedupeBufferTypeProp,
     KafkaConfig.LogCleanerDedupeBufferLoadFactorProp,
     KafkaConfig.LogCleanerIoBufferSizeProp,
     KafkaConfig.MessageMaxBytesProp,
@@ -407,7 +441,9 @@ object LogCleaner {
 
   def cleanerConfig(config: KafkaConfig): CleanerConfig = {
     CleanerConfig(numThreads = config.logCleanerThreads,
+      numWorkerThreads = config.logCleanerWorkerThreads,
       dedupeBufferSize = config.logCleanerDedupeBufferSize,
+      dedupeBufferType = config.logCleanerDedupeBufferType,
       dedupeBufferLoadFactor = config.logCleanerDedupeBufferLoadFactor,
       ioBufferSize = config.logCleanerIoBufferSize,
       maxMessageSize = config.messageMaxBytes,
@@ -446,6 +482,7 @@ object LogCleaner {
  * @param throttler The throttler instance to use for limiting I/O rate.
  * @param time The time instance
  * @param checkDone Check if the cleaning for a partition is finished or aborted.
+ * @param workerPool If defined, the threads used to rewrite the segment groups of a log concurrently
  */
 private[log] class Cleaner(val id: Int,
                            val offsetMap: OffsetMap,
@@ -454,7 +491,8 @@ private[log] class Cleaner(val id: Int,
                            dupBufferLoadFactor: Double,
                            throttler: Throttler,
                            time: Time,
-                           checkDone: (TopicPartition) => Unit) extends Logging {
+                           checkDone: (TopicPartition) => Unit,
+                           workerPool: Option[ExecutorService] = None) extends Logging {
 
   protected override def loggerName = classOf[LogCleaner].getName
 
@@ -466,8 +504,6 @@ private[log] class Cleaner(val id: Int,
   /* buffer used for write i/o */
   private var writeBuffer = ByteBuffer.allocate(ioBufferSize)
 
-  private val decompressionBufferSupplier = BufferSupplier.create();
-
   require(offsetMap.slots * dupBufferLoadFactor > 1, "offset map is too small to fit in even a single message, so log cleaning will never make progress. You can increase log.cleaner.dedupe.buffer.size or decrease log.cleaner.threads")
 
   /**
@@ -508,8 +544,14 @@ private[log] class Cleaner(val id: Int,
 
     // group the segments and clean the groups
     info("Cleaning log %s (cleaning prior to %s, discarding tombstones prior to %s)...".format(log.name, new Date(cleanableHorizonMs), new Date(deleteHorizonMs)))
-    for (group <- groupSegmentsBySize(log.logSegments(0, endOffset), log.config.segmentSize, log.config.maxIndexSize, cleanable.firstUncleanableOffset))
-      cleanSegments(log, group, offsetMap, deleteHorizonMs, stats)
+    val groups = groupSegmentsBySize(log.logSegments(0, endOffset), log.config.segmentSize, log.config.maxIndexSize, cleanable.firstUncleanableOffset)
+    workerPool match {
+      case Some(pool) if groups.size > 1 =>
+        cleanSegmentGroupsConcurrently(log, groups, pool, deleteHorizonMs, stats)
+      case _ =>
+        for (group <- groups)
+          cleanSegments(log, group, offsetMap, deleteHorizonMs, stats)
+    }
 
     // record buffer utilization
     stats.bufferUtilization = offsetMap.utilization
@@ -519,6 +561,62 @@ private[log] class Cleaner(val id: Int,
     (endOffset, stats)
   }
 
+  /**
+   * Clean disjoint groups of segments on the worker pool. The groups are submitted largest first so that the work is
+   * balanced across workers by the number of bytes to rewrite rather than by the number of groups. Each group is
+   * cleaned by its own Cleaner, with separate I/O buffers and a read-only view of the offset map, and swapped in as soon
+   * as it is done. If a group fails the remaining groups are aborted, and the first failure is rethrown once all of
+   * them have stopped.
+   *
+   * @param log The log being cleaned
+   * @param groups The groups of segments to clean
+   * @param pool The worker pool to clean the groups on
+   * @param deleteHorizonMs The time to retain delete tombstones
+   * @param stats Collector for cleaning statistics
+   */
+  private def cleanSegmentGroupsConcurrently(log: Log,
+                                             groups: Seq[Seq[LogSegment]],
+                                             pool: ExecutorService,
+                                             deleteHorizonMs: Long,
+                                             stats: CleanerStats) {
+    val failed = new AtomicBoolean(false)
+    def checkGroupDone(topicPartition: TopicPartition) {
+      if (failed.get)
+        throw new LogCleaningAbortedException()
+      checkDone(topicPartition)
+    }
+
+    val tasks = groups.sortBy(group => -group.map(_.size.toLong).sum).map { group =>
+      val groupStats = new CleanerStats(time)
+      val future = pool.submit(new Callable[Unit] {
+        override def call(): Unit = {
+          val groupCleaner = new Cleaner(id, offsetMap.readOnlyView, ioBufferSize, maxIoBufferSize, dupBufferLoadFactor,
+            throttler, time, checkGroupDone)
+          try groupCleaner.cleanSegments(log, group, groupCleaner.offsetMap, deleteHorizonMs, groupStats)
+          catch {
+            case e: Throwable =>
+              failed.set(true)
+              throw e
+          }
+        }
+      })
+      (future, groupStats)
+    }
+
+    val failures = tasks.flatMap { case (future, groupStats) =>
+      try {
+        future.get()
+        None
+      } catch {
+        case e: ExecutionException => Some(e.getCause)
+      } finally {
+        stats.add(groupStats)
+      }
+    }
+    // prefer the failure that caused the others to abort
+    failures.find(!_.isInstanceOf[LogCleaningAbortedException]).orElse(failures.headOption).foreach(e => throw e)
+  }
+
   /**
    * Clean a group of segments into a single replacement segment
    *
@@ -646,7 +744,8 @@ private[log] class Cleaner(val id: Int,
       sourceRecords.readInto(readBuffer, position)
       val records = MemoryRecords.readableRecords(readBuffer)
       throttler.maybeThrottle(records.sizeInBytes)
-      val result = records.filterTo(topicPartition, logCleanerFilter, writeBuffer, maxLogMessageSize, decompressionBufferSupplier)
+      val result = records.filterTo(topicPartition, logCleanerFilter, writeBuffer, maxLogMessageSize,
+        DecompressionBufferSupplier.forCurrentThread)
       stats.readMessages(result.messagesRead, result.bytesRead)
       stats.recopyMessages(result.messagesRetained, result.bytesRetained)
 
@@ -902,14 +1001,19 @@ private[log] class Cleaner(val id: Int,
             // Note that abort markers are supported in v2 and above, which means count is defined.
             stats.indexMessagesRead(batch.countOrNull)
           } else {
-            for (record <- batch.asScala) {
-              if (record.hasKey && record.offset >= startOffset) {
-                if (map.size < maxDesiredMapSize)
-                  map.put(record.key, record.offset)
-                else
-                  return true
+            val recordsIterator = batch.streamingIterator(DecompressionBufferSupplier.forCurrentThread)
+            try {
+              for (record <- recordsIterator.asScala) {
+                if (record.hasKey && record.offset >= startOffset) {
+                  if (map.size < maxDesiredMapSize)
+                    map.put(record.key, record.offset)
+                  else
+                    return true
+                }
+                stats.indexMessagesRead(1)
               }
-              stats.indexMessagesRead(1)
+            } finally {
+              recordsIterator.close()
             }
           }
         }
@@ -972,6 +1076,17 @@ private class CleanerStats(time: Time = Time.SYSTEM) {
     mapCompleteTime = time.milliseconds
   }
 
+  /**
+   * Add the read and write counts of a segment group cleaned separately
+   */
+  def add(other: CleanerStats) {
+    bytesRead += other.bytesRead
+    bytesWritten += other.bytesWritten
+    messagesRead += other.messagesRead
+    invalidMessagesRead += other.invalidMessagesRead
+    messagesWritten += other.messagesWritten
+  }
+
   def allDone() {
     endTime = time.milliseconds
   }
@@ -125,6 +125,9 @@ private[log] class LogCleanerManager(val logDirs: Seq[File],
   @volatile private var timeOfLastRun : Long = Time.SYSTEM.milliseconds
   newGauge("time-since-last-run-ms", new Gauge[Long] { def value = Time.SYSTEM.milliseconds - timeOfLastRun })
 
+  /* the cleanable bytes of each compacted log the last time it was considered for cleaning, reported by a per-log gauge */
+  private val cleaningLagBytes = new Pool[TopicPartition, Long]()
+
   /**
    * @return the position processed for all logs.
    */
@@ -170,7 +173,7 @@ private[log] class LogCleanerManager(val logDirs: Seq[File],
       val now = time.milliseconds
       this.timeOfLastRun = now
       val lastClean = allCleanerCheckpoints
-      val dirtyLogs = logs.filter {
+      val candidateLogs = logs.filter {
         case (_, log) => log.config.compact  // match logs that are marked as compacted
       }.filterNot {
         case (topicPartition, log) =>
@@ -181,7 +184,9 @@ private[log] class LogCleanerManager(val logDirs: Seq[File],
           val (firstDirtyOffset, firstUncleanableDirtyOffset) = LogCleanerManager.cleanableOffsets(log, topicPartition,
             lastClean, now)
           LogToClean(topicPartition, log, firstDirtyOffset, firstUncleanableDirtyOffset)
-      }.filter(ltc => ltc.totalBytes > 0) // skip any empty logs
+      }
+      updateCleaningLag(candidateLogs)
+      val dirtyLogs = candidateLogs.filter(ltc => ltc.totalBytes > 0) // skip any empty logs
 
       this.dirtiestLogCleanableRatio = if (dirtyLogs.nonEmpty) dirtyLogs.max.cleanableRatio else 0
       // and must meet the minimum threshold for dirty byte ratio
@@ -196,6 +201,30 @@ private[log] class LogCleanerManager(val logDirs: Seq[File],
     }
   }
 
+  /**
+    * Record the cleanable bytes of the given logs, registering a "cleaning-lag-bytes" gauge for logs seen for the first
+    * time and removing the gauges of logs which have since been deleted or are no longer compacted.
+    */
+  private def updateCleaningLag(logsToClean: Iterable[LogToClean]): Unit = {
+    logsToClean.foreach { ltc =>
+      val topicPartition = ltc.topicPartition
+      if (!cleaningLagBytes.contains(topicPartition))
+        newGauge("cleaning-lag-bytes", new Gauge[Long] { def value = cleaningLagBytes.get(topicPartition) },
+          cleaningLagTags(topicPartition))
+      cleaningLagBytes.put(topicPartition, ltc.cleanableBytes)
+    }
+    cleaningLagBytes.keys.filterNot { topicPartition =>
+      val log = logs.get(topicPartition)
+      log != null && log.config.compact
+    }.foreach { topicPartition =>
+      cleaningLagBytes.remove(topicPartition)
+      removeMetric("cleaning-lag-bytes", cleaningLagTags(topicPartition))
+    }
+  }
+
+  private def cleaningLagTags(topicPartition: TopicPartition): Map[String, String] =
+    Map("topic" -> topicPartition.topic, "partition" -> topicPartition.partition.toString)
+
   /**
     * Pause logs cleaning for logs that do not have compaction enabled
     * and do not have other deletion or compaction in progress.
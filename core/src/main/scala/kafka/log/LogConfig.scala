@@ -64,6 +64,8 @@ object Defaults {
   val FollowerReplicationThrottledReplicas = Collections.emptyList[String]()
   val MaxIdMapSnapshots = kafka.server.Defaults.MaxIdMapSnapshots
   val MessageDownConversionEnable = kafka.server.Defaults.MessageDownConversionEnable
+  val LocalRetentionMs = kafka.server.Defaults.LogLocalRetentionMs
+  val SegmentPrepareEnable = kafka.server.Defaults.LogSegmentPrepareEnable
 }
 
 case class LogConfig(props: java.util.Map[_, _], overriddenConfigs: Set[String] = Set.empty)
@@ -98,6 +100,8 @@ case class LogConfig(props: java.util.Map[_, _], overriddenConfigs: Set[String]
   val LeaderReplicationThrottledReplicas = getList(LogConfig.LeaderReplicationThrottledReplicasProp)
   val FollowerReplicationThrottledReplicas = getList(LogConfig.FollowerReplicationThrottledReplicasProp)
   val messageDownConversionEnable = getBoolean(LogConfig.MessageDownConversionEnableProp)
+  val localRetentionMs = getLong(LogConfig.LocalRetentionMsProp)
+  val segmentPrepareEnable = getBoolean(LogConfig.SegmentPrepareEnableProp)
 
   def randomSegmentJitter: Long =
     if (segmentJitterMs == 0) 0 else Utils.abs(scala.util.Random.nextInt()) % math.min(segmentJitterMs, segmentMs)
@@ -139,6 +143,11 @@ object LogConfig {
   val LeaderReplicationThrottledReplicasProp = "leader.replication.throttled.replicas"
   val FollowerReplicationThrottledReplicasProp = "follower.replication.throttled.replicas"
 
+  // Only used by brokers with a remote segment store
+  val LocalRetentionMsProp = "local.retention.ms"
+
+  val SegmentPrepareEnableProp = "segment.prepare.enable"
+
   val SegmentSizeDoc = TopicConfig.SEGMENT_BYTES_DOC
   val SegmentMsDoc = TopicConfig.SEGMENT_MS_DOC
   val SegmentJitterMsDoc = TopicConfig.SEGMENT_JITTER_MS_DOC
@@ -171,6 +180,11 @@ object LogConfig {
     "the follower side. The list should describe a set of " + "replicas in the form " +
     "[PartitionId]:[BrokerId],[PartitionId]:[BrokerId]:... or alternatively the wildcard '*' can be used to throttle " +
     "all replicas for this topic."
+  val LocalRetentionMsDoc = "The age in ms after which a closed log segment is moved from the log directories to the remote " +
+    "segment store of the broker, if it has one. Moved segments are still retained according to the retention configs of the " +
+    "topic. A value of -1 keeps all segments in the log directories."
+  val SegmentPrepareEnableDoc = "True if the file of the next log segment should be created (and preallocated, if enabled) " +
+    "in the background ahead of time, so that rolling the log does not have to wait for it."
 
   private class LogConfigDef extends ConfigDef {
 
@@ -268,6 +282,10 @@ object LogConfig {
         FollowerReplicationThrottledReplicasDoc, FollowerReplicationThrottledReplicasProp)
       .define(MessageDownConversionEnableProp, BOOLEAN, Defaults.MessageDownConversionEnable, LOW,
         MessageDownConversionEnableDoc, KafkaConfig.LogMessageDownConversionEnableProp)
+      .define(LocalRetentionMsProp, LONG, Defaults.LocalRetentionMs, atLeast(-1), MEDIUM, LocalRetentionMsDoc,
+        KafkaConfig.LogLocalRetentionMsProp)
+      .define(SegmentPrepareEnableProp, BOOLEAN, Defaults.SegmentPrepareEnable, LOW, SegmentPrepareEnableDoc,
+        KafkaConfig.LogSegmentPrepareEnableProp)
   }
 
   def apply(): LogConfig = LogConfig(new Properties())
@@ -332,7 +350,9 @@ object LogConfig {
     MessageFormatVersionProp -> KafkaConfig.LogMessageFormatVersionProp,
     MessageTimestampTypeProp -> KafkaConfig.LogMessageTimestampTypeProp,
     MessageTimestampDifferenceMaxMsProp -> KafkaConfig.LogMessageTimestampDifferenceMaxMsProp,
-    MessageDownConversionEnableProp -> KafkaConfig.LogMessageDownConversionEnableProp
+    MessageDownConversionEnableProp -> KafkaConfig.LogMessageDownConversionEnableProp,
+    LocalRetentionMsProp -> KafkaConfig.LogLocalRetentionMsProp,
+    SegmentPrepareEnableProp -> KafkaConfig.LogSegmentPrepareEnableProp
   )
 
 }
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+import kafka.utils.threadsafe
+
+/**
+ * Counters for the work done while loading logs, broken down by phase. Times are summed over all the threads loading
+ * logs, so with several recovery threads they add up to more than the time it took to load the logs.
+ */
+@threadsafe
+class LogLoadStats {
+  private val logs = new LongAdder
+  private val segments = new LongAdder
+  private val recoveredSegments = new LongAdder
+  private val segmentLoadNs = new LongAdder
+  private val segmentRecoveryNs = new LongAdder
+  private val producerStateLoadNs = new LongAdder
+
+  /**
+   * Record the opening and sanity checking of the segments of a log
+   */
+  def recordSegmentLoad(numSegments: Int, elapsedNs: Long): Unit = {
+    logs.increment()
+    segments.add(numSegments)
+    segmentLoadNs.add(elapsedNs)
+  }
+
+  /**
+   * Record the recovery of the unflushed segments of a log
+   */
+  def recordSegmentRecovery(numSegments: Int, elapsedNs: Long): Unit = {
+    recoveredSegments.add(numSegments)
+    segmentRecoveryNs.add(elapsedNs)
+  }
+
+  /**
+   * Record the rebuilding of the producer state of a log
+   */
+  def recordProducerStateLoad(elapsedNs: Long): Unit = producerStateLoadNs.add(elapsedNs)
+
+  def numLogs: Long = logs.sum
+
+  def numSegments: Long = segments.sum
+
+  def numRecoveredSegments: Long = recoveredSegments.sum
+
+  def segmentLoadTimeMs: Long = TimeUnit.NANOSECONDS.toMillis(segmentLoadNs.sum)
+
+  def segmentRecoveryTimeMs: Long = TimeUnit.NANOSECONDS.toMillis(segmentRecoveryNs.sum)
+
+  def producerStateLoadTimeMs: Long = TimeUnit.NANOSECONDS.toMillis(producerStateLoadNs.sum)
+
+}
@@ -61,7 +61,8 @@ class LogManager(logDirs: Seq[File],
                  val brokerState: BrokerState,
                  brokerTopicStats: BrokerTopicStats,
                  logDirFailureChannel: LogDirFailureChannel,
-                 time: Time) extends Logging with KafkaMetricsGroup {
+                 time: Time,
+                 val remoteSegmentCache: Option[RemoteSegmentCache] = None) extends Logging with KafkaMetricsGroup {
 
   import LogManager._
 
@@ -102,6 +103,9 @@ class LogManager(logDirs: Seq[File],
 
   private val preferredLogDirs = new ConcurrentHashMap[TopicPartition, String]()
 
+  private val loadStats = new LogLoadStats
+  @volatile private var logLoadTimeMs = 0L
+
   private def offlineLogDirs: Iterable[File] = {
     val logDirsSet = mutable.Set[File](logDirs: _*)
     _liveLogDirs.asScala.foreach(logDirsSet -=)
@@ -124,6 +128,49 @@ class LogManager(logDirs: Seq[File],
     }
   )
 
+  newGauge(
+    "LogLoadTimeMs",
+    new Gauge[Long] {
+      def value = logLoadTimeMs
+    }
+  )
+  newGauge(
+    "LoadedLogs",
+    new Gauge[Long] {
+      def value = loadStats.numLogs
+    }
+  )
+  newGauge(
+    "LoadedLogSegments",
+    new Gauge[Long] {
+      def value = loadStats.numSegments
+    }
+  )
+  newGauge(
+    "RecoveredLogSegments",
+    new Gauge[Long] {
+      def value = loadStats.numRecoveredSegments
+    }
+  )
+  newGauge(
+    "SegmentLoadTimeMs",
+    new Gauge[Long] {
+      def value = loadStats.segmentLoadTimeMs
+    }
+  )
+  newGauge(
+    "SegmentRecoveryTimeMs",
+    new Gauge[Long] {
+      def value = loadStats.segmentRecoveryTimeMs
+    }
+  )
+  newGauge(
+    "ProducerStateLoadTimeMs",
+    new Gauge[Long] {
+      def value = loadStats.producerStateLoadTimeMs
+    }
+  )
+
   for (dir <- logDirs) {
     newGauge(
       "LogDirectoryOffline",
@@ -272,7 +319,9 @@ class LogManager(logDirs: Seq[File],
       scheduler = scheduler,
       time = time,
       brokerTopicStats = brokerTopicStats,
-      logDirFailureChannel = logDirFailureChannel)
+      logDirFailureChannel = logDirFailureChannel,
+      remoteSegmentCache = remoteSegmentCache,
+      loadStats = Some(loadStats))
 
     if (logDir.getName.endsWith(Log.DeleteDirSuffix)) {
       addLogToBeDeleted(log)
@@ -296,20 +345,23 @@ class LogManager(logDirs: Seq[File],
   }
 
   /**
-   * Recover and load all logs in the given data directories
+   * Recover and load all logs in the given data directories.
+   *
+   * The logs of all the directories are loaded by a single fork join pool with `num.recovery.threads.per.data.dir`
+   * threads per directory, so that threads which are done with a directory help with the others. The logs are
+   * submitted alternately from each directory to keep all the disks busy, and a log with many unflushed segments
+   * recovers them concurrently on the threads of the pool (see [[Log]]).
    */
   private def loadLogs(): Unit = {
     info("Loading logs.")
     val startMs = time.milliseconds
-    val threadPools = ArrayBuffer.empty[ExecutorService]
     val offlineDirs = mutable.Set.empty[(String, IOException)]
     val jobs = mutable.Map.empty[File, Seq[Future[_]]]
+    val uncleanDirs = mutable.Set.empty[File]
+    val pool = newRecoveryPool(numRecoveryThreadsPerDataDir * math.max(liveLogDirs.size, 1))
 
-    for (dir <- liveLogDirs) {
+    val jobsByDir = liveLogDirs.flatMap { dir =>
       try {
-        val pool = Executors.newFixedThreadPool(numRecoveryThreadsPerDataDir)
-        threadPools.append(pool)
-
         val cleanShutdownFile = new File(dir, Log.CleanShutdownFile)
 
         if (cleanShutdownFile.exists) {
@@ -317,6 +369,7 @@ class LogManager(logDirs: Seq[File],
         } else {
           // log recovery itself is being performed by `Log` class during initialization
           brokerState.newState(RecoveringFromUncleanShutdown)
+          uncleanDirs += dir
         }
 
         var recoveryPoints = Map[TopicPartition, Long]()
@@ -338,29 +391,48 @@ class LogManager(logDirs: Seq[File],
 
         val jobsForDir = for {
           dirContent <- Option(dir.listFiles).toList
-          logDir <- dirContent if logDir.isDirectory
+          logDir <- dirContent if logDir.isDirectory && logDir.getName != RemoteSegmentCache.CacheDirName
         } yield {
           CoreUtils.runnable {
             try {
               loadLog(logDir, recoveryPoints, logStartOffsets)
             } catch {
               case e: IOException =>
-                offlineDirs.add((dir.getAbsolutePath, e))
+                offlineDirs.synchronized(offlineDirs.add((dir.getAbsolutePath, e)))
                 error(s"Error while loading log dir ${dir.getAbsolutePath}", e)
             }
           }
         }
-        jobs(cleanShutdownFile) = jobsForDir.map(pool.submit)
+        // indexed, since the jobs are submitted by position below
+        Some(dir -> jobsForDir.toVector)
       } catch {
         case e: IOException =>
           offlineDirs.add((dir.getAbsolutePath, e))
           error(s"Error while loading log dir ${dir.getAbsolutePath}", e)
+          None
       }
     }
 
+    // submit the first log of each directory, then the second one and so on
+    val submitted = mutable.Map.empty[File, ArrayBuffer[Future[_]]]
+    val maxJobsPerDir = if (jobsByDir.isEmpty) 0 else jobsByDir.map(_._2.size).max
+    for (i <- 0 until maxJobsPerDir; (dir, jobsForDir) <- jobsByDir if i < jobsForDir.size)
+      submitted.getOrElseUpdate(dir, ArrayBuffer.empty[Future[_]]) += pool.submit(jobsForDir(i))
+    jobsByDir.foreach { case (dir, _) => jobs(dir) = submitted.getOrElse(dir, Seq.empty) }
+
     try {
-      for ((cleanShutdownFile, dirJobs) <- jobs) {
+      for ((dir, dirJobs) <- jobs) {
         dirJobs.foreach(_.get)
+        // persist the recovery points right away so that a crash soon after startup does not recover the logs again
+        if (uncleanDirs.contains(dir)) {
+          try {
+            checkpointLogRecoveryOffsetsInDir(dir)
+          } catch {
+            case e: KafkaStorageException =>
+              error(s"Error while writing the recovery point checkpoint of directory $dir after recovery", e)
+          }
+        }
+        val cleanShutdownFile = new File(dir, Log.CleanShutdownFile)
         try {
           cleanShutdownFile.delete()
         } catch {
@@ -378,10 +450,25 @@ class LogManager(logDirs: Seq[File],
         error(s"There was an error in one of the threads during logs loading: ${e.getCause}")
         throw e.getCause
     } finally {
-      threadPools.foreach(_.shutdown())
+      pool.shutdown()
     }
 
-    info(s"Logs loading complete in ${time.milliseconds - startMs} ms.")
+    logLoadTimeMs = time.milliseconds - startMs
+    info(s"Logs loading complete in $logLoadTimeMs ms. Loaded ${loadStats.numLogs} logs with " +
+      s"${loadStats.numSegments} segments in ${loadStats.segmentLoadTimeMs} ms, recovered " +
+      s"${loadStats.numRecoveredSegments} segments in ${loadStats.segmentRecoveryTimeMs} ms and loaded producer state " +
+      s"in ${loadStats.producerStateLoadTimeMs} ms (summed over all recovery threads).")
+  }
+
+  private def newRecoveryPool(parallelism: Int): ForkJoinPool = {
+    val threadFactory = new ForkJoinPool.ForkJoinWorkerThreadFactory {
+      override def newThread(pool: ForkJoinPool): ForkJoinWorkerThread = {
+        val thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool)
+        thread.setName(s"log-recovery-${thread.getPoolIndex}")
+        thread
+      }
+    }
+    new ForkJoinPool(parallelism, threadFactory, null, false)
   }
 
   /**
@@ -416,6 +503,14 @@ class LogManager(logDirs: Seq[File],
                          deleteLogs _,
                          delay = InitialTaskDelayMs,
                          unit = TimeUnit.MILLISECONDS)
+      if (remoteSegmentCache.isDefined) {
+        info("Starting moving segments to the remote segment store with a period of %d ms.".format(retentionCheckMs))
+        scheduler.schedule("kafka-log-offload",
+                           offloadSegments _,
+                           delay = InitialTaskDelayMs,
+                           period = retentionCheckMs,
+                           TimeUnit.MILLISECONDS)
+      }
     }
     if (cleanerConfig.enableCleaner)
       cleaner.startup()
@@ -428,6 +523,13 @@ class LogManager(logDirs: Seq[File],
     info("Shutting down.")
 
     removeMetric("OfflineLogDirectoryCount")
+    removeMetric("LogLoadTimeMs")
+    removeMetric("LoadedLogs")
+    removeMetric("LoadedLogSegments")
+    removeMetric("RecoveredLogSegments")
+    removeMetric("SegmentLoadTimeMs")
+    removeMetric("SegmentRecoveryTimeMs")
+    removeMetric("ProducerStateLoadTimeMs")
     for (dir <- logDirs) {
       removeMetric("LogDirectoryOffline", Map("logDirectory" -> dir.getAbsolutePath))
     }
@@ -483,6 +585,7 @@ class LogManager(logDirs: Seq[File],
         throw e.getCause
     } finally {
       threadPools.foreach(_.shutdown())
+      remoteSegmentCache.foreach(cache => CoreUtils.swallow(cache.close(), this))
       // regardless of whether the close succeeded, we need to unlock the data directories
       dirLocks.foreach(_.destroy())
     }
@@ -713,7 +816,8 @@ class LogManager(logDirs: Seq[File],
             scheduler = scheduler,
             time = time,
             brokerTopicStats = brokerTopicStats,
-            logDirFailureChannel = logDirFailureChannel)
+            logDirFailureChannel = logDirFailureChannel,
+            remoteSegmentCache = remoteSegmentCache)
 
           if (isFuture)
             futureLogs.put(topicPartition, log)
@@ -855,6 +959,9 @@ class LogManager(logDirs: Seq[File],
         cleaner.updateCheckpoints(removedLog.dir.getParentFile)
       }
       removedLog.renameDir(Log.logDeleteDirName(topicPartition))
+      // the future log of a partition does not use its remote segments, so they are only deleted with the current log
+      if (!isFuture)
+        removedLog.deleteAllRemoteSegments()
       checkpointRecoveryOffsetsAndCleanSnapshot(removedLog.dir.getParentFile, ArrayBuffer.empty)
       checkpointLogStartOffsetsInDir(removedLog.dir.getParentFile)
       addLogToBeDeleted(removedLog)
@@ -929,6 +1036,24 @@ class LogManager(logDirs: Seq[File],
                   (time.milliseconds - startMs) / 1000 + " seconds")
   }
 
+  /**
+   * Move old segments of the current logs to the remote segment store
+   */
+  def offloadSegments(): Unit = {
+    debug("Beginning moving segments to the remote segment store...")
+    val startMs = time.milliseconds
+    var total = 0
+    currentLogs.values.foreach { log =>
+      try {
+        total += log.offloadSegments()
+      } catch {
+        case e: KafkaStorageException =>
+          error(s"Error while moving segments of ${log.topicPartition} to the remote segment store", e)
+      }
+    }
+    debug(s"Moved $total segments to the remote segment store in ${time.milliseconds - startMs} ms")
+  }
+
   /**
    * Get all the partition logs
    */
@@ -1001,6 +1126,21 @@ object LogManager {
 
     val cleanerConfig = LogCleaner.cleanerConfig(config)
 
+    IndexMmapBudget.maxMappings = config.logIndexMmapMaxCount
+
+    val remoteSegmentCache = Option(config.logRemoteStoreClass).map { _ =>
+      val store = config.getConfiguredInstance(KafkaConfig.LogRemoteStoreClassProp, classOf[RemoteSegmentStore])
+      // fetched segments are kept in the first online log directory
+      val cacheParentDir = config.logDirs.find(dir => !initialOfflineDirs.contains(dir)).getOrElse(config.logDirs.head)
+      new RemoteSegmentCache(store,
+        dir = new File(cacheParentDir, RemoteSegmentCache.CacheDirName).getAbsoluteFile,
+        maxBytes = config.logRemoteCacheBytes,
+        readAheadSegments = config.logRemoteReadAheadSegments,
+        fileDeleteDelayMs = config.logDeleteDelayMs,
+        scheduler = kafkaScheduler,
+        time = time)
+    }
+
     new LogManager(logDirs = config.logDirs.map(new File(_).getAbsoluteFile),
       initialOfflineDirs = initialOfflineDirs.map(new File(_).getAbsoluteFile),
       topicConfigs = topicConfigs,
@@ -1016,6 +1156,7 @@ object LogManager {
       brokerState = brokerState,
       brokerTopicStats = brokerTopicStats,
       logDirFailureChannel = logDirFailureChannel,
-      time = time)
+      time = time,
+      remoteSegmentCache = remoteSegmentCache)
   }
 }
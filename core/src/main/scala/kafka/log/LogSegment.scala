@@ -331,9 +331,23 @@ class LogSegment private[log] (val log: FileRecords,
    */
   @nonthreadsafe
   def recover(producerStateManager: ProducerStateManager, leaderEpochCache: Option[LeaderEpochFileCache] = None): Int = {
+    val truncated = recoverIndexes()
+    recoverProducerState(producerStateManager, leaderEpochCache)
+    truncated
+  }
+
+  /**
+   * The first step of recovery: validate the batches of the log file, rebuild the offset and time indexes from them and
+   * lop off any invalid bytes from the end of the log and indexes. This only touches the files of this segment, so the
+   * segments of a log can go through this step concurrently.
+   *
+   * @return The number of bytes truncated from the log
+   * @throws LogSegmentOffsetOverflowException if the log segment contains an offset that causes the index offset to overflow
+   */
+  @nonthreadsafe
+  def recoverIndexes(): Int = {
     offsetIndex.reset()
     timeIndex.reset()
-    txnIndex.reset()
     var validBytes = 0
     var lastIndexEntry = 0
     maxTimestampSoFar = RecordBatch.NO_TIMESTAMP
@@ -355,14 +369,6 @@ class LogSegment private[log] (val log: FileRecords,
           lastIndexEntry = validBytes
         }
         validBytes += batch.sizeInBytes()
-
-        if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
-          leaderEpochCache.foreach { cache =>
-            if (batch.partitionLeaderEpoch > cache.latestEpoch) // this is to avoid unnecessary warning in cache.assign()
-              cache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
-          }
-          updateProducerState(producerStateManager, batch)
-        }
       }
     } catch {
       case e: CorruptRecordException =>
@@ -381,6 +387,29 @@ class LogSegment private[log] (val log: FileRecords,
     truncated
   }
 
+  /**
+   * The second step of recovery: rebuild the transaction index and replay the batches of the segment into the producer
+   * state and the leader epoch cache. This must be done after [[recoverIndexes]] and in offset order across segments,
+   * since the producer state of a segment depends on all the segments before it.
+   *
+   * @param producerStateManager Producer state corresponding to the segment's base offset
+   * @param leaderEpochCache Optionally a cache for updating the leader epoch during recovery.
+   */
+  @nonthreadsafe
+  def recoverProducerState(producerStateManager: ProducerStateManager,
+                           leaderEpochCache: Option[LeaderEpochFileCache] = None): Unit = {
+    txnIndex.reset()
+    for (batch <- log.batches.asScala) {
+      if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
+        leaderEpochCache.foreach { cache =>
+          if (batch.partitionLeaderEpoch > cache.latestEpoch) // this is to avoid unnecessary warning in cache.assign()
+            cache.assign(batch.partitionLeaderEpoch, batch.baseOffset)
+        }
+        updateProducerState(producerStateManager, batch)
+      }
+    }
+  }
+
   private def loadLargestTimestamp() {
     // Get the last time index entry. If the time index is empty, it will return (-1, baseOffset)
     val lastTimeIndexEntry = timeIndex.lastEntry
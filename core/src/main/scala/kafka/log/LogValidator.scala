@@ -42,6 +42,11 @@ private[kafka] object LogValidator extends Logging {
    * conversion or value overwriting is required for messages, this method will perform in-place operations to
    * avoid expensive re-compression.
    *
+   * If the producer is trusted and the records are v2 batches which can be appended as they are, only the batch
+   * headers are validated (the CRC having been checked when the records were analyzed), and offsets are assigned
+   * without decompressing or iterating over the records. In that case timestamps are validated against the batch
+   * max timestamp only, and the offset of the max timestamp is the last offset of its batch.
+   *
    * Returns a ValidationAndOffsetAssignResult containing the validated message set, maximum timestamp, the offset
    * of the shallow message with the max timestamp and a boolean indicating whether the message sizes may have changed.
    */
@@ -56,8 +61,12 @@ private[kafka] object LogValidator extends Logging {
                                                       timestampType: TimestampType,
                                                       timestampDiffMaxMs: Long,
                                                       partitionLeaderEpoch: Int,
-                                                      isFromClient: Boolean): ValidationAndOffsetAssignResult = {
-    if (sourceCodec == NoCompressionCodec && targetCodec == NoCompressionCodec) {
+                                                      isFromClient: Boolean,
+                                                      trustedProducer: Boolean = false): ValidationAndOffsetAssignResult = {
+    if (trustedProducer && isFromClient && canAssignOffsetsToBatches(records, sourceCodec, targetCodec, compactedTopic, magic)) {
+      assignOffsetsToBatches(records, offsetCounter, now, timestampType, timestampDiffMaxMs, partitionLeaderEpoch,
+        isFromClient, magic)
+    } else if (sourceCodec == NoCompressionCodec && targetCodec == NoCompressionCodec) {
       // check the magic value
       if (!records.hasMatchingMagic(magic))
         convertAndAssignOffsetsNonCompressed(records, offsetCounter, compactedTopic, time, now, timestampType,
@@ -72,6 +81,63 @@ private[kafka] object LogValidator extends Logging {
     }
   }
 
+  /**
+   * Records can be appended without looking at the individual records if they are v2 batches which need neither
+   * conversion nor recompression, and the records do not need their keys checked for compaction.
+   */
+  private def canAssignOffsetsToBatches(records: MemoryRecords,
+                                        sourceCodec: CompressionCodec,
+                                        targetCodec: CompressionCodec,
+                                        compactedTopic: Boolean,
+                                        magic: Byte): Boolean = {
+    magic >= RecordBatch.MAGIC_VALUE_V2 && sourceCodec == targetCodec && !compactedTopic &&
+      records.hasMatchingMagic(magic)
+  }
+
+  private def assignOffsetsToBatches(records: MemoryRecords,
+                                     offsetCounter: LongRef,
+                                     now: Long,
+                                     timestampType: TimestampType,
+                                     timestampDiffMaxMs: Long,
+                                     partitionLeaderEpoch: Int,
+                                     isFromClient: Boolean,
+                                     magic: Byte): ValidationAndOffsetAssignResult = {
+    var maxTimestamp = RecordBatch.NO_TIMESTAMP
+    var offsetOfMaxTimestamp = -1L
+
+    for (batch <- records.batches.asScala) {
+      validateBatch(batch, isFromClient, magic)
+      validateBatchTimestamp(batch, now, timestampType, timestampDiffMaxMs)
+
+      // validateBatch checked that the count matches the offset range of the batch
+      val lastOffset = offsetCounter.addAndGet(batch.countOrNull.toLong) - 1
+      batch.setLastOffset(lastOffset)
+      batch.setPartitionLeaderEpoch(partitionLeaderEpoch)
+
+      if (timestampType == TimestampType.LOG_APPEND_TIME) {
+        batch.setMaxTimestamp(TimestampType.LOG_APPEND_TIME, now)
+      } else {
+        batch.setMaxTimestamp(timestampType, batch.maxTimestamp)
+        if (batch.maxTimestamp > maxTimestamp) {
+          maxTimestamp = batch.maxTimestamp
+          offsetOfMaxTimestamp = lastOffset
+        }
+      }
+    }
+
+    if (timestampType == TimestampType.LOG_APPEND_TIME) {
+      maxTimestamp = now
+      offsetOfMaxTimestamp = offsetCounter.value - 1
+    }
+
+    ValidationAndOffsetAssignResult(
+      validatedRecords = records,
+      maxTimestamp = maxTimestamp,
+      shallowOffsetOfMaxTimestamp = offsetOfMaxTimestamp,
+      messageSizeMaybeChanged = false,
+      recordConversionStats = RecordConversionStats.EMPTY)
+  }
+
   private def validateBatch(batch: RecordBatch, isFromClient: Boolean, toMagic: Byte): Unit = {
     if (isFromClient) {
       if (batch.magic >= RecordBatch.MAGIC_VALUE_V2) {
@@ -264,27 +330,33 @@ private[kafka] object LogValidator extends Logging {
         if (sourceCodec == NoCompressionCodec && batch.isControlBatch)
           inPlaceAssignment = true
 
-        for (record <- batch.asScala) {
-          validateRecord(batch, record, now, timestampType, timestampDiffMaxMs, compactedTopic)
-          if (sourceCodec != NoCompressionCodec && record.isCompressed)
-            throw new InvalidRecordException("Compressed outer record should not have an inner record with a " +
-              s"compression attribute set: $record")
-
-          uncompressedSizeInBytes += record.sizeInBytes()
-          if (batch.magic > RecordBatch.MAGIC_VALUE_V0 && toMagic > RecordBatch.MAGIC_VALUE_V0) {
-            // Check if we need to overwrite offset
-            // No in place assignment situation 3
-            if (record.offset != expectedInnerOffset.getAndIncrement())
+        // decompress with the buffers cached by this thread rather than allocating them for every batch
+        val recordsIterator = batch.streamingIterator(DecompressionBufferSupplier.forCurrentThread)
+        try {
+          for (record <- recordsIterator.asScala) {
+            validateRecord(batch, record, now, timestampType, timestampDiffMaxMs, compactedTopic)
+            if (sourceCodec != NoCompressionCodec && record.isCompressed)
+              throw new InvalidRecordException("Compressed outer record should not have an inner record with a " +
+                s"compression attribute set: $record")
+
+            uncompressedSizeInBytes += record.sizeInBytes()
+            if (batch.magic > RecordBatch.MAGIC_VALUE_V0 && toMagic > RecordBatch.MAGIC_VALUE_V0) {
+              // Check if we need to overwrite offset
+              // No in place assignment situation 3
+              if (record.offset != expectedInnerOffset.getAndIncrement())
+                inPlaceAssignment = false
+              if (record.timestamp > maxTimestamp)
+                maxTimestamp = record.timestamp
+            }
+
+            // No in place assignment situation 4
+            if (!record.hasMagic(toMagic))
               inPlaceAssignment = false
-            if (record.timestamp > maxTimestamp)
-              maxTimestamp = record.timestamp
-          }
-
-          // No in place assignment situation 4
-          if (!record.hasMagic(toMagic))
-            inPlaceAssignment = false
 
-          validatedRecords += record
+            validatedRecords += record
+          }
+        } finally {
+          recordsIterator.close()
         }
       }
 
@@ -393,6 +465,23 @@ private[kafka] object LogValidator extends Logging {
         s"timestamp type to LogAppendTime.")
   }
 
+  /**
+   * This method validates the max timestamp of a batch, in place of the timestamps of its records.
+   */
+  private def validateBatchTimestamp(batch: RecordBatch,
+                                     now: Long,
+                                     timestampType: TimestampType,
+                                     timestampDiffMaxMs: Long) {
+    if (timestampType == TimestampType.CREATE_TIME
+      && batch.maxTimestamp != RecordBatch.NO_TIMESTAMP
+      && math.abs(batch.maxTimestamp - now) > timestampDiffMaxMs)
+      throw new InvalidTimestampException(s"Max timestamp ${batch.maxTimestamp} of batch with base offset ${batch.baseOffset} " +
+        s"is out of range. The timestamp should be within [${now - timestampDiffMaxMs}, ${now + timestampDiffMaxMs}]")
+    if (batch.timestampType == TimestampType.LOG_APPEND_TIME)
+      throw new InvalidTimestampException(s"Invalid timestamp type in batch with base offset ${batch.baseOffset}. " +
+        s"Producer should not set timestamp type to LogAppendTime.")
+  }
+
   case class ValidationAndOffsetAssignResult(validatedRecords: MemoryRecords,
                                              maxTimestamp: Long,
                                              shallowOffsetOfMaxTimestamp: Long,
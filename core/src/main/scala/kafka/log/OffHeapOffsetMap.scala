@@ -0,0 +1,337 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.{File, RandomAccessFile}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+
+import kafka.utils._
+import org.apache.kafka.common.utils.{MappedByteBuffers, Utils}
+
+/**
+ * An open-addressing hash table used for deduplicating the log which keeps its slots outside of the Java heap.
+ *
+ * Keys are hashed with the 128-bit variant of MurmurHash3. The lower half of the hash picks the home slot and collisions
+ * are resolved by linear probing; the full 128-bit hash is stored in each slot and compared on every probe, so two keys
+ * only alias if both halves of their hashes agree. Unlike SkimpyOffsetMap the memory is split into chunks, so a single
+ * map is not limited to 2GB. This hash table does not support deletes.
+ *
+ * @param memory The amount of memory this map can use
+ * @param file If defined, the slots live in a memory-mapped file at this path rather than in direct buffers. The file is
+ *             truncated when the map is created and deleted when it is closed.
+ * @param sharedChunks The memory of the map this is a read-only view of, if any
+ */
+@nonthreadsafe
+class OffHeapOffsetMap private (val memory: Long, val file: Option[File], sharedChunks: Option[Array[ByteBuffer]])
+  extends OffsetMap with Logging {
+  import OffHeapOffsetMap._
+
+  def this(memory: Long, file: Option[File]) = this(memory, file, None)
+
+  def this(memory: Long) = this(memory, None, None)
+
+  /**
+   * The maximum number of entries this map can contain
+   */
+  val slots: Int = math.min(memory / BytesPerEntry, Int.MaxValue).toInt
+  require(slots > 0, s"Offset map memory $memory is too small to hold a single entry")
+
+  private val chunks: Array[ByteBuffer] = (sharedChunks, file) match {
+    case (Some(shared), _) => shared
+    case (None, Some(f)) => mapFile(f)
+    case (None, None) => Array.tabulate(numChunks)(i => ByteBuffer.allocateDirect(chunkBytes(i)))
+  }
+
+  private def readOnly: Boolean = sharedChunks.isDefined
+
+  /* the two halves of the hash of the key currently being looked up */
+  private var hash1 = 0L
+  private var hash2 = 0L
+
+  /* number of entries put into the map */
+  private var entries = 0
+
+  /* number of lookups on the map */
+  private var lookups = 0L
+
+  /* the number of probes for all lookups */
+  private var probes = 0L
+
+  /* the latest offset written into the map */
+  private var lastOffset = -1L
+
+  /**
+   * Associate this offset to the given key.
+   * @param key The key
+   * @param offset The offset
+   */
+  override def put(key: ByteBuffer, offset: Long) {
+    ensureWritable()
+    require(entries < slots, "Attempt to add a new entry to a full offset map.")
+    lookups += 1
+    hash(key)
+    // probe until we find the matching entry or the first empty slot
+    var slot = homeSlot
+    while (!isEmpty(slot)) {
+      if (matches(slot)) {
+        // we found an existing entry, overwrite it and return (size does not change)
+        bufferFor(slot).putLong(positionOf(slot) + 16, offset)
+        lastOffset = offset
+        return
+      }
+      slot = nextSlot(slot)
+    }
+    // found an empty slot, update it--size grows by 1
+    val buffer = bufferFor(slot)
+    val position = positionOf(slot)
+    buffer.putLong(position, hash1)
+    buffer.putLong(position + 8, hash2)
+    buffer.putLong(position + 16, offset)
+    lastOffset = offset
+    entries += 1
+  }
+
+  /**
+   * Get the offset associated with this key.
+   * @param key The key
+   * @return The offset associated with this key or -1 if the key is not found
+   */
+  override def get(key: ByteBuffer): Long = {
+    lookups += 1
+    hash(key)
+    // search for the hash of this key by probing until we find the hash we are looking for or we find an empty slot,
+    // bounding the number of attempts in case the map is full
+    var slot = homeSlot
+    var attempt = 0
+    while (attempt < slots) {
+      if (isEmpty(slot))
+        return -1L
+      if (matches(slot))
+        return bufferFor(slot).getLong(positionOf(slot) + 16)
+      slot = nextSlot(slot)
+      attempt += 1
+    }
+    -1L
+  }
+
+  /**
+   * Remove all entries from the map. Memory which has never been written is already zeroed, so this is a no-op
+   * for an empty map.
+   */
+  override def clear() {
+    ensureWritable()
+    if (entries > 0) {
+      chunks.foreach { chunk =>
+        var position = 0
+        while (position < chunk.limit()) {
+          chunk.putLong(position, 0L)
+          position += 8
+        }
+      }
+    }
+    this.entries = 0
+    this.lookups = 0L
+    this.probes = 0L
+    this.lastOffset = -1L
+  }
+
+  /**
+   * The number of entries put into the map (note that not all may remain)
+   */
+  override def size: Int = entries
+
+  /**
+   * The rate of collisions in the lookups
+   */
+  def collisionRate: Double =
+    (this.probes - this.lookups) / this.lookups.toDouble
+
+  /**
+   * The latest offset put into the map
+   */
+  override def latestOffset: Long = lastOffset
+
+  override def updateLatestOffset(offset: Long): Unit = {
+    ensureWritable()
+    lastOffset = offset
+  }
+
+  override def readOnlyView: OffsetMap = {
+    // slots are only accessed with absolute gets, so the view can share the chunks as they are
+    val view = new OffHeapOffsetMap(memory, file, Some(chunks))
+    view.entries = entries
+    view.lastOffset = lastOffset
+    view
+  }
+
+  /**
+   * Release the memory backing this map. Direct buffers are freed eagerly rather than waiting for a GC and a
+   * memory-mapped file is unmapped and deleted. The map and any views of it must not be used afterwards. Closing a
+   * view does nothing.
+   */
+  override def close(): Unit = {
+    if (readOnly)
+      return
+    val description = file.map(_.getAbsolutePath).getOrElse("offset map")
+    chunks.foreach { chunk =>
+      CoreUtils.swallow(MappedByteBuffers.unmap(description, chunk.asInstanceOf[MappedByteBuffer]), this)
+    }
+    file.foreach(f => Files.deleteIfExists(f.toPath))
+  }
+
+  private def ensureWritable(): Unit = {
+    if (readOnly)
+      throw new IllegalStateException("Attempt to modify a read-only view of an offset map.")
+  }
+
+  private def numChunks: Int = (slots + SlotsPerChunk - 1) / SlotsPerChunk
+
+  private def chunkBytes(chunk: Int): Int = math.min(SlotsPerChunk, slots - chunk * SlotsPerChunk) * BytesPerEntry
+
+  private def mapFile(f: File): Array[ByteBuffer] = {
+    val raf = new RandomAccessFile(f, "rw")
+    try {
+      // drop anything left over by a previous instance so that the map starts out zeroed
+      raf.setLength(0)
+      raf.setLength(slots.toLong * BytesPerEntry)
+      Array.tabulate[ByteBuffer](numChunks) { i =>
+        raf.getChannel.map(FileChannel.MapMode.READ_WRITE, i.toLong * SlotsPerChunk * BytesPerEntry, chunkBytes(i))
+      }
+    } finally {
+      CoreUtils.swallow(raf.close(), this)
+    }
+  }
+
+  private def bufferFor(slot: Int): ByteBuffer = chunks(slot >>> ChunkShift)
+
+  private def positionOf(slot: Int): Int = (slot & ChunkMask) * BytesPerEntry
+
+  private def homeSlot: Int = {
+    probes += 1
+    Utils.toPositive(hash1.toInt ^ (hash1 >>> 32).toInt) % slots
+  }
+
+  private def nextSlot(slot: Int): Int = {
+    probes += 1
+    if (slot + 1 == slots) 0 else slot + 1
+  }
+
+  /**
+   * Check that there is no entry at the given slot
+   */
+  private def isEmpty(slot: Int): Boolean = {
+    val buffer = bufferFor(slot)
+    val position = positionOf(slot)
+    buffer.getLong(position) == 0 && buffer.getLong(position + 8) == 0 && buffer.getLong(position + 16) == 0
+  }
+
+  /**
+   * Check whether the entry at the given slot has the same 128-bit hash as the key being looked up
+   */
+  private def matches(slot: Int): Boolean = {
+    val buffer = bufferFor(slot)
+    val position = positionOf(slot)
+    buffer.getLong(position) == hash1 && buffer.getLong(position + 8) == hash2
+  }
+
+  /**
+   * Compute the 128-bit MurmurHash3 (x64 variant) of the remaining bytes of the key into hash1 and hash2 without
+   * changing the key's position.
+   */
+  private def hash(key: ByteBuffer): Unit = {
+    val start = key.position()
+    val length = key.remaining()
+    var h1 = Seed
+    var h2 = Seed
+
+    val end = start + (length & ~15)
+    var i = start
+    while (i < end) {
+      h1 ^= mixK1(java.lang.Long.reverseBytes(key.getLong(i)))
+      h1 = java.lang.Long.rotateLeft(h1, 27) + h2
+      h1 = h1 * 5 + 0x52dce729
+      h2 ^= mixK2(java.lang.Long.reverseBytes(key.getLong(i + 8)))
+      h2 = java.lang.Long.rotateLeft(h2, 31) + h1
+      h2 = h2 * 5 + 0x38495ab5
+      i += 16
+    }
+
+    // the remaining 0 to 15 bytes are read little-endian into k1 and k2
+    val tail = length & 15
+    if (tail > 0) {
+      var k1 = 0L
+      var k2 = 0L
+      var j = tail - 1
+      while (j >= 8) {
+        k2 ^= (key.get(end + j) & 0xffL) << ((j - 8) * 8)
+        j -= 1
+      }
+      while (j >= 0) {
+        k1 ^= (key.get(end + j) & 0xffL) << (j * 8)
+        j -= 1
+      }
+      if (tail > 8)
+        h2 ^= mixK2(k2)
+      h1 ^= mixK1(k1)
+    }
+
+    h1 ^= length
+    h2 ^= length
+    h1 += h2
+    h2 += h1
+    h1 = fmix(h1)
+    h2 = fmix(h2)
+    h1 += h2
+    h2 += h1
+    hash1 = h1
+    hash2 = h2
+  }
+
+}
+
+object OffHeapOffsetMap {
+  /* each entry is the two halves of the 128-bit hash followed by an 8 byte offset */
+  val BytesPerEntry = 24
+
+  /* slots are split into chunks of 2^25 entries (768MB) so that each chunk fits in a single ByteBuffer */
+  private val ChunkShift = 25
+  private val SlotsPerChunk = 1 << ChunkShift
+  private val ChunkMask = SlotsPerChunk - 1
+
+  /* a non-zero seed so that the hash of an empty key is not mistaken for an empty slot */
+  private val Seed = 0x9747b28cL
+
+  private val C1 = 0x87c37b91114253d5L
+  private val C2 = 0x4cf5ad432745937fL
+
+  private def mixK1(k: Long): Long = java.lang.Long.rotateLeft(k * C1, 31) * C2
+
+  private def mixK2(k: Long): Long = java.lang.Long.rotateLeft(k * C2, 33) * C1
+
+  private def fmix(k: Long): Long = {
+    var h = k
+    h ^= h >>> 33
+    h *= 0xff51afd7ed558ccdL
+    h ^= h >>> 33
+    h *= 0xc4ceb9fe1a85ec53L
+    h ^= h >>> 33
+    h
+  }
+}
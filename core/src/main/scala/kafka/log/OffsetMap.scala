@@ -32,6 +32,13 @@ trait OffsetMap {
   def size: Int
   def utilization: Double = size.toDouble / slots
   def latestOffset: Long
+  def close(): Unit = {}
+
+  /**
+   * A view of the current contents of this map which shares its memory and can serve lookups from another thread,
+   * provided no further puts or clears are made to this map while the view is in use. Views do not support updates.
+   */
+  def readOnlyView: OffsetMap
 }
 
 /**
@@ -39,11 +46,14 @@ trait OffsetMap {
  * for comparisons and to save space on object overhead. Collisions are resolved by probing. This hash table does not support deletes.
  * @param memory The amount of memory this map can use
  * @param hashAlgorithm The hash algorithm instance to use: MD2, MD5, SHA-1, SHA-256, SHA-384, SHA-512
+ * @param bytes The buffer holding the entries, shared with the map this is a read-only view of
+ * @param readOnly Whether this map is a read-only view
  */
 @nonthreadsafe
-class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extends OffsetMap {
-  private val bytes = ByteBuffer.allocate(memory)
-  
+class SkimpyOffsetMap private (val memory: Int, val hashAlgorithm: String, bytes: ByteBuffer, readOnly: Boolean) extends OffsetMap {
+
+  def this(memory: Int, hashAlgorithm: String = "MD5") = this(memory, hashAlgorithm, ByteBuffer.allocate(memory), false)
+
   /* the hash algorithm instance to use, default is MD5 */
   private val digest = MessageDigest.getInstance(hashAlgorithm)
   
@@ -82,6 +92,7 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
    * @param offset The offset
    */
   override def put(key: ByteBuffer, offset: Long) {
+    ensureWritable()
     require(entries < slots, "Attempt to add a new entry to a full offset map.")
     lookups += 1
     hashInto(key, hash1)
@@ -145,6 +156,7 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
    * Change the salt used for key hashing making all existing keys unfindable.
    */
   override def clear() {
+    ensureWritable()
     this.entries = 0
     this.lookups = 0L
     this.probes = 0L
@@ -169,9 +181,23 @@ class SkimpyOffsetMap(val memory: Int, val hashAlgorithm: String = "MD5") extend
   override def latestOffset: Long = lastOffset
 
   override def updateLatestOffset(offset: Long): Unit = {
+    ensureWritable()
     lastOffset = offset
   }
 
+  override def readOnlyView: OffsetMap = {
+    // the view gets its own digest and hash buffers, and a duplicate of the buffer since probing moves its position
+    val view = new SkimpyOffsetMap(memory, hashAlgorithm, bytes.duplicate(), readOnly = true)
+    view.entries = entries
+    view.lastOffset = lastOffset
+    view
+  }
+
+  private def ensureWritable(): Unit = {
+    if (readOnly)
+      throw new IllegalStateException("Attempt to modify a read-only view of an offset map.")
+  }
+
   /**
    * Calculate the ith probe position. We first try reading successive integers from the hash itself
    * then if all of those fail we degrade to linear probing.
@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.{File, IOException}
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+import com.yammer.metrics.core.Gauge
+import kafka.metrics.KafkaMetricsGroup
+import kafka.utils.{CoreUtils, Logging, Pool, Scheduler, threadsafe}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.errors.KafkaStorageException
+import org.apache.kafka.common.utils.{Time, Utils}
+
+import scala.collection.JavaConverters._
+
+/**
+ * A bounded cache of segments fetched from a [[RemoteSegmentStore]], shared by all the logs of a broker.
+ *
+ * Segments are fetched into a local directory on first access and opened as regular [[LogSegment]]s. Reading a segment
+ * also fetches the segments which follow it in the background, so that a consumer reading old data sequentially does
+ * not have to wait on the store at every segment boundary. Once the cached segments take more than `maxBytes`, the
+ * least recently read ones are evicted; their files are only deleted after `fileDeleteDelayMs` so that fetch responses
+ * which are still being sent from them are not affected, like segments deleted from a log.
+ *
+ * @param store The store the segments are fetched from
+ * @param dir The directory to keep fetched segments in. Its previous contents are deleted.
+ * @param maxBytes The number of bytes of fetched segments to keep
+ * @param readAheadSegments The number of segments to fetch ahead of the one being read
+ * @param fileDeleteDelayMs The time to wait before deleting the files of an evicted segment
+ * @param scheduler The scheduler used for read-ahead and for deleting evicted segments
+ * @param time The time instance used by the opened segments
+ */
+@threadsafe
+class RemoteSegmentCache(val store: RemoteSegmentStore,
+                         val dir: File,
+                         val maxBytes: Long,
+                         val readAheadSegments: Int,
+                         fileDeleteDelayMs: Long,
+                         scheduler: Scheduler,
+                         time: Time) extends Logging with KafkaMetricsGroup {
+  import RemoteSegmentCache._
+
+  /* the cached segments in access order, guarded by lock */
+  private val segments = new java.util.LinkedHashMap[(TopicPartition, Long), LogSegment](16, 0.75f, true)
+  private val lock = new Object
+  @volatile private var cachedBytes = 0L
+
+  /* a segment is fetched at most once at a time, the lock for a segment is picked by hashing its key */
+  private val fetchLocks = Array.fill(NumFetchLocks)(new Object)
+
+  /* segments being fetched by read-ahead */
+  private val readAheads = new Pool[(TopicPartition, Long), java.lang.Boolean]
+
+  /* the local segments are opened with the default config as they are never appended to */
+  private val segmentConfig = LogConfig()
+
+  private val fetchMeter = newMeter("FetchesPerSec", "fetches", TimeUnit.SECONDS)
+
+  newGauge("CacheSizeBytes",
+    new Gauge[Long] {
+      def value = cachedBytes
+    })
+
+  Utils.delete(dir)
+  Files.createDirectories(dir.toPath)
+
+  /**
+   * Get a remote segment, fetching it from the store if it is not cached, and start fetching the given segments in
+   * the background if they are not cached either.
+   *
+   * @param metadata The segment to get
+   * @param following The segments following it, in offset order
+   * @throws KafkaStorageException If the segment could not be fetched
+   */
+  def segment(metadata: RemoteSegmentMetadata, following: Seq[RemoteSegmentMetadata]): LogSegment = {
+    val segment = getOrFetch(metadata)
+    following.take(readAheadSegments).foreach(readAhead)
+    segment
+  }
+
+  /**
+   * Remove a segment which has been deleted from the store from the cache
+   */
+  def invalidate(metadata: RemoteSegmentMetadata): Unit = {
+    val removed = lock synchronized {
+      val key = keyOf(metadata)
+      if (segments.containsKey(key)) Some(remove(key)) else None
+    }
+    removed.foreach(scheduleDelete)
+  }
+
+  /**
+   * Remove all the segments of a partition from the cache
+   */
+  def invalidate(topicPartition: TopicPartition): Unit = {
+    val removed = lock synchronized {
+      segments.keySet.asScala.filter(_._1 == topicPartition).toList.map(remove)
+    }
+    removed.foreach(scheduleDelete)
+  }
+
+  /**
+   * The number of bytes of fetched segments in the cache
+   */
+  def sizeInBytes: Long = cachedBytes
+
+  def isCached(metadata: RemoteSegmentMetadata): Boolean = lock synchronized {
+    segments.containsKey(keyOf(metadata))
+  }
+
+  def close(): Unit = {
+    removeMetric("FetchesPerSec")
+    removeMetric("CacheSizeBytes")
+    lock synchronized {
+      segments.values.asScala.foreach(segment => CoreUtils.swallow(segment.close(), this))
+      segments.clear()
+      cachedBytes = 0
+    }
+    CoreUtils.swallow(Utils.delete(dir), this)
+    CoreUtils.swallow(store.close(), this)
+  }
+
+  private def getOrFetch(metadata: RemoteSegmentMetadata): LogSegment = {
+    val key = keyOf(metadata)
+    lookup(key).getOrElse {
+      fetchLocks(Utils.toPositive(key.hashCode) % NumFetchLocks) synchronized {
+        // another thread may have fetched the segment while we were waiting for the lock
+        lookup(key).getOrElse {
+          val segment = fetch(metadata)
+          lock synchronized {
+            segments.put(key, segment)
+            cachedBytes += segment.size
+          }
+          evict()
+          segment
+        }
+      }
+    }
+  }
+
+  private def lookup(key: (TopicPartition, Long)): Option[LogSegment] = lock synchronized {
+    Option(segments.get(key))
+  }
+
+  private def fetch(metadata: RemoteSegmentMetadata): LogSegment = {
+    val partitionDir = new File(dir, Log.logDirName(metadata.topicPartition))
+    try {
+      debug(s"Fetching remote segment ${metadata.baseOffset} of ${metadata.topicPartition}")
+      Files.createDirectories(partitionDir.toPath)
+      store.fetchSegment(metadata, partitionDir)
+      fetchMeter.mark()
+      LogSegment.open(partitionDir, metadata.baseOffset, segmentConfig, time, fileAlreadyExists = true)
+    } catch {
+      case e: IOException =>
+        LogSegment.deleteIfExists(partitionDir, metadata.baseOffset)
+        throw new KafkaStorageException(s"Error while fetching remote segment ${metadata.baseOffset} of " +
+          s"${metadata.topicPartition}", e)
+    }
+  }
+
+  private def readAhead(metadata: RemoteSegmentMetadata): Unit = {
+    val key = keyOf(metadata)
+    if (!isCached(metadata) && readAheads.putIfNotExists(key, java.lang.Boolean.TRUE) == null) {
+      scheduler.schedule("remote-segment-read-ahead", () => {
+        try {
+          getOrFetch(metadata)
+        } catch {
+          case e: KafkaStorageException => warn(e.getMessage, e.getCause)
+        } finally {
+          readAheads.remove(key)
+        }
+      })
+    }
+  }
+
+  /**
+   * Evict the least recently read segments until the cache fits in `maxBytes`. The most recently read segment is never
+   * evicted, even if it is larger than `maxBytes` on its own.
+   */
+  private def evict(): Unit = {
+    val evicted = lock synchronized {
+      val evicted = List.newBuilder[LogSegment]
+      while (cachedBytes > maxBytes && segments.size > 1)
+        evicted += remove(segments.keySet.iterator.next())
+      evicted.result()
+    }
+    evicted.foreach(scheduleDelete)
+  }
+
+  /**
+   * Remove a segment from the cache and rename its files so that it can be fetched again while the old files are
+   * still around. This must be called while holding the lock, so that the segment cannot be fetched again before
+   * its files have been renamed.
+   */
+  private def remove(key: (TopicPartition, Long)): LogSegment = {
+    val segment = segments.remove(key)
+    cachedBytes -= segment.size
+    debug(s"Removing remote segment ${segment.baseOffset} of ${key._1} from the cache")
+    try {
+      segment.changeFileSuffixes("", Log.DeletedFileSuffix)
+    } catch {
+      case e: IOException =>
+        warn(s"Error while renaming cached remote segment ${segment.baseOffset} in ${segment.log.file.getParent}", e)
+    }
+    segment
+  }
+
+  private def scheduleDelete(segment: LogSegment): Unit = {
+    scheduler.schedule("delete-remote-segment", () => CoreUtils.swallow(segment.deleteIfExists(), this),
+      delay = fileDeleteDelayMs)
+  }
+
+}
+
+object RemoteSegmentCache {
+  /** the name of the directory in the first log directory which holds fetched segments */
+  val CacheDirName = "remote-segment-cache"
+
+  private val NumFetchLocks = 64
+
+  private def keyOf(metadata: RemoteSegmentMetadata): (TopicPartition, Long) =
+    (metadata.topicPartition, metadata.baseOffset)
+}
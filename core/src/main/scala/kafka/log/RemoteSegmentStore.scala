@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.{Closeable, File, IOException}
+
+import org.apache.kafka.common.{Configurable, TopicPartition}
+
+/**
+ * Metadata of a log segment which has been offloaded to a [[RemoteSegmentStore]].
+ *
+ * @param topicPartition The partition the segment belongs to
+ * @param baseOffset The base offset of the segment
+ * @param nextOffset The offset after the last message in the segment
+ * @param sizeInBytes The size of the log file of the segment
+ * @param largestTimestamp The largest timestamp of the segment, used to apply time based retention
+ * @param hasAbortedTxns True iff the transaction index of the segment has any entries
+ */
+case class RemoteSegmentMetadata(topicPartition: TopicPartition,
+                                 baseOffset: Long,
+                                 nextOffset: Long,
+                                 sizeInBytes: Int,
+                                 largestTimestamp: Long,
+                                 hasAbortedTxns: Boolean)
+
+/**
+ * A store for closed log segments that no longer need to be kept in the log directories. A segment is copied to the
+ * store together with its offset, time and transaction indexes, and fetched back in the same layout so that it can be
+ * opened as a regular [[LogSegment]].
+ *
+ * Implementations are created from `log.remote.store.class` and configured with the broker configs. They must be
+ * thread safe as segments of different partitions are copied, fetched and deleted concurrently.
+ */
+trait RemoteSegmentStore extends Configurable with Closeable {
+
+  /**
+   * Copy a closed segment to the store, replacing any copy of the segment that is already there. The copy must not
+   * be visible to `listSegments` until it is complete.
+   *
+   * @param topicPartition The partition the segment belongs to
+   * @param segment The segment to copy, which must not be appended to while it is being copied
+   * @return The metadata of the stored segment
+   */
+  @throws(classOf[IOException])
+  def copySegment(topicPartition: TopicPartition, segment: LogSegment): RemoteSegmentMetadata
+
+  /**
+   * List the complete segments of a partition in the store, ordered by base offset
+   */
+  @throws(classOf[IOException])
+  def listSegments(topicPartition: TopicPartition): Seq[RemoteSegmentMetadata]
+
+  /**
+   * Copy the log and index files of a stored segment into the given directory, named as they would be for a local
+   * segment with the same base offset.
+   */
+  @throws(classOf[IOException])
+  def fetchSegment(metadata: RemoteSegmentMetadata, dir: File): Unit
+
+  /**
+   * Delete a segment from the store. Deleting a segment which does not exist is not an error.
+   */
+  @throws(classOf[IOException])
+  def deleteSegment(metadata: RemoteSegmentMetadata): Unit
+
+  /**
+   * Delete all the segments of a partition from the store
+   */
+  @throws(classOf[IOException])
+  def deletePartition(topicPartition: TopicPartition): Unit
+
+}
@@ -73,7 +73,7 @@ class TimeIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1, writable:
     inLock(lock) {
       _entries match {
         case 0 => TimestampOffset(RecordBatch.NO_TIMESTAMP, baseOffset)
-        case s => parseEntry(mmap, s - 1).asInstanceOf[TimestampOffset]
+        case s => readEntry(s - 1).asInstanceOf[TimestampOffset]
       }
     }
   }
@@ -208,10 +208,11 @@ class TimeIndex(_file: File, baseOffset: Long, maxIndexSize: Int = -1, writable:
   override def sanityCheck() {
     val lastTimestamp = lastEntry.timestamp
     val lastOffset = lastEntry.offset
-    if (_entries != 0 && lastTimestamp < timestamp(mmap, 0))
+    val firstTimestamp = if (_entries == 0) -1L else inLock(lock) { readEntry(0).indexKey }
+    if (_entries != 0 && lastTimestamp < firstTimestamp)
       throw new CorruptIndexException(s"Corrupt time index found, time index file (${file.getAbsolutePath}) has " +
         s"non-zero size but the last timestamp is $lastTimestamp which is less than the first timestamp " +
-        s"${timestamp(mmap, 0)}")
+        s"$firstTimestamp")
     if (_entries != 0 && lastOffset < baseOffset)
       throw new CorruptIndexException(s"Corrupt time index found, time index file (${file.getAbsolutePath}) has " +
         s"non-zero size but the last offset is $lastOffset which is less than the first offset $baseOffset")
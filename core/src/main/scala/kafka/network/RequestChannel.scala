@@ -22,11 +22,11 @@ import java.nio.ByteBuffer
 import java.util.concurrent._
 
 import com.typesafe.scalalogging.Logger
-import com.yammer.metrics.core.{Gauge, Meter}
+import com.yammer.metrics.core.{Gauge, Meter, MetricName}
 import kafka.metrics.KafkaMetricsGroup
 import kafka.utils.{Logging, NotNothing, Pool}
 import org.apache.kafka.common.memory.MemoryPool
-import org.apache.kafka.common.network.Send
+import org.apache.kafka.common.network.{ListenerName, Send}
 import org.apache.kafka.common.protocol.{ApiKeys, Errors}
 import org.apache.kafka.common.requests._
 import org.apache.kafka.common.security.auth.KafkaPrincipal
@@ -35,6 +35,7 @@ import org.apache.kafka.common.utils.{Sanitizer, Time}
 import scala.collection.mutable
 import scala.collection.JavaConverters._
 import scala.reflect.ClassTag
+import scala.util.{Failure, Success, Try}
 
 object RequestChannel extends Logging {
   private val requestLogger = Logger("kafka.request.logger")
@@ -42,6 +43,10 @@ object RequestChannel extends Logging {
   val RequestQueueSizeMetric = "RequestQueueSize"
   val ResponseQueueSizeMetric = "ResponseQueueSize"
   val ProcessorMetricTag = "processor"
+  val RequestQueueMetricTag = "queue"
+
+  /* the queue of the requests which are not assigned to another queue */
+  val DefaultRequestQueue = "default"
 
   def isRequestLoggingEnabled: Boolean = requestLogger.underlying.isDebugEnabled
 
@@ -84,31 +89,44 @@ object RequestChannel extends Logging {
     @volatile var messageConversionsTimeNanos = 0L
     @volatile var temporaryMemoryBytes = 0L
     @volatile var recordNetworkThreadTimeCallback: Option[Long => Unit] = None
+    @volatile private[network] var requestQueueMetrics: Option[RequestQueueMetrics] = None
 
     val session = Session(context.principal, context.clientAddress)
-    private val bodyAndSize: RequestAndSize = context.parseRequest(buffer)
+
+    // The body is parsed when it is first used, which is normally by the request handler thread rather than by the
+    // network thread which received the request. A failure to parse it is kept and rethrown on every use.
+    private lazy val bodyAndSize: Try[RequestAndSize] = Try {
+      try context.parseRequest(buffer)
+      finally {
+        //most request types are parsed entirely into objects at this point. for those we can release the underlying buffer.
+        //some (like produce, or any time the schema contains fields of types BYTES or NULLABLE_BYTES) retain a reference
+        //to the buffer. for those requests we cannot release the buffer early, but only when request processing is done.
+        if (!header.apiKey.requiresDelayedAllocation) {
+          releaseBuffer()
+        }
+      }
+    }
 
     def header: RequestHeader = context.header
-    def sizeOfBodyInBytes: Int = bodyAndSize.size
+    def sizeOfBodyInBytes: Int = bodyAndSize.map(_.size).getOrElse(0)
 
-    //most request types are parsed entirely into objects at this point. for those we can release the underlying buffer.
-    //some (like produce, or any time the schema contains fields of types BYTES or NULLABLE_BYTES) retain a reference
-    //to the buffer. for those requests we cannot release the buffer early, but only when request processing is done.
-    if (!header.apiKey.requiresDelayedAllocation) {
-      releaseBuffer()
-    }
+    /** Parses the body if it has not been parsed yet and returns the error if it is not a valid request */
+    def bodyParseError: Option[Throwable] = bodyAndSize.failed.toOption
 
-    def requestDesc(details: Boolean): String = s"$header -- ${body[AbstractRequest].toString(details)}"
+    def requestDesc(details: Boolean): String = bodyAndSize match {
+      case Success(parsed) => s"$header -- ${parsed.request.toString(details)}"
+      case Failure(e) => s"$header -- invalid request body: ${e.getMessage}"
+    }
 
     def body[T <: AbstractRequest](implicit classTag: ClassTag[T], nn: NotNothing[T]): T = {
-      bodyAndSize.request match {
+      bodyAndSize.get.request match {
         case r: T => r
         case r =>
           throw new ClassCastException(s"Expected request with type ${classTag.runtimeClass}, but found ${r.getClass}")
       }
     }
 
-    trace(s"Processor $processor received request: ${requestDesc(true)}")
+    trace(s"Processor $processor received request: $header")
 
     def requestThreadTimeNanos = {
       if (apiLocalCompleteTimeNanos == -1L) apiLocalCompleteTimeNanos = Time.SYSTEM.nanoseconds
@@ -148,7 +166,7 @@ object RequestChannel extends Logging {
       val totalTimeMs = nanosToMs(endTimeNanos - startTimeNanos)
       val fetchMetricNames =
         if (header.apiKey == ApiKeys.FETCH) {
-          val isFromFollower = body[FetchRequest].isFromFollower
+          val isFromFollower = bodyParseError.isEmpty && body[FetchRequest].isFromFollower
           Seq(
             if (isFromFollower) RequestMetrics.followFetchMetricName
             else RequestMetrics.consumerFetchMetricName
@@ -170,6 +188,7 @@ object RequestChannel extends Logging {
         m.messageConversionsTimeHist.foreach(_.update(Math.round(messageConversionsTimeMs)))
         m.tempMemoryBytesHist.foreach(_.update(temporaryMemoryBytes))
       }
+      requestQueueMetrics.foreach(_.requestQueueTimeHist.update(Math.round(requestQueueTimeMs)))
 
       // Records network handler thread usage. This is included towards the request quota for the
       // user/client. Throttling is only performed when request handler thread usage
@@ -272,17 +291,49 @@ object RequestChannel extends Logging {
   }
 }
 
-class RequestChannel(val queueSize: Int) extends KafkaMetricsGroup {
+/**
+ * @param queueSize The maximum number of requests in each request queue
+ * @param queueWeights The weights of the request queues. The default queue is added with weight 1 if it is missing.
+ * @param apiKeyQueues The queues of the requests with the given API keys
+ * @param listenerQueues The queues of the requests received on the given listeners, which take precedence over the
+ *                       queues by API key
+ * @param metricNamePrefix The prefix of the names of the queue metrics, which distinguishes them from the metrics of the
+ *                         other request channels of the broker
+ */
+class RequestChannel(val queueSize: Int,
+                     queueWeights: Map[String, Int] = Map.empty,
+                     apiKeyQueues: Map[ApiKeys, String] = Map.empty,
+                     listenerQueues: Map[ListenerName, String] = Map.empty,
+                     val metricNamePrefix: String = "") extends KafkaMetricsGroup {
   import RequestChannel._
   val metrics = new RequestChannel.Metrics
-  private val requestQueue = new ArrayBlockingQueue[BaseRequest](queueSize)
+  private val requestQueues = {
+    val weights = queueWeights.toSeq.sortBy(_._1)
+    new RequestQueues[BaseRequest](queueSize,
+      if (queueWeights.contains(DefaultRequestQueue)) weights else (DefaultRequestQueue -> 1) +: weights)
+  }
+  private val requestQueueMetrics = requestQueues.names.zipWithIndex.map { case (name, index) =>
+    new RequestQueueMetrics(name, requestQueues.size(index), metricNamePrefix)
+  }.toArray
+  private val defaultQueueIndex = requestQueues.indexOf(DefaultRequestQueue)
+  private val apiKeyQueueIndexes = {
+    val indexes = Array.fill(ApiKeys.MAX_API_KEY + 1)(defaultQueueIndex)
+    apiKeyQueues.foreach { case (apiKey, queue) => indexes(apiKey.id) = requestQueues.indexOf(queue) }
+    indexes
+  }
+  private val listenerQueueIndexes = listenerQueues.map { case (listenerName, queue) =>
+    listenerName -> requestQueues.indexOf(queue)
+  }
   private val processors = new ConcurrentHashMap[Int, Processor]()
 
-  newGauge(RequestQueueSizeMetric, new Gauge[Int] {
-      def value = requestQueue.size
+  private val requestQueueSizeMetricName = metricNamePrefix + RequestQueueSizeMetric
+  private val responseQueueSizeMetricName = metricNamePrefix + ResponseQueueSizeMetric
+
+  newGauge(requestQueueSizeMetricName, new Gauge[Int] {
+      def value = requestQueues.size
   })
 
-  newGauge(ResponseQueueSizeMetric, new Gauge[Int]{
+  newGauge(responseQueueSizeMetricName, new Gauge[Int]{
     def value = processors.values.asScala.foldLeft(0) {(total, processor) =>
       total + processor.responseQueueSize
     }
@@ -292,7 +343,7 @@ class RequestChannel(val queueSize: Int) extends KafkaMetricsGroup {
     if (processors.putIfAbsent(processor.id, processor) != null)
       warn(s"Unexpected processor with processorId ${processor.id}")
 
-    newGauge(ResponseQueueSizeMetric,
+    newGauge(responseQueueSizeMetricName,
       new Gauge[Int] {
         def value = processor.responseQueueSize
       },
@@ -302,12 +353,23 @@ class RequestChannel(val queueSize: Int) extends KafkaMetricsGroup {
 
   def removeProcessor(processorId: Int): Unit = {
     processors.remove(processorId)
-    removeMetric(ResponseQueueSizeMetric, Map(ProcessorMetricTag -> processorId.toString))
+    removeMetric(responseQueueSizeMetricName, Map(ProcessorMetricTag -> processorId.toString))
   }
 
   /** Send a request to be handled, potentially blocking until there is room in the queue for the request */
   def sendRequest(request: RequestChannel.Request) {
-    requestQueue.put(request)
+    requestQueues.put(queueIndex(request), request)
+  }
+
+  /** Send the requests received in one poll of a processor to be handled, potentially blocking until there is room */
+  def sendRequests(requests: Seq[RequestChannel.Request]) {
+    requestQueues.putAll(requests.map(request => queueIndex(request) -> request))
+  }
+
+  private def queueIndex(request: RequestChannel.Request): Int = {
+    val index = listenerQueueIndexes.getOrElse(request.context.listenerName, apiKeyQueueIndexes(request.header.apiKey.id))
+    request.requestQueueMetrics = Some(requestQueueMetrics(index))
+    index
   }
 
   /** Send a response back to the socket server to be sent over the network */
@@ -339,11 +401,11 @@ class RequestChannel(val queueSize: Int) extends KafkaMetricsGroup {
 
   /** Get the next request or block until specified time has elapsed */
   def receiveRequest(timeout: Long): RequestChannel.BaseRequest =
-    requestQueue.poll(timeout, TimeUnit.MILLISECONDS)
+    requestQueues.poll(timeout, TimeUnit.MILLISECONDS)
 
   /** Get the next request or block until there is one */
   def receiveRequest(): RequestChannel.BaseRequest =
-    requestQueue.take()
+    requestQueues.take()
 
   def updateErrorMetrics(apiKey: ApiKeys, errors: collection.Map[Errors, Integer]) {
     errors.foreach { case (error, count) =>
@@ -352,15 +414,16 @@ class RequestChannel(val queueSize: Int) extends KafkaMetricsGroup {
   }
 
   def clear() {
-    requestQueue.clear()
+    requestQueues.clear()
   }
 
   def shutdown() {
     clear()
     metrics.close()
+    requestQueueMetrics.foreach(_.removeMetrics())
   }
 
-  def sendShutdownRequest(): Unit = requestQueue.put(ShutdownRequest)
+  def sendShutdownRequest(): Unit = requestQueues.put(defaultQueueIndex, ShutdownRequest)
 
 }
 
@@ -370,6 +433,7 @@ object RequestMetrics {
 
   val RequestsPerSec = "RequestsPerSec"
   val RequestQueueTimeMs = "RequestQueueTimeMs"
+  val RequestQueueSize = "RequestQueueSize"
   val LocalTimeMs = "LocalTimeMs"
   val RemoteTimeMs = "RemoteTimeMs"
   val ThrottleTimeMs = "ThrottleTimeMs"
@@ -475,3 +539,29 @@ class RequestMetrics(name: String) extends KafkaMetricsGroup {
     errorMeters.clear()
   }
 }
+
+/**
+ * The metrics of a request queue, which are tagged with the name of the queue and reported with the request metrics
+ */
+class RequestQueueMetrics(queue: String, size: => Int, metricNamePrefix: String = "") extends KafkaMetricsGroup {
+  import RequestMetrics._
+
+  private val tags = Map(RequestChannel.RequestQueueMetricTag -> queue)
+  private val requestQueueSizeMetricName = metricNamePrefix + RequestQueueSize
+  private val requestQueueTimeMetricName = metricNamePrefix + RequestQueueTimeMs
+
+  override def metricName(name: String, metricTags: scala.collection.Map[String, String]): MetricName =
+    explicitMetricName("kafka.network", "RequestMetrics", name, metricTags)
+
+  newGauge(requestQueueSizeMetricName, new Gauge[Int] {
+    def value = size
+  }, tags)
+
+  // time a request spent in this queue
+  val requestQueueTimeHist = newHistogram(requestQueueTimeMetricName, biased = true, tags)
+
+  def removeMetrics(): Unit = {
+    removeMetric(requestQueueSizeMetricName, tags)
+    removeMetric(requestQueueTimeMetricName, tags)
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.util.ArrayDeque
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+import kafka.utils.CoreUtils.inLock
+import kafka.utils.threadsafe
+
+/**
+ * A set of bounded queues of requests (or other items) which are drained in weighted round-robin order.
+ *
+ * A queue with weight `w` is served up to `w` times in a row before the next non-empty queue is served, so when all
+ * queues are busy each one gets a share of the request handler threads proportional to its weight, and a queue which
+ * is flooded with requests cannot delay the requests of the other queues by more than one round. Each queue holds up
+ * to `capacity` requests; adding a request to a full queue blocks until a request is taken from that queue.
+ *
+ * @param capacity The maximum number of requests in each queue
+ * @param weights The names and weights of the queues, in the order in which they are served
+ */
+@threadsafe
+class RequestQueues[T >: Null](capacity: Int, weights: Seq[(String, Int)]) {
+  require(weights.nonEmpty, "At least one request queue is required")
+  require(weights.forall(_._2 > 0), s"Request queue weights must be positive: $weights")
+
+  private class Queue(val name: String, val weight: Int) {
+    val requests = new ArrayDeque[T]
+    val notFull = lock.newCondition()
+    @volatile var size = 0
+  }
+
+  private val lock = new ReentrantLock
+  private val notEmpty = lock.newCondition()
+  private val queues = weights.map { case (name, weight) => new Queue(name, weight) }.toArray
+
+  /* the number of requests in all queues */
+  @volatile private var count = 0
+
+  /* the queue being served and the number of requests it may still be served before moving to the next queue */
+  private var current = 0
+  private var credits = queues(0).weight
+
+  def names: Seq[String] = queues.map(_.name)
+
+  /**
+   * The index of the queue with the given name, which is used to add requests to it
+   */
+  def indexOf(name: String): Int = {
+    val index = queues.indexWhere(_.name == name)
+    if (index < 0)
+      throw new IllegalArgumentException(s"Unknown request queue $name")
+    index
+  }
+
+  def size: Int = count
+
+  def size(index: Int): Int = queues(index).size
+
+  /**
+   * Add a request to the given queue, blocking until there is room in the queue
+   */
+  def put(index: Int, request: T): Unit = {
+    inLock(lock) {
+      enqueue(index, request)
+    }
+  }
+
+  /**
+   * Add requests to their queues with a single acquisition of the lock, blocking until there is room in the queue of
+   * each request. The requests are added in order, so a request may be taken before the later ones are added.
+   *
+   * @param requests The requests with the index of their queue
+   */
+  def putAll(requests: Seq[(Int, T)]): Unit = {
+    inLock(lock) {
+      requests.foreach { case (index, request) => enqueue(index, request) }
+    }
+  }
+
+  /**
+   * Take the next request, waiting up to the given time for one to be added. Returns null if there is none.
+   */
+  def poll(timeout: Long, unit: TimeUnit): T = {
+    var remainingNanos = unit.toNanos(timeout)
+    inLock(lock) {
+      while (count == 0 && remainingNanos > 0)
+        remainingNanos = notEmpty.awaitNanos(remainingNanos)
+      if (count == 0) null else dequeue()
+    }
+  }
+
+  /**
+   * Take the next request, waiting for one to be added if necessary
+   */
+  def take(): T = {
+    inLock(lock) {
+      while (count == 0)
+        notEmpty.await()
+      dequeue()
+    }
+  }
+
+  def clear(): Unit = {
+    inLock(lock) {
+      queues.foreach { queue =>
+        queue.requests.clear()
+        queue.size = 0
+        queue.notFull.signalAll()
+      }
+      count = 0
+    }
+  }
+
+  /* must be called with the lock held */
+  private def enqueue(index: Int, request: T): Unit = {
+    val queue = queues(index)
+    while (queue.requests.size >= capacity)
+      queue.notFull.await()
+    queue.requests.addLast(request)
+    queue.size += 1
+    count += 1
+    notEmpty.signal()
+  }
+
+  /* must be called with the lock held when there is at least one request */
+  private def dequeue(): T = {
+    while (credits == 0 || queues(current).requests.isEmpty) {
+      current = (current + 1) % queues.length
+      credits = queues(current).weight
+    }
+    credits -= 1
+    val queue = queues(current)
+    val request = queue.requests.pollFirst()
+    queue.size -= 1
+    count -= 1
+    queue.notFull.signal()
+    request
+  }
+
+}
@@ -33,7 +33,7 @@ import kafka.security.CredentialProvider
 import kafka.server.KafkaConfig
 import kafka.utils._
 import org.apache.kafka.common.{KafkaException, Reconfigurable}
-import org.apache.kafka.common.memory.{MemoryPool, SimpleMemoryPool}
+import org.apache.kafka.common.memory.{MemoryPool, RecyclingMemoryPool, SimpleMemoryPool}
 import org.apache.kafka.common.metrics._
 import org.apache.kafka.common.metrics.stats.Meter
 import org.apache.kafka.common.metrics.stats.Total
@@ -55,6 +55,10 @@ import scala.util.control.ControlThrowable
  *   1 Acceptor thread that handles new connections
  *   Acceptor has N Processor threads that each have their own selector and read requests from sockets
  *   M Handler threads that handle requests and produce responses back to the processor threads for writing.
+ *
+ * If a control plane listener is configured, it has its own Acceptor thread, a single Processor thread and its own
+ * request channel, which is served by a dedicated handler thread, so that the requests of the controller are not
+ * queued behind the requests received on the data plane listeners.
  */
 class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time, val credentialProvider: CredentialProvider) extends Logging with KafkaMetricsGroup {
 
@@ -67,12 +71,27 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
   private val memoryPoolDepletedPercentMetricName = metrics.metricName("MemoryPoolAvgDepletedPercent", "socket-server-metrics")
   private val memoryPoolDepletedTimeMetricName = metrics.metricName("MemoryPoolDepletedTimeTotal", "socket-server-metrics")
   memoryPoolSensor.add(new Meter(TimeUnit.MILLISECONDS, memoryPoolDepletedPercentMetricName, memoryPoolDepletedTimeMetricName))
-  private val memoryPool = if (config.queuedMaxBytes > 0) new SimpleMemoryPool(config.queuedMaxBytes, config.socketRequestMaxBytes, false, memoryPoolSensor) else MemoryPool.NONE
-  val requestChannel = new RequestChannel(maxQueuedRequests)
+  private val memoryPool =
+    if (config.queuedMaxBytes > 0)
+      new SimpleMemoryPool(config.queuedMaxBytes, config.socketRequestMaxBytes, false, memoryPoolSensor)
+    else if (config.queuedRequestBufferPoolBytes > 0)
+      new RecyclingMemoryPool(config.queuedRequestBufferPoolBytes, SocketServer.PooledRequestBufferMaxBytes)
+    else
+      MemoryPool.NONE
+  // the request channel of the data plane listeners
+  val requestChannel = new RequestChannel(maxQueuedRequests, config.requestQueueWeights.toMap, config.requestQueueApiKeys.toMap,
+    config.requestQueueListeners.toMap)
   private val processors = new ConcurrentHashMap[Int, Processor]()
   private var nextProcessorId = 0
 
   private[network] val acceptors = new ConcurrentHashMap[EndPoint, Acceptor]()
+
+  // the request channel, acceptor and processor of the control plane listener, if there is one
+  val controlPlaneRequestChannelOpt: Option[RequestChannel] = config.controlPlaneListenerName.map { _ =>
+    new RequestChannel(SocketServer.ControlPlaneRequestQueueSize, metricNamePrefix = SocketServer.ControlPlaneMetricPrefix)
+  }
+  private var controlPlaneProcessorOpt: Option[Processor] = None
+  private[network] var controlPlaneAcceptorOpt: Option[Acceptor] = None
   private var connectionQuotas: ConnectionQuotas = _
   private var stoppedProcessingRequests = false
 
@@ -91,7 +110,8 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
   def startup(startupProcessors: Boolean = true) {
     this.synchronized {
       connectionQuotas = new ConnectionQuotas(config.maxConnectionsPerIp, config.maxConnectionsPerIpOverrides)
-      createAcceptorAndProcessors(config.numNetworkThreads, config.listeners)
+      createControlPlaneAcceptorAndProcessor(config.controlPlaneListener)
+      createAcceptorAndProcessors(config.numNetworkThreads, config.dataPlaneListeners)
       if (startupProcessors) {
         startProcessors()
       }
@@ -133,7 +153,7 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
         }
       }
     )
-    info(s"Started ${acceptors.size} acceptor threads")
+    info(s"Started ${acceptors.size + controlPlaneAcceptorOpt.size} acceptor threads")
   }
 
   /**
@@ -142,8 +162,9 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
    * was invoked with `startupProcessors=false`.
    */
   def startProcessors(): Unit = synchronized {
+    controlPlaneAcceptorOpt.foreach(_.startProcessors())
     acceptors.values.asScala.foreach { _.startProcessors() }
-    info(s"Started processors for ${acceptors.size} acceptors")
+    info(s"Started processors for ${acceptors.size + controlPlaneAcceptorOpt.size} acceptors")
   }
 
   private def endpoints = config.listeners.map(l => l.listenerName -> l).toMap
@@ -156,24 +177,43 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
     val brokerId = config.brokerId
 
     endpoints.foreach { endpoint =>
-      val listenerName = endpoint.listenerName
-      val securityProtocol = endpoint.securityProtocol
-
       val acceptor = new Acceptor(endpoint, sendBufferSize, recvBufferSize, brokerId, connectionQuotas)
       addProcessors(acceptor, endpoint, processorsPerListener)
-      KafkaThread.nonDaemon(s"kafka-socket-acceptor-$listenerName-$securityProtocol-${endpoint.port}", acceptor).start()
-      acceptor.awaitStartup()
+      startAcceptor(acceptor)
       acceptors.put(endpoint, acceptor)
     }
   }
 
+  private def createControlPlaneAcceptorAndProcessor(endpointOpt: Option[EndPoint]): Unit = synchronized {
+    for (endpoint <- endpointOpt; controlPlaneRequestChannel <- controlPlaneRequestChannelOpt) {
+      val acceptor = new Acceptor(endpoint, config.socketSendBufferBytes, config.socketReceiveBufferBytes, config.brokerId,
+        connectionQuotas)
+      val processor = newProcessor(nextProcessorId, controlPlaneRequestChannel, connectionQuotas, endpoint.listenerName,
+        endpoint.securityProtocol, memoryPool)
+      nextProcessorId += 1
+      controlPlaneRequestChannel.addProcessor(processor)
+      acceptor.addProcessors(ArrayBuffer(processor))
+      startAcceptor(acceptor)
+      controlPlaneProcessorOpt = Some(processor)
+      controlPlaneAcceptorOpt = Some(acceptor)
+      info(s"Created control plane acceptor and processor for endpoint $endpoint")
+    }
+  }
+
+  private def startAcceptor(acceptor: Acceptor): Unit = {
+    val endpoint = acceptor.endPoint
+    KafkaThread.nonDaemon(s"kafka-socket-acceptor-${endpoint.listenerName}-${endpoint.securityProtocol}-${endpoint.port}",
+      acceptor).start()
+    acceptor.awaitStartup()
+  }
+
   private def addProcessors(acceptor: Acceptor, endpoint: EndPoint, newProcessorsPerListener: Int): Unit = synchronized {
     val listenerName = endpoint.listenerName
     val securityProtocol = endpoint.securityProtocol
     val listenerProcessors = new ArrayBuffer[Processor]()
 
     for (_ <- 0 until newProcessorsPerListener) {
-      val processor = newProcessor(nextProcessorId, connectionQuotas, listenerName, securityProtocol, memoryPool)
+      val processor = newProcessor(nextProcessorId, requestChannel, connectionQuotas, listenerName, securityProtocol, memoryPool)
       listenerProcessors += processor
       requestChannel.addProcessor(processor)
       nextProcessorId += 1
@@ -188,6 +228,9 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
   def stopProcessingRequests() = {
     info("Stopping socket server request processors")
     this.synchronized {
+      controlPlaneAcceptorOpt.foreach(_.shutdown())
+      controlPlaneProcessorOpt.foreach(_.shutdown())
+      controlPlaneRequestChannelOpt.foreach(_.clear())
       acceptors.asScala.values.foreach(_.shutdown())
       processors.asScala.values.foreach(_.shutdown())
       requestChannel.clear()
@@ -215,6 +258,7 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
     this.synchronized {
       if (!stoppedProcessingRequests)
         stopProcessingRequests()
+      controlPlaneRequestChannelOpt.foreach(_.shutdown())
       requestChannel.shutdown()
     }
     info("Shutdown completed")
@@ -222,7 +266,9 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
 
   def boundPort(listenerName: ListenerName): Int = {
     try {
-      acceptors.get(endpoints(listenerName)).serverChannel.socket.getLocalPort
+      val acceptor = controlPlaneAcceptorOpt.filter(_.endPoint.listenerName == listenerName)
+        .getOrElse(acceptors.get(endpoints(listenerName)))
+      acceptor.serverChannel.socket.getLocalPort
     } catch {
       case e: Exception =>
         throw new KafkaException("Tried to check server's port before server was started or checked for port of non-existing protocol", e)
@@ -253,8 +299,9 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
   }
 
   /* `protected` for test usage */
-  protected[network] def newProcessor(id: Int, connectionQuotas: ConnectionQuotas, listenerName: ListenerName,
-                                      securityProtocol: SecurityProtocol, memoryPool: MemoryPool): Processor = {
+  protected[network] def newProcessor(id: Int, requestChannel: RequestChannel, connectionQuotas: ConnectionQuotas,
+                                      listenerName: ListenerName, securityProtocol: SecurityProtocol,
+                                      memoryPool: MemoryPool): Processor = {
     new Processor(id,
       time,
       config.socketRequestMaxBytes,
@@ -279,6 +326,17 @@ class SocketServer(val config: KafkaConfig, val metrics: Metrics, val time: Time
   /* For test usage */
   private[network] def processor(index: Int): Processor = processors.get(index)
 
+  /* For test usage */
+  private[network] def controlPlaneProcessor: Option[Processor] = controlPlaneProcessorOpt
+
+}
+
+object SocketServer {
+  val ControlPlaneMetricPrefix = "ControlPlane"
+  // the controller sends one request to a broker at a time, so the control plane needs only a small queue
+  val ControlPlaneRequestQueueSize = 20
+  // the largest request which is received into a pooled buffer if the request buffer pool is enabled
+  val PooledRequestBufferMaxBytes = 64 * 1024
 }
 
 /**
@@ -595,6 +653,7 @@ private[kafka] class Processor(val id: Int,
       true,
       channelBuilder,
       memoryPool,
+      config.socketSelectorOptimizeSelectedKeys,
       logContext)
   }
 
@@ -721,6 +780,9 @@ private[kafka] class Processor(val id: Int,
   }
 
   private def processCompletedReceives() {
+    // the requests received in this poll are handed over to the request handler threads together once all receives
+    // have been processed
+    val requests = new ArrayBuffer[RequestChannel.Request](selector.completedReceives.size)
     selector.completedReceives.asScala.foreach { receive =>
       try {
         openOrClosingChannel(receive.source) match {
@@ -740,7 +802,7 @@ private[kafka] class Processor(val id: Int,
                   channel.principal, listenerName, securityProtocol)
                 val req = new RequestChannel.Request(processor = id, context = context,
                   startTimeNanos = nowNanos, memoryPool, receive.payload, requestChannel.metrics)
-                requestChannel.sendRequest(req)
+                requests += req
                 selector.mute(connectionId)
                 handleChannelMuteEvent(connectionId, ChannelMuteEvent.REQUEST_RECEIVED)
               }
@@ -756,6 +818,8 @@ private[kafka] class Processor(val id: Int,
           processChannelException(receive.source, s"Exception while processing request from ${receive.source}", e)
       }
     }
+    if (requests.nonEmpty)
+      requestChannel.sendRequests(requests)
   }
 
   private def processCompletedSends() {
@@ -32,6 +32,9 @@ abstract class AbstractFetcherManager[T <: AbstractFetcherThread](val name: Stri
   // map of (source broker_id, fetcher_id per source broker) => fetcher.
   // package private for test
   private[server] val fetcherThreadMap = new mutable.HashMap[BrokerIdAndFetcherId, T]
+  // fetcher ids of the partitions moved by `rebalancePartitions`, which take precedence over the hash-based
+  // assignment until the partition is removed
+  private val partitionFetcherIds = new mutable.HashMap[TopicPartition, Int]
   private val lock = new Object
   private var numFetchersPerBroker = numFetchers
   this.logIdent = "[" + name + "] "
@@ -102,7 +105,38 @@ abstract class AbstractFetcherManager[T <: AbstractFetcherThread](val name: Stri
   // Visibility for testing
   private[server] def getFetcherId(topicPartition: TopicPartition): Int = {
     lock synchronized {
-      Utils.abs(31 * topicPartition.topic.hashCode() + topicPartition.partition) % numFetchersPerBroker
+      partitionFetcherIds.getOrElse(topicPartition,
+        Utils.abs(31 * topicPartition.topic.hashCode() + topicPartition.partition) % numFetchersPerBroker)
+    }
+  }
+
+  /**
+   * Move partitions from the fetcher threads which appended the most bytes since the previous call to the fetcher
+   * threads of the same source broker which appended the least, so that a few hot partitions do not saturate one
+   * thread while the others idle. A moved partition is removed from its thread and added to the other one at its
+   * current fetch offset and leader epoch, which makes the new thread validate the log through the truncation phase
+   * before it fetches.
+   */
+  def rebalancePartitions(): Unit = {
+    lock synchronized {
+      fetcherThreadMap.groupBy { case (id, _) => id.brokerId }.foreach { case (brokerId, fetchers) =>
+        val partitionBytesPerFetcher = fetchers.map { case (id, fetcher) => id.fetcherId -> fetcher.drainPartitionBytes() }
+        val moves = AbstractFetcherManager.planPartitionMoves(partitionBytesPerFetcher, numFetchersPerBroker)
+        moves.groupBy(_.fromFetcherId).foreach { case (fromFetcherId, fetcherMoves) =>
+          val fetcher = fetcherThreadMap(BrokerIdAndFetcherId(brokerId, fromFetcherId))
+          val partitionsAndOffsets = fetcher.partitionsAndOffsets
+          val movedPartitions = fetcherMoves.filter(move => partitionsAndOffsets.contains(move.topicPartition))
+          fetcher.removePartitions(movedPartitions.map(_.topicPartition).toSet)
+          movedPartitions.foreach { move =>
+            info(s"Moving partition ${move.topicPartition} from fetcher $fromFetcherId to fetcher ${move.toFetcherId} " +
+              s"of broker $brokerId")
+            partitionFetcherIds.put(move.topicPartition, move.toFetcherId)
+          }
+          addFetcherForPartitions(movedPartitions.map { move =>
+            move.topicPartition -> partitionsAndOffsets(move.topicPartition)
+          }.toMap)
+        }
+      }
     }
   }
 
@@ -160,6 +194,7 @@ abstract class AbstractFetcherManager[T <: AbstractFetcherThread](val name: Stri
     lock synchronized {
       for (fetcher <- fetcherThreadMap.values)
         fetcher.removePartitions(partitions)
+      partitionFetcherIds --= partitions
     }
     info(s"Removed fetcher for partitions $partitions")
   }
@@ -191,6 +226,53 @@ abstract class AbstractFetcherManager[T <: AbstractFetcherThread](val name: Stri
   }
 }
 
+object AbstractFetcherManager {
+
+  // the threads of a source broker are only rebalanced once the busiest one appends this much more than the mean
+  private val ImbalanceThreshold = 0.2
+  private val MaxPartitionMovesPerRebalance = 10
+
+  /**
+   * Plan the moves which even out the bytes appended by the fetchers of a source broker. Each move takes the partition
+   * of the busiest fetcher whose bytes are closest to half of the difference with the least busy fetcher, which
+   * strictly lowers the bytes of the busiest fetcher, so the planning always ends. A partition is moved at most once.
+   */
+  private[server] def planPartitionMoves(partitionBytesPerFetcher: Map[Int, Map[TopicPartition, Long]],
+                                         numFetchers: Int): Seq[PartitionMove] = {
+    val partitionBytes = mutable.Map.empty[Int, mutable.Map[TopicPartition, Long]]
+    (0 until numFetchers).foreach { fetcherId =>
+      partitionBytes.put(fetcherId, mutable.Map.empty[TopicPartition, Long] ++
+        partitionBytesPerFetcher.getOrElse(fetcherId, Map.empty))
+    }
+    val fetcherBytes = partitionBytes.map { case (fetcherId, bytes) => fetcherId -> bytes.values.sum }
+    val meanBytes = fetcherBytes.values.sum.toDouble / numFetchers
+    val moves = mutable.ArrayBuffer[PartitionMove]()
+
+    var done = numFetchers < 2
+    while (!done && moves.size < MaxPartitionMovesPerRebalance) {
+      val (busiest, busiestBytes) = fetcherBytes.maxBy { case (_, bytes) => bytes }
+      val (leastBusy, leastBusyBytes) = fetcherBytes.minBy { case (_, bytes) => bytes }
+      val difference = busiestBytes - leastBusyBytes
+      val candidates = partitionBytes(busiest).filter { case (topicPartition, bytes) =>
+        bytes > 0 && bytes < difference && !moves.exists(_.topicPartition == topicPartition)
+      }
+      if (busiestBytes <= meanBytes * (1 + ImbalanceThreshold) || candidates.isEmpty)
+        done = true
+      else {
+        val (topicPartition, bytes) = candidates.minBy { case (_, bytes) => math.abs(difference / 2.0 - bytes) }
+        partitionBytes(busiest).remove(topicPartition)
+        partitionBytes(leastBusy).put(topicPartition, bytes)
+        fetcherBytes.put(busiest, busiestBytes - bytes)
+        fetcherBytes.put(leastBusy, leastBusyBytes + bytes)
+        moves += PartitionMove(topicPartition, busiest, leastBusy)
+      }
+    }
+    moves
+  }
+}
+
+case class PartitionMove(topicPartition: TopicPartition, fromFetcherId: Int, toFetcherId: Int)
+
 case class BrokerAndFetcherId(broker: BrokerEndPoint, fetcherId: Int)
 
 case class InitialFetchState(leader: BrokerEndPoint, currentLeaderEpoch: Int, initOffset: Long)
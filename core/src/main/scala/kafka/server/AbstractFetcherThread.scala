@@ -33,7 +33,7 @@ import AbstractFetcherThread._
 
 import scala.collection.{Map, Set, mutable}
 import scala.collection.JavaConverters._
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{LinkedBlockingQueue, Semaphore, TimeUnit}
 import java.util.concurrent.atomic.AtomicLong
 
 import com.yammer.metrics.core.Gauge
@@ -53,7 +53,8 @@ abstract class AbstractFetcherThread(name: String,
                                      clientId: String,
                                      val sourceBroker: BrokerEndPoint,
                                      fetchBackOffMs: Int = 0,
-                                     isInterruptible: Boolean = true)
+                                     isInterruptible: Boolean = true,
+                                     pipelineDepth: Int = 1)
   extends ShutdownableThread(name, isInterruptible) {
 
   type FetchData = FetchResponse.PartitionData[Records]
@@ -63,6 +64,24 @@ abstract class AbstractFetcherThread(name: String,
   private val partitionMapLock = new ReentrantLock
   private val partitionMapCond = partitionMapLock.newCondition()
 
+  // With a pipeline depth greater than 1, the fetched data is appended by a separate thread so that the next fetch
+  // can be sent while the previous response is written to the log. A partition whose data is waiting to be appended
+  // is left out of the following fetches, and its fetch offset is only advanced by the append, so the offset sent to
+  // the leader never exceeds the log end offset and fetches are only pipelined across different partitions. The
+  // appender skips the data of a partition whose state has changed since it was fetched. While some partitions are
+  // left out, the fetches do not wait on the leader for data (see `hasPendingAppends`), so that the partitions are
+  // fetched again as soon as their data is appended. A permit is taken for every fetch and only released once its
+  // data has been appended, which bounds the fetches in flight.
+  private val pendingAppends = new LinkedBlockingQueue[Seq[PendingPartitionData]]
+  // partitions with fetched data waiting in `pendingAppends`, guarded by partitionMapLock
+  private val pendingAppendPartitions = mutable.HashSet.empty[TopicPartition]
+  private val fetchPermits = new Semaphore(pipelineDepth)
+  private val appender = if (pipelineDepth > 1) Some(new FetchDataAppender) else None
+  @volatile private var appendFailure: Throwable = null
+
+  // bytes appended for each partition since the last call to `drainPartitionBytes`, guarded by partitionMapLock
+  private val partitionBytes = mutable.HashMap.empty[TopicPartition, Long]
+
   private val metricId = ClientIdAndBroker(clientId, sourceBroker.host, sourceBroker.port)
   val fetcherStats = new FetcherStats(metricId)
   val fetcherLagStats = new FetcherLagStats(metricId)
@@ -80,6 +99,13 @@ abstract class AbstractFetcherThread(name: String,
 
   protected def buildFetch(partitionMap: Map[TopicPartition, PartitionFetchState]): ResultWithPartitions[Option[FetchRequest.Builder]]
 
+  /**
+   * Whether some partitions are left out of the fetch being built because their fetched data is still being appended.
+   * The fetch must then not wait on the leader for data, since the fetcher thread only fetches these partitions again
+   * once it returns. Only called by `buildFetch`, with partitionMapLock held.
+   */
+  protected def hasPendingAppends: Boolean = pendingAppendPartitions.nonEmpty
+
   protected def latestEpoch(topicPartition: TopicPartition): Option[Int]
 
   protected def logEndOffset(topicPartition: TopicPartition): Long
@@ -94,6 +120,11 @@ abstract class AbstractFetcherThread(name: String,
 
   protected def fetchLatestOffsetFromLeader(topicPartition: TopicPartition, currentLeaderEpoch: Int): Long
 
+  override def start(): Unit = {
+    appender.foreach(_.start())
+    super.start()
+  }
+
   override def shutdown() {
     initiateShutdown()
     inLock(partitionMapLock) {
@@ -106,14 +137,24 @@ abstract class AbstractFetcherThread(name: String,
     fetcherLagStats.unregister()
   }
 
+  override def awaitShutdown(): Unit = {
+    super.awaitShutdown()
+    appender.foreach(_.shutdown())
+  }
+
   override def doWork() {
     maybeTruncate()
     maybeFetch()
   }
 
   private def maybeFetch(): Unit = {
+    if (appender.isDefined && !awaitFetchPermit())
+      return
+
     val (fetchStates, fetchRequestOpt) = inLock(partitionMapLock) {
-      val fetchStates = partitionStates.partitionStateMap.asScala
+      val fetchStates = partitionStates.partitionStateMap.asScala.filter { case (topicPartition, _) =>
+        !pendingAppendPartitions.contains(topicPartition)
+      }
       val ResultWithPartitions(fetchRequestOpt, partitionsWithError) = buildFetch(fetchStates)
 
       handlePartitionsWithErrors(partitionsWithError)
@@ -126,11 +167,22 @@ abstract class AbstractFetcherThread(name: String,
       (fetchStates, fetchRequestOpt)
     }
 
-    fetchRequestOpt.foreach { fetchRequest =>
-      processFetchRequest(fetchStates, fetchRequest)
+    fetchRequestOpt match {
+      case Some(fetchRequest) => processFetchRequest(fetchStates, fetchRequest)
+      case None => if (appender.isDefined) fetchPermits.release()
     }
   }
 
+  private def awaitFetchPermit(): Boolean = {
+    while (isRunning) {
+      if (appendFailure != null)
+        throw new KafkaException("Error appending fetched data", appendFailure)
+      if (fetchPermits.tryAcquire(AppendPollIntervalMs, TimeUnit.MILLISECONDS))
+        return true
+    }
+    false
+  }
+
   // deal with partitions with errors, potentially due to leadership changes
   private def handlePartitionsWithErrors(partitions: Iterable[TopicPartition]) {
     if (partitions.nonEmpty)
@@ -234,6 +286,7 @@ abstract class AbstractFetcherThread(name: String,
   private def processFetchRequest(fetchStates: Map[TopicPartition, PartitionFetchState],
                                   fetchRequest: FetchRequest.Builder): Unit = {
     val partitionsWithError = mutable.Set[TopicPartition]()
+    val pendingPartitions = mutable.ArrayBuffer[PendingPartitionData]()
     var responseData: Seq[(TopicPartition, FetchData)] = Seq.empty
 
     try {
@@ -266,42 +319,25 @@ abstract class AbstractFetcherThread(name: String,
             if (fetchState.fetchOffset == currentFetchState.fetchOffset && currentFetchState.isReadyForFetch) {
               partitionData.error match {
                 case Errors.NONE =>
-                  try {
-                    // Once we hand off the partition data to the subclass, we can't mess with it any more in this thread
-                    val logAppendInfoOpt = processPartitionData(topicPartition, currentFetchState.fetchOffset,
-                      partitionData)
-
-                    logAppendInfoOpt.foreach { logAppendInfo =>
-                      val validBytes = logAppendInfo.validBytes
-                      val nextOffset = if (validBytes > 0) logAppendInfo.lastOffset + 1 else currentFetchState.fetchOffset
-                      fetcherLagStats.getAndMaybePut(topicPartition).lag = Math.max(0L, partitionData.highWatermark - nextOffset)
-
+                  if (appender.isDefined) {
+                    // the fetch offset is advanced by the appender, until then the partition is not fetched again
+                    pendingPartitions += PendingPartitionData(topicPartition, currentFetchState, partitionData)
+                    pendingAppendPartitions += topicPartition
+                  } else {
+                    appendPartitionData(topicPartition, currentFetchState.fetchOffset, partitionData) match {
                       // ReplicaDirAlterThread may have removed topicPartition from the partitionStates after processing the partition data
-                      if (validBytes > 0 && partitionStates.contains(topicPartition)) {
-                        // Update partitionStates only if there is no exception during processPartitionData
-                        val newFetchState = PartitionFetchState(nextOffset, fetchState.currentLeaderEpoch,
-                          state = Fetching)
-                        partitionStates.updateAndMoveToEnd(topicPartition, newFetchState)
-                        fetcherStats.byteRate.mark(validBytes)
-                      }
+                      case Some(nextOffset) =>
+                        if (nextOffset != currentFetchState.fetchOffset && partitionStates.contains(topicPartition)) {
+                          // Update partitionStates only if there is no exception during processPartitionData
+                          val newFetchState = PartitionFetchState(nextOffset, fetchState.currentLeaderEpoch,
+                            state = Fetching)
+                          partitionStates.updateAndMoveToEnd(topicPartition, newFetchState)
+                        }
+                      case None =>
+                        partitionsWithError += topicPartition
                     }
-                  } catch {
-                    case ime: CorruptRecordException =>
-                      // we log the error and continue. This ensures two things
-                      // 1. If there is a corrupt message in a topic partition, it does not bring the fetcher thread
-                      //    down and cause other topic partition to also lag
-                      // 2. If the message is corrupt due to a transient state in the log (truncation, partial writes
-                      //    can cause this), we simply continue and should get fixed in the subsequent fetches
-                      error(s"Found invalid messages during fetch for partition $topicPartition " +
-                        s"offset ${currentFetchState.fetchOffset}", ime)
-                      partitionsWithError += topicPartition
-                    case e: KafkaStorageException =>
-                      error(s"Error while processing data for partition $topicPartition", e)
-                      partitionsWithError += topicPartition
-                    case e: Throwable =>
-                      throw new KafkaException(s"Error processing data for partition $topicPartition " +
-                        s"offset ${currentFetchState.fetchOffset}", e)
                   }
+
                 case Errors.OFFSET_OUT_OF_RANGE =>
                   if (!handleOutOfRangeError(topicPartition, currentFetchState))
                     partitionsWithError += topicPartition
@@ -330,12 +366,101 @@ abstract class AbstractFetcherThread(name: String,
       }
     }
 
+    if (appender.isDefined) {
+      if (pendingPartitions.nonEmpty)
+        pendingAppends.put(pendingPartitions)
+      else
+        fetchPermits.release()
+    }
+
     if (partitionsWithError.nonEmpty) {
       debug(s"Handling errors for partitions $partitionsWithError")
       handlePartitionsWithErrors(partitionsWithError)
     }
   }
 
+  /**
+   * Append the data fetched for a partition to its log and return the offset to fetch next, or None if the data
+   * could not be appended because it is corrupt or because of a storage error.
+   */
+  private def appendPartitionData(topicPartition: TopicPartition,
+                                  fetchOffset: Long,
+                                  partitionData: FetchData): Option[Long] = {
+    try {
+      // Once we hand off the partition data to the subclass, we can't mess with it any more in this thread
+      val logAppendInfoOpt = processPartitionData(topicPartition, fetchOffset, partitionData)
+
+      val nextOffset = logAppendInfoOpt match {
+        case Some(logAppendInfo) =>
+          val validBytes = logAppendInfo.validBytes
+          val nextOffset = if (validBytes > 0) logAppendInfo.lastOffset + 1 else fetchOffset
+          fetcherLagStats.getAndMaybePut(topicPartition).lag = Math.max(0L, partitionData.highWatermark - nextOffset)
+          if (validBytes > 0) {
+            fetcherStats.byteRate.mark(validBytes)
+            partitionBytes(topicPartition) = partitionBytes.getOrElse(topicPartition, 0L) + validBytes
+          }
+          nextOffset
+        case None => fetchOffset
+      }
+      Some(nextOffset)
+    } catch {
+      case ime: CorruptRecordException =>
+        // we log the error and continue. This ensures two things
+        // 1. If there is a corrupt message in a topic partition, it does not bring the fetcher thread
+        //    down and cause other topic partition to also lag
+        // 2. If the message is corrupt due to a transient state in the log (truncation, partial writes
+        //    can cause this), we simply continue and should get fixed in the subsequent fetches
+        error(s"Found invalid messages during fetch for partition $topicPartition offset $fetchOffset", ime)
+        None
+      case e: KafkaStorageException =>
+        error(s"Error while processing data for partition $topicPartition", e)
+        None
+      case e: Throwable =>
+        throw new KafkaException(s"Error processing data for partition $topicPartition offset $fetchOffset", e)
+    }
+  }
+
+  /**
+   * Append the data of the oldest pending fetch, waiting up to `timeoutMs` for one. The data of a partition is skipped
+   * if the partition was removed, truncated or had its fetch offset reset since it was fetched. Either way the
+   * partition is fetched again afterwards, from the offset following the appended data.
+   */
+  private[server] def appendPendingData(timeoutMs: Long): Unit = {
+    val pendingPartitions = pendingAppends.poll(timeoutMs, TimeUnit.MILLISECONDS)
+    if (pendingPartitions != null) {
+      try {
+        val partitionsWithError = mutable.Set[TopicPartition]()
+        pendingPartitions.foreach { pending =>
+          val topicPartition = pending.topicPartition
+          // the lock is taken for every partition so that the fetcher thread can build the next fetch in between
+          inLock(partitionMapLock) {
+            pendingAppendPartitions -= topicPartition
+            Option(partitionStates.stateValue(topicPartition)).foreach { currentFetchState =>
+              if (currentFetchState.state == Fetching &&
+                  currentFetchState.currentLeaderEpoch == pending.fetchState.currentLeaderEpoch &&
+                  currentFetchState.fetchOffset == pending.fetchState.fetchOffset) {
+                appendPartitionData(topicPartition, currentFetchState.fetchOffset, pending.partitionData) match {
+                  case Some(nextOffset) =>
+                    if (nextOffset != currentFetchState.fetchOffset && partitionStates.contains(topicPartition)) {
+                      val newFetchState = PartitionFetchState(nextOffset, currentFetchState.currentLeaderEpoch,
+                        state = Fetching)
+                      partitionStates.updateAndMoveToEnd(topicPartition, newFetchState)
+                    }
+                  case None =>
+                    partitionsWithError += topicPartition
+                }
+              }
+            }
+            // the fetcher thread may be waiting because all its partitions had pending data
+            partitionMapCond.signalAll()
+          }
+        }
+        if (partitionsWithError.nonEmpty)
+          handlePartitionsWithErrors(partitionsWithError)
+      } finally fetchPermits.release()
+    }
+  }
+
   def markPartitionsForTruncation(topicPartition: TopicPartition, truncationOffset: Long) {
     partitionMapLock.lockInterruptibly()
     try {
@@ -569,17 +694,47 @@ abstract class AbstractFetcherThread(name: String,
     try {
       topicPartitions.foreach { topicPartition =>
         partitionStates.remove(topicPartition)
+        partitionBytes.remove(topicPartition)
         fetcherLagStats.unregister(topicPartition)
       }
     } finally partitionMapLock.unlock()
   }
 
+  /**
+   * Return the bytes appended for each partition of this fetcher since the previous call, including zero for the
+   * partitions which did not append any.
+   */
+  private[server] def drainPartitionBytes(): Map[TopicPartition, Long] = inLock(partitionMapLock) {
+    val bytes = partitionStates.partitionSet.asScala.map { topicPartition =>
+      topicPartition -> partitionBytes.getOrElse(topicPartition, 0L)
+    }.toMap
+    partitionBytes.clear()
+    bytes
+  }
+
   def partitionCount() = {
     partitionMapLock.lockInterruptibly()
     try partitionStates.size
     finally partitionMapLock.unlock()
   }
 
+  private case class PendingPartitionData(topicPartition: TopicPartition,
+                                          fetchState: PartitionFetchState,
+                                          partitionData: FetchData)
+
+  private class FetchDataAppender extends ShutdownableThread(s"${AbstractFetcherThread.this.name}-appender",
+    isInterruptible = false) {
+
+    override def doWork(): Unit = {
+      try appendPendingData(AppendPollIntervalMs)
+      catch {
+        case e: Throwable =>
+          appendFailure = e
+          throw e
+      }
+    }
+  }
+
   // Visible for testing
   private[server] def fetchState(topicPartition: TopicPartition): Option[PartitionFetchState] = inLock(partitionMapLock) {
     Option(partitionStates.stateValue(topicPartition))
@@ -608,12 +763,15 @@ abstract class AbstractFetcherThread(name: String,
 
 object AbstractFetcherThread {
 
+  private val AppendPollIntervalMs = 100L
+
   case class ResultWithPartitions[R](result: R, partitionsWithError: Set[TopicPartition])
 
 }
 
 object FetcherMetrics {
   val ConsumerLag = "ConsumerLag"
+  val MaxLag = "MaxLag"
   val RequestsPerSec = "RequestsPerSec"
   val BytesPerSec = "BytesPerSec"
 }
@@ -644,9 +802,20 @@ class FetcherLagMetrics(metricId: ClientIdTopicPartition) extends KafkaMetricsGr
   }
 }
 
-class FetcherLagStats(metricId: ClientIdAndBroker) {
+class FetcherLagStats(metricId: ClientIdAndBroker) extends KafkaMetricsGroup {
   private val valueFactory = (k: ClientIdTopicPartition) => new FetcherLagMetrics(k)
   val stats = new Pool[ClientIdTopicPartition, FetcherLagMetrics](Some(valueFactory))
+  private val tags = Map("clientId" -> metricId.clientId,
+    "brokerHost" -> metricId.brokerHost,
+    "brokerPort" -> metricId.brokerPort.toString)
+
+  // the max lag across the partitions of the fetcher
+  newGauge(FetcherMetrics.MaxLag,
+    new Gauge[Long] {
+      def value = stats.values.foldLeft(0L)((maxLag, lagMetrics) => maxLag.max(lagMetrics.lag))
+    },
+    tags
+  )
 
   def getAndMaybePut(topicPartition: TopicPartition): FetcherLagMetrics = {
     stats.getAndMaybePut(ClientIdTopicPartition(metricId.clientId, topicPartition))
@@ -669,6 +838,7 @@ class FetcherLagStats(metricId: ClientIdAndBroker) {
     stats.keys.toBuffer.foreach { key: ClientIdTopicPartition =>
       unregister(key.topicPartition)
     }
+    removeMetric(FetcherMetrics.MaxLag, tags)
   }
 }
 
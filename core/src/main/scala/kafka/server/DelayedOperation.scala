@@ -147,12 +147,16 @@ abstract class DelayedOperation(override val delayMs: Long,
 
 object DelayedOperationPurgatory {
 
+  /* the default number of independent watcher maps of a purgatory */
+  val Shards = 512
+
   def apply[T <: DelayedOperation](purgatoryName: String,
                                    brokerId: Int = 0,
                                    purgeInterval: Int = 1000,
                                    reaperEnabled: Boolean = true,
-                                   timerEnabled: Boolean = true): DelayedOperationPurgatory[T] = {
-    val timer = new SystemTimer(purgatoryName)
+                                   timerEnabled: Boolean = true,
+                                   pooledTimer: Boolean = false): DelayedOperationPurgatory[T] = {
+    val timer = new SystemTimer(purgatoryName, pooled = pooledTimer)
     new DelayedOperationPurgatory[T](purgatoryName, timer, brokerId, purgeInterval, reaperEnabled, timerEnabled)
   }
 
@@ -160,19 +164,37 @@ object DelayedOperationPurgatory {
 
 /**
  * A helper purgatory class for bookkeeping delayed operations with a timeout, and expiring timed out operations.
+ *
+ * The watcher lists are spread by the hash of their key over `shards` independent maps, each with its own lock, so
+ * that request handler threads watching and completing operations on different keys rarely contend with each other
+ * or with the reaper thread, which purges completed operations one shard at a time.
  */
 final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: String,
                                                              timeoutTimer: Timer,
                                                              brokerId: Int = 0,
                                                              purgeInterval: Int = 1000,
                                                              reaperEnabled: Boolean = true,
-                                                             timerEnabled: Boolean = true)
+                                                             timerEnabled: Boolean = true,
+                                                             shards: Int = DelayedOperationPurgatory.Shards)
         extends Logging with KafkaMetricsGroup {
+  require(shards > 0, s"The number of shards must be positive: $shards")
+
+  /* the watcher lists of the keys whose hash maps to a shard */
+  private class WatcherList {
+    val watchersByKey = new Pool[Any, Watchers](Some((key: Any) => new Watchers(key, this)))
+
+    val removeWatchersLock = new ReentrantReadWriteLock()
+
+    /*
+     * Return all the current watcher lists of this shard,
+     * note that the returned watchers may be removed from the list by other threads
+     */
+    def allWatchers: Iterable[Watchers] = inReadLock(removeWatchersLock) { watchersByKey.values }
+  }
 
-  /* a list of operation watching keys */
-  private val watchersForKey = new Pool[Any, Watchers](Some((key: Any) => new Watchers(key)))
+  private val watcherLists = Array.fill(shards)(new WatcherList)
 
-  private val removeWatchersLock = new ReentrantReadWriteLock()
+  private def watcherList(key: Any): WatcherList = watcherLists(Math.abs(key.hashCode % watcherLists.length))
 
   // the number of estimated total operations in the purgatory
   private[this] val estimatedTotalOperations = new AtomicInteger(0)
@@ -270,7 +292,8 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
    * @return the number of completed operations during this process
    */
   def checkAndComplete(key: Any): Int = {
-    val watchers = inReadLock(removeWatchersLock) { watchersForKey.get(key) }
+    val wl = watcherList(key)
+    val watchers = inReadLock(wl.removeWatchersLock) { wl.watchersByKey.get(key) }
     if(watchers == null)
       0
     else
@@ -282,7 +305,7 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
    * on multiple lists, and some of its watched entries may still be in the watch lists
    * even when it has been completed, this number may be larger than the number of real operations watched
    */
-  def watched: Int = allWatchers.map(_.countWatched).sum
+  def watched: Int = watcherLists.iterator.map(_.allWatchers.map(_.countWatched).sum).sum
 
   /**
    * Return the number of delayed operations in the expiry queue
@@ -293,27 +316,24 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
     * Cancel watching on any delayed operations for the given key. Note the operation will not be completed
     */
   def cancelForKey(key: Any): List[T] = {
-    inWriteLock(removeWatchersLock) {
-      val watchers = watchersForKey.remove(key)
+    val wl = watcherList(key)
+    inWriteLock(wl.removeWatchersLock) {
+      val watchers = wl.watchersByKey.remove(key)
       if (watchers != null)
         watchers.cancel()
       else
         Nil
     }
   }
-  /*
-   * Return all the current watcher lists,
-   * note that the returned watchers may be removed from the list by other threads
-   */
-  private def allWatchers = inReadLock(removeWatchersLock) { watchersForKey.values }
 
   /*
    * Return the watch list of the given key, note that we need to
-   * grab the removeWatchersLock to avoid the operation being added to a removed watcher list
+   * grab the removeWatchersLock of its shard to avoid the operation being added to a removed watcher list
    */
   private def watchForOperation(key: Any, operation: T) {
-    inReadLock(removeWatchersLock) {
-      val watcher = watchersForKey.getAndMaybePut(key)
+    val wl = watcherList(key)
+    inReadLock(wl.removeWatchersLock) {
+      val watcher = wl.watchersByKey.getAndMaybePut(key)
       watcher.watch(operation)
     }
   }
@@ -322,13 +342,14 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
    * Remove the key from watcher lists if its list is empty
    */
   private def removeKeyIfEmpty(key: Any, watchers: Watchers) {
-    inWriteLock(removeWatchersLock) {
+    val wl = watchers.watcherList
+    inWriteLock(wl.removeWatchersLock) {
       // if the current key is no longer correlated to the watchers to remove, skip
-      if (watchersForKey.get(key) != watchers)
+      if (wl.watchersByKey.get(key) != watchers)
         return
 
       if (watchers != null && watchers.isEmpty) {
-        watchersForKey.remove(key)
+        wl.watchersByKey.remove(key)
       }
     }
   }
@@ -345,7 +366,7 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
   /**
    * A linked list of watched delayed operations based on some key
    */
-  private class Watchers(val key: Any) {
+  private class Watchers(val key: Any, val watcherList: WatcherList) {
     private[this] val operations = new ConcurrentLinkedQueue[T]()
 
     // count the current number of watched operations. This is O(n), so use isEmpty() if possible
@@ -423,8 +444,12 @@ final class DelayedOperationPurgatory[T <: DelayedOperation](purgatoryName: Stri
       // clean up watchers. Note that, if more operations are completed during the clean up, we may end up with
       // a little overestimated total number of operations.
       estimatedTotalOperations.getAndSet(delayed)
+      // purge one shard at a time so that only the lock of the shard being purged is held
       debug("Begin purging watch lists")
-      val purged = allWatchers.map(_.purgeCompleted()).sum
+      var purged = 0
+      watcherLists.foreach { wl =>
+        purged += wl.allWatchers.map(_.purgeCompleted()).sum
+      }
       debug("Purged %d elements from watch lists.".format(purged))
     }
   }
@@ -243,23 +243,35 @@ class KafkaApis(val requestChannel: RequestChannel,
         s"${updateMetadataRequest.brokerEpoch()} smaller than the current broker epoch ${controller.brokerEpoch}")
       sendResponseExemptThrottle(request, new UpdateMetadataResponse(Errors.STALE_BROKER_EPOCH))
     } else {
-      val deletedPartitions = replicaManager.maybeUpdateMetadataCache(correlationId, updateMetadataRequest)
-      if (deletedPartitions.nonEmpty)
-        groupCoordinator.handleDeletedPartitions(deletedPartitions)
-
-      if (adminManager.hasDelayedTopicOperations) {
-        updateMetadataRequest.partitionStates.keySet.asScala.map(_.topic).foreach { topic =>
-          adminManager.tryCompleteDelayedTopicOperations(topic)
-        }
+      val deletedPartitionsOpt = try Some(replicaManager.maybeUpdateMetadataCache(correlationId, updateMetadataRequest))
+      catch {
+        // The rejected update was already logged by the metadata cache. The controller resends a full update when
+        // it receives the error, so it is returned without going through the generic error handling.
+        case _: MetadataUpdateOutOfOrderException => None
       }
-      quotas.clientQuotaCallback.foreach { callback =>
-        if (callback.updateClusterMetadata(metadataCache.getClusterMetadata(clusterId, request.context.listenerName))) {
-          quotas.fetch.updateQuotaMetricConfigs()
-          quotas.produce.updateQuotaMetricConfigs()
-          quotas.request.updateQuotaMetricConfigs()
-        }
+
+      deletedPartitionsOpt match {
+        case Some(deletedPartitions) =>
+          if (deletedPartitions.nonEmpty)
+            groupCoordinator.handleDeletedPartitions(deletedPartitions)
+
+          if (adminManager.hasDelayedTopicOperations) {
+            updateMetadataRequest.partitionStates.keySet.asScala.map(_.topic).foreach { topic =>
+              adminManager.tryCompleteDelayedTopicOperations(topic)
+            }
+          }
+          quotas.clientQuotaCallback.foreach { callback =>
+            if (callback.updateClusterMetadata(metadataCache.getClusterMetadata(clusterId, request.context.listenerName))) {
+              quotas.fetch.updateQuotaMetricConfigs()
+              quotas.produce.updateQuotaMetricConfigs()
+              quotas.request.updateQuotaMetricConfigs()
+            }
+          }
+          sendResponseExemptThrottle(request, new UpdateMetadataResponse(Errors.NONE))
+
+        case None =>
+          sendResponseExemptThrottle(request, new UpdateMetadataResponse(Errors.METADATA_UPDATE_OUT_OF_ORDER))
       }
-      sendResponseExemptThrottle(request, new UpdateMetadataResponse(Errors.NONE))
     }
   }
 
@@ -494,6 +506,8 @@ class KafkaApis(val requestChannel: RequestChannel,
       sendResponseCallback(Map.empty)
     else {
       val internalTopicsAllowed = request.header.clientId == AdminUtils.AdminClientId
+      val trustedProducer = config.trustedProducerListeners.contains(request.context.listenerName) ||
+        config.trustedProducerPrincipals.contains(request.context.principal.toString)
 
       // call the replica manager to append messages to the replicas
       replicaManager.appendRecords(
@@ -503,7 +517,8 @@ class KafkaApis(val requestChannel: RequestChannel,
         isFromClient = true,
         entriesPerPartition = authorizedRequestInfo,
         responseCallback = sendResponseCallback,
-        recordConversionStatsCallback = processingStatsCallback)
+        recordConversionStatsCallback = processingStatsCallback,
+        trustedProducer = trustedProducer)
 
       // if the request is put into the purgatory, it will have a held reference and hence cannot be garbage collected;
       // hence we clear its data here in order to let GC reclaim its memory since it is already appended to log
@@ -1045,7 +1060,7 @@ class KafkaApis(val requestChannel: RequestChannel,
 
     val completeTopicMetadata = topicMetadata ++ unauthorizedForCreateTopicMetadata ++ unauthorizedForDescribeTopicMetadata
 
-    val brokers = metadataCache.getAliveBrokers
+    val brokers = metadataCache.getAliveBrokerNodes(request.context.listenerName)
 
     trace("Sending topic metadata %s and brokers %s for correlation id %d to client %s".format(completeTopicMetadata.mkString(","),
       brokers.mkString(","), request.header.correlationId, request.header.clientId))
@@ -1053,7 +1068,7 @@ class KafkaApis(val requestChannel: RequestChannel,
     sendResponseMaybeThrottle(request, requestThrottleMs =>
       new MetadataResponse(
         requestThrottleMs,
-        brokers.flatMap(_.getNode(request.context.listenerName)).asJava,
+        brokers.asJava,
         clusterId,
         metadataCache.getControllerId.getOrElse(MetadataResponse.NO_CONTROLLER_ID),
         completeTopicMetadata.asJava
@@ -18,13 +18,14 @@
 package kafka.server
 
 import java.util
-import java.util.{Collections, Properties}
+import java.util.{Collections, Locale, Properties}
 
 import kafka.api.{ApiVersion, ApiVersionValidator, KAFKA_0_10_0_IV1}
 import kafka.cluster.EndPoint
 import kafka.coordinator.group.OffsetConfig
 import kafka.coordinator.transaction.{TransactionLog, TransactionStateManager}
 import kafka.message.{BrokerCompressionCodec, CompressionCodec}
+import kafka.network.RequestChannel
 import kafka.utils.CoreUtils
 import kafka.utils.Implicits._
 import org.apache.kafka.clients.CommonClientConfigs
@@ -34,12 +35,14 @@ import org.apache.kafka.common.config.internals.BrokerSecurityConfigs
 import org.apache.kafka.common.config.{AbstractConfig, ConfigDef, ConfigException, SaslConfigs, SslConfigs, TopicConfig}
 import org.apache.kafka.common.metrics.Sensor
 import org.apache.kafka.common.network.ListenerName
+import org.apache.kafka.common.protocol.ApiKeys
 import org.apache.kafka.common.record.{LegacyRecord, Records, TimestampType}
 import org.apache.kafka.common.security.auth.SecurityProtocol
 import org.apache.kafka.common.utils.Utils
 
 import scala.collection.JavaConverters._
 import scala.collection.Map
+import scala.util.Try
 
 object Defaults {
   /** ********* Zookeeper Configuration ***********/
@@ -58,6 +61,10 @@ object Defaults {
   val BackgroundThreads = 10
   val QueuedMaxRequests = 500
   val QueuedMaxRequestBytes = -1
+  val QueuedRequestBufferPoolBytes = 0L
+  val RequestQueueWeights = ""
+  val RequestQueueApiKeys = ""
+  val RequestQueueListeners = ""
 
   /************* Authorizer Configuration ***********/
   val AuthorizerClassName = ""
@@ -73,6 +80,7 @@ object Defaults {
   val SocketSendBufferBytes: Int = 100 * 1024
   val SocketReceiveBufferBytes: Int = 100 * 1024
   val SocketRequestMaxBytes: Int = 100 * 1024 * 1024
+  val SocketSelectorOptimizeSelectedKeys = false
   val MaxConnectionsPerIp: Int = Int.MaxValue
   val MaxConnectionsPerIpOverrides: String = ""
   val ConnectionsMaxIdleMs = 10 * 60 * 1000L
@@ -93,8 +101,13 @@ object Defaults {
   val Compact = "compact"
   val LogCleanupPolicy = Delete
   val LogCleanerThreads = 1
+  val LogCleanerWorkerThreads = 0
   val LogCleanerIoMaxBytesPerSecond = Double.MaxValue
   val LogCleanerDedupeBufferSize = 128 * 1024 * 1024L
+  val HeapDedupeBuffer = "heap"
+  val DirectDedupeBuffer = "direct"
+  val MmapDedupeBuffer = "mmap"
+  val LogCleanerDedupeBufferType = HeapDedupeBuffer
   val LogCleanerIoBufferSize = 512 * 1024
   val LogCleanerDedupeBufferLoadFactor = 0.9d
   val LogCleanerBackoffMs = 15 * 1000
@@ -104,12 +117,17 @@ object Defaults {
   val LogCleanerMinCompactionLagMs = 0L
   val LogIndexSizeMaxBytes = 10 * 1024 * 1024
   val LogIndexIntervalBytes = 4096
+  val LogIndexMmapMaxCount = 32768
   val LogFlushIntervalMessages = Long.MaxValue
   val LogDeleteDelayMs = 60000
   val LogFlushSchedulerIntervalMs = Long.MaxValue
   val LogFlushOffsetCheckpointIntervalMs = 60000
   val LogFlushStartOffsetCheckpointIntervalMs = 60000
   val LogPreAllocateEnable = false
+  val LogSegmentPrepareEnable = true
+  val LogLocalRetentionMs = -1L
+  val LogRemoteCacheBytes = 1024 * 1024 * 1024L
+  val LogRemoteReadAheadSegments = 1
   // lazy val as `InterBrokerProtocolVersion` is defined later
   lazy val LogMessageFormatVersion = InterBrokerProtocolVersion
   val LogMessageTimestampType = "CreateTime"
@@ -122,6 +140,7 @@ object Defaults {
   /** ********* Replication configuration ***********/
   val ControllerSocketTimeoutMs = RequestTimeoutMs
   val ControllerMessageQueueSize = Int.MaxValue
+  val ControllerZkWriteBatchSize = 1
   val DefaultReplicationFactor = 1
   val ReplicaLagTimeMaxMs = 10000L
   val ReplicaSocketTimeoutMs = 30 * 1000
@@ -131,11 +150,14 @@ object Defaults {
   val ReplicaFetchMinBytes = 1
   val ReplicaFetchResponseMaxBytes = 10 * 1024 * 1024
   val NumReplicaFetchers = 1
+  val ReplicaFetcherRebalanceIntervalMs = 0L
   val ReplicaFetchBackoffMs = 1000
+  val ReplicaFetchPipelineDepth = 1
   val ReplicaHighWatermarkCheckpointIntervalMs = 5000L
   val FetchPurgatoryPurgeIntervalRequests = 1000
   val ProducerPurgatoryPurgeIntervalRequests = 1000
   val DeleteRecordsPurgatoryPurgeIntervalRequests = 1
+  val PurgatoryTimerPooledEnable = false
   val AutoLeaderRebalanceEnable = true
   val LeaderImbalancePerBrokerPercentage = 10
   val LeaderImbalanceCheckIntervalSeconds = 300
@@ -275,6 +297,10 @@ object KafkaConfig {
   val NumReplicaAlterLogDirsThreadsProp = "num.replica.alter.log.dirs.threads"
   val QueuedMaxRequestsProp = "queued.max.requests"
   val QueuedMaxBytesProp = "queued.max.request.bytes"
+  val QueuedRequestBufferPoolBytesProp = "queued.request.buffer.pool.bytes"
+  val RequestQueueWeightsProp = "request.queue.weights"
+  val RequestQueueApiKeysProp = "request.queue.api.keys"
+  val RequestQueueListenersProp = "request.queue.listeners"
   val RequestTimeoutMsProp = CommonClientConfigs.REQUEST_TIMEOUT_MS_CONFIG
   /************* Authorizer Configuration ***********/
   val AuthorizerClassNameProp = "authorizer.class.name"
@@ -289,6 +315,7 @@ object KafkaConfig {
   val SocketSendBufferBytesProp = "socket.send.buffer.bytes"
   val SocketReceiveBufferBytesProp = "socket.receive.buffer.bytes"
   val SocketRequestMaxBytesProp = "socket.request.max.bytes"
+  val SocketSelectorOptimizeSelectedKeysProp = "socket.selector.optimize.selected.keys"
   val MaxConnectionsPerIpProp = "max.connections.per.ip"
   val MaxConnectionsPerIpOverridesProp = "max.connections.per.ip.overrides"
   val ConnectionsMaxIdleMsProp = "connections.max.idle.ms"
@@ -315,8 +342,10 @@ object KafkaConfig {
   val LogCleanupIntervalMsProp = "log.retention.check.interval.ms"
   val LogCleanupPolicyProp = "log.cleanup.policy"
   val LogCleanerThreadsProp = "log.cleaner.threads"
+  val LogCleanerWorkerThreadsProp = "log.cleaner.worker.threads"
   val LogCleanerIoMaxBytesPerSecondProp = "log.cleaner.io.max.bytes.per.second"
   val LogCleanerDedupeBufferSizeProp = "log.cleaner.dedupe.buffer.size"
+  val LogCleanerDedupeBufferTypeProp = "log.cleaner.dedupe.buffer.type"
   val LogCleanerIoBufferSizeProp = "log.cleaner.io.buffer.size"
   val LogCleanerDedupeBufferLoadFactorProp = "log.cleaner.io.buffer.load.factor"
   val LogCleanerBackoffMsProp = "log.cleaner.backoff.ms"
@@ -326,6 +355,7 @@ object KafkaConfig {
   val LogCleanerMinCompactionLagMsProp = "log.cleaner.min.compaction.lag.ms"
   val LogIndexSizeMaxBytesProp = "log.index.size.max.bytes"
   val LogIndexIntervalBytesProp = "log.index.interval.bytes"
+  val LogIndexMmapMaxCountProp = "log.index.mmap.max.count"
   val LogFlushIntervalMessagesProp = "log.flush.interval.messages"
   val LogDeleteDelayMsProp = "log.segment.delete.delay.ms"
   val LogFlushSchedulerIntervalMsProp = "log.flush.scheduler.interval.ms"
@@ -333,6 +363,7 @@ object KafkaConfig {
   val LogFlushOffsetCheckpointIntervalMsProp = "log.flush.offset.checkpoint.interval.ms"
   val LogFlushStartOffsetCheckpointIntervalMsProp = "log.flush.start.offset.checkpoint.interval.ms"
   val LogPreAllocateProp = "log.preallocate"
+  val LogSegmentPrepareEnableProp = "log.segment.prepare.enable"
   val LogMessageFormatVersionProp = LogConfigPrefix + "message.format.version"
   val LogMessageTimestampTypeProp = LogConfigPrefix + "message.timestamp.type"
   val LogMessageTimestampDifferenceMaxMsProp = LogConfigPrefix + "message.timestamp.difference.max.ms"
@@ -343,8 +374,16 @@ object KafkaConfig {
   val CreateTopicPolicyClassNameProp = "create.topic.policy.class.name"
   val AlterConfigPolicyClassNameProp = "alter.config.policy.class.name"
   val LogMessageDownConversionEnableProp = LogConfigPrefix + "message.downconversion.enable"
+  val LogLocalRetentionMsProp = LogConfigPrefix + "local.retention.ms"
+  val LogRemoteStoreClassProp = "log.remote.store.class"
+  val LogRemoteStoreDirProp = "log.remote.store.dir"
+  val LogRemoteCacheBytesProp = "log.remote.cache.bytes"
+  val LogRemoteReadAheadSegmentsProp = "log.remote.read.ahead.segments"
+  val TrustedProducerListenersProp = "trusted.producer.listeners"
+  val TrustedProducerPrincipalsProp = "trusted.producer.principals"
   /** ********* Replication configuration ***********/
   val ControllerSocketTimeoutMsProp = "controller.socket.timeout.ms"
+  val ControllerZkWriteBatchSizeProp = "controller.zookeeper.write.batch.size"
   val DefaultReplicationFactorProp = "default.replication.factor"
   val ReplicaLagTimeMaxMsProp = "replica.lag.time.max.ms"
   val ReplicaSocketTimeoutMsProp = "replica.socket.timeout.ms"
@@ -354,11 +393,14 @@ object KafkaConfig {
   val ReplicaFetchMinBytesProp = "replica.fetch.min.bytes"
   val ReplicaFetchResponseMaxBytesProp = "replica.fetch.response.max.bytes"
   val ReplicaFetchBackoffMsProp = "replica.fetch.backoff.ms"
+  val ReplicaFetchPipelineDepthProp = "replica.fetch.pipeline.depth"
   val NumReplicaFetchersProp = "num.replica.fetchers"
+  val ReplicaFetcherRebalanceIntervalMsProp = "replica.fetcher.rebalance.interval.ms"
   val ReplicaHighWatermarkCheckpointIntervalMsProp = "replica.high.watermark.checkpoint.interval.ms"
   val FetchPurgatoryPurgeIntervalRequestsProp = "fetch.purgatory.purge.interval.requests"
   val ProducerPurgatoryPurgeIntervalRequestsProp = "producer.purgatory.purge.interval.requests"
   val DeleteRecordsPurgatoryPurgeIntervalRequestsProp = "delete.records.purgatory.purge.interval.requests"
+  val PurgatoryTimerPooledEnableProp = "purgatory.timer.pooled.enable"
   val AutoLeaderRebalanceEnableProp = "auto.leader.rebalance.enable"
   val LeaderImbalancePerBrokerPercentageProp = "leader.imbalance.per.broker.percentage"
   val LeaderImbalanceCheckIntervalSecondsProp = "leader.imbalance.check.interval.seconds"
@@ -366,6 +408,7 @@ object KafkaConfig {
   val InterBrokerSecurityProtocolProp = "security.inter.broker.protocol"
   val InterBrokerProtocolVersionProp = "inter.broker.protocol.version"
   val InterBrokerListenerNameProp = "inter.broker.listener.name"
+  val ControlPlaneListenerNameProp = "control.plane.listener.name"
   /** ********* Controlled shutdown configuration ***********/
   val ControlledShutdownMaxRetriesProp = "controlled.shutdown.max.retries"
   val ControlledShutdownRetryBackoffMsProp = "controlled.shutdown.retry.backoff.ms"
@@ -505,6 +548,23 @@ object KafkaConfig {
   val BackgroundThreadsDoc = "The number of threads to use for various background processing tasks"
   val QueuedMaxRequestsDoc = "The number of queued requests allowed before blocking the network threads"
   val QueuedMaxRequestBytesDoc = "The number of queued bytes allowed before no more requests are read"
+  val QueuedRequestBufferPoolBytesDoc = "The maximum total size of the buffers of completed requests which are kept to " +
+    "receive new requests into, instead of allocating a buffer for every request. Only requests of up to 64 KB are " +
+    s"received into pooled buffers. The pool is only used if $QueuedMaxBytesProp is not set, and 0 disables it."
+  val RequestQueueWeightsDoc = "Map of request queue names to weights, in the form <code>queue:weight,...</code>. " +
+    "Requests wait in separate queues for the request handler threads, which serve the non-empty queues in weighted " +
+    "round-robin order, so that the requests of one queue are not delayed by a flood of requests in another. Each queue " +
+    s"holds up to $QueuedMaxRequestsProp requests. Requests which are not assigned to another queue with " +
+    s"$RequestQueueApiKeysProp or $RequestQueueListenersProp are added to the queue named <code>default</code>, which " +
+    "has weight 1 unless it is listed here. For example, <code>coordinator:4</code> with " +
+    s"<code>$RequestQueueApiKeysProp=HEARTBEAT:coordinator,OFFSET_COMMIT:coordinator</code> serves up to four " +
+    "heartbeats and offset commits for each other request."
+  val RequestQueueApiKeysDoc = "Map of API keys to the request queues of their requests, in the form " +
+    "<code>API_KEY:queue,...</code> where API_KEY is the name of an API key such as HEARTBEAT. The queues must be " +
+    s"defined in $RequestQueueWeightsProp."
+  val RequestQueueListenersDoc = "Map of listener names to the request queues of the requests received on them, in " +
+    s"the form <code>LISTENER:queue,...</code>. The queues must be defined in $RequestQueueWeightsProp. A listener " +
+    s"queue takes precedence over the queue of the API key in $RequestQueueApiKeysProp."
   val RequestTimeoutMsDoc = CommonClientConfigs.REQUEST_TIMEOUT_MS_DOC
   /************* Authorizer Configuration ***********/
   val AuthorizerClassNameDoc = "The authorizer class that should be used for authorization"
@@ -550,6 +610,10 @@ object KafkaConfig {
   val SocketSendBufferBytesDoc = "The SO_SNDBUF buffer of the socket sever sockets. If the value is -1, the OS default will be used."
   val SocketReceiveBufferBytesDoc = "The SO_RCVBUF buffer of the socket sever sockets. If the value is -1, the OS default will be used."
   val SocketRequestMaxBytesDoc = "The maximum number of bytes in a socket request"
+  val SocketSelectorOptimizeSelectedKeysDoc = "If true, the selectors of the network threads keep the keys which are " +
+    "ready for I/O in an array instead of the default hash set, so that no garbage is created by every select. This " +
+    "replaces a private field of the JDK selector, which requires the <code>sun.nio.ch</code> package to be opened on " +
+    "Java 9 and later, and is only done for the epoll selector used on Linux; the default set is used otherwise."
   val MaxConnectionsPerIpDoc = "The maximum number of connections we allow from each ip address. This can be set to 0 if there are overrides " +
     "configured using " + MaxConnectionsPerIpOverridesProp + " property"
   val MaxConnectionsPerIpOverridesDoc = "A comma-separated list of per-ip or hostname overrides to the default maximum number of connections. An example value is \"hostName:100,127.0.0.1:200\""
@@ -577,8 +641,15 @@ object KafkaConfig {
   val LogCleanupIntervalMsDoc = "The frequency in milliseconds that the log cleaner checks whether any log is eligible for deletion"
   val LogCleanupPolicyDoc = "The default cleanup policy for segments beyond the retention window. A comma separated list of valid policies. Valid policies are: \"delete\" and \"compact\""
   val LogCleanerThreadsDoc = "The number of background threads to use for log cleaning"
+  val LogCleanerWorkerThreadsDoc = "The number of threads, shared by all cleaner threads, used to rewrite the segment groups of a log " +
+  "concurrently once its offset map has been built. The largest groups are rewritten first. If 0, each cleaner thread rewrites " +
+  "the segment groups of a log one at a time. The worker threads share the log cleaner I/O buffer memory with the cleaner threads."
   val LogCleanerIoMaxBytesPerSecondDoc = "The log cleaner will be throttled so that the sum of its read and write i/o will be less than this value on average"
   val LogCleanerDedupeBufferSizeDoc = "The total memory used for log deduplication across all cleaner threads"
+  val LogCleanerDedupeBufferTypeDoc = "The memory backing each cleaner thread's deduplication buffer. <code>heap</code> keeps an " +
+  "MD5-keyed map on the Java heap and is limited to 2GB per thread. <code>direct</code> keeps the map in off-heap memory keyed " +
+  "by a 128-bit non-cryptographic hash, which is cheaper to compute and allows more than 2GB per thread. <code>mmap</code> is like " +
+  "<code>direct</code> but backs the map with a file in the first log directory so it may exceed the available physical memory."
   val LogCleanerIoBufferSizeDoc = "The total memory used for log cleaner I/O buffers across all cleaner threads"
   val LogCleanerDedupeBufferLoadFactorDoc = "Log cleaner dedupe buffer load factor. The percentage full the dedupe buffer can become. A higher value " +
   "will allow more log to be cleaned at once but will lead to more hash collisions"
@@ -589,6 +660,9 @@ object KafkaConfig {
   val LogCleanerMinCompactionLagMsDoc = "The minimum time a message will remain uncompacted in the log. Only applicable for logs that are being compacted."
   val LogIndexSizeMaxBytesDoc = "The maximum size in bytes of the offset index"
   val LogIndexIntervalBytesDoc = "The interval with which we add an entry to the offset index"
+  val LogIndexMmapMaxCountDoc = "The maximum number of offset and time index files which are memory mapped at the same time. " +
+    "Indexes are mapped when they are first used, and the least recently used indexes are unmapped when there are more than " +
+    "this many mappings. This should be well below the operating system limit on memory mappings per process (vm.max_map_count on Linux)."
   val LogFlushIntervalMessagesDoc = "The number of messages accumulated on a log partition before messages are flushed to disk "
   val LogDeleteDelayMsDoc = "The amount of time to wait before deleting a file from the filesystem"
   val LogFlushSchedulerIntervalMsDoc = "The frequency in ms that the log flusher checks whether any log needs to be flushed to disk"
@@ -596,6 +670,8 @@ object KafkaConfig {
   val LogFlushOffsetCheckpointIntervalMsDoc = "The frequency with which we update the persistent record of the last flush which acts as the log recovery point"
   val LogFlushStartOffsetCheckpointIntervalMsDoc = "The frequency with which we update the persistent record of log start offset"
   val LogPreAllocateEnableDoc = "Should pre allocate file when create new segment? If you are using Kafka on Windows, you probably need to set it to true."
+  val LogSegmentPrepareEnableDoc = "Should the file of the next segment be created in the background before the log is rolled? " +
+    "If " + LogPreAllocateProp + " is also enabled, each log keeps one preallocated segment file in reserve."
   val LogMessageFormatVersionDoc = "Specify the message format version the broker will use to append messages to the logs. The value should be a valid ApiVersion. " +
     "Some examples are: 0.8.2, 0.9.0.0, 0.10.0, check ApiVersion for more details. By setting a particular message format version, the " +
     "user is certifying that all the existing messages on disk are smaller or equal than the specified version. Setting this value incorrectly " +
@@ -625,10 +701,33 @@ object KafkaConfig {
   val AlterConfigPolicyClassNameDoc = "The alter configs policy class that should be used for validation. The class should " +
     "implement the <code>org.apache.kafka.server.policy.AlterConfigPolicy</code> interface."
   val LogMessageDownConversionEnableDoc = TopicConfig.MESSAGE_DOWNCONVERSION_ENABLE_DOC;
+  val LogLocalRetentionMsDoc = "The age in ms after which a closed log segment is moved from the log directories to the remote " +
+    "segment store, if one is configured with " + LogRemoteStoreClassProp + ". Segments are only moved once they are below the " +
+    "high watermark and have been flushed, and are still subject to the retention of the topic in the store. A value of -1 keeps " +
+    "all segments in the log directories. Compacted topics are never moved."
+  val LogRemoteStoreClassDoc = "The fully qualified name of a class that implements the kafka.log.RemoteSegmentStore interface, " +
+    "used to store log segments which are older than " + LogLocalRetentionMsProp + ". If not set, segments are only kept in the log " +
+    "directories. The class is configured with the broker configs."
+  val LogRemoteStoreDirDoc = "The directory used by kafka.log.DirectoryRemoteSegmentStore to store log segments. It should not be " +
+    "one of the log directories, and must not be shared with other brokers."
+  val LogRemoteCacheBytesDoc = "The maximum size in bytes of the segments fetched from the remote segment store which are kept " +
+    "in the first log directory to serve reads"
+  val LogRemoteReadAheadSegmentsDoc = "The number of segments to fetch from the remote segment store in the background after the " +
+    "segment being read, so that sequential reads of old data do not wait on the store"
+  val TrustedProducerListenersDoc = "A list of listener names whose producers are trusted to send valid records. Record batches " +
+    "of the current message format from a trusted producer are appended after validating their batch headers only, without " +
+    "decompressing them or validating each record, unless the topic is compacted or the batches need to be converted or " +
+    "recompressed. Record timestamps are then validated against the max timestamp of their batch only."
+  val TrustedProducerPrincipalsDoc = "A list of principals, such as User:alice, whose producers are trusted to send valid records. " +
+    "See " + TrustedProducerListenersProp + " for the validation which is skipped for these producers."
 
   /** ********* Replication configuration ***********/
   val ControllerSocketTimeoutMsDoc = "The socket timeout for controller-to-broker channels"
   val ControllerMessageQueueSizeDoc = "The buffer size for controller-to-broker-channels"
+  val ControllerZkWriteBatchSizeDoc = "The maximum number of znode writes that the controller groups into a single " +
+    "ZooKeeper multi request when it updates the state of many partitions at once, e.g. on failover, topic creation or " +
+    "preferred leader election. The multi requests are pipelined up to " + ZkMaxInFlightRequestsProp + ". A value of 1 " +
+    "sends every write in its own request. Large values should be kept well within the jute.maxbuffer of the ZooKeeper servers."
   val DefaultReplicationFactorDoc = "default replication factors for automatically created topics"
   val ReplicaLagTimeMaxMsDoc = "If a follower hasn't sent any fetch requests or hasn't consumed up to the leaders log end offset for at least this time," +
   " the leader will remove the follower from isr"
@@ -648,11 +747,26 @@ object KafkaConfig {
     "<code>max.message.bytes</code> (topic config)."
   val NumReplicaFetchersDoc = "Number of fetcher threads used to replicate messages from a source broker. " +
   "Increasing this value can increase the degree of I/O parallelism in the follower broker."
+  val ReplicaFetcherRebalanceIntervalMsDoc = "The frequency with which the partitions fetched from a source broker are " +
+    "rebalanced between its replica fetcher threads. Partitions are assigned to the fetcher threads by hash, and a " +
+    "rebalance moves partitions from the threads which appended the most bytes since the previous rebalance to the " +
+    "threads which appended the least. A value of 0 disables the rebalancing."
   val ReplicaFetchBackoffMsDoc = "The amount of time to sleep when fetch partition error occurs."
+  val ReplicaFetchPipelineDepthDoc = "The number of fetch requests a replica fetcher thread may have in flight, counting " +
+    "those whose responses are still waiting to be appended to the local log. With a value greater than 1, the responses are " +
+    "appended by a separate thread and the next fetch is sent before the previous response has been appended, so that " +
+    "the follower does not wait on the network while it writes to disk. A fetch sent while some data is being appended " +
+    "leaves out the partitions of that data, so a partition is never fetched past its log end offset and the leader " +
+    "only counts records as replicated once the follower has appended them. Such a fetch does not wait on the leader " +
+    "for <code>replica.fetch.wait.max.ms</code>, so that the left out partitions are fetched again as soon as their " +
+    "data is appended. Each pending response may hold up to <code>replica.fetch.response.max.bytes</code> in memory."
   val ReplicaHighWatermarkCheckpointIntervalMsDoc = "The frequency with which the high watermark is saved out to disk"
   val FetchPurgatoryPurgeIntervalRequestsDoc = "The purge interval (in number of requests) of the fetch request purgatory"
   val ProducerPurgatoryPurgeIntervalRequestsDoc = "The purge interval (in number of requests) of the producer request purgatory"
   val DeleteRecordsPurgatoryPurgeIntervalRequestsDoc = "The purge interval (in number of requests) of the delete records request purgatory"
+  val PurgatoryTimerPooledEnableDoc = "Enables the pooled mode of the timers of the produce, fetch and delete records " +
+    "request purgatories, in which the timer entries of the delayed requests are reused instead of being allocated " +
+    "for every request, and expired requests are handled without blocking the request handler threads which add new ones"
   val AutoLeaderRebalanceEnableDoc = "Enables auto leader balancing. A background thread checks and triggers leader balance if required at regular intervals"
   val LeaderImbalancePerBrokerPercentageDoc = "The ratio of leader imbalance allowed per broker. The controller would trigger a leader balance if it goes above this value per broker. The value is specified in percentage."
   val LeaderImbalanceCheckIntervalSecondsDoc = "The frequency with which the partition rebalance check is triggered by the controller"
@@ -665,6 +779,12 @@ object KafkaConfig {
   " Example of some valid values are: 0.8.0, 0.8.1, 0.8.1.1, 0.8.2, 0.8.2.0, 0.8.2.1, 0.9.0.0, 0.9.0.1 Check ApiVersion for the full list."
   val InterBrokerListenerNameDoc = s"Name of listener used for communication between brokers. If this is unset, the listener name is defined by $InterBrokerSecurityProtocolProp. " +
     s"It is an error to set this and $InterBrokerSecurityProtocolProp properties at the same time."
+  val ControlPlaneListenerNameDoc = "Name of listener used for communication between the controller and the brokers. " +
+    "If this is set, the requests of the controller are received on this listener by a dedicated network thread and " +
+    "handled by a dedicated request handler thread, so that they are not queued behind the requests of the clients " +
+    s"and of the other brokers. The listener must be defined in $ListenersProp and $AdvertisedListenersProp, must not be " +
+    "the inter-broker listener and is used by the controller to connect to the brokers. If this is unset, the controller " +
+    "uses the inter-broker listener and its requests are handled with the other requests."
   /** ********* Controlled shutdown configuration ***********/
   val ControlledShutdownMaxRetriesDoc = "Controlled shutdown can fail for multiple reasons. This determines the number of retries when such failure happens"
   val ControlledShutdownRetryBackoffMsDoc = "Before each retry, the system needs time to recover from the state that caused the previous failure (Controller fail over, replica lag etc). This config determines the amount of time to wait before retrying."
@@ -806,6 +926,42 @@ object KafkaConfig {
   val PasswordEncoderKeyLengthDoc =  "The key length used for encoding dynamically configured passwords."
   val PasswordEncoderIterationsDoc =  "The iteration count used for encoding dynamically configured passwords."
 
+  private def parseRequestQueueMap(name: String, value: Any): Map[String, String] = {
+    try {
+      CoreUtils.parseCsvMap(value.toString)
+    } catch {
+      case e: Exception => throw new ConfigException(name, value, s"Error parsing the map: ${e.getMessage}")
+    }
+  }
+
+  private object RequestQueueWeightsValidator extends ConfigDef.Validator {
+    override def ensureValid(name: String, value: Any): Unit = {
+      parseRequestQueueMap(name, value).foreach { case (queue, weight) =>
+        if (!Try(weight.toInt).toOption.exists(_ > 0))
+          throw new ConfigException(name, value, s"The weight $weight of request queue $queue must be a positive integer")
+      }
+    }
+
+    override def toString: String = "queue:weight,..."
+  }
+
+  private object RequestQueueApiKeysValidator extends ConfigDef.Validator {
+    override def ensureValid(name: String, value: Any): Unit = {
+      parseRequestQueueMap(name, value).keys.foreach { apiKey =>
+        if (Try(ApiKeys.valueOf(apiKey.toUpperCase(Locale.ROOT))).isFailure)
+          throw new ConfigException(name, value, s"Invalid API key $apiKey")
+      }
+    }
+
+    override def toString: String = "API_KEY:queue,..."
+  }
+
+  private object RequestQueueListenersValidator extends ConfigDef.Validator {
+    override def ensureValid(name: String, value: Any): Unit = parseRequestQueueMap(name, value)
+
+    override def toString: String = "LISTENER:queue,..."
+  }
+
   private val configDef = {
     import ConfigDef.Importance._
     import ConfigDef.Range._
@@ -833,6 +989,10 @@ object KafkaConfig {
       .define(BackgroundThreadsProp, INT, Defaults.BackgroundThreads, atLeast(1), HIGH, BackgroundThreadsDoc)
       .define(QueuedMaxRequestsProp, INT, Defaults.QueuedMaxRequests, atLeast(1), HIGH, QueuedMaxRequestsDoc)
       .define(QueuedMaxBytesProp, LONG, Defaults.QueuedMaxRequestBytes, MEDIUM, QueuedMaxRequestBytesDoc)
+      .define(QueuedRequestBufferPoolBytesProp, LONG, Defaults.QueuedRequestBufferPoolBytes, atLeast(0), LOW, QueuedRequestBufferPoolBytesDoc)
+      .define(RequestQueueWeightsProp, STRING, Defaults.RequestQueueWeights, RequestQueueWeightsValidator, LOW, RequestQueueWeightsDoc)
+      .define(RequestQueueApiKeysProp, STRING, Defaults.RequestQueueApiKeys, RequestQueueApiKeysValidator, LOW, RequestQueueApiKeysDoc)
+      .define(RequestQueueListenersProp, STRING, Defaults.RequestQueueListeners, RequestQueueListenersValidator, LOW, RequestQueueListenersDoc)
       .define(RequestTimeoutMsProp, INT, Defaults.RequestTimeoutMs, HIGH, RequestTimeoutMsDoc)
 
       /************* Authorizer Configuration ***********/
@@ -849,6 +1009,7 @@ object KafkaConfig {
       .define(SocketSendBufferBytesProp, INT, Defaults.SocketSendBufferBytes, HIGH, SocketSendBufferBytesDoc)
       .define(SocketReceiveBufferBytesProp, INT, Defaults.SocketReceiveBufferBytes, HIGH, SocketReceiveBufferBytesDoc)
       .define(SocketRequestMaxBytesProp, INT, Defaults.SocketRequestMaxBytes, atLeast(1), HIGH, SocketRequestMaxBytesDoc)
+      .define(SocketSelectorOptimizeSelectedKeysProp, BOOLEAN, Defaults.SocketSelectorOptimizeSelectedKeys, LOW, SocketSelectorOptimizeSelectedKeysDoc)
       .define(MaxConnectionsPerIpProp, INT, Defaults.MaxConnectionsPerIp, atLeast(0), MEDIUM, MaxConnectionsPerIpDoc)
       .define(MaxConnectionsPerIpOverridesProp, STRING, Defaults.MaxConnectionsPerIpOverrides, MEDIUM, MaxConnectionsPerIpOverridesDoc)
       .define(ConnectionsMaxIdleMsProp, LONG, Defaults.ConnectionsMaxIdleMs, MEDIUM, ConnectionsMaxIdleMsDoc)
@@ -877,8 +1038,10 @@ object KafkaConfig {
       .define(LogCleanupIntervalMsProp, LONG, Defaults.LogCleanupIntervalMs, atLeast(1), MEDIUM, LogCleanupIntervalMsDoc)
       .define(LogCleanupPolicyProp, LIST, Defaults.LogCleanupPolicy, ValidList.in(Defaults.Compact, Defaults.Delete), MEDIUM, LogCleanupPolicyDoc)
       .define(LogCleanerThreadsProp, INT, Defaults.LogCleanerThreads, atLeast(0), MEDIUM, LogCleanerThreadsDoc)
+      .define(LogCleanerWorkerThreadsProp, INT, Defaults.LogCleanerWorkerThreads, atLeast(0), MEDIUM, LogCleanerWorkerThreadsDoc)
       .define(LogCleanerIoMaxBytesPerSecondProp, DOUBLE, Defaults.LogCleanerIoMaxBytesPerSecond, MEDIUM, LogCleanerIoMaxBytesPerSecondDoc)
       .define(LogCleanerDedupeBufferSizeProp, LONG, Defaults.LogCleanerDedupeBufferSize, MEDIUM, LogCleanerDedupeBufferSizeDoc)
+      .define(LogCleanerDedupeBufferTypeProp, STRING, Defaults.LogCleanerDedupeBufferType, in(Defaults.HeapDedupeBuffer, Defaults.DirectDedupeBuffer, Defaults.MmapDedupeBuffer), MEDIUM, LogCleanerDedupeBufferTypeDoc)
       .define(LogCleanerIoBufferSizeProp, INT, Defaults.LogCleanerIoBufferSize, atLeast(0), MEDIUM, LogCleanerIoBufferSizeDoc)
       .define(LogCleanerDedupeBufferLoadFactorProp, DOUBLE, Defaults.LogCleanerDedupeBufferLoadFactor, MEDIUM, LogCleanerDedupeBufferLoadFactorDoc)
       .define(LogCleanerBackoffMsProp, LONG, Defaults.LogCleanerBackoffMs, atLeast(0), MEDIUM, LogCleanerBackoffMsDoc)
@@ -888,6 +1051,7 @@ object KafkaConfig {
       .define(LogCleanerMinCompactionLagMsProp, LONG, Defaults.LogCleanerMinCompactionLagMs, MEDIUM, LogCleanerMinCompactionLagMsDoc)
       .define(LogIndexSizeMaxBytesProp, INT, Defaults.LogIndexSizeMaxBytes, atLeast(4), MEDIUM, LogIndexSizeMaxBytesDoc)
       .define(LogIndexIntervalBytesProp, INT, Defaults.LogIndexIntervalBytes, atLeast(0), MEDIUM, LogIndexIntervalBytesDoc)
+      .define(LogIndexMmapMaxCountProp, INT, Defaults.LogIndexMmapMaxCount, atLeast(1), LOW, LogIndexMmapMaxCountDoc)
       .define(LogFlushIntervalMessagesProp, LONG, Defaults.LogFlushIntervalMessages, atLeast(1), HIGH, LogFlushIntervalMessagesDoc)
       .define(LogDeleteDelayMsProp, LONG, Defaults.LogDeleteDelayMs, atLeast(0), HIGH, LogDeleteDelayMsDoc)
       .define(LogFlushSchedulerIntervalMsProp, LONG, Defaults.LogFlushSchedulerIntervalMs, HIGH, LogFlushSchedulerIntervalMsDoc)
@@ -895,6 +1059,7 @@ object KafkaConfig {
       .define(LogFlushOffsetCheckpointIntervalMsProp, INT, Defaults.LogFlushOffsetCheckpointIntervalMs, atLeast(0), HIGH, LogFlushOffsetCheckpointIntervalMsDoc)
       .define(LogFlushStartOffsetCheckpointIntervalMsProp, INT, Defaults.LogFlushStartOffsetCheckpointIntervalMs, atLeast(0), HIGH, LogFlushStartOffsetCheckpointIntervalMsDoc)
       .define(LogPreAllocateProp, BOOLEAN, Defaults.LogPreAllocateEnable, MEDIUM, LogPreAllocateEnableDoc)
+      .define(LogSegmentPrepareEnableProp, BOOLEAN, Defaults.LogSegmentPrepareEnable, LOW, LogSegmentPrepareEnableDoc)
       .define(NumRecoveryThreadsPerDataDirProp, INT, Defaults.NumRecoveryThreadsPerDataDir, atLeast(1), HIGH, NumRecoveryThreadsPerDataDirDoc)
       .define(AutoCreateTopicsEnableProp, BOOLEAN, Defaults.AutoCreateTopicsEnable, HIGH, AutoCreateTopicsEnableDoc)
       .define(MinInSyncReplicasProp, INT, Defaults.MinInSyncReplicas, atLeast(1), HIGH, MinInSyncReplicasDoc)
@@ -904,9 +1069,17 @@ object KafkaConfig {
       .define(CreateTopicPolicyClassNameProp, CLASS, null, LOW, CreateTopicPolicyClassNameDoc)
       .define(AlterConfigPolicyClassNameProp, CLASS, null, LOW, AlterConfigPolicyClassNameDoc)
       .define(LogMessageDownConversionEnableProp, BOOLEAN, Defaults.MessageDownConversionEnable, LOW, LogMessageDownConversionEnableDoc)
+      .define(LogLocalRetentionMsProp, LONG, Defaults.LogLocalRetentionMs, atLeast(-1), MEDIUM, LogLocalRetentionMsDoc)
+      .define(LogRemoteStoreClassProp, CLASS, null, MEDIUM, LogRemoteStoreClassDoc)
+      .define(LogRemoteStoreDirProp, STRING, null, MEDIUM, LogRemoteStoreDirDoc)
+      .define(LogRemoteCacheBytesProp, LONG, Defaults.LogRemoteCacheBytes, atLeast(0), LOW, LogRemoteCacheBytesDoc)
+      .define(LogRemoteReadAheadSegmentsProp, INT, Defaults.LogRemoteReadAheadSegments, atLeast(0), LOW, LogRemoteReadAheadSegmentsDoc)
+      .define(TrustedProducerListenersProp, LIST, "", LOW, TrustedProducerListenersDoc)
+      .define(TrustedProducerPrincipalsProp, LIST, "", LOW, TrustedProducerPrincipalsDoc)
 
       /** ********* Replication configuration ***********/
       .define(ControllerSocketTimeoutMsProp, INT, Defaults.ControllerSocketTimeoutMs, MEDIUM, ControllerSocketTimeoutMsDoc)
+      .define(ControllerZkWriteBatchSizeProp, INT, Defaults.ControllerZkWriteBatchSize, atLeast(1), LOW, ControllerZkWriteBatchSizeDoc)
       .define(DefaultReplicationFactorProp, INT, Defaults.DefaultReplicationFactor, MEDIUM, DefaultReplicationFactorDoc)
       .define(ReplicaLagTimeMaxMsProp, LONG, Defaults.ReplicaLagTimeMaxMs, HIGH, ReplicaLagTimeMaxMsDoc)
       .define(ReplicaSocketTimeoutMsProp, INT, Defaults.ReplicaSocketTimeoutMs, HIGH, ReplicaSocketTimeoutMsDoc)
@@ -914,13 +1087,16 @@ object KafkaConfig {
       .define(ReplicaFetchMaxBytesProp, INT, Defaults.ReplicaFetchMaxBytes, atLeast(0), MEDIUM, ReplicaFetchMaxBytesDoc)
       .define(ReplicaFetchWaitMaxMsProp, INT, Defaults.ReplicaFetchWaitMaxMs, HIGH, ReplicaFetchWaitMaxMsDoc)
       .define(ReplicaFetchBackoffMsProp, INT, Defaults.ReplicaFetchBackoffMs, atLeast(0), MEDIUM, ReplicaFetchBackoffMsDoc)
+      .define(ReplicaFetchPipelineDepthProp, INT, Defaults.ReplicaFetchPipelineDepth, atLeast(1), LOW, ReplicaFetchPipelineDepthDoc)
       .define(ReplicaFetchMinBytesProp, INT, Defaults.ReplicaFetchMinBytes, HIGH, ReplicaFetchMinBytesDoc)
       .define(ReplicaFetchResponseMaxBytesProp, INT, Defaults.ReplicaFetchResponseMaxBytes, atLeast(0), MEDIUM, ReplicaFetchResponseMaxBytesDoc)
       .define(NumReplicaFetchersProp, INT, Defaults.NumReplicaFetchers, HIGH, NumReplicaFetchersDoc)
+      .define(ReplicaFetcherRebalanceIntervalMsProp, LONG, Defaults.ReplicaFetcherRebalanceIntervalMs, atLeast(0), LOW, ReplicaFetcherRebalanceIntervalMsDoc)
       .define(ReplicaHighWatermarkCheckpointIntervalMsProp, LONG, Defaults.ReplicaHighWatermarkCheckpointIntervalMs, HIGH, ReplicaHighWatermarkCheckpointIntervalMsDoc)
       .define(FetchPurgatoryPurgeIntervalRequestsProp, INT, Defaults.FetchPurgatoryPurgeIntervalRequests, MEDIUM, FetchPurgatoryPurgeIntervalRequestsDoc)
       .define(ProducerPurgatoryPurgeIntervalRequestsProp, INT, Defaults.ProducerPurgatoryPurgeIntervalRequests, MEDIUM, ProducerPurgatoryPurgeIntervalRequestsDoc)
       .define(DeleteRecordsPurgatoryPurgeIntervalRequestsProp, INT, Defaults.DeleteRecordsPurgatoryPurgeIntervalRequests, MEDIUM, DeleteRecordsPurgatoryPurgeIntervalRequestsDoc)
+      .define(PurgatoryTimerPooledEnableProp, BOOLEAN, Defaults.PurgatoryTimerPooledEnable, LOW, PurgatoryTimerPooledEnableDoc)
       .define(AutoLeaderRebalanceEnableProp, BOOLEAN, Defaults.AutoLeaderRebalanceEnable, HIGH, AutoLeaderRebalanceEnableDoc)
       .define(LeaderImbalancePerBrokerPercentageProp, INT, Defaults.LeaderImbalancePerBrokerPercentage, HIGH, LeaderImbalancePerBrokerPercentageDoc)
       .define(LeaderImbalanceCheckIntervalSecondsProp, LONG, Defaults.LeaderImbalanceCheckIntervalSeconds, HIGH, LeaderImbalanceCheckIntervalSecondsDoc)
@@ -928,6 +1104,7 @@ object KafkaConfig {
       .define(InterBrokerSecurityProtocolProp, STRING, Defaults.InterBrokerSecurityProtocol, MEDIUM, InterBrokerSecurityProtocolDoc)
       .define(InterBrokerProtocolVersionProp, STRING, Defaults.InterBrokerProtocolVersion, ApiVersionValidator, MEDIUM, InterBrokerProtocolVersionDoc)
       .define(InterBrokerListenerNameProp, STRING, null, MEDIUM, InterBrokerListenerNameDoc)
+      .define(ControlPlaneListenerNameProp, STRING, null, LOW, ControlPlaneListenerNameDoc)
 
       /** ********* Controlled shutdown configuration ***********/
       .define(ControlledShutdownMaxRetriesProp, INT, Defaults.ControlledShutdownMaxRetries, MEDIUM, ControlledShutdownMaxRetriesDoc)
@@ -1117,6 +1294,20 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def backgroundThreads = getInt(KafkaConfig.BackgroundThreadsProp)
   val queuedMaxRequests = getInt(KafkaConfig.QueuedMaxRequestsProp)
   val queuedMaxBytes = getLong(KafkaConfig.QueuedMaxBytesProp)
+  val queuedRequestBufferPoolBytes = getLong(KafkaConfig.QueuedRequestBufferPoolBytesProp)
+  // the request queue maps are checked by their validators
+  val requestQueueWeights: Map[String, Int] =
+    getMap(KafkaConfig.RequestQueueWeightsProp, getString(KafkaConfig.RequestQueueWeightsProp)).map { case (queue, weight) =>
+      queue -> weight.toInt
+    }
+  val requestQueueApiKeys: Map[ApiKeys, String] =
+    getMap(KafkaConfig.RequestQueueApiKeysProp, getString(KafkaConfig.RequestQueueApiKeysProp)).map { case (apiKey, queue) =>
+      ApiKeys.valueOf(apiKey.toUpperCase(Locale.ROOT)) -> queue
+    }
+  val requestQueueListeners: Map[ListenerName, String] =
+    getMap(KafkaConfig.RequestQueueListenersProp, getString(KafkaConfig.RequestQueueListenersProp)).map { case (listenerName, queue) =>
+      ListenerName.normalised(listenerName) -> queue
+    }
   def numIoThreads = getInt(KafkaConfig.NumIoThreadsProp)
   def messageMaxBytes = getInt(KafkaConfig.MessageMaxBytesProp)
   val requestTimeoutMs = getInt(KafkaConfig.RequestTimeoutMsProp)
@@ -1138,6 +1329,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   val socketSendBufferBytes = getInt(KafkaConfig.SocketSendBufferBytesProp)
   val socketReceiveBufferBytes = getInt(KafkaConfig.SocketReceiveBufferBytesProp)
   val socketRequestMaxBytes = getInt(KafkaConfig.SocketRequestMaxBytesProp)
+  val socketSelectorOptimizeSelectedKeys = getBoolean(KafkaConfig.SocketSelectorOptimizeSelectedKeysProp)
   val maxConnectionsPerIp = getInt(KafkaConfig.MaxConnectionsPerIpProp)
   val maxConnectionsPerIpOverrides: Map[String, Int] =
     getMap(KafkaConfig.MaxConnectionsPerIpOverridesProp, getString(KafkaConfig.MaxConnectionsPerIpOverridesProp)).map { case (k, v) => (k, v.toInt)}
@@ -1154,6 +1346,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def logSegmentBytes = getInt(KafkaConfig.LogSegmentBytesProp)
   def logFlushIntervalMessages = getLong(KafkaConfig.LogFlushIntervalMessagesProp)
   val logCleanerThreads = getInt(KafkaConfig.LogCleanerThreadsProp)
+  val logCleanerWorkerThreads = getInt(KafkaConfig.LogCleanerWorkerThreadsProp)
   def numRecoveryThreadsPerDataDir = getInt(KafkaConfig.NumRecoveryThreadsPerDataDirProp)
   val logFlushSchedulerIntervalMs = getLong(KafkaConfig.LogFlushSchedulerIntervalMsProp)
   val logFlushOffsetCheckpointIntervalMs = getInt(KafkaConfig.LogFlushOffsetCheckpointIntervalMsProp).toLong
@@ -1164,6 +1357,7 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   val offsetsRetentionCheckIntervalMs = getLong(KafkaConfig.OffsetsRetentionCheckIntervalMsProp)
   def logRetentionBytes = getLong(KafkaConfig.LogRetentionBytesProp)
   val logCleanerDedupeBufferSize = getLong(KafkaConfig.LogCleanerDedupeBufferSizeProp)
+  val logCleanerDedupeBufferType = getString(KafkaConfig.LogCleanerDedupeBufferTypeProp)
   val logCleanerDedupeBufferLoadFactor = getDouble(KafkaConfig.LogCleanerDedupeBufferLoadFactorProp)
   val logCleanerIoBufferSize = getInt(KafkaConfig.LogCleanerIoBufferSizeProp)
   val logCleanerIoMaxBytesPerSecond = getDouble(KafkaConfig.LogCleanerIoMaxBytesPerSecondProp)
@@ -1174,12 +1368,14 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   val logCleanerEnable = getBoolean(KafkaConfig.LogCleanerEnableProp)
   def logIndexSizeMaxBytes = getInt(KafkaConfig.LogIndexSizeMaxBytesProp)
   def logIndexIntervalBytes = getInt(KafkaConfig.LogIndexIntervalBytesProp)
+  def logIndexMmapMaxCount = getInt(KafkaConfig.LogIndexMmapMaxCountProp)
   def logDeleteDelayMs = getLong(KafkaConfig.LogDeleteDelayMsProp)
   def logRollTimeMillis: java.lang.Long = Option(getLong(KafkaConfig.LogRollTimeMillisProp)).getOrElse(60 * 60 * 1000L * getInt(KafkaConfig.LogRollTimeHoursProp))
   def logRollTimeJitterMillis: java.lang.Long = Option(getLong(KafkaConfig.LogRollTimeJitterMillisProp)).getOrElse(60 * 60 * 1000L * getInt(KafkaConfig.LogRollTimeJitterHoursProp))
   def logFlushIntervalMs: java.lang.Long = Option(getLong(KafkaConfig.LogFlushIntervalMsProp)).getOrElse(getLong(KafkaConfig.LogFlushSchedulerIntervalMsProp))
   def minInSyncReplicas = getInt(KafkaConfig.MinInSyncReplicasProp)
   def logPreAllocateEnable: java.lang.Boolean = getBoolean(KafkaConfig.LogPreAllocateProp)
+  def logSegmentPrepareEnable: java.lang.Boolean = getBoolean(KafkaConfig.LogSegmentPrepareEnableProp)
   // We keep the user-provided String as `ApiVersion.apply` can choose a slightly different version (eg if `0.10.0`
   // is passed, `0.10.0-IV0` may be picked)
   val logMessageFormatVersionString = getString(KafkaConfig.LogMessageFormatVersionProp)
@@ -1187,9 +1383,17 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   def logMessageTimestampType = TimestampType.forName(getString(KafkaConfig.LogMessageTimestampTypeProp))
   def logMessageTimestampDifferenceMaxMs: Long = getLong(KafkaConfig.LogMessageTimestampDifferenceMaxMsProp)
   def logMessageDownConversionEnable: Boolean = getBoolean(KafkaConfig.LogMessageDownConversionEnableProp)
+  def logLocalRetentionMs: java.lang.Long = getLong(KafkaConfig.LogLocalRetentionMsProp)
+  val logRemoteStoreClass: Class[_] = getClass(KafkaConfig.LogRemoteStoreClassProp)
+  val logRemoteCacheBytes = getLong(KafkaConfig.LogRemoteCacheBytesProp)
+  val logRemoteReadAheadSegments = getInt(KafkaConfig.LogRemoteReadAheadSegmentsProp)
+  val trustedProducerListeners: Set[ListenerName] =
+    getList(KafkaConfig.TrustedProducerListenersProp).asScala.map(ListenerName.normalised).toSet
+  val trustedProducerPrincipals: Set[String] = getList(KafkaConfig.TrustedProducerPrincipalsProp).asScala.toSet
 
   /** ********* Replication configuration ***********/
   val controllerSocketTimeoutMs: Int = getInt(KafkaConfig.ControllerSocketTimeoutMsProp)
+  val controllerZkWriteBatchSize: Int = getInt(KafkaConfig.ControllerZkWriteBatchSizeProp)
   val defaultReplicationFactor: Int = getInt(KafkaConfig.DefaultReplicationFactorProp)
   val replicaLagTimeMaxMs = getLong(KafkaConfig.ReplicaLagTimeMaxMsProp)
   val replicaSocketTimeoutMs = getInt(KafkaConfig.ReplicaSocketTimeoutMsProp)
@@ -1199,11 +1403,14 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
   val replicaFetchMinBytes = getInt(KafkaConfig.ReplicaFetchMinBytesProp)
   val replicaFetchResponseMaxBytes = getInt(KafkaConfig.ReplicaFetchResponseMaxBytesProp)
   val replicaFetchBackoffMs = getInt(KafkaConfig.ReplicaFetchBackoffMsProp)
+  val replicaFetchPipelineDepth = getInt(KafkaConfig.ReplicaFetchPipelineDepthProp)
   def numReplicaFetchers = getInt(KafkaConfig.NumReplicaFetchersProp)
+  val replicaFetcherRebalanceIntervalMs = getLong(KafkaConfig.ReplicaFetcherRebalanceIntervalMsProp)
   val replicaHighWatermarkCheckpointIntervalMs = getLong(KafkaConfig.ReplicaHighWatermarkCheckpointIntervalMsProp)
   val fetchPurgatoryPurgeIntervalRequests = getInt(KafkaConfig.FetchPurgatoryPurgeIntervalRequestsProp)
   val producerPurgatoryPurgeIntervalRequests = getInt(KafkaConfig.ProducerPurgatoryPurgeIntervalRequestsProp)
   val deleteRecordsPurgatoryPurgeIntervalRequests = getInt(KafkaConfig.DeleteRecordsPurgatoryPurgeIntervalRequestsProp)
+  val purgatoryTimerPooledEnable = getBoolean(KafkaConfig.PurgatoryTimerPooledEnableProp)
   val autoLeaderRebalanceEnable = getBoolean(KafkaConfig.AutoLeaderRebalanceEnableProp)
   val leaderImbalancePerBrokerPercentage = getInt(KafkaConfig.LeaderImbalancePerBrokerPercentageProp)
   val leaderImbalanceCheckIntervalSeconds = getLong(KafkaConfig.LeaderImbalanceCheckIntervalSecondsProp)
@@ -1265,6 +1472,8 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
 
   def interBrokerListenerName = getInterBrokerListenerNameAndSecurityProtocol._1
   def interBrokerSecurityProtocol = getInterBrokerListenerNameAndSecurityProtocol._2
+  def controlPlaneListenerName: Option[ListenerName] =
+    Option(getString(KafkaConfig.ControlPlaneListenerNameProp)).map(ListenerName.normalised)
   def saslMechanismInterBrokerProtocol = getString(KafkaConfig.SaslMechanismInterBrokerProtocolProp)
   val saslInterBrokerHandshakeRequestEnable = interBrokerProtocolVersion >= KAFKA_0_10_0_IV1
 
@@ -1337,6 +1546,15 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
     }.getOrElse(CoreUtils.listenerListToEndPoints("PLAINTEXT://" + hostName + ":" + port, listenerSecurityProtocolMap))
   }
 
+  def controlPlaneListener: Option[EndPoint] =
+    controlPlaneListenerName.map(listenerName => listeners.find(_.listenerName == listenerName).getOrElse(
+      throw new ConfigException(s"Listener with name ${listenerName.value} defined in " +
+        s"${KafkaConfig.ControlPlaneListenerNameProp} not found in ${KafkaConfig.ListenersProp}.")))
+
+  // The listeners on which the requests of the clients and of the other brokers are received
+  def dataPlaneListeners: Seq[EndPoint] =
+    listeners.filterNot(listener => controlPlaneListenerName.contains(listener.listenerName))
+
   // If the user defined advertised listeners, we use those
   // If he didn't but did define advertised host or port, we'll use those and fill in the missing value from regular host / port or defaults
   // If none of these are defined, we'll use the listeners
@@ -1410,6 +1628,13 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
     require(advertisedListenerNames.contains(interBrokerListenerName),
       s"${KafkaConfig.InterBrokerListenerNameProp} must be a listener name defined in ${KafkaConfig.AdvertisedListenersProp}. " +
       s"The valid options based on currently configured listeners are ${advertisedListenerNames.map(_.value).mkString(",")}")
+    controlPlaneListenerName.foreach { listenerName =>
+      require(advertisedListenerNames.contains(listenerName),
+        s"${KafkaConfig.ControlPlaneListenerNameProp} must be a listener name defined in ${KafkaConfig.AdvertisedListenersProp}. " +
+        s"The valid options based on currently configured listeners are ${advertisedListenerNames.map(_.value).mkString(",")}")
+      require(listenerName != interBrokerListenerName,
+        s"${KafkaConfig.ControlPlaneListenerNameProp} and ${KafkaConfig.InterBrokerListenerNameProp} must be different listeners")
+    }
     require(advertisedListenerNames.subsetOf(listenerNames),
       s"${KafkaConfig.AdvertisedListenersProp} listener names must be equal to or a subset of the ones defined in ${KafkaConfig.ListenersProp}. " +
       s"Found ${advertisedListenerNames.map(_.value).mkString(",")}. The valid options based on the current configuration " +
@@ -1431,6 +1656,14 @@ class KafkaConfig(val props: java.util.Map[_, _], doLog: Boolean, dynamicConfigO
       s"${KafkaConfig.SaslMechanismInterBrokerProtocolProp} must be included in ${KafkaConfig.SaslEnabledMechanismsProp} when SASL is used for inter-broker communication")
     require(queuedMaxBytes <= 0 || queuedMaxBytes >= socketRequestMaxBytes,
       s"${KafkaConfig.QueuedMaxBytesProp} must be larger or equal to ${KafkaConfig.SocketRequestMaxBytesProp}")
+    val requestQueues = requestQueueWeights.keySet + RequestChannel.DefaultRequestQueue
+    Seq(KafkaConfig.RequestQueueApiKeysProp -> requestQueueApiKeys.values,
+      KafkaConfig.RequestQueueListenersProp -> requestQueueListeners.values).foreach { case (propName, queues) =>
+      queues.find(!requestQueues.contains(_)).foreach { queue =>
+        throw new ConfigException(propName, getString(propName),
+          s"Request queue $queue must be defined in ${KafkaConfig.RequestQueueWeightsProp}")
+      }
+    }
 
     if (maxConnectionsPerIp == 0)
       require(!maxConnectionsPerIpOverrides.isEmpty, s"${KafkaConfig.MaxConnectionsPerIpProp} can be set to zero only if" +
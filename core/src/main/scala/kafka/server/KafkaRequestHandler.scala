@@ -66,7 +66,15 @@ class KafkaRequestHandler(id: Int,
           try {
             request.requestDequeueTimeNanos = endTime
             trace(s"Kafka request handler $id on broker $brokerId handling request $request")
-            apis.handle(request)
+            request.bodyParseError match {
+              case Some(e) =>
+                // the body is parsed by the request handler thread, so a request with an invalid body closes the
+                // connection here rather than on the network thread which received it
+                error(s"Closing connection ${request.context.connectionId} because of an invalid request", e)
+                requestChannel.sendResponse(new RequestChannel.CloseConnectionResponse(request))
+              case None =>
+                apis.handle(request)
+            }
           } catch {
             case e: FatalExitError =>
               shutdownComplete.countDown()
@@ -96,13 +104,15 @@ class KafkaRequestHandlerPool(val brokerId: Int,
                               val requestChannel: RequestChannel,
                               val apis: KafkaApis,
                               time: Time,
-                              numThreads: Int) extends Logging with KafkaMetricsGroup {
+                              numThreads: Int,
+                              metricNamePrefix: String = "",
+                              threadNamePrefix: String = "kafka-request-handler") extends Logging with KafkaMetricsGroup {
 
   private val threadPoolSize: AtomicInteger = new AtomicInteger(numThreads)
   /* a meter to track the average free capacity of the request handlers */
-  private val aggregateIdleMeter = newMeter("RequestHandlerAvgIdlePercent", "percent", TimeUnit.NANOSECONDS)
+  private val aggregateIdleMeter = newMeter(metricNamePrefix + "RequestHandlerAvgIdlePercent", "percent", TimeUnit.NANOSECONDS)
 
-  this.logIdent = "[Kafka Request Handler on Broker " + brokerId + "], "
+  this.logIdent = s"[$threadNamePrefix on Broker $brokerId], "
   val runnables = new mutable.ArrayBuffer[KafkaRequestHandler](numThreads)
   for (i <- 0 until numThreads) {
     createHandler(i)
@@ -110,7 +120,7 @@ class KafkaRequestHandlerPool(val brokerId: Int,
 
   def createHandler(id: Int): Unit = synchronized {
     runnables += new KafkaRequestHandler(id, brokerId, aggregateIdleMeter, threadPoolSize, requestChannel, apis, time)
-    KafkaThread.daemon("kafka-request-handler-" + id, runnables(id)).start()
+    KafkaThread.daemon(s"$threadNamePrefix-$id", runnables(id)).start()
   }
 
   def resizeThreadPool(newSize: Int): Unit = synchronized {
@@ -80,6 +80,8 @@ object KafkaServer {
     logProps.put(LogConfig.MessageTimestampTypeProp, kafkaConfig.logMessageTimestampType.name)
     logProps.put(LogConfig.MessageTimestampDifferenceMaxMsProp, kafkaConfig.logMessageTimestampDifferenceMaxMs: java.lang.Long)
     logProps.put(LogConfig.MessageDownConversionEnableProp, kafkaConfig.logMessageDownConversionEnable: java.lang.Boolean)
+    logProps.put(LogConfig.LocalRetentionMsProp, kafkaConfig.logLocalRetentionMs)
+    logProps.put(LogConfig.SegmentPrepareEnableProp, kafkaConfig.logSegmentPrepareEnable)
     logProps
   }
 
@@ -117,6 +119,7 @@ class KafkaServer(val config: KafkaConfig, time: Time = Time.SYSTEM, threadNameP
   var authorizer: Option[Authorizer] = None
   var socketServer: SocketServer = null
   var requestHandlerPool: KafkaRequestHandlerPool = null
+  var controlPlaneRequestHandlerPoolOpt: Option[KafkaRequestHandlerPool] = None
 
   var logDirFailureChannel: LogDirFailureChannel = null
   var logManager: LogManager = null
@@ -237,7 +240,7 @@ class KafkaServer(val config: KafkaConfig, time: Time = Time.SYSTEM, threadNameP
         logManager = LogManager(config, initialOfflineDirs, zkClient, brokerState, kafkaScheduler, time, brokerTopicStats, logDirFailureChannel)
         logManager.startup()
 
-        metadataCache = new MetadataCache(config.brokerId)
+        metadataCache = new MetadataCache(config.brokerId, time)
         // Enable delegation token cache for all SCRAM mechanisms to simplify dynamic update.
         // This keeps the cache up-to-date if new SCRAM mechanisms are enabled dynamically.
         tokenCache = new DelegationTokenCache(ScramMechanism.mechanismNames)
@@ -298,6 +301,15 @@ class KafkaServer(val config: KafkaConfig, time: Time = Time.SYSTEM, threadNameP
         requestHandlerPool = new KafkaRequestHandlerPool(config.brokerId, socketServer.requestChannel, apis, time,
           config.numIoThreads)
 
+        /* the requests of the controller received on the control plane listener are handled by a dedicated thread */
+        controlPlaneRequestHandlerPoolOpt = socketServer.controlPlaneRequestChannelOpt.map { controlPlaneRequestChannel =>
+          val controlPlaneApis = new KafkaApis(controlPlaneRequestChannel, replicaManager, adminManager, groupCoordinator,
+            transactionCoordinator, kafkaController, zkClient, config.brokerId, config, metadataCache, metrics, authorizer,
+            quotaManagers, fetchManager, brokerTopicStats, clusterId, time, tokenManager)
+          new KafkaRequestHandlerPool(config.brokerId, controlPlaneRequestChannel, controlPlaneApis, time, 1,
+            SocketServer.ControlPlaneMetricPrefix, "kafka-control-plane-request-handler")
+        }
+
         Mx4jLoader.maybeLoad()
 
         /* Add all reconfigurables for config change notification before starting config handlers */
@@ -346,7 +358,7 @@ class KafkaServer(val config: KafkaConfig, time: Time = Time.SYSTEM, threadNameP
 
     def createZkClient(zkConnect: String, isSecure: Boolean) =
       KafkaZkClient(zkConnect, isSecure, config.zkSessionTimeoutMs, config.zkConnectionTimeoutMs,
-        config.zkMaxInFlightRequests, time)
+        config.zkMaxInFlightRequests, time, controllerWriteBatchSize = config.controllerZkWriteBatchSize)
 
     val chrootIndex = config.zkConnect.indexOf("/")
     val chrootOption = {
@@ -581,6 +593,7 @@ class KafkaServer(val config: KafkaConfig, time: Time = Time.SYSTEM, threadNameP
           CoreUtils.swallow(socketServer.stopProcessingRequests(), this)
         if (requestHandlerPool != null)
           CoreUtils.swallow(requestHandlerPool.shutdown(), this)
+        controlPlaneRequestHandlerPoolOpt.foreach(pool => CoreUtils.swallow(pool.shutdown(), this))
 
         if (kafkaScheduler != null)
           CoreUtils.swallow(kafkaScheduler.shutdown(), this)
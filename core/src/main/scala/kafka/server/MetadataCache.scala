@@ -18,35 +18,50 @@
 package kafka.server
 
 import java.util.{Collections, Optional}
-import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.ReentrantLock
+import scala.annotation.tailrec
 
 import scala.collection.{Seq, Set, mutable}
 import scala.collection.JavaConverters._
 import kafka.cluster.{Broker, EndPoint}
 import kafka.api._
 import kafka.controller.StateChangeLogger
+import kafka.metrics.KafkaMetricsGroup
 import kafka.utils.CoreUtils._
 import kafka.utils.Logging
 import org.apache.kafka.common.internals.Topic
 import org.apache.kafka.common.{Cluster, Node, PartitionInfo, TopicPartition}
+import org.apache.kafka.common.errors.MetadataUpdateOutOfOrderException
 import org.apache.kafka.common.network.ListenerName
 import org.apache.kafka.common.protocol.Errors
 import org.apache.kafka.common.requests.{MetadataResponse, UpdateMetadataRequest}
+import org.apache.kafka.common.utils.Time
 
 /**
  *  A cache for the state (e.g., current leader) of each partition. This cache is updated through
  *  UpdateMetadataRequest from the controller. Every broker maintains the same cache, asynchronously.
  */
-class MetadataCache(brokerId: Int) extends Logging {
+class MetadataCache(brokerId: Int, time: Time = Time.SYSTEM) extends Logging with KafkaMetricsGroup {
 
-  private val partitionMetadataLock = new ReentrantReadWriteLock()
+  //serializes the updates only, readers never take it.
+  private val updateLock = new ReentrantLock()
   //this is the cache state. every MetadataSnapshot instance is immutable, and updates (performed under a lock)
   //replace the value with a completely new one. this means reads (which are not under any lock) need to grab
   //the value of this var (into a val) ONCE and retain that read copy for the duration of their operation.
   //multiple reads of this value risk getting different snapshots.
-  @volatile private var metadataSnapshot: MetadataSnapshot = MetadataSnapshot(partitionStates = mutable.AnyRefMap.empty,
+  @volatile private var metadataSnapshot: MetadataSnapshot = MetadataSnapshot(partitionStates = Map.empty,
     controllerId = None, aliveBrokers = mutable.LongMap.empty, aliveNodes = mutable.LongMap.empty)
 
+  //the metadata epoch and controller epoch of the last applied update, an incremental update only applies on top of
+  //the update which precedes it in the sequence of the controller. guarded by updateLock.
+  private var metadataEpoch = UpdateMetadataRequest.NO_METADATA_EPOCH
+  private var metadataControllerEpoch = -1
+
+  private val updateApplyTimeHist = newHistogram("UpdateMetadataApplyTimeMs")
+  private val updatedPartitionsHist = newHistogram("UpdateMetadataPartitions")
+
   this.logIdent = s"[MetadataCache brokerId=$brokerId] "
   private val stateChangeLogger = new StateChangeLogger(brokerId, inControllerContext = false, None)
 
@@ -123,16 +138,38 @@ class MetadataCache(brokerId: Int) extends Logging {
     snapshot.aliveNodes.get(brokerId).flatMap(_.get(listenerName))
 
   // errorUnavailableEndpoints exists to support v0 MetadataResponses
+  // The returned topic metadata is built once per snapshot, listener and error handling variant and then shared by
+  // all the requests which ask for the topic, see MetadataSnapshot.topicMetadata
   def getTopicMetadata(topics: Set[String], listenerName: ListenerName, errorUnavailableEndpoints: Boolean = false,
                        errorUnavailableListeners: Boolean = false): Seq[MetadataResponse.TopicMetadata] = {
     val snapshot = metadataSnapshot
+    val cachedTopicMetadata = snapshot.topicMetadata(TopicMetadataKey(listenerName, errorUnavailableEndpoints, errorUnavailableListeners))
     topics.toSeq.flatMap { topic =>
-      getPartitionMetadata(snapshot, topic, listenerName, errorUnavailableEndpoints, errorUnavailableListeners).map { partitionMetadata =>
-        new MetadataResponse.TopicMetadata(Errors.NONE, topic, Topic.isInternal(topic), partitionMetadata.toBuffer.asJava)
+      cachedTopicMetadata.get(topic).orElse {
+        getPartitionMetadata(snapshot, topic, listenerName, errorUnavailableEndpoints, errorUnavailableListeners).map { partitionMetadata =>
+          val topicMetadata = new MetadataResponse.TopicMetadata(Errors.NONE, topic, Topic.isInternal(topic),
+            partitionMetadata.toBuffer.asJava)
+          cachedTopicMetadata.putIfAbsent(topic, topicMetadata)
+        }
       }
     }
   }
 
+  /**
+   * The nodes of the alive brokers for the given listener, including their rack. The list is built once per snapshot.
+   */
+  def getAliveBrokerNodes(listenerName: ListenerName): Seq[Node] = {
+    val snapshot = metadataSnapshot
+    val cachedNodes = snapshot.aliveBrokerNodes.get(listenerName)
+    if (cachedNodes != null)
+      cachedNodes
+    else {
+      val nodes = snapshot.aliveBrokers.values.flatMap(_.getNode(listenerName)).toVector
+      snapshot.aliveBrokerNodes.putIfAbsent(listenerName, nodes)
+      nodes
+    }
+  }
+
   def getAllTopics(): Set[String] = {
     getAllTopics(metadataSnapshot)
   }
@@ -159,14 +196,6 @@ class MetadataCache(brokerId: Int) extends Logging {
     metadataSnapshot.aliveBrokers.values.toBuffer
   }
 
-  private def addOrUpdatePartitionInfo(partitionStates: mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataRequest.PartitionState]],
-                                       topic: String,
-                                       partitionId: Int,
-                                       stateInfo: UpdateMetadataRequest.PartitionState) {
-    val infos = partitionStates.getOrElseUpdate(topic, mutable.LongMap())
-    infos(partitionId) = stateInfo
-  }
-
   def getPartitionInfo(topic: String, partitionId: Int): Option[UpdateMetadataRequest.PartitionState] = {
     metadataSnapshot.partitionStates.get(topic).flatMap(_.get(partitionId))
   }
@@ -212,15 +241,36 @@ class MetadataCache(brokerId: Int) extends Logging {
 
   // This method returns the deleted TopicPartitions received from UpdateMetadataRequest
   def updateMetadata(correlationId: Int, updateMetadataRequest: UpdateMetadataRequest): Seq[TopicPartition] = {
-    inWriteLock(partitionMetadataLock) {
+    inLock(updateLock) {
+      val startNs = time.nanoseconds
+      if (updateMetadataRequest.isIncremental && (metadataEpoch == UpdateMetadataRequest.NO_METADATA_EPOCH ||
+          updateMetadataRequest.metadataEpoch != metadataEpoch + 1 ||
+          updateMetadataRequest.controllerEpoch != metadataControllerEpoch)) {
+        val message = s"Rejected incremental UpdateMetadata request with metadata epoch " +
+          s"${updateMetadataRequest.metadataEpoch} sent by controller ${updateMetadataRequest.controllerId} epoch " +
+          s"${updateMetadataRequest.controllerEpoch} with correlation id $correlationId since the last applied update " +
+          s"has metadata epoch $metadataEpoch and controller epoch $metadataControllerEpoch"
+        stateChangeLogger.warn(message)
+        throw new MetadataUpdateOutOfOrderException(message)
+      }
 
-      val aliveBrokers = new mutable.LongMap[Broker](metadataSnapshot.aliveBrokers.size)
-      val aliveNodes = new mutable.LongMap[collection.Map[ListenerName, Node]](metadataSnapshot.aliveNodes.size)
+      val previousSnapshot = metadataSnapshot
+      val aliveBrokers = new mutable.LongMap[Broker](previousSnapshot.aliveBrokers.size)
+      val aliveNodes = new mutable.LongMap[collection.Map[ListenerName, Node]](previousSnapshot.aliveNodes.size)
       val controllerId = updateMetadataRequest.controllerId match {
           case id if id < 0 => None
           case id => Some(id)
         }
 
+      //an incremental update only carries the brokers which were added or changed since the previous update
+      if (updateMetadataRequest.isIncremental) {
+        aliveBrokers ++= previousSnapshot.aliveBrokers
+        aliveNodes ++= previousSnapshot.aliveNodes
+        updateMetadataRequest.removedBrokers.asScala.foreach { id =>
+          aliveBrokers -= id.longValue
+          aliveNodes -= id.longValue
+        }
+      }
       updateMetadataRequest.liveBrokers.asScala.foreach { broker =>
         // `aliveNodes` is a hot path for metadata requests for large clusters, so we use java.util.HashMap which
         // is a bit faster than scala.collection.mutable.HashMap. When we drop support for Scala 2.10, we could
@@ -241,32 +291,63 @@ class MetadataCache(brokerId: Int) extends Logging {
       }
 
       val deletedPartitions = new mutable.ArrayBuffer[TopicPartition]
-      if (updateMetadataRequest.partitionStates().isEmpty) {
-        metadataSnapshot = MetadataSnapshot(metadataSnapshot.partitionStates, controllerId, aliveBrokers, aliveNodes)
-      } else {
-        //since kafka may do partial metadata updates, we start by copying the previous state
-        val partitionStates = new mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataRequest.PartitionState]](metadataSnapshot.partitionStates.size)
-        metadataSnapshot.partitionStates.foreach { case (topic, oldPartitionStates) =>
-          val copy = new mutable.LongMap[UpdateMetadataRequest.PartitionState](oldPartitionStates.size)
-          copy ++= oldPartitionStates
-          partitionStates += (topic -> copy)
+      val snapshot = if (updateMetadataRequest.isFullUpdate) {
+        //a full update replaces the partition states. the partitions it leaves out are dropped from the cache, but
+        //only the partitions it marks as being deleted are reported as deleted, like for any other update.
+        val partitionStates = new mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataRequest.PartitionState]]
+        updateMetadataRequest.partitionStates.asScala.foreach { case (tp, info) =>
+          if (info.basePartitionState.leader == LeaderAndIsr.LeaderDuringDelete)
+            deletedPartitions += tp
+          else
+            partitionStates.getOrElseUpdate(tp.topic, new mutable.LongMap[UpdateMetadataRequest.PartitionState])(tp.partition) = info
         }
+        stateChangeLogger.info(s"Replaced metadata cache with ${updateMetadataRequest.partitionStates.size} partitions " +
+          s"and ${aliveBrokers.size} brokers in response to full UpdateMetadata request with metadata epoch " +
+          s"${updateMetadataRequest.metadataEpoch} sent by controller ${updateMetadataRequest.controllerId} epoch " +
+          s"${updateMetadataRequest.controllerEpoch} with correlation id $correlationId")
+        MetadataSnapshot(partitionStates.toMap, controllerId, aliveBrokers, aliveNodes)
+      } else if (updateMetadataRequest.partitionStates().isEmpty) {
+        MetadataSnapshot(previousSnapshot.partitionStates, controllerId, aliveBrokers, aliveNodes)
+      } else {
+        //since kafka may do partial metadata updates, only the partition states of the updated topics are copied.
+        //the states of the other topics are shared with the previous snapshot, which never mutates them.
+        val updatedPartitionStates = new mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataRequest.PartitionState]]
+        def topicPartitionStates(topic: String): mutable.LongMap[UpdateMetadataRequest.PartitionState] =
+          updatedPartitionStates.getOrElseUpdate(topic, {
+            val copy = new mutable.LongMap[UpdateMetadataRequest.PartitionState]
+            previousSnapshot.partitionStates.get(topic).foreach(copy ++= _)
+            copy
+          })
         updateMetadataRequest.partitionStates.asScala.foreach { case (tp, info) =>
           val controllerId = updateMetadataRequest.controllerId
           val controllerEpoch = updateMetadataRequest.controllerEpoch
           if (info.basePartitionState.leader == LeaderAndIsr.LeaderDuringDelete) {
-            removePartitionInfo(partitionStates, tp.topic, tp.partition)
+            topicPartitionStates(tp.topic).remove(tp.partition)
             stateChangeLogger.trace(s"Deleted partition $tp from metadata cache in response to UpdateMetadata " +
               s"request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
             deletedPartitions += tp
           } else {
-            addOrUpdatePartitionInfo(partitionStates, tp.topic, tp.partition, info)
+            topicPartitionStates(tp.topic)(tp.partition) = info
             stateChangeLogger.trace(s"Cached leader info $info for partition $tp in response to " +
               s"UpdateMetadata request sent by controller $controllerId epoch $controllerEpoch with correlation id $correlationId")
           }
         }
-        metadataSnapshot = MetadataSnapshot(partitionStates, controllerId, aliveBrokers, aliveNodes)
+        val partitionStates = updatedPartitionStates.foldLeft(previousSnapshot.partitionStates) {
+          case (states, (topic, topicStates)) =>
+            if (topicStates.isEmpty) states - topic
+            else states.updated(topic, topicStates)
+        }
+        MetadataSnapshot(partitionStates, controllerId, aliveBrokers, aliveNodes)
       }
+      if (!updateMetadataRequest.isFullUpdate) {
+        val updatedTopics = updateMetadataRequest.partitionStates.keySet.asScala.map(_.topic)
+        snapshot.retainTopicMetadata(previousSnapshot, updatedTopics)
+      }
+      metadataSnapshot = snapshot
+      metadataEpoch = updateMetadataRequest.metadataEpoch
+      metadataControllerEpoch = updateMetadataRequest.controllerEpoch
+      updateApplyTimeHist.update(TimeUnit.NANOSECONDS.toMillis(time.nanoseconds - startNs))
+      updatedPartitionsHist.update(updateMetadataRequest.partitionStates.size)
       deletedPartitions
     }
   }
@@ -277,17 +358,74 @@ class MetadataCache(brokerId: Int) extends Logging {
 
   def contains(tp: TopicPartition): Boolean = getPartitionInfo(tp.topic, tp.partition).isDefined
 
-  private def removePartitionInfo(partitionStates: mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataRequest.PartitionState]], topic: String, partitionId: Int): Boolean = {
-    partitionStates.get(topic).exists { infos =>
-      infos.remove(partitionId)
-      if (infos.isEmpty) partitionStates.remove(topic)
-      true
+  // The partition states of a topic are shared by all the snapshots until an update for that topic, which replaces
+  // them with a copy, so the per-topic maps must never be mutated once they are part of a snapshot.
+  case class MetadataSnapshot(partitionStates: Map[String, mutable.LongMap[UpdateMetadataRequest.PartitionState]],
+                              controllerId: Option[Int],
+                              aliveBrokers: mutable.LongMap[Broker],
+                              aliveNodes: mutable.LongMap[collection.Map[ListenerName, Node]]) {
+
+    // The topic metadata and broker nodes returned to Metadata requests are derived from the state of the snapshot
+    // only, so they are built lazily on the first request for a listener and then shared by all the requests which
+    // use this snapshot. These caches are the only mutable part of a snapshot.
+    private val topicMetadataByKey = new ConcurrentHashMap[TopicMetadataKey, TopicMetadataCache]
+    val aliveBrokerNodes = new ConcurrentHashMap[ListenerName, Seq[Node]]
+
+    def topicMetadata(key: TopicMetadataKey): TopicMetadataCache = {
+      val topicMetadata = topicMetadataByKey.get(key)
+      if (topicMetadata != null)
+        topicMetadata
+      else {
+        topicMetadataByKey.putIfAbsent(key, new TopicMetadataCache(Map.empty))
+        topicMetadataByKey.get(key)
+      }
+    }
+
+    /**
+     * Take over the topic metadata cached by the previous snapshot for the topics which were not updated, so that
+     * an UpdateMetadata request only causes the metadata of the updated topics to be built again. The cached maps
+     * are immutable, so the new snapshot shares them with the previous one and only the updated topics are dropped.
+     * The metadata of a topic also depends on the alive brokers and their endpoints, so nothing is retained if these
+     * changed.
+     */
+    def retainTopicMetadata(previous: MetadataSnapshot, updatedTopics: collection.Set[String]): Unit = {
+      if (previous.aliveNodes == aliveNodes) {
+        previous.topicMetadataByKey.asScala.foreach { case (key, previousTopicMetadata) =>
+          topicMetadataByKey.put(key, new TopicMetadataCache(previousTopicMetadata.retain(updatedTopics)))
+        }
+      }
+    }
+  }
+
+  /**
+   * The topic metadata built for a snapshot and one TopicMetadataKey. The entries are kept in an immutable map which
+   * is swapped on every addition, so that a later snapshot can start from the map without copying it.
+   */
+  class TopicMetadataCache(initial: Map[String, MetadataResponse.TopicMetadata]) {
+    private val topicMetadata = new AtomicReference(initial)
+
+    def get(topic: String): Option[MetadataResponse.TopicMetadata] = topicMetadata.get.get(topic)
+
+    /**
+     * Add the metadata of the topic unless another request added it first, and return the cached metadata.
+     */
+    @tailrec
+    final def putIfAbsent(topic: String, metadata: MetadataResponse.TopicMetadata): MetadataResponse.TopicMetadata = {
+      val current = topicMetadata.get
+      current.get(topic) match {
+        case Some(existing) => existing
+        case None =>
+          if (topicMetadata.compareAndSet(current, current.updated(topic, metadata)))
+            metadata
+          else
+            putIfAbsent(topic, metadata)
+      }
     }
+
+    def retain(updatedTopics: collection.Set[String]): Map[String, MetadataResponse.TopicMetadata] =
+      topicMetadata.get -- updatedTopics
   }
 
-  case class MetadataSnapshot(partitionStates: mutable.AnyRefMap[String, mutable.LongMap[UpdateMetadataRequest.PartitionState]],
-                              controllerId: Option[Int],
-                              aliveBrokers: mutable.LongMap[Broker],
-                              aliveNodes: mutable.LongMap[collection.Map[ListenerName, Node]])
+  case class TopicMetadataKey(listenerName: ListenerName, errorUnavailableEndpoints: Boolean, errorUnavailableListeners: Boolean)
 
 }
@@ -51,11 +51,20 @@ trait Timer {
   def shutdown(): Unit
 }
 
+/**
+ * A timer based on a hierarchical timing wheel.
+ *
+ * If `pooled` is true, the entries of the tasks are taken from a pool to which they are returned when their task
+ * expires or is cancelled, and expired buckets are taken off the wheel in a batch under the write lock and then
+ * handled under the read lock, so that tasks can be added while the expired tasks are being run or moved to a lower
+ * wheel.
+ */
 @threadsafe
 class SystemTimer(executorName: String,
                   tickMs: Long = 1,
                   wheelSize: Int = 20,
-                  startMs: Long = Time.SYSTEM.hiResClockMs) extends Timer {
+                  startMs: Long = Time.SYSTEM.hiResClockMs,
+                  pooled: Boolean = false) extends Timer {
 
   // timeout timer
   private[this] val taskExecutor = Executors.newFixedThreadPool(1, new ThreadFactory() {
@@ -78,10 +87,16 @@ class SystemTimer(executorName: String,
   private[this] val readLock = readWriteLock.readLock()
   private[this] val writeLock = readWriteLock.writeLock()
 
+  private[this] val entryPool = if (pooled) new TimerTaskEntryPool(TimerTaskEntryPool.DefaultCapacity) else null
+
   def add(timerTask: TimerTask): Unit = {
     readLock.lock()
     try {
-      addTimerTaskEntry(new TimerTaskEntry(timerTask, timerTask.delayMs + Time.SYSTEM.hiResClockMs))
+      val expirationMs = timerTask.delayMs + Time.SYSTEM.hiResClockMs
+      val timerTaskEntry =
+        if (entryPool == null) new TimerTaskEntry(timerTask, expirationMs)
+        else entryPool.acquire(timerTask, expirationMs)
+      addTimerTaskEntry(timerTaskEntry)
     } finally {
       readLock.unlock()
     }
@@ -90,8 +105,16 @@ class SystemTimer(executorName: String,
   private def addTimerTaskEntry(timerTaskEntry: TimerTaskEntry): Unit = {
     if (!timingWheel.add(timerTaskEntry)) {
       // Already expired or cancelled
-      if (!timerTaskEntry.cancelled)
-        taskExecutor.submit(timerTaskEntry.timerTask)
+      if (entryPool == null) {
+        if (!timerTaskEntry.cancelled)
+          taskExecutor.submit(timerTaskEntry.timerTask)
+      } else {
+        // detach the entry from its task before reusing it
+        val timerTask = timerTaskEntry.timerTask
+        if (timerTask.clearTimerTaskEntry(timerTaskEntry))
+          taskExecutor.submit(timerTask)
+        timerTaskEntry.release()
+      }
     }
   }
 
@@ -103,7 +126,44 @@ class SystemTimer(executorName: String,
    */
   def advanceClock(timeoutMs: Long): Boolean = {
     var bucket = delayQueue.poll(timeoutMs, TimeUnit.MILLISECONDS)
-    if (bucket != null) {
+    if (bucket != null && entryPool != null) {
+      // only advancing the wheel and taking the entries off the expired buckets needs the write lock
+      var expired: TimerTaskEntry = null
+      writeLock.lock()
+      try {
+        while (bucket != null) {
+          timingWheel.advanceClock(bucket.getExpiration())
+          expired = bucket.drain(expired)
+          bucket = delayQueue.poll()
+        }
+      } finally {
+        writeLock.unlock()
+      }
+      // restore the order of expiration
+      var reversed: TimerTaskEntry = null
+      while (expired != null) {
+        val next = expired.next
+        expired.next = reversed
+        reversed = expired
+        expired = next
+      }
+      expired = reversed
+      readLock.lock()
+      try {
+        while (expired != null) {
+          val next = expired.next
+          expired.next = null
+          if (expired.cancelled)
+            expired.release()
+          else
+            addTimerTaskEntry(expired)
+          expired = next
+        }
+      } finally {
+        readLock.unlock()
+      }
+      true
+    } else if (bucket != null) {
       writeLock.lock()
       try {
         while (bucket != null) {
@@ -122,6 +182,9 @@ class SystemTimer(executorName: String,
 
   def size: Int = taskCounter.get
 
+  /* For test usage */
+  private[timer] def pooledEntries: Int = if (entryPool == null) 0 else entryPool.size
+
   override def shutdown() {
     taskExecutor.shutdown()
   }
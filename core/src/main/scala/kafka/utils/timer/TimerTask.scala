@@ -24,8 +24,14 @@ trait TimerTask extends Runnable {
 
   def cancel(): Unit = {
     synchronized {
-      if (timerTaskEntry != null) timerTaskEntry.remove()
-      timerTaskEntry = null
+      val entry = timerTaskEntry
+      if (entry != null) {
+        val removed = entry.remove()
+        timerTaskEntry = null
+        // the entry can only be reused if it was removed from its list by this thread, otherwise the timer still has it
+        if (removed)
+          entry.release()
+      }
     }
   }
 
@@ -44,4 +50,17 @@ trait TimerTask extends Runnable {
     timerTaskEntry
   }
 
+  // Detach the given entry from this task before the task is run, so that cancelling the task later on does not
+  // affect the entry once it is reused. Returns false if the task has been cancelled or added again.
+  private[timer] def clearTimerTaskEntry(entry: TimerTaskEntry): Boolean = {
+    synchronized {
+      if (timerTaskEntry eq entry) {
+        timerTaskEntry = null
+        true
+      } else {
+        false
+      }
+    }
+  }
+
 }
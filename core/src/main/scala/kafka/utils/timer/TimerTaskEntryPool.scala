@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.utils.timer
+
+import java.util.concurrent.{ArrayBlockingQueue, ThreadLocalRandom}
+
+import kafka.utils.threadsafe
+
+/**
+ * A bounded pool of timer task entries, which lets a timer reuse the entries of expired and cancelled tasks instead of
+ * allocating one per task. The pool is split into stripes by thread, so that the threads adding and cancelling tasks
+ * rarely contend on the same stripe. A thread whose stripe is empty tries one other stripe picked at random, which lets
+ * the entries released by the expiration thread be reused by the threads adding tasks. If that stripe is empty too a
+ * new entry is allocated, and an entry released to a full stripe is left to the garbage collector.
+ */
+@threadsafe
+private[timer] class TimerTaskEntryPool(capacity: Int) {
+  import TimerTaskEntryPool._
+
+  private[this] val stripes = Array.fill(Stripes)(new ArrayBlockingQueue[TimerTaskEntry](math.max(1, capacity / Stripes)))
+
+  def acquire(timerTask: TimerTask, expirationMs: Long): TimerTaskEntry = {
+    var entry = threadStripe.poll()
+    if (entry == null)
+      entry = stripes(ThreadLocalRandom.current.nextInt(Stripes)).poll()
+    if (entry == null) {
+      new TimerTaskEntry(timerTask, expirationMs, this)
+    } else {
+      entry.expirationMs = expirationMs
+      entry.timerTask = timerTask
+      timerTask.setTimerTaskEntry(entry)
+      entry
+    }
+  }
+
+  def release(entry: TimerTaskEntry): Unit = {
+    entry.timerTask = null
+    entry.next = null
+    entry.prev = null
+    threadStripe.offer(entry)
+  }
+
+  def size: Int = stripes.map(_.size).sum
+
+  private def threadStripe: ArrayBlockingQueue[TimerTaskEntry] = stripes((Thread.currentThread.getId % Stripes).toInt)
+}
+
+object TimerTaskEntryPool {
+  val Stripes = 16
+  val DefaultCapacity = 16 * 1024
+}
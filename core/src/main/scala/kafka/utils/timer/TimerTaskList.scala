@@ -89,7 +89,8 @@ private[timer] class TimerTaskList(taskCounter: AtomicInteger) extends Delayed {
   }
 
   // Remove the specified timer task entry from this list
-  def remove(timerTaskEntry: TimerTaskEntry): Unit = {
+  // Returns true if the entry was in this list
+  def remove(timerTaskEntry: TimerTaskEntry): Boolean = {
     synchronized {
       timerTaskEntry.synchronized {
         if (timerTaskEntry.list eq this) {
@@ -99,6 +100,9 @@ private[timer] class TimerTaskList(taskCounter: AtomicInteger) extends Delayed {
           timerTaskEntry.prev = null
           timerTaskEntry.list = null
           taskCounter.decrementAndGet()
+          true
+        } else {
+          false
         }
       }
     }
@@ -117,6 +121,31 @@ private[timer] class TimerTaskList(taskCounter: AtomicInteger) extends Delayed {
     }
   }
 
+  // Remove all task entries and return them as a chain in reverse order linked by their next pointers, which continues
+  // with the given chain. The entries no longer belong to any list, so they can be handed to the timer without holding
+  // this list.
+  def drain(chain: TimerTaskEntry): TimerTaskEntry = {
+    synchronized {
+      var head = chain
+      var entry = root.next
+      while (entry ne root) {
+        val nextEntry = entry.next
+        entry.synchronized {
+          entry.list = null
+          entry.prev = null
+          entry.next = head
+        }
+        taskCounter.decrementAndGet()
+        head = entry
+        entry = nextEntry
+      }
+      root.next = root
+      root.prev = root
+      expiration.set(-1L)
+      head
+    }
+  }
+
   def getDelay(unit: TimeUnit): Long = {
     unit.convert(max(getExpiration - Time.SYSTEM.hiResClockMs, 0), TimeUnit.MILLISECONDS)
   }
@@ -132,7 +161,8 @@ private[timer] class TimerTaskList(taskCounter: AtomicInteger) extends Delayed {
 
 }
 
-private[timer] class TimerTaskEntry(val timerTask: TimerTask, val expirationMs: Long) extends Ordered[TimerTaskEntry] {
+private[timer] class TimerTaskEntry(@volatile var timerTask: TimerTask, @volatile var expirationMs: Long,
+                                    private[timer] val pool: TimerTaskEntryPool = null) extends Ordered[TimerTaskEntry] {
 
   @volatile
   var list: TimerTaskList = null
@@ -147,15 +177,25 @@ private[timer] class TimerTaskEntry(val timerTask: TimerTask, val expirationMs:
     timerTask.getTimerTaskEntry != this
   }
 
-  def remove(): Unit = {
+  // Returns true if this call removed the entry from the list it was in
+  def remove(): Boolean = {
+    var removed = false
     var currentList = list
     // If remove is called when another thread is moving the entry from a task entry list to another,
     // this may fail to remove the entry due to the change of value of list. Thus, we retry until the list becomes null.
     // In a rare case, this thread sees null and exits the loop, but the other thread insert the entry to another list later.
     while (currentList != null) {
-      currentList.remove(this)
+      removed = currentList.remove(this) || removed
       currentList = list
     }
+    removed
+  }
+
+  // Return this entry to its pool, if it has one. Must only be called by the thread which removed the entry from its
+  // last list, once the task no longer refers to it.
+  def release(): Unit = {
+    if (pool != null)
+      pool.release(this)
   }
 
   override def compare(that: TimerTaskEntry): Int = {
@@ -52,7 +52,8 @@ import scala.collection.{Seq, mutable}
  * easier to quickly migrate away from `ZkUtils`. We should revisit this once the migration is completed and tests are
  * in place. We should also consider whether a monolithic [[kafka.zk.ZkData]] is the way to go.
  */
-class KafkaZkClient private[zk] (zooKeeperClient: ZooKeeperClient, isSecure: Boolean, time: Time) extends AutoCloseable with
+class KafkaZkClient private[zk] (zooKeeperClient: ZooKeeperClient, isSecure: Boolean, time: Time,
+                                 controllerWriteBatchSize: Int = 1) extends AutoCloseable with
   Logging with KafkaMetricsGroup {
 
   override def metricName(name: String, metricTags: scala.collection.Map[String, String]): MetricName = {
@@ -1645,6 +1646,8 @@ class KafkaZkClient private[zk] (zooKeeperClient: ZooKeeperClient, isSecure: Boo
   private def retryRequestsUntilConnected[Req <: AsyncRequest](requests: Seq[Req], expectedControllerZkVersion: Int): Seq[Req#Response] = {
     expectedControllerZkVersion match {
       case ZkVersion.MatchAnyVersion => retryRequestsUntilConnected(requests)
+      case version if version >= 0 && controllerWriteBatchSize > 1 && requests.size > 1 =>
+        retryBatchedRequestsUntilConnected(requests, version)
       case version if version >= 0 =>
         retryRequestsUntilConnected(requests.map(wrapRequestWithControllerEpochCheck(_, version)))
           .map(unwrapResponseWithControllerEpochCheck(_).asInstanceOf[Req#Response])
@@ -1653,6 +1656,49 @@ class KafkaZkClient private[zk] (zooKeeperClient: ZooKeeperClient, isSecure: Boo
     }
   }
 
+  /**
+   * Sends the controller writes in multi requests of up to `controllerWriteBatchSize` ops, each guarded by a single check
+   * on the controller epoch znode zkVersion. The multi requests are pipelined like any other batch of requests, so the
+   * number of round trips in flight is bounded by the max in-flight requests of the ZooKeeperClient.
+   *
+   * A multi request is applied atomically: if one of its ops fails, none of them is applied and the requests of that
+   * batch are sent again one by one so that every request gets its own result code (e.g. NODEEXISTS or BADVERSION).
+   * The responses are not in the order of the requests, callers match them through the request context.
+   */
+  private def retryBatchedRequestsUntilConnected[Req <: AsyncRequest](requests: Seq[Req], expectedControllerZkVersion: Int): Seq[Req#Response] = {
+    val multiRequests = requests.grouped(controllerWriteBatchSize).map { batch =>
+      val checkOp = CheckOp(ControllerEpochZNode.path, expectedControllerZkVersion)
+      MultiRequest(checkOp +: batch.map(toZkOpWithControllerEpochCheck), Some(batch))
+    }.toBuffer
+
+    val responses = new ArrayBuffer[Req#Response]
+    val requestsToRetry = new ArrayBuffer[Req]
+    retryRequestsUntilConnected(multiRequests).foreach { multiResponse =>
+      val batch = multiResponse.ctx.get.asInstanceOf[Seq[Req]]
+      multiResponse.zkOpResults match {
+        case null => throw KeeperException.create(multiResponse.resultCode)
+        case checkOpResult +: zkOpResults =>
+          checkControllerEpoch(checkOpResult)
+          if (multiResponse.resultCode == Code.OK) {
+            batch.zip(zkOpResults).foreach { case (request, zkOpResult) =>
+              val response = MultiResponse(Code.OK, null, request.ctx, Seq(checkOpResult, zkOpResult), multiResponse.metadata)
+              responses += unwrapResponseWithControllerEpochCheck(response).asInstanceOf[Req#Response]
+            }
+          } else {
+            debug(s"Multi request of ${batch.size} controller writes failed with ${multiResponse.resultCode}, " +
+              "sending them individually")
+            requestsToRetry ++= batch
+          }
+        case _ => throw new IllegalStateException(s"Cannot unwrap $multiResponse because it has no zookeeper op results")
+      }
+    }
+
+    if (requestsToRetry.nonEmpty)
+      responses ++= retryRequestsUntilConnected(requestsToRetry.map(wrapRequestWithControllerEpochCheck(_, expectedControllerZkVersion)))
+        .map(unwrapResponseWithControllerEpochCheck(_).asInstanceOf[Req#Response])
+    responses
+  }
+
   private def retryRequestsUntilConnected[Req <: AsyncRequest](requests: Seq[Req]): Seq[Req#Response] = {
     val remainingRequests = ArrayBuffer(requests: _*)
     val responses = new ArrayBuffer[Req#Response]
@@ -1820,10 +1866,11 @@ object KafkaZkClient {
             maxInFlightRequests: Int,
             time: Time,
             metricGroup: String = "kafka.server",
-            metricType: String = "SessionExpireListener") = {
+            metricType: String = "SessionExpireListener",
+            controllerWriteBatchSize: Int = 1) = {
     val zooKeeperClient = new ZooKeeperClient(connectString, sessionTimeoutMs, connectionTimeoutMs, maxInFlightRequests,
       time, metricGroup, metricType)
-    new KafkaZkClient(zooKeeperClient, isSecure, time)
+    new KafkaZkClient(zooKeeperClient, isSecure, time, controllerWriteBatchSize)
   }
 
   // A helper function to transform a regular request into a MultiRequest
@@ -1831,15 +1878,33 @@ object KafkaZkClient {
   // This is used for fencing zookeeper updates in controller.
   private def wrapRequestWithControllerEpochCheck(request: AsyncRequest, expectedControllerZkVersion: Int): MultiRequest = {
       val checkOp = CheckOp(ControllerEpochZNode.path, expectedControllerZkVersion)
-      request match {
-        case CreateRequest(path, data, acl, createMode, ctx) =>
-          MultiRequest(Seq(checkOp, CreateOp(path, data, acl, createMode)), ctx)
-        case DeleteRequest(path, version, ctx) =>
-          MultiRequest(Seq(checkOp, DeleteOp(path, version)), ctx)
-        case SetDataRequest(path, data, version, ctx) =>
-          MultiRequest(Seq(checkOp, SetDataOp(path, data, version)), ctx)
-        case _ => throw new IllegalStateException(s"$request does not need controller epoch check")
-      }
+      MultiRequest(Seq(checkOp, toZkOpWithControllerEpochCheck(request)), request.ctx)
+  }
+
+  private def toZkOpWithControllerEpochCheck(request: AsyncRequest): ZkOp = {
+    request match {
+      case CreateRequest(path, data, acl, createMode, _) => CreateOp(path, data, acl, createMode)
+      case DeleteRequest(path, version, _) => DeleteOp(path, version)
+      case SetDataRequest(path, data, version, _) => SetDataOp(path, data, version)
+      case _ => throw new IllegalStateException(s"$request does not need controller epoch check")
+    }
+  }
+
+  // Throws ControllerMovedException if the check on the controller epoch znode zkVersion failed.
+  private def checkControllerEpoch(checkOpResult: ZkOpResult): Unit = {
+    checkOpResult match {
+      case ZkOpResult(checkOp: CheckOp, errorResult: ErrorResult) =>
+        if (checkOp.path.equals(ControllerEpochZNode.path)) {
+          val errorCode = Code.get(errorResult.getErr)
+          if (errorCode == Code.BADVERSION)
+          // Throw ControllerMovedException when the zkVersionCheck is performed on the controller epoch znode and the check fails
+            throw new ControllerMovedException(s"Controller epoch zkVersion check fails. Expected zkVersion = ${checkOp.version}")
+          else if (errorCode != Code.OK)
+            throw KeeperException.create(errorCode, checkOp.path)
+        }
+      case ZkOpResult(_: CheckOp, _) =>
+      case _ => throw new IllegalStateException(s"Cannot unwrap $checkOpResult because it is not the result of a check op")
+    }
   }
 
   // A helper function to transform a MultiResponse with the check on
@@ -1851,19 +1916,8 @@ object KafkaZkClient {
     response match {
       case MultiResponse(resultCode, _, ctx, zkOpResults, responseMetadata) =>
         zkOpResults match {
-          case Seq(ZkOpResult(checkOp: CheckOp, checkOpResult), zkOpResult) =>
-            checkOpResult match {
-              case errorResult: ErrorResult =>
-                if (checkOp.path.equals(ControllerEpochZNode.path)) {
-                  val errorCode = Code.get(errorResult.getErr)
-                  if (errorCode == Code.BADVERSION)
-                  // Throw ControllerMovedException when the zkVersionCheck is performed on the controller epoch znode and the check fails
-                    throw new ControllerMovedException(s"Controller epoch zkVersion check fails. Expected zkVersion = ${checkOp.version}")
-                  else if (errorCode != Code.OK)
-                    throw KeeperException.create(errorCode, checkOp.path)
-                }
-              case _ =>
-            }
+          case Seq(checkOpResult @ ZkOpResult(_: CheckOp, _), zkOpResult) =>
+            checkControllerEpoch(checkOpResult)
             val rawOpResult = zkOpResult.rawOpResult
             zkOpResult.zkOp match {
               case createOp: CreateOp =>
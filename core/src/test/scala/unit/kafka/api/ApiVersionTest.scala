@@ -88,9 +88,10 @@ class ApiVersionTest {
     assertEquals(KAFKA_2_1_IV1, ApiVersion("2.1-IV1"))
     assertEquals(KAFKA_2_1_IV2, ApiVersion("2.1-IV2"))
 
-    assertEquals(KAFKA_2_2_IV1, ApiVersion("2.2"))
+    assertEquals(KAFKA_2_2_IV2, ApiVersion("2.2"))
     assertEquals(KAFKA_2_2_IV0, ApiVersion("2.2-IV0"))
     assertEquals(KAFKA_2_2_IV1, ApiVersion("2.2-IV1"))
+    assertEquals(KAFKA_2_2_IV2, ApiVersion("2.2-IV2"))
   }
 
   @Test
@@ -927,6 +927,70 @@ class PartitionTest {
     }
   }
 
+  /**
+   * Verify that appends to the leader and readers of the leader and ISR state are not blocked while the ISR is
+   * being updated in ZooKeeper.
+   */
+  @Test
+  def testAppendNotBlockedByIsrShrink(): Unit = {
+    val zkClient: KafkaZkClient = EasyMock.createMock(classOf[KafkaZkClient])
+    val isrUpdateStarted = new CountDownLatch(1)
+    val completeIsrUpdate = new CountDownLatch(1)
+    EasyMock.expect(zkClient.conditionalUpdatePath(EasyMock.anyObject(), EasyMock.anyObject(), EasyMock.anyInt(), EasyMock.anyObject()))
+      .andAnswer(new IAnswer[(Boolean, Int)] {
+        override def answer(): (Boolean, Int) = {
+          isrUpdateStarted.countDown()
+          completeIsrUpdate.await()
+          (true, 2)
+        }
+      }).once()
+    EasyMock.replay(zkClient)
+
+    val log = logManager.getOrCreateLog(topicPartition, logConfig)
+    val partition = new Partition(topicPartition,
+      isOffline = false,
+      replicaLagTimeMaxMs = Defaults.ReplicaLagTimeMaxMs,
+      localBrokerId = brokerId,
+      time,
+      replicaManager,
+      logManager,
+      zkClient)
+    partition.addReplicaIfNotExists(new Replica(brokerId, topicPartition, time, log = Some(log)))
+    val follower = brokerId + 1
+    val replicas = List[Integer](brokerId, follower).asJava
+    partition.makeLeader(0, new LeaderAndIsrRequest.PartitionState(0, brokerId, 5, replicas, 1, replicas, true), 0)
+    partition.appendRecordsToLeader(TestUtils.records(List(new SimpleRecord("k1".getBytes, "v1".getBytes))),
+      isFromClient = true)
+
+    // the follower has not fetched for longer than the max lag, so the ISR is shrunk on another thread
+    time.sleep(Defaults.ReplicaLagTimeMaxMs + 1)
+    val executor = Executors.newSingleThreadExecutor()
+    try {
+      val shrink = executor.submit(CoreUtils.runnable {
+        partition.maybeShrinkIsr(Defaults.ReplicaLagTimeMaxMs)
+      })
+      assertTrue("ISR update was not started", isrUpdateStarted.await(10, TimeUnit.SECONDS))
+
+      partition.appendRecordsToLeader(TestUtils.records(List(new SimpleRecord("k2".getBytes, "v2".getBytes))),
+        isFromClient = true)
+      assertEquals(2L, partition.localReplicaOrException.logEndOffset.messageOffset)
+      assertEquals(Set(brokerId, follower), partition.inSyncReplicas.map(_.brokerId))
+      assertEquals(1, partition.currentLeaderIsrState.zkVersion)
+
+      completeIsrUpdate.countDown()
+      shrink.get(10, TimeUnit.SECONDS)
+      val state = partition.currentLeaderIsrState
+      assertEquals(Set(brokerId), state.inSyncReplicas.map(_.brokerId))
+      assertEquals(2, state.zkVersion)
+      assertEquals(5, state.leaderEpoch)
+      assertEquals(Some(brokerId), state.leaderReplicaIdOpt)
+    } finally {
+      completeIsrUpdate.countDown()
+      executor.shutdownNow()
+    }
+    EasyMock.verify(zkClient)
+  }
+
   def createRecords(records: Iterable[SimpleRecord], baseOffset: Long, partitionLeaderEpoch: Int = 0): MemoryRecords = {
     val buf = ByteBuffer.allocate(DefaultRecordBatch.sizeInBytes(records.asJava))
     val builder = MemoryRecords.builder(
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package kafka.controller
+
+import kafka.api.LeaderAndIsr
+import kafka.server.KafkaConfig
+import kafka.utils.TestUtils
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.protocol.ApiKeys
+import org.apache.kafka.common.requests.{AbstractControlRequest, AbstractResponse, UpdateMetadataRequest}
+import org.easymock.{EasyMock, IAnswer}
+import org.junit.Assert._
+import org.junit.{Before, Test}
+import org.scalatest.junit.JUnitSuite
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+class ControllerChannelManagerTest extends JUnitSuite {
+  private val controllerId = 1
+  private val controllerEpoch = 10
+  private val config = KafkaConfig.fromProps(TestUtils.createBrokerConfig(controllerId, "zkConnect"))
+  private val tp0 = new TopicPartition("t", 0)
+  private val tp1 = new TopicPartition("t", 1)
+
+  private var controllerContext: ControllerContext = null
+  private var batch: ControllerBrokerRequestBatch = null
+  private val sentRequests = mutable.Map.empty[Int, UpdateMetadataRequest]
+
+  @Before
+  def setUp(): Unit = {
+    controllerContext = new ControllerContext
+    setUpContext(brokerIds = Seq(1, 2, 3))
+
+    val mockTopicDeletionManager = EasyMock.createMock(classOf[TopicDeletionManager])
+    EasyMock.expect(mockTopicDeletionManager.topicsToBeDeleted).andStubReturn(mutable.Set.empty[String])
+    val mockController = EasyMock.createMock(classOf[KafkaController])
+    EasyMock.expect(mockController.config).andStubReturn(config)
+    EasyMock.expect(mockController.controllerContext).andStubReturn(controllerContext)
+    EasyMock.expect(mockController.topicDeletionManager).andStubReturn(mockTopicDeletionManager)
+    mockController.sendRequest(EasyMock.anyInt(), EasyMock.eq(ApiKeys.UPDATE_METADATA),
+      EasyMock.anyObject[AbstractControlRequest.Builder[_ <: AbstractControlRequest]](),
+      EasyMock.anyObject[AbstractResponse => Unit]())
+    EasyMock.expectLastCall().andStubAnswer(new IAnswer[Unit] {
+      override def answer: Unit = {
+        val arguments = EasyMock.getCurrentArguments
+        val request = arguments(2).asInstanceOf[UpdateMetadataRequest.Builder].build()
+        assertTrue(s"Sent two UpdateMetadata requests to broker ${arguments(0)} in one batch",
+          sentRequests.put(arguments(0).asInstanceOf[Int], request).isEmpty)
+      }
+    })
+    EasyMock.replay(mockTopicDeletionManager, mockController)
+
+    batch = new ControllerBrokerRequestBatch(mockController, new StateChangeLogger(controllerId, true, None))
+  }
+
+  @Test
+  def testJoiningBrokerGetsFullUpdateWhileOthersGetDeltas(): Unit = {
+    controllerContext.removeLiveBrokersAndEpochs(Set(3))
+    val initialRequests = sendUpdateMetadata(Seq(1, 2), Set(tp0, tp1))
+    assertEquals(Set(1, 2), initialRequests.keySet)
+    initialRequests.values.foreach(request => assertFullUpdate(request, Set(tp0, tp1), Set(1, 2)))
+
+    controllerContext.addLiveBrokersAndEpochs(Map(TestUtils.createBrokerAndEpoch(3, "host3", 9092)))
+    val requests = sendUpdateMetadata(Seq(1, 2, 3), Set.empty)
+    assertFullUpdate(requests(3), Set(tp0, tp1), Set(1, 2, 3))
+    assertTrue(requests(3).metadataEpoch > initialRequests.values.map(_.metadataEpoch).max)
+    Seq(1, 2).foreach { brokerId =>
+      val request = requests(brokerId)
+      assertTrue(request.isIncremental)
+      assertEquals(initialRequests(brokerId).metadataEpoch + 1, request.metadataEpoch)
+      assertEquals(Set.empty, request.partitionStates.keySet.asScala)
+      assertEquals(Set(3), request.liveBrokers.asScala.map(_.id))
+      assertEquals(Set.empty, request.removedBrokers.asScala)
+    }
+  }
+
+  @Test
+  def testUpdateToSomeBrokersResendsPartitionToAllBrokers(): Unit = {
+    sendUpdateMetadata(Seq(1, 2, 3), Set(tp0, tp1))
+
+    // a new leader epoch of tp0 is only sent to broker 1, so the other brokers still hold the previous state
+    updateLeadership(tp0, LeaderAndIsr(2, 1, List(1, 2, 3), 1))
+    val partialRequest = sendUpdateMetadata(Seq(1), Set(tp0))(1)
+    assertTrue(partialRequest.isIncremental)
+    assertEquals(Set(tp0), partialRequest.partitionStates.keySet.asScala)
+
+    // tp0 is no longer considered published, so the next update to all brokers carries it again
+    val requests = sendUpdateMetadata(Seq(1, 2, 3), Set(tp0, tp1))
+    assertEquals(Set(1, 2, 3), requests.keySet)
+    requests.values.foreach { request =>
+      assertTrue(request.isIncremental)
+      assertEquals(Set(tp0), request.partitionStates.keySet.asScala)
+      assertEquals(2, request.partitionStates.get(tp0).basePartitionState.leader)
+    }
+
+    // once every broker got it, the unchanged partitions are left out and there is nothing to send
+    assertEquals(Map.empty, sendUpdateMetadata(Seq(1, 2, 3), Set(tp0, tp1)))
+  }
+
+  @Test
+  def testUpdateAfterControllerFailoverIsFull(): Unit = {
+    sendUpdateMetadata(Seq(1, 2, 3), Set(tp0, tp1))
+    updateLeadership(tp0, LeaderAndIsr(2, 1, List(1, 2, 3), 1))
+    sendUpdateMetadata(Seq(1, 2, 3), Set(tp0)).values.foreach(request => assertTrue(request.isIncremental))
+
+    // the context is reset when the controller resigns and loaded again when it is elected
+    controllerContext.resetContext()
+    setUpContext(brokerIds = Seq(1, 2, 3))
+    val requests = sendUpdateMetadata(Seq(1, 2, 3), Set.empty)
+    assertEquals(Set(1, 2, 3), requests.keySet)
+    requests.values.foreach(request => assertFullUpdate(request, Set(tp0, tp1), Set(1, 2, 3)))
+  }
+
+  private def setUpContext(brokerIds: Seq[Int]): Unit = {
+    controllerContext.epoch = controllerEpoch
+    controllerContext.setLiveBrokerAndEpochs(brokerIds.map(id => TestUtils.createBrokerAndEpoch(id, s"host$id", 9092)).toMap)
+    Seq(tp0, tp1).foreach { tp =>
+      controllerContext.updatePartitionReplicaAssignment(tp, brokerIds)
+      updateLeadership(tp, LeaderAndIsr(brokerIds.head, brokerIds.toList))
+    }
+  }
+
+  private def updateLeadership(tp: TopicPartition, leaderAndIsr: LeaderAndIsr): Unit =
+    controllerContext.partitionLeadershipInfo.put(tp, LeaderIsrAndControllerEpoch(leaderAndIsr, controllerEpoch))
+
+  private def sendUpdateMetadata(brokerIds: Seq[Int], partitions: Set[TopicPartition]): Map[Int, UpdateMetadataRequest] = {
+    sentRequests.clear()
+    batch.newBatch()
+    batch.addUpdateMetadataRequestForBrokers(brokerIds, partitions)
+    batch.sendRequestsToBrokers(controllerEpoch)
+    sentRequests.toMap
+  }
+
+  private def assertFullUpdate(request: UpdateMetadataRequest, partitions: Set[TopicPartition], brokerIds: Set[Int]): Unit = {
+    assertTrue(request.isFullUpdate)
+    assertEquals(partitions, request.partitionStates.keySet.asScala)
+    assertEquals(brokerIds, request.liveBrokers.asScala.map(_.id))
+    assertEquals(Set.empty, request.removedBrokers.asScala)
+  }
+}
@@ -21,10 +21,10 @@ import java.util.concurrent.CountDownLatch
 import java.util.concurrent.atomic.AtomicInteger
 
 import com.yammer.metrics.Metrics
-import com.yammer.metrics.core.Timer
+import com.yammer.metrics.core.{Histogram, Timer}
 import kafka.utils.TestUtils
 import org.junit.{After, Test}
-import org.junit.Assert.{assertEquals, fail}
+import org.junit.Assert.{assertEquals, assertTrue, fail}
 
 import scala.collection.JavaConverters._
 
@@ -50,6 +50,61 @@ class ControllerEventManagerTest {
       () => throw new NullPointerException)
   }
 
+  @Test
+  def testCoalescableEventIsQueuedOnce(): Unit = {
+    val controllerStats = new ControllerStats
+    val eventProcessedListenerCount = new AtomicInteger
+    controllerEventManager = new ControllerEventManager(0, controllerStats.rateAndTimeMetrics,
+      _ => eventProcessedListenerCount.incrementAndGet, () => ())
+    controllerEventManager.start()
+
+    // Keep the event thread busy while the events are queued
+    val latch = new CountDownLatch(1)
+    controllerEventManager.put(ControllerTestUtils.createMockControllerEvent(ControllerState.AutoLeaderBalance,
+      () => latch.await()))
+    val processCount = new AtomicInteger
+    val coalescableEvent = ControllerTestUtils.createMockControllerEvent(ControllerState.IsrChange,
+      () => processCount.incrementAndGet(), coalescable = true)
+    val otherEvent = ControllerTestUtils.createMockControllerEvent(ControllerState.IsrChange, () => ())
+    (1 to 3).foreach(_ => controllerEventManager.put(coalescableEvent))
+    controllerEventManager.put(otherEvent)
+    latch.countDown()
+
+    TestUtils.waitUntilTrue(() => eventProcessedListenerCount.get == 3, "Queued events have not been processed")
+    assertEquals(1, processCount.get)
+
+    // Once processed, the event is queued again
+    controllerEventManager.put(coalescableEvent)
+    TestUtils.waitUntilTrue(() => processCount.get == 2, "Coalescable event has not been processed again")
+  }
+
+  @Test
+  def testEventTypeMetrics(): Unit = {
+    val controllerStats = new ControllerStats
+    val eventProcessedListenerCount = new AtomicInteger
+    controllerEventManager = new ControllerEventManager(0, controllerStats.rateAndTimeMetrics,
+      _ => eventProcessedListenerCount.incrementAndGet, () => ())
+    controllerEventManager.start()
+
+    val event = ControllerTestUtils.createMockControllerEvent(ControllerState.TopicChange, () => ())
+    controllerEventManager.put(event)
+    TestUtils.waitUntilTrue(() => eventProcessedListenerCount.get == 1, "Event has not been processed")
+
+    val eventName = ControllerEventManager.eventName(event)
+    Seq("EventQueueTimeMs", "EventProcessingTimeMs").foreach { name =>
+      assertEquals(1, histogram(s"kafka.controller:type=ControllerEventManager,name=$name,event=$eventName").count)
+    }
+
+    controllerEventManager.close()
+    controllerEventManager = null
+    assertTrue(Metrics.defaultRegistry.allMetrics.keySet.asScala.forall(_.getMBeanName.indexOf(s"event=$eventName") == -1))
+  }
+
+  @Test
+  def testEventName(): Unit = {
+    assertEquals("ShutdownEventThread", ControllerEventManager.eventName(KafkaController.ShutdownEventThread))
+  }
+
   private def check(metricName: String, controllerState: ControllerState, process: () => Unit): Unit = {
     val controllerStats = new ControllerStats
     val eventProcessedListenerCount = new AtomicInteger
@@ -78,6 +133,11 @@ class ControllerEventManagerTest {
     assertEquals("Timer has not been updated", initialTimerCount + 1, timer(metricName).count)
   }
 
+  private def histogram(metricName: String): Histogram = {
+    Metrics.defaultRegistry.allMetrics.asScala.filterKeys(_.getMBeanName == metricName).values.headOption
+      .getOrElse(fail(s"Unable to find metric $metricName")).asInstanceOf[Histogram]
+  }
+
   private def timer(metricName: String): Timer = {
     Metrics.defaultRegistry.allMetrics.asScala.filterKeys(_.getMBeanName == metricName).values.headOption
       .getOrElse(fail(s"Unable to find metric $metricName")).asInstanceOf[Timer]
@@ -18,7 +18,7 @@
 package kafka.controller
 
 import java.util.Properties
-import java.util.concurrent.{CountDownLatch, LinkedBlockingQueue}
+import java.util.concurrent.{CountDownLatch, LinkedBlockingQueue, TimeUnit}
 
 import com.yammer.metrics.Metrics
 import com.yammer.metrics.core.Timer
@@ -30,6 +30,8 @@ import org.junit.{After, Before, Test}
 import org.junit.Assert.{assertEquals, assertTrue}
 import org.apache.kafka.common.TopicPartition
 import org.apache.kafka.common.errors.{ControllerMovedException, StaleBrokerEpochException}
+import org.apache.kafka.common.protocol.Errors
+import org.apache.kafka.common.requests.UpdateMetadataResponse
 import org.apache.log4j.Level
 import kafka.utils.LogCaptureAppender
 
@@ -505,6 +507,57 @@ class ControllerIntegrationTest extends ZooKeeperTestHarness {
     }, "Broker fail to initialize after restart")
   }
 
+  @Test
+  def testOutOfOrderUpdateMetadataTriggersOneFullUpdate(): Unit = {
+    servers = makeServers(2)
+    val controller = getController().kafkaController
+    val otherBrokerId = servers.map(_.config.brokerId).find(_ != controller.config.brokerId).get
+    Seq("t1", "t2").foreach { topic =>
+      TestUtils.createTopic(zkClient, topic, partitionReplicaAssignment = Map(0 -> servers.map(_.config.brokerId)),
+        servers = servers)
+    }
+
+    val firstLatch = pauseEventThread(controller)
+    val metadataState = controller.controllerContext.brokerMetadataStates(otherBrokerId)
+    val lastMetadataEpoch = controller.controllerContext.lastMetadataEpoch
+    assertTrue(s"Expected incremental updates after the full update in $metadataState",
+      metadataState.metadataEpoch >= metadataState.fullUpdateEpoch + 2)
+
+    // the broker rejects every update which follows the one it missed
+    (metadataState.fullUpdateEpoch + 1 to metadataState.metadataEpoch).foreach { metadataEpoch =>
+      controller.eventManager.put(controller.UpdateMetadataResponseReceived(
+        new UpdateMetadataResponse(Errors.METADATA_UPDATE_OUT_OF_ORDER), otherBrokerId, metadataEpoch))
+    }
+    firstLatch.countDown()
+
+    val secondLatch = pauseEventThread(controller)
+    val resyncedState = controller.controllerContext.brokerMetadataStates(otherBrokerId)
+    assertEquals(lastMetadataEpoch + 1, controller.controllerContext.lastMetadataEpoch)
+    assertEquals(BrokerMetadataState(lastMetadataEpoch + 1, lastMetadataEpoch + 1, metadataState.liveBrokers), resyncedState)
+    secondLatch.countDown()
+
+    val otherBroker = servers.find(_.config.brokerId == otherBrokerId).get
+    TestUtils.waitUntilTrue(() => otherBroker.metadataCache.getAllTopics() == Set("t1", "t2"),
+      "Broker failed to apply the full metadata update")
+  }
+
+  /**
+   * Block the controller event thread on an event queued after the current ones. The event thread resumes once the
+   * returned latch is counted down.
+   */
+  private def pauseEventThread(controller: KafkaController): CountDownLatch = {
+    val paused = new CountDownLatch(1)
+    val resumeLatch = new CountDownLatch(1) {
+      override def await(): Unit = {
+        paused.countDown()
+        super.await()
+      }
+    }
+    controller.eventManager.put(KafkaController.AwaitOnLatch(resumeLatch))
+    assertTrue("Controller event thread failed to process the queued events", paused.await(15, TimeUnit.SECONDS))
+    resumeLatch
+  }
+
   private def testControllerMove(fun: () => Unit): Unit = {
     val controller = getController().kafkaController
     val appender = LogCaptureAppender.createAndRegister()
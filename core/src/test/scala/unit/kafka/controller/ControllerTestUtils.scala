@@ -21,14 +21,16 @@ import org.easymock.{EasyMock, IAnswer}
 object ControllerTestUtils {
 
   /** Since ControllerEvent is sealed, return a subclass of ControllerEvent created with EasyMock */
-  def createMockControllerEvent(controllerState: ControllerState, process: () => Unit): ControllerEvent = {
+  def createMockControllerEvent(controllerState: ControllerState, process: () => Unit,
+                                coalescable: Boolean = false): ControllerEvent = {
     val mockEvent: ControllerEvent = EasyMock.createNiceMock(classOf[ControllerEvent])
-    EasyMock.expect(mockEvent.state).andReturn(controllerState)
+    EasyMock.expect(mockEvent.state).andReturn(controllerState).anyTimes()
+    EasyMock.expect(mockEvent.coalescable).andReturn(coalescable).anyTimes()
     EasyMock.expect(mockEvent.process()).andAnswer(new IAnswer[Unit]() {
       def answer(): Unit = {
         process()
       }
-    })
+    }).anyTimes()
     EasyMock.replay(mockEvent)
     mockEvent
   }
@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+import java.nio.file.Files
+
+import kafka.server.KafkaConfig
+import kafka.utils.TestUtils
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.config.ConfigException
+import org.apache.kafka.common.record._
+import org.apache.kafka.common.utils.{Time, Utils}
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+import org.scalatest.Assertions.assertThrows
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+class DirectoryRemoteSegmentStoreTest {
+
+  val topicPartition = new TopicPartition("topic", 0)
+  val segments = mutable.ArrayBuffer[LogSegment]()
+  var tmpDir: File = _
+  var store: DirectoryRemoteSegmentStore = _
+
+  @Before
+  def setup(): Unit = {
+    tmpDir = TestUtils.tempDir()
+    store = new DirectoryRemoteSegmentStore
+    store.configure(Map(KafkaConfig.LogRemoteStoreDirProp -> new File(tmpDir, "remote").getPath).asJava)
+  }
+
+  @After
+  def teardown(): Unit = {
+    segments.foreach(_.close())
+    store.close()
+    Utils.delete(tmpDir)
+  }
+
+  @Test
+  def testCopyAndFetchSegment(): Unit = {
+    val segment = createClosedSegment(40, "hello", "there", "world")
+    val metadata = store.copySegment(topicPartition, segment)
+    assertEquals(RemoteSegmentMetadata(topicPartition, baseOffset = 40, nextOffset = 43, sizeInBytes = segment.size,
+      largestTimestamp = 420, hasAbortedTxns = false), metadata)
+    assertEquals(Seq(metadata), store.listSegments(topicPartition))
+    assertEquals(Seq.empty, store.listSegments(new TopicPartition("topic", 1)))
+
+    val fetchDir = new File(tmpDir, "fetched")
+    Files.createDirectories(fetchDir.toPath)
+    store.fetchSegment(metadata, fetchDir)
+    val fetched = LogSegment.open(fetchDir, 40, LogConfig(), Time.SYSTEM, fileAlreadyExists = true)
+    segments += fetched
+    assertEquals(segment.size, fetched.size)
+    assertEquals(43L, fetched.readNextOffset)
+    val read = fetched.read(startOffset = 41, maxOffset = None, maxSize = 1000)
+    assertEquals(List("there", "world"), read.records.records.asScala.map(r => TestUtils.readString(r.value)).toList)
+    assertEquals(Some(42L), fetched.findOffsetByTimestamp(420).map(_.offset))
+  }
+
+  @Test
+  def testListSegmentsInOffsetOrder(): Unit = {
+    val second = store.copySegment(topicPartition, createClosedSegment(100, "b"))
+    val first = store.copySegment(topicPartition, createClosedSegment(2, "a"))
+    assertEquals(Seq(first, second), store.listSegments(topicPartition))
+  }
+
+  @Test
+  def testCopyReplacesExistingSegment(): Unit = {
+    store.copySegment(topicPartition, createClosedSegment(0, "a"))
+    val replacement = createClosedSegment(0, "a", "b")
+    val metadata = store.copySegment(topicPartition, replacement)
+    assertEquals(Seq(metadata), store.listSegments(topicPartition))
+    assertEquals(2L, metadata.nextOffset)
+  }
+
+  @Test
+  def testIncompleteCopyNotListed(): Unit = {
+    val metadata = store.copySegment(topicPartition, createClosedSegment(0, "a"))
+    val partitionDir = new File(new File(tmpDir, "remote"), Log.logDirName(topicPartition))
+    Files.delete(new File(partitionDir,
+      Log.filenamePrefixFromOffset(metadata.baseOffset) + DirectoryRemoteSegmentStore.MetadataFileSuffix).toPath)
+    assertEquals(Seq.empty, store.listSegments(topicPartition))
+  }
+
+  @Test
+  def testDeleteSegmentAndPartition(): Unit = {
+    val first = store.copySegment(topicPartition, createClosedSegment(0, "a"))
+    val second = store.copySegment(topicPartition, createClosedSegment(1, "b"))
+    store.deleteSegment(first)
+    assertEquals(Seq(second), store.listSegments(topicPartition))
+    // deleting a segment twice is fine
+    store.deleteSegment(first)
+
+    store.deletePartition(topicPartition)
+    assertEquals(Seq.empty, store.listSegments(topicPartition))
+    assertFalse(new File(new File(tmpDir, "remote"), Log.logDirName(topicPartition)).exists)
+  }
+
+  @Test
+  def testConfigureWithoutDirectory(): Unit = {
+    assertThrows[ConfigException] {
+      new DirectoryRemoteSegmentStore().configure(Map.empty[String, String].asJava)
+    }
+  }
+
+  /* create a segment with one batch per message and make it inactive, as segments are copied once they are closed */
+  private def createClosedSegment(baseOffset: Long, values: String*): LogSegment = {
+    val dir = new File(tmpDir, s"segments-$baseOffset-${segments.size}")
+    Files.createDirectories(dir.toPath)
+    val segment = LogUtils.createSegment(baseOffset, dir)
+    segments += segment
+    values.zipWithIndex.foreach { case (value, i) =>
+      val offset = baseOffset + i
+      segment.append(largestOffset = offset, largestTimestamp = offset * 10, shallowOffsetOfMaxTimestamp = offset,
+        records = MemoryRecords.withRecords(offset, CompressionType.NONE, new SimpleRecord(offset * 10, value.getBytes)))
+    }
+    segment.onBecomeInactiveSegment()
+    segment.flush()
+    segment
+  }
+
+}
@@ -20,6 +20,8 @@ package kafka.log
 import java.io.File
 import java.util.Properties
 
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Gauge
 import kafka.server.{BrokerTopicStats, LogDirFailureChannel}
 import kafka.utils._
 import org.apache.kafka.common.TopicPartition
@@ -29,6 +31,7 @@ import org.junit.Assert._
 import org.junit.{After, Test}
 import org.scalatest.junit.JUnitSuite
 
+import scala.collection.JavaConverters._
 import scala.collection.mutable
 
 /**
@@ -86,6 +89,34 @@ class LogCleanerManagerTest extends JUnitSuite with Logging {
     assertEquals(tp2, filthiestLog.topicPartition)
   }
 
+  @Test
+  def testCleaningLagMetric(): Unit = {
+    val records = TestUtils.singletonRecords("test".getBytes)
+    val log = createLog(records.sizeInBytes * 5, LogConfig.Compact, 2)
+    val tp = new TopicPartition("cleaning-lag", 0)
+    val logs = new Pool[TopicPartition, Log]()
+    logs.put(tp, log)
+    val cleanerManager = createCleanerManager(logs, toMock = true)
+
+    def cleaningLagGauge: Option[Gauge[Long]] = Metrics.defaultRegistry.allMetrics.asScala.collectFirst {
+      case (name, gauge: Gauge[Long] @unchecked) if name.getName == "cleaning-lag-bytes" &&
+        name.getMBeanName.endsWith("topic=cleaning-lag,partition=0") => gauge
+    }
+
+    try {
+      assertEquals(tp, cleanerManager.grabFilthiestCompactedLog(time).get.topicPartition)
+      // only the segment before the active segment is cleanable
+      assertEquals(log.logSegments.head.size.toLong, cleaningLagGauge.get.value)
+
+      // the gauge is removed once the log is no longer managed by the cleaner
+      logs.remove(tp)
+      cleanerManager.grabFilthiestCompactedLog(time)
+      assertEquals(None, cleaningLagGauge)
+    } finally {
+      cleanerManager.removeMetric("cleaning-lag-bytes", Map("topic" -> tp.topic, "partition" -> tp.partition.toString))
+    }
+  }
+
   @Test
   def testGrabFilthiestCompactedLogIgnoresUncleanablePartitions(): Unit = {
     val records = TestUtils.singletonRecords("test".getBytes)
@@ -21,7 +21,7 @@ import java.io.{File, RandomAccessFile}
 import java.nio._
 import java.nio.file.Paths
 import java.util.Properties
-import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.concurrent.{CountDownLatch, ExecutorService, Executors, TimeUnit}
 
 import kafka.common._
 import kafka.server.{BrokerTopicStats, LogDirFailureChannel}
@@ -715,6 +715,55 @@ class LogCleanerTest extends JUnitSuite {
                (0 until leo.toInt by 2).forall(!keys.contains(_)))
   }
 
+  /**
+   * Test that segment groups rewritten concurrently on a worker pool produce the same log as a sequential clean
+   */
+  @Test
+  def testCleaningWithWorkerPool(): Unit = {
+    val pool = Executors.newFixedThreadPool(3)
+    try {
+      val cleaner = makeCleaner(Int.MaxValue, workerPool = Some(pool))
+      val log = makeLog()
+
+      // write several generations of the same keys so that every segment group has something to remove
+      val appends = for (round <- 0 until 5; key <- 0 until 50) yield (key, round * 100 + key)
+      writeToLog(log, appends)
+      log.roll()
+      val initialSize = log.size
+
+      val (endOffset, stats) = cleaner.clean(LogToClean(new TopicPartition("test", 0), log, 0, log.activeSegment.baseOffset))
+      assertEquals(appends.size.toLong, endOffset)
+      assertEquals(appends.size, stats.messagesRead)
+      assertEquals(initialSize, stats.bytesRead)
+      assertEquals(50, stats.messagesWritten)
+      val retained = for (segment <- log.logSegments; batch <- segment.log.batches.asScala; record <- batch.asScala)
+        yield TestUtils.readString(record.key).toInt -> TestUtils.readString(record.value).toInt
+      assertEquals((0 until 50).map(key => key -> (400 + key)).toMap, retained.toMap)
+      assertFalse("No cleaned segments should be left behind",
+        log.dir.listFiles.exists(_.getName.endsWith(Log.CleanedFileSuffix)))
+    } finally pool.shutdown()
+  }
+
+  @Test
+  def testCleaningWithWorkerPoolAbort(): Unit = {
+    val pool = Executors.newFixedThreadPool(2)
+    try {
+      // let the offset map be built on this thread, but abort as soon as a worker checks in
+      val testThread = Thread.currentThread
+      val cleaner = makeCleaner(Int.MaxValue, topicPartition => if (Thread.currentThread ne testThread) abortCheckDone(topicPartition),
+        workerPool = Some(pool))
+      val log = makeLog()
+      while (log.numberOfSegments < 4)
+        log.appendAsLeader(record(log.logEndOffset.toInt, log.logEndOffset.toInt), leaderEpoch = 0)
+
+      intercept[LogCleaningAbortedException] {
+        cleaner.doClean(LogToClean(new TopicPartition("test", 0), log, 0, log.activeSegment.baseOffset), 0L)
+      }
+      assertFalse("Cleaned segments should be deleted after an abort",
+        log.dir.listFiles.exists(_.getName.endsWith(Log.CleanedFileSuffix)))
+    } finally pool.shutdown()
+  }
+
   def testLogCleanerStats(): Unit = {
     // because loadFactor is 0.75, this means we can fit 2 messages in the map
     val cleaner = makeCleaner(2)
@@ -1496,7 +1545,8 @@ class LogCleanerTest extends JUnitSuite {
       producerIdExpirationCheckIntervalMs = LogManager.ProducerIdExpirationCheckIntervalMs,
       logDirFailureChannel = new LogDirFailureChannel(10))
 
-  private def makeCleaner(capacity: Int, checkDone: TopicPartition => Unit = _ => (), maxMessageSize: Int = 64*1024) =
+  private def makeCleaner(capacity: Int, checkDone: TopicPartition => Unit = _ => (), maxMessageSize: Int = 64*1024,
+                          workerPool: Option[ExecutorService] = None) =
     new Cleaner(id = 0,
                 offsetMap = new FakeOffsetMap(capacity),
                 ioBufferSize = maxMessageSize,
@@ -1504,7 +1554,8 @@ class LogCleanerTest extends JUnitSuite {
                 dupBufferLoadFactor = 0.75,
                 throttler = throttler,
                 time = time,
-                checkDone = checkDone)
+                checkDone = checkDone,
+                workerPool = workerPool)
 
   private def writeToLog(log: Log, seq: Iterable[(Int, Int)]): Iterable[Long] = {
     for ((key, value) <- seq) yield log.appendAsLeader(record(key, value), leaderEpoch = 0).firstOffset.get
@@ -1599,5 +1650,8 @@ class FakeOffsetMap(val slots: Int) extends OffsetMap {
     lastOffset = offset
   }
 
+  // lookups on a HashMap are safe from several threads as long as it is not modified
+  override def readOnlyView: OffsetMap = this
+
   override def toString: String = map.toString
 }
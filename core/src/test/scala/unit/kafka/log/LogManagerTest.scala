@@ -18,8 +18,11 @@
 package kafka.log
 
 import java.io._
+import java.nio.file.Files
 import java.util.Properties
 
+import com.yammer.metrics.Metrics
+import com.yammer.metrics.core.Gauge
 import kafka.server.FetchDataInfo
 import kafka.server.checkpoints.OffsetCheckpointFile
 import kafka.utils._
@@ -29,6 +32,8 @@ import org.apache.kafka.common.utils.Utils
 import org.junit.Assert._
 import org.junit.{After, Before, Test}
 
+import scala.collection.JavaConverters._
+
 class LogManagerTest {
 
   val time = new MockTime()
@@ -127,8 +132,9 @@ class LogManagerTest {
     assertEquals("Now there should only be only one segment in the index.", 1, log.numberOfSegments)
     time.sleep(log.config.fileDeleteDelayMs + 1)
 
-    // there should be a log file, two indexes, one producer snapshot, and the leader epoch checkpoint
-    assertEquals("Files should have been deleted", log.numberOfSegments * 4 + 1, log.dir.list.length)
+    // there should be a log file, two indexes, one producer snapshot, the leader epoch checkpoint and the file
+    // prepared for the next segment
+    assertEquals("Files should have been deleted", log.numberOfSegments * 4 + 2, log.dir.list.length)
     assertEquals("Should get empty fetch off new log.", 0, readLog(log, offset + 1).records.sizeInBytes)
 
     try {
@@ -176,9 +182,9 @@ class LogManagerTest {
     assertEquals("Now there should be exactly 6 segments", 6, log.numberOfSegments)
     time.sleep(log.config.fileDeleteDelayMs + 1)
 
-    // there should be a log file, two indexes (the txn index is created lazily),
-    // the leader epoch checkpoint and two producer snapshot files (one for the active and previous segments)
-    assertEquals("Files should have been deleted", log.numberOfSegments * 3 + 3, log.dir.list.length)
+    // there should be a log file, two indexes (the txn index is created lazily), the leader epoch checkpoint,
+    // two producer snapshot files (one for the active and previous segments) and the file prepared for the next segment
+    assertEquals("Files should have been deleted", log.numberOfSegments * 3 + 4, log.dir.list.length)
     assertEquals("Should get empty fetch off new log.", 0, readLog(log, offset + 1).records.sizeInBytes)
     try {
       readLog(log, 0)
@@ -314,6 +320,47 @@ class LogManagerTest {
     verifyCheckpointRecovery(Seq(new TopicPartition("test-a", 1)), logManager, logManager.liveLogDirs.head)
   }
 
+  /**
+   * Test that logs in several directories are recovered after an unclean shutdown and that their recovery points
+   * are checkpointed as soon as they are loaded
+   */
+  @Test
+  def testRecoveryPointsCheckpointedAfterUncleanShutdown() {
+    logManager.shutdown()
+    val logDirs = Seq(TestUtils.tempDir(), TestUtils.tempDir())
+    logManager = createLogManager(logDirs)
+    val topicPartitions = (0 until 4).map(new TopicPartition(name, _))
+    val logs = topicPartitions.map(logManager.getOrCreateLog(_, logConfig))
+    logs.foreach { log =>
+      for (_ <- 0 until 100)
+        log.appendAsLeader(TestUtils.singletonRecords("test".getBytes()), leaderEpoch = 0)
+    }
+    val numSegments = logs.map(_.numberOfSegments).sum
+    logManager.shutdown()
+
+    // simulate an unclean shutdown before anything was flushed
+    logDirs.foreach { dir =>
+      Files.deleteIfExists(new File(dir, Log.CleanShutdownFile).toPath)
+      new OffsetCheckpointFile(new File(dir, LogManager.RecoveryPointCheckpointFile)).write(Map.empty)
+    }
+
+    logManager = createLogManager(logDirs)
+    def gaugeValue(name: String): Long = Metrics.defaultRegistry.allMetrics.asScala.collectFirst {
+      case (metricName, gauge: Gauge[_]) if metricName.getName == name => gauge.value.asInstanceOf[Long]
+    }.get
+    assertEquals(topicPartitions.size.toLong, gaugeValue("LoadedLogs"))
+    assertEquals(numSegments.toLong, gaugeValue("LoadedLogSegments"))
+    assertEquals(numSegments.toLong, gaugeValue("RecoveredLogSegments"))
+
+    val checkpoints = logDirs.flatMap { dir =>
+      new OffsetCheckpointFile(new File(dir, LogManager.RecoveryPointCheckpointFile)).read()
+    }.toMap
+    topicPartitions.foreach { tp =>
+      assertEquals(100L, logManager.getLog(tp).get.recoveryPoint)
+      assertEquals(Some(100L), checkpoints.get(tp))
+    }
+  }
+
   private def verifyCheckpointRecovery(topicPartitions: Seq[TopicPartition], logManager: LogManager, logDir: File) {
     val logs = topicPartitions.map(logManager.getOrCreateLog(_, logConfig))
     logs.foreach { log =>
@@ -20,6 +20,8 @@ package kafka.log
 import java.io._
 import java.nio.ByteBuffer
 import java.nio.file.{Files, Paths}
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.{Callable, ForkJoinPool}
 import java.util.{Optional, Properties}
 
 import kafka.api.{ApiVersion, KAFKA_0_11_0_IV0}
@@ -53,6 +55,7 @@ class LogTest {
   val tmpDir = TestUtils.tempDir()
   val logDir = TestUtils.randomPartitionLogDir(tmpDir)
   val mockTime = new MockTime()
+  val remoteSegmentCaches = ArrayBuffer.empty[RemoteSegmentCache]
 
   @Before
   def setUp() {
@@ -62,6 +65,7 @@ class LogTest {
 
   @After
   def tearDown() {
+    remoteSegmentCaches.foreach(_.close())
     brokerTopicStats.close()
     Utils.delete(tmpDir)
   }
@@ -333,10 +337,9 @@ class LogTest {
               super.read(startOffset, maxOffset, maxSize, maxPosition, minOneMessage)
             }
 
-            override def recover(producerStateManager: ProducerStateManager,
-                                 leaderEpochCache: Option[LeaderEpochFileCache]): Int = {
+            override def recoverIndexes(): Int = {
               recoveredSegments += this
-              super.recover(producerStateManager, leaderEpochCache)
+              super.recoverIndexes()
             }
           }
           super.addSegment(wrapper)
@@ -1246,6 +1249,72 @@ class LogTest {
     assertEquals("There should be exactly 2 segments.", 2, log.numberOfSegments)
   }
 
+  @Test
+  def testRollUsesPreparedSegmentFile() {
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 1024: java.lang.Integer)
+    logProps.put(LogConfig.PreAllocateEnableProp, "true")
+    val log = createLog(logDir, LogConfig(logProps))
+    def fileKey(file: File): AnyRef = Files.readAttributes(file.toPath, classOf[BasicFileAttributes]).fileKey
+
+    // the mock scheduler prepares the file as soon as the log is loaded
+    val preparedFile = Log.preparedLogFile(logDir)
+    assertTrue(preparedFile.exists)
+    assertEquals(1024, preparedFile.length)
+    val preparedFileKey = fileKey(preparedFile)
+
+    log.appendAsLeader(TestUtils.singletonRecords(value = "test".getBytes), leaderEpoch = 0)
+    val segment = log.roll()
+    assertEquals(Log.logFile(logDir, 1L), segment.log.file)
+    assertEquals("The prepared file should have been used for the new segment", preparedFileKey, fileKey(segment.log.file))
+    assertEquals(0, segment.size)
+
+    log.appendAsLeader(TestUtils.singletonRecords(value = "test".getBytes), leaderEpoch = 0)
+    assertEquals(1L, readLog(log, 1L, 1000).records.batches.iterator.next().baseOffset)
+
+    assertTrue("The file of the next segment should be prepared again", preparedFile.exists)
+    log.close()
+    assertFalse(preparedFile.exists)
+  }
+
+  @Test
+  def testPreparedSegmentFileNotUsedAfterConfigChange() {
+    val log = createLog(logDir, LogTest.createLogConfig(segmentBytes = 1024))
+    val preparedFile = Log.preparedLogFile(logDir)
+    assertEquals(0, preparedFile.length)
+
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentBytesProp, 1024: java.lang.Integer)
+    logProps.put(LogConfig.PreAllocateEnableProp, "true")
+    log.updateConfig(Set(LogConfig.PreAllocateEnableProp), LogConfig(logProps))
+
+    log.appendAsLeader(TestUtils.singletonRecords(value = "test".getBytes), leaderEpoch = 0)
+    val segment = log.roll()
+    assertEquals(1024, segment.log.file.length)
+    assertEquals("The next file should be prepared with the new settings", 1024, preparedFile.length)
+  }
+
+  @Test
+  def testSegmentPrepareDisabled() {
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentPrepareEnableProp, "false")
+    val log = createLog(logDir, LogConfig(logProps))
+    log.appendAsLeader(TestUtils.singletonRecords(value = "test".getBytes), leaderEpoch = 0)
+    log.roll()
+    assertFalse(Log.preparedLogFile(logDir).exists)
+    assertEquals(2, log.numberOfSegments)
+  }
+
+  @Test
+  def testStrayPreparedSegmentFileDeletedOnLoad() {
+    val preparedFile = Log.preparedLogFile(logDir)
+    assertTrue(preparedFile.createNewFile())
+    val logProps = new Properties()
+    logProps.put(LogConfig.SegmentPrepareEnableProp, "false")
+    createLog(logDir, LogConfig(logProps))
+    assertFalse(preparedFile.exists)
+  }
+
   /**
    * Test that we can open and append to an empty log
    */
@@ -3202,6 +3271,77 @@ class LogTest {
     assertEquals(List(new AbortedTxn(pid1, 0L, 29L, 8L), new AbortedTxn(pid2, 8L, 74L, 36L)), abortedTransactions)
   }
 
+  @Test
+  def testConcurrentRecoveryOfUnflushedSegments(): Unit = {
+    val logConfig = LogTest.createLogConfig(segmentBytes = 128 * 2, indexIntervalBytes = 1)
+    val log = createLog(logDir, logConfig)
+    val epoch = 0.toShort
+    val pid1 = 1L
+    val pid2 = 2L
+    val appendPid1 = appendTransactionalAsLeader(log, pid1, epoch)
+    val appendPid2 = appendTransactionalAsLeader(log, pid2, epoch)
+
+    appendPid1(5) // nextOffset: 5
+    appendNonTransactionalAsLeader(log, 3) // 8
+    appendPid2(2) // 10
+    appendPid1(10) // 20
+    appendEndTxnMarkerAsLeader(log, pid1, epoch, ControlRecordType.ABORT) // 21
+    appendNonTransactionalAsLeader(log, 10) // 31
+    appendPid2(7) // 38
+    appendEndTxnMarkerAsLeader(log, pid2, epoch, ControlRecordType.ABORT) // 39
+    appendNonTransactionalAsLeader(log, 10) // 49
+    val numSegments = log.numberOfSegments
+    assertTrue(numSegments > 3)
+    val abortedTransactions = allAbortedTransactions(log)
+    val offsetIndexEntries = log.logSegments.map(_.offsetIndex.entries).toList
+    log.close()
+
+    // reopen the log without a recovery point from a fork join pool, which recovers the segments concurrently
+    val loadStats = new LogLoadStats
+    val pool = new ForkJoinPool(4)
+    val reloadedLog = try {
+      pool.submit(new Callable[Log] {
+        override def call(): Log = createLog(logDir, logConfig, loadStats = Some(loadStats))
+      }).get()
+    } finally {
+      pool.shutdown()
+    }
+
+    assertEquals(49L, reloadedLog.logEndOffset)
+    assertEquals(49L, reloadedLog.recoveryPoint)
+    assertEquals(abortedTransactions, allAbortedTransactions(reloadedLog))
+    assertEquals(offsetIndexEntries, reloadedLog.logSegments.map(_.offsetIndex.entries).toList)
+    assertEquals(1L, loadStats.numLogs)
+    assertEquals(numSegments.toLong, loadStats.numSegments)
+    assertEquals(numSegments.toLong, loadStats.numRecoveredSegments)
+  }
+
+  @Test
+  def testConcurrentRecoveryDeletesSegmentsAfterCorruption(): Unit = {
+    val logConfig = LogTest.createLogConfig(segmentBytes = 1000, indexIntervalBytes = 1)
+    var log = createLog(logDir, logConfig)
+    for (_ <- 0 until 100)
+      log.appendAsLeader(TestUtils.singletonRecords(value = "test".getBytes, timestamp = mockTime.milliseconds),
+        leaderEpoch = 0)
+    assertTrue(log.numberOfSegments > 3)
+    val corruptSegment = log.logSegments.toList(1)
+    val expectedEndOffset = corruptSegment.readNextOffset
+    log.close()
+
+    // corrupt the end of the second segment, after which the following segments are deleted
+    TestUtils.appendNonsenseToFile(corruptSegment.log.file, 100)
+    val pool = new ForkJoinPool(4)
+    log = try {
+      pool.submit(new Callable[Log] {
+        override def call(): Log = createLog(logDir, logConfig)
+      }).get()
+    } finally {
+      pool.shutdown()
+    }
+    assertEquals(2, log.numberOfSegments)
+    assertEquals(expectedEndOffset, log.logEndOffset)
+  }
+
   @Test
   def testRecoverOnlyLastSegment(): Unit = {
     val logConfig = LogTest.createLogConfig(segmentBytes = 128 * 5)
@@ -3515,6 +3655,141 @@ class LogTest {
     assertEquals(new AbortedTransaction(pid, 0), fetchDataInfo.abortedTransactions.get.head)
   }
 
+  @Test
+  def testOffloadSegmentsToRemoteStore(): Unit = {
+    val cache = createRemoteSegmentCache()
+    val recordSize = remoteTestRecords(0).sizeInBytes
+    val logConfig = LogTest.createLogConfig(segmentBytes = recordSize * 5, localRetentionMs = 1000L)
+    val log = createLog(logDir, logConfig, remoteSegmentCache = Some(cache))
+    for (i <- 0 until 50)
+      log.appendAsLeader(remoteTestRecords(i), leaderEpoch = 0)
+    assertEquals(10, log.numberOfSegments)
+
+    // segments are only moved once they are old enough, below the high watermark and flushed
+    log.onHighWatermarkIncremented(log.logEndOffset)
+    log.flush()
+    assertEquals(0, log.offloadSegments())
+    mockTime.sleep(1001)
+    log.onHighWatermarkIncremented(20L)
+    assertEquals(4, log.offloadSegments())
+    log.onHighWatermarkIncremented(log.logEndOffset)
+    assertEquals(5, log.offloadSegments())
+
+    // the active segment is never moved
+    assertEquals(1, log.numberOfSegments)
+    assertEquals(9, log.numberOfRemoteSegments)
+    assertEquals(9, cache.store.listSegments(log.topicPartition).size)
+    assertEquals(45L * recordSize, log.remoteSize)
+    assertEquals(5L * recordSize, log.size)
+    assertEquals(0L, log.logStartOffset)
+    assertEquals(50L, log.logEndOffset)
+
+    // every message can still be read, and looked up by timestamp
+    for (i <- 0 until 50) {
+      val record = readLog(log, i, 100).records.records.iterator.next()
+      assertEquals(i.toLong, record.offset)
+      assertEquals(f"value$i%02d", TestUtils.readString(record.value))
+    }
+    assertEquals(Some(0L), log.fetchOffsetByTimestamp(0L).map(_.offset))
+  }
+
+  @Test
+  def testRemoteSegmentsLoadedOnRestart(): Unit = {
+    val cache = createRemoteSegmentCache()
+    val logConfig = LogTest.createLogConfig(segmentBytes = remoteTestRecords(0).sizeInBytes * 5, localRetentionMs = 1000L)
+    val log = createOffloadedLog(logConfig, cache)
+    log.close()
+
+    val reopened = createLog(logDir, logConfig, remoteSegmentCache = Some(cache))
+    assertEquals(9, reopened.numberOfRemoteSegments)
+    assertEquals(0L, reopened.logStartOffset)
+    assertEquals(50L, reopened.logEndOffset)
+    assertEquals("value03", TestUtils.readString(readLog(reopened, 3, 100).records.records.iterator.next().value))
+  }
+
+  @Test
+  def testRetentionDeletesRemoteSegments(): Unit = {
+    val cache = createRemoteSegmentCache()
+    val segmentBytes = remoteTestRecords(0).sizeInBytes * 5
+    val logConfig = LogTest.createLogConfig(segmentBytes = segmentBytes, localRetentionMs = 1000L)
+    val log = createOffloadedLog(logConfig, cache)
+
+    // remote segments below the log start offset are deleted from the store, local ones are kept
+    log.maybeIncrementLogStartOffset(12L)
+    assertEquals(2, log.deleteOldSegments())
+    assertEquals(7, log.numberOfRemoteSegments)
+    assertEquals(7, cache.store.listSegments(log.topicPartition).size)
+    assertEquals(1, log.numberOfSegments)
+    assertThrows[OffsetOutOfRangeException] {
+      readLog(log, 10, 100)
+    }
+    assertEquals(12L, readLog(log, 12, 100).records.records.iterator.next().offset)
+
+    // the remote segments count towards the retention size and are deleted first
+    log.updateConfig(Set(LogConfig.RetentionBytesProp), LogTest.createLogConfig(segmentBytes = segmentBytes,
+      retentionBytes = segmentBytes * 3, localRetentionMs = 1000L))
+    assertEquals(5, log.deleteOldSegments())
+    assertEquals(2, log.numberOfRemoteSegments)
+    assertEquals(35L, log.logStartOffset)
+    assertEquals(1, log.numberOfSegments)
+  }
+
+  @Test
+  def testAbortedTransactionsReadFromRemoteSegments(): Unit = {
+    val cache = createRemoteSegmentCache()
+    val pid = 137L
+    val epoch = 5.toShort
+    val records = MemoryRecords.withTransactionalRecords(CompressionType.NONE, pid, epoch, 0,
+      new SimpleRecord(mockTime.milliseconds, "a".getBytes),
+      new SimpleRecord(mockTime.milliseconds, "b".getBytes),
+      new SimpleRecord(mockTime.milliseconds, "c".getBytes))
+    val logConfig = LogTest.createLogConfig(segmentBytes = records.sizeInBytes, localRetentionMs = 1000L)
+    val log = createLog(logDir, logConfig, remoteSegmentCache = Some(cache))
+
+    // the transaction spans the first two segments and is aborted in the third
+    log.appendAsLeader(records, leaderEpoch = 0)
+    log.appendAsLeader(MemoryRecords.withTransactionalRecords(CompressionType.NONE, pid, epoch, 3,
+      new SimpleRecord(mockTime.milliseconds, "d".getBytes),
+      new SimpleRecord(mockTime.milliseconds, "e".getBytes),
+      new SimpleRecord(mockTime.milliseconds, "f".getBytes)), leaderEpoch = 0)
+    val appendInfo = log.appendAsLeader(endTxnRecords(ControlRecordType.ABORT, pid, epoch),
+      isFromClient = false, leaderEpoch = 0)
+    log.onHighWatermarkIncremented(appendInfo.lastOffset + 1)
+    log.flush()
+    mockTime.sleep(1001)
+    assertEquals(2, log.offloadSegments())
+
+    val fetchDataInfo = log.read(0L, 2048, maxOffset = None, minOneMessage = true, includeAbortedTxns = true)
+    assertEquals(0L, fetchDataInfo.fetchOffsetMetadata.segmentBaseOffset)
+    assertEquals(Some(List(new AbortedTransaction(pid, 0))), fetchDataInfo.abortedTransactions)
+  }
+
+  private def remoteTestRecords(i: Int): MemoryRecords =
+    TestUtils.singletonRecords(value = f"value$i%02d".getBytes, timestamp = mockTime.milliseconds)
+
+  private def createRemoteSegmentCache(maxBytes: Long = Long.MaxValue): RemoteSegmentCache = {
+    val store = new DirectoryRemoteSegmentStore
+    store.configure(Map(KafkaConfig.LogRemoteStoreDirProp -> new File(tmpDir, "remote").getPath).asJava)
+    val cache = new RemoteSegmentCache(store, new File(tmpDir, RemoteSegmentCache.CacheDirName), maxBytes,
+      readAheadSegments = 1, fileDeleteDelayMs = 0L, mockTime.scheduler, mockTime)
+    remoteSegmentCaches += cache
+    cache
+  }
+
+  /**
+   * Create a log of 50 messages in 10 segments and move all but the active segment to the remote store
+   */
+  private def createOffloadedLog(logConfig: LogConfig, cache: RemoteSegmentCache): Log = {
+    val log = createLog(logDir, logConfig, remoteSegmentCache = Some(cache))
+    for (i <- 0 until 50)
+      log.appendAsLeader(remoteTestRecords(i), leaderEpoch = 0)
+    log.onHighWatermarkIncremented(log.logEndOffset)
+    log.flush()
+    mockTime.sleep(1001)
+    assertEquals(9, log.offloadSegments())
+    log
+  }
+
  private def allAbortedTransactions(log: Log) = log.logSegments.flatMap(_.txnIndex.allAbortedTxns)
 
   private def appendTransactionalAsLeader(log: Log, producerId: Long, producerEpoch: Short): Int => Unit = {
@@ -3602,9 +3877,11 @@ class LogTest {
                         scheduler: Scheduler = mockTime.scheduler,
                         time: Time = mockTime,
                         maxProducerIdExpirationMs: Int = 60 * 60 * 1000,
-                        producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs): Log = {
+                        producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs,
+                        remoteSegmentCache: Option[RemoteSegmentCache] = None,
+                        loadStats: Option[LogLoadStats] = None): Log = {
     LogTest.createLog(dir, config, brokerTopicStats, scheduler, time, logStartOffset, recoveryPoint,
-      maxProducerIdExpirationMs, producerIdExpirationCheckIntervalMs)
+      maxProducerIdExpirationMs, producerIdExpirationCheckIntervalMs, remoteSegmentCache, loadStats)
   }
 
   private def createLogWithOffsetOverflow(logConfig: LogConfig): (Log, LogSegment) = {
@@ -3644,7 +3921,8 @@ object LogTest {
                       indexIntervalBytes: Int = Defaults.IndexInterval,
                       segmentIndexBytes: Int = Defaults.MaxIndexSize,
                       messageFormatVersion: String = Defaults.MessageFormatVersion,
-                      fileDeleteDelayMs: Long = Defaults.FileDeleteDelayMs): LogConfig = {
+                      fileDeleteDelayMs: Long = Defaults.FileDeleteDelayMs,
+                      localRetentionMs: Long = Defaults.LocalRetentionMs): LogConfig = {
     val logProps = new Properties()
 
     logProps.put(LogConfig.SegmentMsProp, segmentMs: java.lang.Long)
@@ -3658,6 +3936,7 @@ object LogTest {
     logProps.put(LogConfig.SegmentIndexBytesProp, segmentIndexBytes: Integer)
     logProps.put(LogConfig.MessageFormatVersionProp, messageFormatVersion)
     logProps.put(LogConfig.FileDeleteDelayMsProp, fileDeleteDelayMs: java.lang.Long)
+    logProps.put(LogConfig.LocalRetentionMsProp, localRetentionMs: java.lang.Long)
     LogConfig(logProps)
   }
 
@@ -3669,7 +3948,9 @@ object LogTest {
                 logStartOffset: Long = 0L,
                 recoveryPoint: Long = 0L,
                 maxProducerIdExpirationMs: Int = 60 * 60 * 1000,
-                producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs): Log = {
+                producerIdExpirationCheckIntervalMs: Int = LogManager.ProducerIdExpirationCheckIntervalMs,
+                remoteSegmentCache: Option[RemoteSegmentCache] = None,
+                loadStats: Option[LogLoadStats] = None): Log = {
     Log(dir = dir,
       config = config,
       logStartOffset = logStartOffset,
@@ -3679,7 +3960,9 @@ object LogTest {
       time = time,
       maxProducerIdExpirationMs = maxProducerIdExpirationMs,
       producerIdExpirationCheckIntervalMs = producerIdExpirationCheckIntervalMs,
-      logDirFailureChannel = new LogDirFailureChannel(10))
+      logDirFailureChannel = new LogDirFailureChannel(10),
+      remoteSegmentCache = remoteSegmentCache,
+      loadStats = loadStats)
   }
 
   /**
@@ -20,7 +20,7 @@ import java.nio.ByteBuffer
 import java.util.concurrent.TimeUnit
 
 import kafka.common.LongRef
-import kafka.message.{CompressionCodec, DefaultCompressionCodec, GZIPCompressionCodec, NoCompressionCodec, SnappyCompressionCodec}
+import kafka.message.{CompressionCodec, DefaultCompressionCodec, GZIPCompressionCodec, LZ4CompressionCodec, NoCompressionCodec, SnappyCompressionCodec}
 import org.apache.kafka.common.errors.{InvalidTimestampException, UnsupportedForMessageFormatException}
 import org.apache.kafka.common.record._
 import org.apache.kafka.common.utils.Time
@@ -555,6 +555,152 @@ class LogValidatorTest {
       isFromClient = true)
   }
 
+  @Test
+  def testTrustedProducerNonCompressedV2() {
+    checkTrustedProducer(NoCompressionCodec)
+  }
+
+  @Test
+  def testTrustedProducerCompressedV2() {
+    checkTrustedProducer(DefaultCompressionCodec)
+  }
+
+  private def checkTrustedProducer(codec: CompressionCodec) {
+    val now = System.currentTimeMillis()
+    val timestampSeq = Seq(now - 1, now + 1, now)
+    val partitionLeaderEpoch = 40
+    val records = MemoryRecords.withRecords(RecordBatch.MAGIC_VALUE_V2, 0L, CompressionType.forId(codec.codec),
+      TimestampType.CREATE_TIME, 1324L, 10.toShort, 984, RecordBatch.NO_PARTITION_LEADER_EPOCH, false,
+      new SimpleRecord(timestampSeq(0), "hello".getBytes),
+      new SimpleRecord(timestampSeq(1), "there".getBytes),
+      new SimpleRecord(timestampSeq(2), "beautiful".getBytes))
+
+    val offsetCounter = new LongRef(100)
+    val validatedResults = LogValidator.validateMessagesAndAssignOffsets(records,
+      offsetCounter = offsetCounter,
+      time = time,
+      now = now,
+      sourceCodec = codec,
+      targetCodec = codec,
+      magic = RecordBatch.MAGIC_VALUE_V2,
+      compactedTopic = false,
+      timestampType = TimestampType.CREATE_TIME,
+      timestampDiffMaxMs = 1000L,
+      partitionLeaderEpoch = partitionLeaderEpoch,
+      isFromClient = true,
+      trustedProducer = true)
+    val validatedRecords = validatedResults.validatedRecords
+
+    assertSame("Records should be updated in place", records, validatedRecords)
+    assertEquals(103L, offsetCounter.value)
+    checkOffsets(validatedRecords, 100L)
+    for (batch <- validatedRecords.batches.asScala) {
+      assertTrue(batch.isValid)
+      assertEquals(100L, batch.baseOffset)
+      assertEquals(102L, batch.lastOffset)
+      assertEquals(partitionLeaderEpoch, batch.partitionLeaderEpoch)
+      assertEquals(TimestampType.CREATE_TIME, batch.timestampType)
+      assertEquals(now + 1, batch.maxTimestamp)
+    }
+    assertEquals(timestampSeq, validatedRecords.records.asScala.map(_.timestamp).toSeq)
+    assertEquals(now + 1, validatedResults.maxTimestamp)
+    assertEquals("Offset of max timestamp should be the last offset of its batch", 102L,
+      validatedResults.shallowOffsetOfMaxTimestamp)
+    assertFalse("Message size should not have been changed", validatedResults.messageSizeMaybeChanged)
+    assertEquals(0, validatedResults.recordConversionStats.numRecordsConverted)
+  }
+
+  @Test
+  def testTrustedProducerLogAppendTime() {
+    val now = System.currentTimeMillis()
+    val records = createRecords(magicValue = RecordBatch.MAGIC_VALUE_V2, timestamp = 0L, codec = CompressionType.GZIP)
+    val validatedResults = LogValidator.validateMessagesAndAssignOffsets(records,
+      offsetCounter = new LongRef(0),
+      time = time,
+      now = now,
+      sourceCodec = DefaultCompressionCodec,
+      targetCodec = DefaultCompressionCodec,
+      magic = RecordBatch.MAGIC_VALUE_V2,
+      compactedTopic = false,
+      timestampType = TimestampType.LOG_APPEND_TIME,
+      timestampDiffMaxMs = 1000L,
+      partitionLeaderEpoch = RecordBatch.NO_PARTITION_LEADER_EPOCH,
+      isFromClient = true,
+      trustedProducer = true)
+    assertEquals(now, validatedResults.maxTimestamp)
+    assertEquals(2L, validatedResults.shallowOffsetOfMaxTimestamp)
+    for (batch <- validatedResults.validatedRecords.batches.asScala)
+      validateLogAppendTime(now, 0L, batch)
+  }
+
+  @Test(expected = classOf[InvalidTimestampException])
+  def testTrustedProducerInvalidCreateTime() {
+    val now = System.currentTimeMillis()
+    val records = createRecords(magicValue = RecordBatch.MAGIC_VALUE_V2, timestamp = now - 1001L,
+      codec = CompressionType.NONE)
+    LogValidator.validateMessagesAndAssignOffsets(
+      records,
+      offsetCounter = new LongRef(0),
+      time = time,
+      now = now,
+      sourceCodec = NoCompressionCodec,
+      targetCodec = NoCompressionCodec,
+      compactedTopic = false,
+      magic = RecordBatch.MAGIC_VALUE_V2,
+      timestampType = TimestampType.CREATE_TIME,
+      timestampDiffMaxMs = 1000L,
+      partitionLeaderEpoch = RecordBatch.NO_PARTITION_LEADER_EPOCH,
+      isFromClient = true,
+      trustedProducer = true)
+  }
+
+  @Test(expected = classOf[InvalidRecordException])
+  def testTrustedProducerStillValidatesKeysForCompactedTopic() {
+    val records = createRecords(magicValue = RecordBatch.MAGIC_VALUE_V2, codec = CompressionType.NONE)
+    LogValidator.validateMessagesAndAssignOffsets(
+      records,
+      offsetCounter = new LongRef(0),
+      time = time,
+      now = System.currentTimeMillis(),
+      sourceCodec = NoCompressionCodec,
+      targetCodec = NoCompressionCodec,
+      compactedTopic = true,
+      magic = RecordBatch.MAGIC_VALUE_V2,
+      timestampType = TimestampType.CREATE_TIME,
+      timestampDiffMaxMs = 1000L,
+      partitionLeaderEpoch = RecordBatch.NO_PARTITION_LEADER_EPOCH,
+      isFromClient = true,
+      trustedProducer = true)
+  }
+
+  @Test
+  def testDecompressionBufferReusedAcrossValidations() {
+    def validate(): Unit = {
+      val records = createRecords(magicValue = RecordBatch.MAGIC_VALUE_V2, codec = CompressionType.LZ4)
+      LogValidator.validateMessagesAndAssignOffsets(records,
+        offsetCounter = new LongRef(0),
+        time = time,
+        now = System.currentTimeMillis(),
+        sourceCodec = LZ4CompressionCodec,
+        targetCodec = LZ4CompressionCodec,
+        compactedTopic = false,
+        magic = RecordBatch.MAGIC_VALUE_V2,
+        timestampType = TimestampType.CREATE_TIME,
+        timestampDiffMaxMs = 1000L,
+        partitionLeaderEpoch = RecordBatch.NO_PARTITION_LEADER_EPOCH,
+        isFromClient = true)
+    }
+
+    // the first validation on this thread may have to allocate the buffer
+    validate()
+    val allocations = DecompressionBufferSupplier.numAllocations
+    val reuses = DecompressionBufferSupplier.numReuses
+    validate()
+    validate()
+    assertEquals(allocations, DecompressionBufferSupplier.numAllocations)
+    assertEquals(reuses + 2, DecompressionBufferSupplier.numReuses)
+  }
+
   @Test
   def testAbsoluteOffsetAssignmentNonCompressed() {
     val records = createRecords(magicValue = RecordBatch.MAGIC_VALUE_V0, codec = CompressionType.NONE)
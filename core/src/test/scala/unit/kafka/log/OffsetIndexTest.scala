@@ -187,6 +187,105 @@ class OffsetIndexTest extends JUnitSuite {
     idx.append(baseOffset, 0)
     idx.sanityCheck()
   }
+
+  @Test
+  def testIndexMappedOnFirstLookup(): Unit = {
+    idx.append(51, 0)
+    idx.append(52, 1)
+    idx.close()
+    val reopened = new OffsetIndex(idx.file, baseOffset = idx.baseOffset)
+    try {
+      assertFalse("Index should not be mapped when it is opened", reopened.isMapped)
+      assertEquals(52, reopened.lastOffset)
+      reopened.sanityCheck()
+      assertFalse("Reading the last entry should not map the index", reopened.isMapped)
+      assertEquals(OffsetPosition(52, 1), reopened.lookup(52))
+      assertTrue("Index should be mapped after a lookup", reopened.isMapped)
+    } finally reopened.close()
+  }
+
+  @Test
+  def testMappingReleasedWhenOverBudget(): Unit = {
+    val maxMappings = IndexMmapBudget.maxMappings
+    val first = new OffsetIndex(nonExistentTempFile(), baseOffset = 0L, maxIndexSize = 10 * 8)
+    val second = new OffsetIndex(nonExistentTempFile(), baseOffset = 0L, maxIndexSize = 10 * 8)
+    try {
+      IndexMmapBudget.maxMappings = 1
+      first.append(1, 10)
+      second.append(1, 20)
+      assertFalse("Least recently used index should be unmapped", first.isMapped)
+      assertTrue(second.isMapped)
+
+      // the index is mapped again on the next access and keeps its position for appends
+      first.append(2, 30)
+      assertEquals(OffsetPosition(1, 10), first.lookup(1))
+      assertEquals(OffsetPosition(2, 30), first.lookup(2))
+      assertEquals(2, first.entries)
+      assertTrue(first.isMapped)
+      assertFalse(second.isMapped)
+      assertEquals(OffsetPosition(1, 20), second.lookup(1))
+    } finally {
+      IndexMmapBudget.maxMappings = maxMappings
+      first.deleteIfExists()
+      second.deleteIfExists()
+    }
+  }
+
+  @Test
+  def testMappingInUseIsNotReleased(): Unit = {
+    val maxMappings = IndexMmapBudget.maxMappings
+    val first = new PinnableOffsetIndex(nonExistentTempFile())
+    val second = new OffsetIndex(nonExistentTempFile(), baseOffset = 0L, maxIndexSize = 10 * 8)
+    try {
+      IndexMmapBudget.maxMappings = 1
+      first.append(1, 10)
+      first.whilePinned {
+        second.append(1, 20)
+        assertTrue("Index in use should not be unmapped", first.isMapped)
+        assertEquals(OffsetPosition(1, 10), first.lookup(1))
+      }
+      assertEquals(2, IndexMmapBudget.numMapped)
+    } finally {
+      IndexMmapBudget.maxMappings = maxMappings
+      first.deleteIfExists()
+      second.deleteIfExists()
+    }
+  }
+
+  @Test
+  def testClosedIndexIsNotTracked(): Unit = {
+    val numMapped = IndexMmapBudget.numMapped
+    val index = new OffsetIndex(nonExistentTempFile(), baseOffset = 0L, maxIndexSize = 10 * 8)
+    index.append(1, 10)
+    assertEquals(numMapped + 1, IndexMmapBudget.numMapped)
+    index.deleteIfExists()
+    assertEquals(numMapped, IndexMmapBudget.numMapped)
+  }
+
+  @Test
+  def testWarmAndColdLookupsCounted(): Unit = {
+    val numEntries = 2048
+    val index = new OffsetIndex(nonExistentTempFile(), baseOffset = 0L, maxIndexSize = numEntries * 8)
+    try {
+      for (i <- 0 until numEntries)
+        index.append(i, i)
+
+      val warmLookups = IndexLookupStats.numWarmLookups
+      val coldLookups = IndexLookupStats.numColdLookups
+      // the warm section covers the last 8KB of the index
+      assertEquals(OffsetPosition(numEntries - 10, numEntries - 10), index.lookup(numEntries - 10))
+      assertEquals(warmLookups + 1, IndexLookupStats.numWarmLookups)
+      assertEquals(coldLookups, IndexLookupStats.numColdLookups)
+
+      assertEquals(OffsetPosition(10, 10), index.lookup(10))
+      assertEquals(warmLookups + 1, IndexLookupStats.numWarmLookups)
+      assertEquals(coldLookups + 1, IndexLookupStats.numColdLookups)
+    } finally index.deleteIfExists()
+  }
+
+  private class PinnableOffsetIndex(file: File) extends OffsetIndex(file, baseOffset = 0L, maxIndexSize = 10 * 8) {
+    def whilePinned[T](fun: => T): T = maybeLock(lock)(fun)
+  }
   
   def assertWriteFails[T](message: String, idx: OffsetIndex, offset: Int, klass: Class[T]) {
     try {
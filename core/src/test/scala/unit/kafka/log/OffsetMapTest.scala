@@ -19,7 +19,7 @@ package kafka.log
 
 import java.nio._
 
-import kafka.utils.Exit
+import kafka.utils.{Exit, TestUtils}
 import org.junit._
 import org.scalatest.junit.JUnitSuite
 import org.junit.Assert._
@@ -58,7 +58,114 @@ class OffsetMapTest extends JUnitSuite {
     assertEquals(map.get(key(i-1L)), i-1L)
   }
 
+  @Test
+  def testOffHeapBasicValidation() {
+    for (items <- Seq(10, 100, 1000, 5000)) {
+      val map = new OffHeapOffsetMap((items / 0.5 * OffHeapOffsetMap.BytesPerEntry).toLong)
+      try validateMap(map, items)
+      finally map.close()
+    }
+  }
+
+  @Test
+  def testOffHeapClear() {
+    val map = new OffHeapOffsetMap(4000)
+    for(i <- 0 until 10)
+      map.put(key(i), i)
+    for(i <- 0 until 10)
+      assertEquals(i.toLong, map.get(key(i)))
+    map.clear()
+    assertEquals(0, map.size)
+    for(i <- 0 until 10)
+      assertEquals(-1L, map.get(key(i)))
+    map.close()
+  }
+
+  @Test
+  def testOffHeapGetWhenFull() {
+    val map = new OffHeapOffsetMap(4096)
+    var i = 37L  //any value would do
+    while (map.size < map.slots) {
+      map.put(key(i), i)
+      i = i + 1L
+    }
+    assertEquals(-1L, map.get(key(i)))
+    assertEquals(i - 1L, map.get(key(i - 1L)))
+    map.close()
+  }
+
+  @Test
+  def testOffHeapOverwriteAndKeyLengths() {
+    val map = new OffHeapOffsetMap(64 * 1024)
+    // cover the empty key and every tail length of the 16 byte hash blocks
+    val keys = (0 to 40).map(length => ByteBuffer.wrap(Array.tabulate[Byte](length)(_.toByte)))
+    keys.zipWithIndex.foreach { case (k, i) => map.put(k, i) }
+    keys.zipWithIndex.foreach { case (k, i) => map.put(k, i + 100) }
+    assertEquals(keys.size, map.size)
+    keys.zipWithIndex.foreach { case (k, i) =>
+      assertEquals(i + 100L, map.get(k))
+      assertEquals("Lookups should not move the key position", 0, k.position())
+    }
+    assertEquals(140L, map.latestOffset)
+    map.close()
+  }
+
+  @Test
+  def testOffHeapKeyUsesRemainingBytes() {
+    val map = new OffHeapOffsetMap(4096)
+    val buffer = ByteBuffer.wrap("xxkeyxx".getBytes)
+    buffer.position(2)
+    buffer.limit(5)
+    map.put(buffer.slice(), 5L)
+    assertEquals(5L, map.get(ByteBuffer.wrap("key".getBytes)))
+    map.close()
+  }
+
+  @Test
+  def testMemoryMappedOffHeapMap() {
+    val file = TestUtils.tempFile()
+    val map = new OffHeapOffsetMap(8192, Some(file))
+    assertEquals(map.slots.toLong * OffHeapOffsetMap.BytesPerEntry, file.length)
+    validateMap(map, map.slots / 2)
+    map.clear()
+    assertEquals(-1L, map.get(key(0)))
+    map.close()
+    assertFalse(file.exists)
+  }
+
+  @Test
+  def testReadOnlyView() {
+    for (map <- Seq(new SkimpyOffsetMap(4096), new OffHeapOffsetMap(4096))) {
+      for (i <- 0 until 10)
+        map.put(key(i), i)
+      val view = map.readOnlyView
+      assertEquals(map.size, view.size)
+      assertEquals(map.latestOffset, view.latestOffset)
+      for (i <- 0 until 10)
+        assertEquals(i.toLong, view.get(key(i)))
+      assertEquals(-1L, view.get(key(10)))
+      intercept[IllegalStateException] {
+        view.put(key(11), 11)
+      }
+      intercept[IllegalStateException] {
+        view.clear()
+      }
+      // closing a view must not release the memory of the map it was taken from
+      view.close()
+      assertEquals(5L, map.get(key(5)))
+      map.close()
+    }
+  }
+
   def key(key: Long) = ByteBuffer.wrap(key.toString.getBytes)
+
+  def validateMap(map: OffsetMap, items: Int): Unit = {
+    for(i <- 0 until items)
+      map.put(key(i), i)
+    for(i <- 0 until items)
+      assertEquals(i.toLong, map.get(key(i)))
+    assertEquals(items, map.size)
+  }
   
   def validateMap(items: Int, loadFactor: Double = 0.5): SkimpyOffsetMap = {
     val map = new SkimpyOffsetMap((items/loadFactor * 24).toInt)
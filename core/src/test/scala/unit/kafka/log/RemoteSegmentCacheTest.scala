@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.log
+
+import java.io.File
+import java.nio.file.Files
+
+import kafka.server.KafkaConfig
+import kafka.utils.{MockTime, TestUtils}
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.errors.KafkaStorageException
+import org.apache.kafka.common.record._
+import org.apache.kafka.common.utils.Utils
+import org.junit.Assert._
+import org.junit.{After, Before, Test}
+import org.scalatest.Assertions.assertThrows
+
+import scala.collection.JavaConverters._
+
+class RemoteSegmentCacheTest {
+
+  val topicPartition = new TopicPartition("topic", 0)
+  val time = new MockTime()
+  var tmpDir: File = _
+  var store: DirectoryRemoteSegmentStore = _
+  var cache: RemoteSegmentCache = _
+  var remoteSegments: Seq[RemoteSegmentMetadata] = _
+
+  @Before
+  def setup(): Unit = {
+    tmpDir = TestUtils.tempDir()
+    store = new DirectoryRemoteSegmentStore
+    store.configure(Map(KafkaConfig.LogRemoteStoreDirProp -> new File(tmpDir, "remote").getPath).asJava)
+    remoteSegments = (0 until 4).map(i => copySegment(i * 10L))
+  }
+
+  @After
+  def teardown(): Unit = {
+    if (cache != null)
+      cache.close()
+    Utils.delete(tmpDir)
+  }
+
+  @Test
+  def testFetchAndReadAhead(): Unit = {
+    cache = createCache(maxBytes = Long.MaxValue, readAheadSegments = 2)
+    val segment = cache.segment(remoteSegments.head, remoteSegments.tail)
+    assertEquals(0L, segment.baseOffset)
+    assertEquals("value00", TestUtils.readString(segment.read(0, None, 1000).records.records.iterator.next().value))
+    assertTrue(cache.isCached(remoteSegments.head))
+
+    // the read-ahead only covers the configured number of segments
+    assertTrue(cache.isCached(remoteSegments(1)))
+    assertTrue(cache.isCached(remoteSegments(2)))
+    assertFalse(cache.isCached(remoteSegments(3)))
+    assertEquals(remoteSegments.take(3).map(_.sizeInBytes.toLong).sum, cache.sizeInBytes)
+
+    // a cached segment is returned as it is
+    assertSame(segment, cache.segment(remoteSegments.head, Seq.empty))
+  }
+
+  @Test
+  def testEvictLeastRecentlyRead(): Unit = {
+    val segmentBytes = remoteSegments.head.sizeInBytes
+    cache = createCache(maxBytes = segmentBytes * 2, readAheadSegments = 0)
+    val first = cache.segment(remoteSegments(0), Seq.empty)
+    cache.segment(remoteSegments(1), Seq.empty)
+    cache.segment(remoteSegments(0), Seq.empty)
+    cache.segment(remoteSegments(2), Seq.empty)
+
+    assertTrue(cache.isCached(remoteSegments(0)))
+    assertFalse(cache.isCached(remoteSegments(1)))
+    assertTrue(cache.isCached(remoteSegments(2)))
+    assertEquals(segmentBytes * 2L, cache.sizeInBytes)
+
+    // the files of an evicted segment are only deleted after the delay
+    val evictedFile = Log.logFile(new File(cache.dir, Log.logDirName(topicPartition)), 10L, Log.DeletedFileSuffix)
+    assertTrue(evictedFile.exists)
+    time.sleep(1000)
+    assertFalse(evictedFile.exists)
+
+    // an evicted segment can be fetched again, which evicts the next least recently read one
+    assertEquals("value10", TestUtils.readString(
+      cache.segment(remoteSegments(1), Seq.empty).read(10, None, 1000).records.records.iterator.next().value))
+    assertFalse(cache.isCached(remoteSegments(0)))
+    assertTrue(cache.isCached(remoteSegments(2)))
+    assertNotSame(first, cache.segment(remoteSegments(0), Seq.empty))
+  }
+
+  @Test
+  def testSegmentLargerThanCacheIsKept(): Unit = {
+    cache = createCache(maxBytes = 1, readAheadSegments = 0)
+    cache.segment(remoteSegments(0), Seq.empty)
+    cache.segment(remoteSegments(1), Seq.empty)
+    assertFalse(cache.isCached(remoteSegments(0)))
+    assertTrue(cache.isCached(remoteSegments(1)))
+  }
+
+  @Test
+  def testInvalidate(): Unit = {
+    cache = createCache(maxBytes = Long.MaxValue, readAheadSegments = 0)
+    remoteSegments.foreach(cache.segment(_, Seq.empty))
+    cache.invalidate(remoteSegments(0))
+    assertFalse(cache.isCached(remoteSegments(0)))
+    assertTrue(cache.isCached(remoteSegments(1)))
+
+    cache.invalidate(topicPartition)
+    assertEquals(0L, cache.sizeInBytes)
+    remoteSegments.foreach(metadata => assertFalse(cache.isCached(metadata)))
+  }
+
+  @Test
+  def testFetchMissingSegment(): Unit = {
+    cache = createCache(maxBytes = Long.MaxValue, readAheadSegments = 0)
+    store.deleteSegment(remoteSegments(0))
+    assertThrows[KafkaStorageException] {
+      cache.segment(remoteSegments(0), Seq.empty)
+    }
+    assertFalse(cache.isCached(remoteSegments(0)))
+  }
+
+  private def createCache(maxBytes: Long, readAheadSegments: Int): RemoteSegmentCache =
+    new RemoteSegmentCache(store, new File(tmpDir, RemoteSegmentCache.CacheDirName), maxBytes, readAheadSegments,
+      fileDeleteDelayMs = 1000L, time.scheduler, time)
+
+  /* copy a closed segment with ten messages to the store */
+  private def copySegment(baseOffset: Long): RemoteSegmentMetadata = {
+    val dir = new File(tmpDir, s"segment-$baseOffset")
+    Files.createDirectories(dir.toPath)
+    val segment = LogUtils.createSegment(baseOffset, dir)
+    try {
+      for (offset <- baseOffset until baseOffset + 10)
+        segment.append(largestOffset = offset, largestTimestamp = offset, shallowOffsetOfMaxTimestamp = offset,
+          records = MemoryRecords.withRecords(offset, CompressionType.NONE, new SimpleRecord(offset, f"value$offset%02d".getBytes)))
+      segment.onBecomeInactiveSegment()
+      segment.flush()
+      store.copySegment(topicPartition, segment)
+    } finally {
+      segment.close()
+    }
+  }
+
+}
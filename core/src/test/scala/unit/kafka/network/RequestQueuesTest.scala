@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package kafka.network
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import kafka.utils.TestUtils
+import org.junit.Assert._
+import org.junit.Test
+
+class RequestQueuesTest {
+
+  @Test
+  def testWeightedRoundRobin(): Unit = {
+    val queues = new RequestQueues[String](10, Seq("control" -> 3, "data" -> 1))
+    val control = queues.indexOf("control")
+    val data = queues.indexOf("data")
+    (1 to 5).foreach(i => queues.put(data, s"d$i"))
+    (1 to 5).foreach(i => queues.put(control, s"c$i"))
+    assertEquals(10, queues.size)
+    assertEquals(5, queues.size(control))
+
+    val taken = (1 to 10).map(_ => queues.poll(0, TimeUnit.MILLISECONDS))
+    assertEquals(Seq("c1", "c2", "c3", "d1", "c4", "c5", "d2", "d3", "d4", "d5"), taken)
+    assertEquals(0, queues.size)
+  }
+
+  @Test
+  def testPutAll(): Unit = {
+    val queues = new RequestQueues[String](10, Seq("control" -> 1, "data" -> 1))
+    val control = queues.indexOf("control")
+    val data = queues.indexOf("data")
+    queues.putAll(Seq(data -> "d1", control -> "c1", data -> "d2"))
+    assertEquals(3, queues.size)
+    assertEquals(2, queues.size(data))
+    assertEquals(Seq("c1", "d1", "d2"), (1 to 3).map(_ => queues.take()))
+  }
+
+  @Test
+  def testEmptyQueueIsSkipped(): Unit = {
+    val queues = new RequestQueues[String](10, Seq("control" -> 1, "data" -> 1))
+    val data = queues.indexOf("data")
+    queues.put(data, "d1")
+    queues.put(data, "d2")
+    assertEquals("d1", queues.take())
+    assertEquals("d2", queues.take())
+  }
+
+  @Test
+  def testPollTimesOutWhenEmpty(): Unit = {
+    val queues = new RequestQueues[String](10, Seq("default" -> 1))
+    assertNull(queues.poll(10, TimeUnit.MILLISECONDS))
+  }
+
+  @Test
+  def testPutBlocksOnlyWhenItsQueueIsFull(): Unit = {
+    val queues = new RequestQueues[String](1, Seq("control" -> 1, "data" -> 1))
+    val control = queues.indexOf("control")
+    val data = queues.indexOf("data")
+    queues.put(data, "d1")
+    // the other queue still has room
+    queues.put(control, "c1")
+
+    val added = new CountDownLatch(1)
+    val producer = new Thread(new Runnable {
+      override def run(): Unit = {
+        queues.put(data, "d2")
+        added.countDown()
+      }
+    })
+    producer.start()
+    assertFalse(added.await(50, TimeUnit.MILLISECONDS))
+
+    assertEquals("c1", queues.take())
+    assertEquals("d1", queues.take())
+    TestUtils.waitUntilTrue(() => added.getCount == 0, "Request was not added after the queue had room")
+    assertEquals("d2", queues.take())
+    producer.join()
+  }
+
+  @Test(expected = classOf[IllegalArgumentException])
+  def testUnknownQueue(): Unit = {
+    new RequestQueues[String](10, Seq("default" -> 1)).indexOf("control")
+  }
+
+}
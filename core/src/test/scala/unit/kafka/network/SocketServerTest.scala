@@ -30,6 +30,7 @@ import kafka.security.CredentialProvider
 import kafka.server.{KafkaConfig, ThrottledChannel}
 import kafka.utils.TestUtils
 import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.errors.InvalidRequestException
 import org.apache.kafka.common.memory.MemoryPool
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.network.KafkaChannel.ChannelMuteState
@@ -304,7 +305,7 @@ class SocketServerTest extends JUnitSuite {
     @volatile var selector: TestableSelector = null
     val overrideConnectionId = "127.0.0.1:1-127.0.0.1:2-0"
     val overrideServer = new SocketServer(KafkaConfig.fromProps(props), serverMetrics, time, credentialProvider) {
-      override def newProcessor(id: Int, connectionQuotas: ConnectionQuotas, listenerName: ListenerName,
+      override def newProcessor(id: Int, requestChannel: RequestChannel, connectionQuotas: ConnectionQuotas, listenerName: ListenerName,
                                 protocol: SecurityProtocol, memoryPool: MemoryPool): Processor = {
         new Processor(id, time, config.socketRequestMaxBytes, requestChannel, connectionQuotas,
           config.connectionsMaxIdleMs, config.failedAuthenticationDelayMs, listenerName, protocol, config, metrics,
@@ -650,7 +651,7 @@ class SocketServerTest extends JUnitSuite {
     val serverMetrics = new Metrics
     var conn: Socket = null
     val overrideServer = new SocketServer(KafkaConfig.fromProps(props), serverMetrics, Time.SYSTEM, credentialProvider) {
-      override def newProcessor(id: Int, connectionQuotas: ConnectionQuotas, listenerName: ListenerName,
+      override def newProcessor(id: Int, requestChannel: RequestChannel, connectionQuotas: ConnectionQuotas, listenerName: ListenerName,
                                 protocol: SecurityProtocol, memoryPool: MemoryPool): Processor = {
         new Processor(id, time, config.socketRequestMaxBytes, requestChannel, connectionQuotas,
           config.connectionsMaxIdleMs, config.failedAuthenticationDelayMs, listenerName, protocol, config, metrics,
@@ -696,7 +697,7 @@ class SocketServerTest extends JUnitSuite {
     @volatile var selector: TestableSelector = null
     val overrideConnectionId = "127.0.0.1:1-127.0.0.1:2-0"
     val overrideServer = new SocketServer(KafkaConfig.fromProps(props), serverMetrics, Time.SYSTEM, credentialProvider) {
-      override def newProcessor(id: Int, connectionQuotas: ConnectionQuotas, listenerName: ListenerName,
+      override def newProcessor(id: Int, requestChannel: RequestChannel, connectionQuotas: ConnectionQuotas, listenerName: ListenerName,
                                 protocol: SecurityProtocol, memoryPool: MemoryPool): Processor = {
         new Processor(id, time, config.socketRequestMaxBytes, requestChannel, connectionQuotas,
           config.connectionsMaxIdleMs, config.failedAuthenticationDelayMs, listenerName, protocol, config, metrics,
@@ -775,6 +776,115 @@ class SocketServerTest extends JUnitSuite {
     }
   }
 
+  @Test
+  def testInvalidRequestBodyIsNotParsedByProcessor(): Unit = {
+    val header = new RequestHeader(ApiKeys.METADATA, ApiKeys.METADATA.latestVersion, "", 0)
+    val buffer = ByteBuffer.allocate(header.toStruct.sizeOf + 3)
+    header.toStruct.writeTo(buffer)
+    buffer.put(Array[Byte](1, 2, 3))
+
+    val socket = connect()
+    sendRequest(socket, buffer.array)
+    // the processor only parses the header, so the request is queued and fails to parse on the handler thread
+    val request = receiveRequest(server.requestChannel)
+    assertEquals(ApiKeys.METADATA, request.header.apiKey)
+    assertTrue(request.bodyParseError.exists(_.isInstanceOf[InvalidRequestException]))
+    assertEquals(0, request.sizeOfBodyInBytes)
+
+    server.requestChannel.sendResponse(new RequestChannel.CloseConnectionResponse(request))
+    try {
+      receiveResponse(socket)
+      fail("Connection of the invalid request was not closed")
+    } catch {
+      case _: IOException => // expected
+    }
+  }
+
+  @Test
+  def testRequestsReceivedIntoPooledBuffers(): Unit = {
+    val newProps = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 0)
+    newProps.setProperty(KafkaConfig.QueuedRequestBufferPoolBytesProp, "1048576")
+    val server = new SocketServer(KafkaConfig.fromProps(newProps), new Metrics(), Time.SYSTEM, credentialProvider)
+    try {
+      server.startup()
+      val socket = connect(server)
+      (0 until 3).foreach { i =>
+        val serializedBytes = producerRequestBytes(ack = i.toShort)
+        sendRequest(socket, serializedBytes)
+        val request = receiveRequest(server.requestChannel)
+        assertEquals(i.toShort, request.body[ProduceRequest].acks)
+        processRequest(server.requestChannel, request)
+        // the buffer of a produce request is released once the request has been handled
+        request.releaseBuffer()
+        assertEquals(serializedBytes.toSeq, receiveResponse(socket).toSeq)
+      }
+    } finally {
+      shutdownServerAndMetrics(server)
+    }
+  }
+
+  @Test
+  def testRequestQueueByApiKey(): Unit = {
+    val newProps = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 0)
+    newProps.setProperty(KafkaConfig.RequestQueueWeightsProp, "produce:2")
+    newProps.setProperty(KafkaConfig.RequestQueueApiKeysProp, "PRODUCE:produce")
+    val server = new SocketServer(KafkaConfig.fromProps(newProps), new Metrics(), Time.SYSTEM, credentialProvider)
+    def queueSize(queue: String): Int = YammerMetrics.defaultRegistry.allMetrics.asScala
+      .collectFirst { case (k, gauge: Gauge[_]) if k.getMBeanName ==
+        s"kafka.network:type=RequestMetrics,name=RequestQueueSize,queue=$queue" => gauge.value.asInstanceOf[Int] }
+      .getOrElse(fail(s"Missing size of request queue $queue"))
+
+    try {
+      server.startup()
+      sendRequest(connect(server), producerRequestBytes())
+      TestUtils.waitUntilTrue(() => queueSize("produce") == 1, "Produce request was not added to its queue")
+      assertEquals(0, queueSize(RequestChannel.DefaultRequestQueue))
+
+      val request = receiveRequest(server.requestChannel)
+      assertEquals(ApiKeys.PRODUCE, request.header.apiKey)
+      assertEquals(0, queueSize("produce"))
+    } finally {
+      shutdownServerAndMetrics(server)
+    }
+  }
+
+  @Test
+  def testControlPlaneRequestsBypassDataPlane(): Unit = {
+    val controlPlaneListenerName = new ListenerName("CONTROLLER")
+    val newProps = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 0)
+    newProps.setProperty(KafkaConfig.ListenersProp, "PLAINTEXT://localhost:0,CONTROLLER://localhost:0")
+    newProps.setProperty(KafkaConfig.ListenerSecurityProtocolMapProp, "PLAINTEXT:PLAINTEXT,CONTROLLER:PLAINTEXT")
+    newProps.setProperty(KafkaConfig.ControlPlaneListenerNameProp, controlPlaneListenerName.value)
+    val server = new SocketServer(KafkaConfig.fromProps(newProps), new Metrics(), Time.SYSTEM, credentialProvider)
+    def gaugeValue(mBeanName: String): Int = YammerMetrics.defaultRegistry.allMetrics.asScala
+      .collectFirst { case (k, gauge: Gauge[_]) if k.getMBeanName == mBeanName => gauge.value.asInstanceOf[Int] }
+      .getOrElse(fail(s"Missing metric $mBeanName"))
+
+    try {
+      server.startup()
+      val controlPlaneRequestChannel = server.controlPlaneRequestChannelOpt.getOrElse(fail("Missing control plane channel"))
+      assertTrue(server.controlPlaneProcessor.isDefined)
+      assertNotEquals(server.boundPort(controlPlaneListenerName), server.boundPort(ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT)))
+
+      val socket = new Socket("localhost", server.boundPort(controlPlaneListenerName))
+      sockets += socket
+      val serializedBytes = producerRequestBytes()
+      sendRequest(socket, serializedBytes)
+      TestUtils.waitUntilTrue(() => gaugeValue("kafka.network:type=RequestChannel,name=ControlPlaneRequestQueueSize") == 1,
+        "Request was not added to the control plane queue")
+      assertEquals(1, gaugeValue("kafka.network:type=RequestMetrics,name=ControlPlaneRequestQueueSize,queue=default"))
+      assertEquals(0, gaugeValue("kafka.network:type=RequestChannel,name=RequestQueueSize"))
+      assertNull(server.requestChannel.receiveRequest(0))
+
+      val request = receiveRequest(controlPlaneRequestChannel)
+      assertEquals(controlPlaneListenerName, request.context.listenerName)
+      processRequest(controlPlaneRequestChannel, request)
+      assertEquals(serializedBytes.toSeq, receiveResponse(socket).toSeq)
+    } finally {
+      shutdownServerAndMetrics(server)
+    }
+  }
+
   @Test
   def testRequestMetricsAfterStop(): Unit = {
     server.stopProcessingRequests()
@@ -1101,7 +1211,7 @@ class SocketServerTest extends JUnitSuite {
 
     @volatile var selector: Option[TestableSelector] = None
 
-    override def newProcessor(id: Int, connectionQuotas: ConnectionQuotas, listenerName: ListenerName,
+    override def newProcessor(id: Int, requestChannel: RequestChannel, connectionQuotas: ConnectionQuotas, listenerName: ListenerName,
                                 protocol: SecurityProtocol, memoryPool: MemoryPool): Processor = {
       new Processor(id, time, config.socketRequestMaxBytes, requestChannel, connectionQuotas, config.connectionsMaxIdleMs,
         config.failedAuthenticationDelayMs, listenerName, protocol, config, metrics, credentialProvider, memoryPool, new LogContext()) {
@@ -58,4 +58,27 @@ class AbstractFetcherManagerTest {
     EasyMock.verify(fetcher)
   }
 
+  @Test
+  def testPlanPartitionMoves(): Unit = {
+    val hot0 = new TopicPartition("hot", 0)
+    val hot1 = new TopicPartition("hot", 1)
+    val hot2 = new TopicPartition("hot", 2)
+    val cold = new TopicPartition("cold", 0)
+
+    // hot0 is the partition closest to half of the difference (900 bytes) and moves to the fetcher without
+    // partitions, which then becomes the busiest fetcher, but its only partition was already moved
+    val moves = AbstractFetcherManager.planPartitionMoves(Map(
+      0 -> Map(hot0 -> 1000L, hot1 -> 600L, hot2 -> 200L),
+      1 -> Map(cold -> 10L)), numFetchers = 3)
+    assertEquals(Seq(PartitionMove(hot0, fromFetcherId = 0, toFetcherId = 2)), moves)
+  }
+
+  @Test
+  def testPlanPartitionMovesWithBalancedFetchers(): Unit = {
+    val moves = AbstractFetcherManager.planPartitionMoves(Map(
+      0 -> Map(new TopicPartition("topic", 0) -> 100L),
+      1 -> Map(new TopicPartition("topic", 1) -> 110L)), numFetchers = 2)
+    assertEquals(Seq.empty, moves)
+  }
+
 }
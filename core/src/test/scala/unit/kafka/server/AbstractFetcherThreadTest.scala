@@ -28,7 +28,7 @@ import kafka.message.NoCompressionCodec
 import kafka.server.AbstractFetcherThread.ResultWithPartitions
 import kafka.utils.TestUtils
 import org.apache.kafka.common.TopicPartition
-import org.apache.kafka.common.errors.{FencedLeaderEpochException, UnknownLeaderEpochException}
+import org.apache.kafka.common.errors.{CorruptRecordException, FencedLeaderEpochException, UnknownLeaderEpochException}
 import org.apache.kafka.common.protocol.{ApiKeys, Errors}
 import org.apache.kafka.common.record._
 import org.apache.kafka.common.requests.{EpochEndOffset, FetchRequest}
@@ -73,7 +73,8 @@ class AbstractFetcherThreadTest {
 
     // wait until all fetcher metrics are present
     TestUtils.waitUntilTrue(() =>
-      allMetricsNames == Set(FetcherMetrics.BytesPerSec, FetcherMetrics.RequestsPerSec, FetcherMetrics.ConsumerLag),
+      allMetricsNames == Set(FetcherMetrics.BytesPerSec, FetcherMetrics.RequestsPerSec, FetcherMetrics.ConsumerLag,
+        FetcherMetrics.MaxLag),
       "Failed waiting for all fetcher metrics to be registered")
 
     fetcher.shutdown()
@@ -124,6 +125,24 @@ class AbstractFetcherThreadTest {
     assertEquals(2L, replicaState.highWatermark)
   }
 
+  @Test
+  def testDrainPartitionBytes(): Unit = {
+    val partition = new TopicPartition("topic", 0)
+    val fetcher = new MockFetcherThread
+
+    fetcher.setReplicaState(partition, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.addPartitions(Map(partition -> offsetAndEpoch(0L, leaderEpoch = 0)))
+
+    val batch = mkBatch(baseOffset = 0L, leaderEpoch = 0,
+      new SimpleRecord("a".getBytes), new SimpleRecord("b".getBytes))
+    val leaderState = MockFetcherThread.PartitionState(Seq(batch), leaderEpoch = 0, highWatermark = 2L)
+    fetcher.setLeaderState(partition, leaderState)
+
+    fetcher.doWork()
+    assertEquals(Map(partition -> batch.sizeInBytes.toLong), fetcher.drainPartitionBytes())
+    assertEquals(Map(partition -> 0L), fetcher.drainPartitionBytes())
+  }
+
   @Test
   def testFencedTruncation(): Unit = {
     val partition = new TopicPartition("topic", 0)
@@ -499,7 +518,162 @@ class AbstractFetcherThreadTest {
     assertEquals(2L, replicaState.logEndOffset)
   }
 
+  @Test
+  def testPipelinedFetch(): Unit = {
+    val partition1 = new TopicPartition("topic", 0)
+    val partition2 = new TopicPartition("topic", 1)
+    val fetcher = new MockFetcherThread(pipelineDepth = 3)
+
+    val batch1 = mkBatch(baseOffset = 0L, leaderEpoch = 0, new SimpleRecord("a".getBytes))
+    fetcher.setReplicaState(partition1, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.setLeaderState(partition1, MockFetcherThread.PartitionState(Seq(batch1), leaderEpoch = 0, highWatermark = 1L))
+    fetcher.addPartitions(Map(partition1 -> offsetAndEpoch(0L, leaderEpoch = 0)))
+    fetcher.doWork()
+
+    // the second fetch is sent before the data of the first one is appended, but only for the other partition
+    val batch2 = mkBatch(baseOffset = 0L, leaderEpoch = 0,
+      new SimpleRecord("b".getBytes), new SimpleRecord("c".getBytes))
+    fetcher.setReplicaState(partition2, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.setLeaderState(partition2, MockFetcherThread.PartitionState(Seq(batch2), leaderEpoch = 0, highWatermark = 2L))
+    fetcher.addPartitions(Map(partition2 -> offsetAndEpoch(0L, leaderEpoch = 0)))
+    fetcher.doWork()
+    assertEquals(Some(0L), fetcher.fetchState(partition1).map(_.fetchOffset))
+    assertEquals(Some(0L), fetcher.fetchState(partition2).map(_.fetchOffset))
+    assertEquals(0L, fetcher.replicaPartitionState(partition1).logEndOffset)
+    assertEquals(0L, fetcher.replicaPartitionState(partition2).logEndOffset)
+
+    fetcher.appendPendingData(0L)
+    assertEquals(1L, fetcher.replicaPartitionState(partition1).logEndOffset)
+    assertEquals(Some(1L), fetcher.fetchState(partition1).map(_.fetchOffset))
+    fetcher.appendPendingData(0L)
+
+    val replicaState = fetcher.replicaPartitionState(partition2)
+    assertEquals(2L, replicaState.logEndOffset)
+    assertEquals(2L, replicaState.highWatermark)
+    assertEquals(Some(2L), fetcher.fetchState(partition2).map(_.fetchOffset))
+  }
+
+  @Test
+  def testPipelinedFetchSkipsPartitionWithPendingData(): Unit = {
+    val partition = new TopicPartition("topic", 0)
+    val fetcher = new MockFetcherThread(pipelineDepth = 2) {
+      val fetchOffsets = mutable.Buffer[Long]()
+      var failAppend = true
+
+      override def fetchFromLeader(fetchRequest: FetchRequest.Builder): Seq[(TopicPartition, FetchData)] = {
+        Option(fetchRequest.fetchData.get(partition)).foreach(fetchOffsets += _.fetchOffset)
+        super.fetchFromLeader(fetchRequest)
+      }
+
+      override def processPartitionData(topicPartition: TopicPartition,
+                                        fetchOffset: Long,
+                                        partitionData: FetchData): Option[LogAppendInfo] = {
+        if (failAppend) {
+          failAppend = false
+          throw new CorruptRecordException("Simulated append failure")
+        }
+        super.processPartitionData(topicPartition, fetchOffset, partitionData)
+      }
+    }
+
+    fetcher.setReplicaState(partition, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.addPartitions(Map(partition -> offsetAndEpoch(0L, leaderEpoch = 0)))
+
+    val batch = mkBatch(baseOffset = 0L, leaderEpoch = 0,
+      new SimpleRecord("a".getBytes), new SimpleRecord("b".getBytes))
+    val leaderState = MockFetcherThread.PartitionState(Seq(batch), leaderEpoch = 0, highWatermark = 2L)
+    fetcher.setLeaderState(partition, leaderState)
+
+    // the partition is not fetched again while its data is waiting to be appended
+    fetcher.doWork()
+    fetcher.doWork()
+    assertEquals(Seq(0L), fetcher.fetchOffsets)
+
+    // the append fails, so the next fetch must not skip the data which was not appended
+    fetcher.appendPendingData(0L)
+    assertEquals(0L, fetcher.replicaPartitionState(partition).logEndOffset)
+    assertEquals(Some(0L), fetcher.fetchState(partition).map(_.fetchOffset))
+    fetcher.doWork()
+    assertEquals(Seq(0L, 0L), fetcher.fetchOffsets)
+
+    fetcher.appendPendingData(0L)
+    assertEquals(2L, fetcher.replicaPartitionState(partition).logEndOffset)
+    assertEquals(Some(2L), fetcher.fetchState(partition).map(_.fetchOffset))
+  }
+
+  @Test
+  def testPipelinedFetchDoesNotWaitWhilePartitionsArePending(): Unit = {
+    val hot = new TopicPartition("hot", 0)
+    val idle = new TopicPartition("idle", 0)
+    val fetcher = new MockFetcherThread(pipelineDepth = 2) {
+      val sentFetches = mutable.Buffer[(Set[TopicPartition], Int)]()
+
+      override def fetchFromLeader(fetchRequest: FetchRequest.Builder): Seq[(TopicPartition, FetchData)] = {
+        sentFetches += ((fetchRequest.fetchData.keySet.asScala.toSet, fetchRequest.build().maxWait))
+        super.fetchFromLeader(fetchRequest)
+      }
+    }
+
+    val batches = Seq(
+      mkBatch(baseOffset = 0L, leaderEpoch = 0, new SimpleRecord("a".getBytes)),
+      mkBatch(baseOffset = 1L, leaderEpoch = 0, new SimpleRecord("b".getBytes)))
+    fetcher.setReplicaState(hot, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.setLeaderState(hot, MockFetcherThread.PartitionState(batches, leaderEpoch = 0, highWatermark = 2L))
+    fetcher.addPartitions(Map(hot -> offsetAndEpoch(0L, leaderEpoch = 0)))
+    fetcher.doWork()
+
+    // the fetch of the idle partition is sent while the data of the hot partition is appended, it must not wait on
+    // the leader so that the hot partition is fetched again as soon as its data is appended
+    fetcher.setReplicaState(idle, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.setLeaderState(idle, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.addPartitions(Map(idle -> offsetAndEpoch(0L, leaderEpoch = 0)))
+    fetcher.doWork()
+
+    fetcher.appendPendingData(0L)
+    fetcher.appendPendingData(0L)
+    fetcher.doWork()
+    assertEquals(Seq(
+      (Set(hot), MockFetcherThread.MaxWaitMs),
+      (Set(idle), 0),
+      (Set(hot, idle), MockFetcherThread.MaxWaitMs)), fetcher.sentFetches)
+
+    fetcher.appendPendingData(0L)
+    assertEquals(2L, fetcher.replicaPartitionState(hot).logEndOffset)
+  }
+
+  @Test
+  def testPipelinedFetchSkipsDataOfTruncatedPartition(): Unit = {
+    val partition = new TopicPartition("topic", 0)
+    val fetcher = new MockFetcherThread(pipelineDepth = 2)
+
+    fetcher.setReplicaState(partition, MockFetcherThread.PartitionState(leaderEpoch = 0))
+    fetcher.addPartitions(Map(partition -> offsetAndEpoch(0L, leaderEpoch = 0)))
+
+    val batch = mkBatch(baseOffset = 0L, leaderEpoch = 0,
+      new SimpleRecord("a".getBytes), new SimpleRecord("b".getBytes))
+    val leaderState = MockFetcherThread.PartitionState(Seq(batch), leaderEpoch = 0, highWatermark = 2L)
+    fetcher.setLeaderState(partition, leaderState)
+
+    // the fetch offset is only advanced once the fetched data is appended
+    fetcher.doWork()
+    assertEquals(Some(0L), fetcher.fetchState(partition).map(_.fetchOffset))
+
+    // the pending data must not be appended once the partition is marked for truncation
+    fetcher.markPartitionsForTruncation(partition, 0L)
+    fetcher.appendPendingData(0L)
+    assertEquals(0L, fetcher.replicaPartitionState(partition).logEndOffset)
+    assertEquals(Some(Truncating), fetcher.fetchState(partition).map(_.state))
+
+    // the data is fetched again after the truncation
+    fetcher.doWork()
+    fetcher.appendPendingData(0L)
+    assertEquals(2L, fetcher.replicaPartitionState(partition).logEndOffset)
+    assertEquals(Some(2L), fetcher.fetchState(partition).map(_.fetchOffset))
+  }
+
   object MockFetcherThread {
+    val MaxWaitMs = 500
+
     class PartitionState(var log: mutable.Buffer[RecordBatch],
                          var leaderEpoch: Int,
                          var logStartOffset: Long,
@@ -519,10 +693,11 @@ class AbstractFetcherThreadTest {
     }
   }
 
-  class MockFetcherThread(val replicaId: Int = 0, val leaderId: Int = 1)
+  class MockFetcherThread(val replicaId: Int = 0, val leaderId: Int = 1, pipelineDepth: Int = 1)
     extends AbstractFetcherThread("mock-fetcher",
       clientId = "mock-fetcher",
-      sourceBroker = new BrokerEndPoint(leaderId, host = "localhost", port = Random.nextInt())) {
+      sourceBroker = new BrokerEndPoint(leaderId, host = "localhost", port = Random.nextInt()),
+      pipelineDepth = pipelineDepth) {
 
     import MockFetcherThread.PartitionState
 
@@ -618,7 +793,8 @@ class AbstractFetcherThreadTest {
             1024 * 1024, Optional.of[Integer](state.currentLeaderEpoch)))
         }
       }
-      val fetchRequest = FetchRequest.Builder.forReplica(ApiKeys.FETCH.latestVersion, replicaId, 0, 1, fetchData.asJava)
+      val maxWait = if (hasPendingAppends) 0 else MockFetcherThread.MaxWaitMs
+      val fetchRequest = FetchRequest.Builder.forReplica(ApiKeys.FETCH.latestVersion, replicaId, maxWait, 1, fetchData.asJava)
       ResultWithPartitions(Some(fetchRequest), Set.empty)
     }
 
@@ -24,6 +24,7 @@ import java.util.concurrent.locks.ReentrantLock
 
 import kafka.utils.CoreUtils.inLock
 import kafka.utils.TestUtils
+import kafka.utils.timer.SystemTimer
 import org.apache.kafka.common.utils.Time
 import org.junit.{After, Before, Test}
 import org.junit.Assert._
@@ -109,6 +110,37 @@ class DelayedOperationTest {
     assertEquals("Purgatory should have 1 watched elements instead of " + purgatory.watched, 1, purgatory.watched)
   }
 
+  @Test
+  def testPurgeAcrossShards(): Unit = {
+    val shardedPurgatory = new DelayedOperationPurgatory[MockDelayedOperation]("sharded", new SystemTimer("sharded"),
+      purgeInterval = 0, reaperEnabled = false, shards = 4)
+    try {
+      // keys with negative hash codes are spread over the shards too
+      val keys = (-10 until 10).map(i => if (i % 2 == 0) i else s"key$i")
+      val operations = keys.map { key =>
+        val operation = new MockDelayedOperation(100000L)
+        assertFalse(shardedPurgatory.tryCompleteElseWatch(operation, Seq(key)))
+        operation
+      }
+      assertEquals(keys.size, shardedPurgatory.watched)
+      assertEquals(keys.size, shardedPurgatory.delayed)
+
+      // complete the operations without checking their keys so that they are left in the watch lists
+      operations.foreach { operation =>
+        operation.completable = true
+        operation.tryComplete()
+      }
+      assertEquals(0, shardedPurgatory.delayed)
+      assertEquals(keys.size, shardedPurgatory.watched)
+
+      shardedPurgatory.advanceClock(0L)
+      assertEquals(0, shardedPurgatory.watched)
+      keys.foreach(key => assertEquals(0, shardedPurgatory.checkAndComplete(key)))
+    } finally {
+      shardedPurgatory.shutdown()
+    }
+  }
+
   @Test
   def shouldCancelForKeyReturningCancelledOperations() {
     purgatory.tryCompleteElseWatch(new MockDelayedOperation(10000L), Seq("key"))
@@ -33,7 +33,7 @@ import kafka.server.QuotaFactory.QuotaManagers
 import kafka.utils.{MockTime, TestUtils}
 import kafka.zk.KafkaZkClient
 import org.apache.kafka.common.TopicPartition
-import org.apache.kafka.common.errors.UnsupportedVersionException
+import org.apache.kafka.common.errors.{MetadataUpdateOutOfOrderException, UnsupportedVersionException}
 import org.apache.kafka.common.memory.MemoryPool
 import org.apache.kafka.common.metrics.Metrics
 import org.apache.kafka.common.network.ListenerName
@@ -270,7 +270,8 @@ class KafkaApisTest {
       EasyMock.anyObject(),
       EasyMock.capture(responseCallback),
       EasyMock.anyObject(),
-      EasyMock.anyObject())).andAnswer(new IAnswer[Unit] {
+      EasyMock.anyObject(),
+      EasyMock.anyBoolean())).andAnswer(new IAnswer[Unit] {
       override def answer(): Unit = {
         responseCallback.getValue.apply(Map(tp2 -> new PartitionResponse(Errors.NONE)))
       }
@@ -309,7 +310,8 @@ class KafkaApisTest {
       EasyMock.anyObject(),
       EasyMock.capture(responseCallback),
       EasyMock.anyObject(),
-      EasyMock.anyObject())).andAnswer(new IAnswer[Unit] {
+      EasyMock.anyObject(),
+      EasyMock.anyBoolean())).andAnswer(new IAnswer[Unit] {
       override def answer(): Unit = {
         responseCallback.getValue.apply(Map(tp2 -> new PartitionResponse(Errors.NONE)))
       }
@@ -340,7 +342,8 @@ class KafkaApisTest {
       EasyMock.anyObject(),
       EasyMock.anyObject(),
       EasyMock.anyObject(),
-      EasyMock.anyObject()))
+      EasyMock.anyObject(),
+      EasyMock.anyBoolean()))
 
     EasyMock.replay(replicaManager)
 
@@ -411,6 +414,25 @@ class KafkaApisTest {
     testConsumerListOffsetLatest(IsolationLevel.READ_COMMITTED)
   }
 
+  @Test
+  def testUpdateMetadataRequestOutOfOrder(): Unit = {
+    val (updateMetadataRequest, request) = buildRequest(new UpdateMetadataRequest.Builder(
+      ApiKeys.UPDATE_METADATA.latestVersion, 0, 0, 0, Map.empty[TopicPartition, UpdateMetadataRequest.PartitionState].asJava,
+      Collections.emptySet[Broker](), 2L, false, Collections.emptySet[Integer]()))
+    val capturedResponse: Capture[RequestChannel.Response] = EasyMock.newCapture()
+
+    EasyMock.expect(replicaManager.maybeUpdateMetadataCache(EasyMock.anyInt(), EasyMock.anyObject[UpdateMetadataRequest]()))
+      .andThrow(new MetadataUpdateOutOfOrderException("Missed metadata epoch 1"))
+    EasyMock.expect(requestChannel.sendResponse(EasyMock.capture(capturedResponse)))
+    EasyMock.replay(replicaManager, requestChannel)
+
+    createKafkaApis().handleUpdateMetadataRequest(request)
+
+    val response = readResponse(ApiKeys.UPDATE_METADATA, updateMetadataRequest, capturedResponse)
+      .asInstanceOf[UpdateMetadataResponse]
+    assertEquals(Errors.METADATA_UPDATE_OUT_OF_ORDER, response.error)
+  }
+
   /**
    * Verifies that the metadata response is correct if the broker listeners are inconsistent (i.e. one broker has
    * more listeners than another) and the request is sent on the listener that exists in both brokers.
@@ -316,6 +316,37 @@ class KafkaConfigTest {
     assertFalse(isValidKafkaConfig(props))
   }
 
+  @Test
+  def testControlPlaneListenerName(): Unit = {
+    val props = new Properties()
+    props.put(KafkaConfig.BrokerIdProp, "1")
+    props.put(KafkaConfig.ZkConnectProp, "localhost:2181")
+
+    props.put(KafkaConfig.ListenersProp, "PLAINTEXT://localhost:9091,CONTROLLER://localhost:9092")
+    props.put(KafkaConfig.ListenerSecurityProtocolMapProp, "PLAINTEXT:PLAINTEXT,CONTROLLER:SSL")
+    val config = KafkaConfig.fromProps(props)
+    assertEquals(None, config.controlPlaneListenerName)
+    assertEquals(None, config.controlPlaneListener)
+    assertEquals(config.listeners, config.dataPlaneListeners)
+
+    props.put(KafkaConfig.ControlPlaneListenerNameProp, "CONTROLLER")
+    val controlPlaneConfig = KafkaConfig.fromProps(props)
+    val controlPlaneListener = EndPoint("localhost", 9092, new ListenerName("CONTROLLER"), SecurityProtocol.SSL)
+    assertEquals(Some(new ListenerName("CONTROLLER")), controlPlaneConfig.controlPlaneListenerName)
+    assertEquals(Some(controlPlaneListener), controlPlaneConfig.controlPlaneListener)
+    assertEquals(Seq(EndPoint("localhost", 9091, new ListenerName("PLAINTEXT"), SecurityProtocol.PLAINTEXT)),
+      controlPlaneConfig.dataPlaneListeners)
+
+    // the control plane listener must be advertised
+    props.put(KafkaConfig.AdvertisedListenersProp, "PLAINTEXT://localhost:9091")
+    assertFalse(isValidKafkaConfig(props))
+    props.remove(KafkaConfig.AdvertisedListenersProp)
+
+    // the control plane listener must not be the inter-broker listener
+    props.put(KafkaConfig.InterBrokerListenerNameProp, "CONTROLLER")
+    assertFalse(isValidKafkaConfig(props))
+  }
+
   @Test
   def testInterBrokerListenerNameAndSecurityProtocolSet(): Unit = {
     val props = new Properties()
@@ -442,6 +473,24 @@ class KafkaConfigTest {
     }
   }
 
+  @Test
+  def testInvalidRequestQueuesThrowConfigException() {
+    def assertConfigException(name: String, value: String): Unit = {
+      val props = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 8181)
+      props.put(KafkaConfig.RequestQueueWeightsProp, "control:4")
+      props.put(name, value)
+      intercept[ConfigException] {
+        KafkaConfig.fromProps(props)
+      }
+    }
+
+    assertConfigException(KafkaConfig.RequestQueueWeightsProp, "control:x")
+    assertConfigException(KafkaConfig.RequestQueueWeightsProp, "control:0")
+    assertConfigException(KafkaConfig.RequestQueueApiKeysProp, "NOT_AN_API:control")
+    assertConfigException(KafkaConfig.RequestQueueApiKeysProp, "HEARTBEAT:coordinator")
+    assertConfigException(KafkaConfig.RequestQueueListenersProp, "PLAINTEXT:coordinator")
+  }
+
   @Test
   def testLogRollTimeMsProvided() {
     val props = TestUtils.createBrokerConfig(0, TestUtils.MockZkConnect, port = 8181)
@@ -573,6 +622,10 @@ class KafkaConfigTest {
         case KafkaConfig.QueuedMaxRequestsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "0")
         case KafkaConfig.NumReplicaAlterLogDirsThreadsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
         case KafkaConfig.QueuedMaxBytesProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
+        case KafkaConfig.QueuedRequestBufferPoolBytesProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "-1")
+        case KafkaConfig.RequestQueueWeightsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_map", "control:0", "control:x")
+        case KafkaConfig.RequestQueueApiKeysProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_map", "NOT_AN_API:default", "HEARTBEAT:control")
+        case KafkaConfig.RequestQueueListenersProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_map", "PLAINTEXT:control")
         case KafkaConfig.RequestTimeoutMsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
 
         case KafkaConfig.AuthorizerClassNameProp => //ignore string
@@ -592,6 +645,10 @@ class KafkaConfigTest {
         case KafkaConfig.NumPartitionsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "0")
         case KafkaConfig.LogDirsProp => // ignore string
         case KafkaConfig.LogDirProp => // ignore string
+        case KafkaConfig.LogRemoteStoreDirProp => // ignore string
+        case KafkaConfig.TrustedProducerListenersProp => // ignore string
+        case KafkaConfig.TrustedProducerPrincipalsProp => // ignore string
+        case KafkaConfig.LogLocalRetentionMsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "-2")
         case KafkaConfig.LogSegmentBytesProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", Records.LOG_OVERHEAD - 1)
 
         case KafkaConfig.LogRollTimeMillisProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "0")
@@ -612,6 +669,7 @@ class KafkaConfigTest {
         case KafkaConfig.LogCleanerMinCompactionLagMsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
         case KafkaConfig.LogCleanerMinCleanRatioProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
         case KafkaConfig.LogIndexSizeMaxBytesProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "3")
+        case KafkaConfig.LogIndexMmapMaxCountProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "0")
         case KafkaConfig.LogFlushIntervalMessagesProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "0")
         case KafkaConfig.LogFlushSchedulerIntervalMsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
         case KafkaConfig.LogFlushIntervalMsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
@@ -621,6 +679,7 @@ class KafkaConfigTest {
         case KafkaConfig.AutoCreateTopicsEnableProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_boolean", "0")
         case KafkaConfig.MinInSyncReplicasProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "0")
         case KafkaConfig.ControllerSocketTimeoutMsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
+        case KafkaConfig.ControllerZkWriteBatchSizeProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "0")
         case KafkaConfig.DefaultReplicationFactorProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
         case KafkaConfig.ReplicaLagTimeMaxMsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number")
         case KafkaConfig.ReplicaSocketTimeoutMsProp => assertPropertyInvalid(getBaseProperties(), name, "not_a_number", "-2")
@@ -20,7 +20,9 @@ import java.util
 import java.util.Optional
 import util.Arrays.asList
 
+import kafka.api.LeaderAndIsr
 import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.errors.MetadataUpdateOutOfOrderException
 import org.apache.kafka.common.network.ListenerName
 import org.apache.kafka.common.protocol.{ApiKeys, Errors}
 import org.apache.kafka.common.requests.UpdateMetadataRequest
@@ -364,4 +366,148 @@ class MetadataCacheTest {
     assertEquals(initialBrokerIds, aliveBrokersFromCache.map(_.id).toSet)
   }
 
+  @Test
+  def getTopicMetadataShouldReuseMetadataOfTopicsNotUpdated() {
+    val cache = new MetadataCache(1)
+    val listenerName = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT)
+    val controllerEpoch = 1
+
+    def updateCache(brokerIds: Set[Int], partitionStates: Map[TopicPartition, UpdateMetadataRequest.PartitionState]) {
+      val brokers = brokerIds.map { brokerId =>
+        new Broker(brokerId, Seq(new EndPoint("foo", 9092, SecurityProtocol.PLAINTEXT, listenerName)).asJava, "")
+      }
+      val version = ApiKeys.UPDATE_METADATA.latestVersion
+      val updateMetadataRequest = new UpdateMetadataRequest.Builder(version, 2, controllerEpoch, brokerEpoch,
+        partitionStates.asJava, brokers.asJava).build()
+      cache.updateMetadata(15, updateMetadataRequest)
+    }
+
+    def partitionState(leaderEpoch: Int) =
+      new UpdateMetadataRequest.PartitionState(controllerEpoch, 0, leaderEpoch, asList(0, 1), 3, asList(0, 1), asList())
+
+    def topicMetadata(topic: String) = cache.getTopicMetadata(Set(topic), listenerName).head
+
+    val brokerIds = (0 to 2).toSet
+    updateCache(brokerIds, Map(new TopicPartition("topic-0", 0) -> partitionState(0),
+      new TopicPartition("topic-1", 0) -> partitionState(0)))
+    val topic0Metadata = topicMetadata("topic-0")
+    val topic1Metadata = topicMetadata("topic-1")
+    assertSame(topic0Metadata, topicMetadata("topic-0"))
+    assertEquals(3, cache.getAliveBrokerNodes(listenerName).size)
+
+    // only the metadata of the updated topic is built again
+    updateCache(brokerIds, Map(new TopicPartition("topic-1", 0) -> partitionState(1)))
+    assertSame(topic0Metadata, topicMetadata("topic-0"))
+    assertNotSame(topic1Metadata, topicMetadata("topic-1"))
+    assertEquals(Optional.of(1), topicMetadata("topic-1").partitionMetadata.get(0).leaderEpoch)
+
+    // a change of the alive brokers invalidates the metadata of all the topics
+    updateCache(brokerIds - 2, Map.empty)
+    assertNotSame(topic0Metadata, topicMetadata("topic-0"))
+    assertEquals(2, cache.getAliveBrokerNodes(listenerName).size)
+  }
+
+  @Test
+  def updateMetadataShouldOnlyChangeThePartitionsOfTheUpdatedTopics() {
+    val cache = new MetadataCache(1)
+    val listenerName = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT)
+    val controllerEpoch = 1
+    val brokers = Set(new Broker(0, Seq(new EndPoint("foo", 9092, SecurityProtocol.PLAINTEXT, listenerName)).asJava, ""))
+
+    def updateCache(partitionStates: Map[TopicPartition, UpdateMetadataRequest.PartitionState]): Seq[TopicPartition] = {
+      val version = ApiKeys.UPDATE_METADATA.latestVersion
+      val updateMetadataRequest = new UpdateMetadataRequest.Builder(version, 2, controllerEpoch, brokerEpoch,
+        partitionStates.asJava, brokers.asJava).build()
+      cache.updateMetadata(15, updateMetadataRequest)
+    }
+
+    def partitionState(leader: Int, leaderEpoch: Int) =
+      new UpdateMetadataRequest.PartitionState(controllerEpoch, leader, leaderEpoch, asList(0), 3, asList(0), asList())
+
+    val tp0 = new TopicPartition("topic-0", 0)
+    val tp1 = new TopicPartition("topic-0", 1)
+    val tp2 = new TopicPartition("topic-1", 0)
+    updateCache(Map(tp0 -> partitionState(0, 0), tp1 -> partitionState(0, 0), tp2 -> partitionState(0, 0)))
+    val tp2State = cache.getPartitionInfo(tp2.topic, tp2.partition)
+
+    val deleted = updateCache(Map(tp1 -> partitionState(LeaderAndIsr.LeaderDuringDelete, 0),
+      tp0 -> partitionState(0, 1)))
+    assertEquals(Seq(tp1), deleted)
+    assertEquals(1, cache.getPartitionInfo(tp0.topic, tp0.partition).get.basePartitionState.leaderEpoch)
+    assertFalse(cache.contains(tp1))
+    assertEquals(tp2State, cache.getPartitionInfo(tp2.topic, tp2.partition))
+
+    // deleting the last partition of a topic removes the topic
+    updateCache(Map(tp2 -> partitionState(LeaderAndIsr.LeaderDuringDelete, 0)))
+    assertEquals(Set(tp0.topic), cache.getAllTopics())
+    assertTrue(cache.contains(tp0))
+  }
+
+  @Test
+  def updateMetadataShouldApplyIncrementalUpdatesInSequence() {
+    val cache = new MetadataCache(1)
+    val listenerName = ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT)
+    val controllerEpoch = 1
+
+    def updateCache(metadataEpoch: Long, fullUpdate: Boolean, brokerIds: Set[Int], removedBrokerIds: Set[Int],
+                    partitionStates: Map[TopicPartition, UpdateMetadataRequest.PartitionState]): Seq[TopicPartition] = {
+      val brokers = brokerIds.map { brokerId =>
+        new Broker(brokerId, Seq(new EndPoint("foo", 9092, SecurityProtocol.PLAINTEXT, listenerName)).asJava, "")
+      }
+      val version = ApiKeys.UPDATE_METADATA.latestVersion
+      val updateMetadataRequest = new UpdateMetadataRequest.Builder(version, 2, controllerEpoch, brokerEpoch,
+        partitionStates.asJava, brokers.asJava, metadataEpoch, fullUpdate,
+        removedBrokerIds.map(Integer.valueOf).asJava).build()
+      cache.updateMetadata(15, updateMetadataRequest)
+    }
+
+    def partitionState(leader: Int, leaderEpoch: Int) =
+      new UpdateMetadataRequest.PartitionState(controllerEpoch, leader, leaderEpoch, asList(0), 3, asList(0), asList())
+
+    def aliveBrokerIds: Set[Int] = cache.getAliveBrokers.map(_.id).toSet
+
+    val tp0 = new TopicPartition("topic-0", 0)
+    val tp1 = new TopicPartition("topic-1", 0)
+
+    // an incremental update is rejected until a full update starts the sequence
+    try {
+      updateCache(0, fullUpdate = false, Set(0), Set.empty, Map(tp0 -> partitionState(0, 0)))
+      fail("Expected the update to be rejected")
+    } catch {
+      case _: MetadataUpdateOutOfOrderException => // expected
+    }
+    assertFalse(cache.contains(tp0))
+
+    updateCache(5, fullUpdate = true, Set(0, 1, 2), Set.empty,
+      Map(tp0 -> partitionState(0, 0), tp1 -> partitionState(1, 0)))
+    assertEquals(Set(0, 1, 2), aliveBrokerIds)
+
+    // the incremental update only carries the changes
+    updateCache(6, fullUpdate = false, Set(3), Set(2), Map(tp0 -> partitionState(1, 1)))
+    assertEquals(Set(0, 1, 3), aliveBrokerIds)
+    assertEquals(1, cache.getPartitionInfo(tp0.topic, tp0.partition).get.basePartitionState.leaderEpoch)
+    assertTrue(cache.contains(tp1))
+
+    // an update which does not follow the last applied one leaves the cache unchanged
+    try {
+      updateCache(8, fullUpdate = false, Set.empty, Set(0), Map(tp1 -> partitionState(0, 1)))
+      fail("Expected the update to be rejected")
+    } catch {
+      case _: MetadataUpdateOutOfOrderException => // expected
+    }
+    assertEquals(Set(0, 1, 3), aliveBrokerIds)
+    assertEquals(0, cache.getPartitionInfo(tp1.topic, tp1.partition).get.basePartitionState.leaderEpoch)
+
+    // a full update replaces the brokers and the partitions
+    val deleted = updateCache(9, fullUpdate = true, Set(0, 1), Set.empty,
+      Map(tp0 -> partitionState(LeaderAndIsr.LeaderDuringDelete, 1), tp1 -> partitionState(0, 1)))
+    assertEquals(Seq(tp0), deleted)
+    assertEquals(Set(0, 1), aliveBrokerIds)
+    assertEquals(Set(tp1.topic), cache.getAllTopics())
+    assertEquals(1, cache.getPartitionInfo(tp1.topic, tp1.partition).get.basePartitionState.leaderEpoch)
+
+    updateCache(10, fullUpdate = false, Set.empty, Set.empty, Map(tp1 -> partitionState(1, 2)))
+    assertEquals(2, cache.getPartitionInfo(tp1.topic, tp1.partition).get.basePartitionState.leaderEpoch)
+  }
+
 }
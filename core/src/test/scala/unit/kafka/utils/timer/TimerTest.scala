@@ -70,6 +70,57 @@ class TimerTest {
 
   @Test
   def testTaskExpiration(): Unit = {
+    verifyTaskExpiration(timer)
+  }
+
+  @Test
+  def testTaskExpirationPooled(): Unit = {
+    val pooledTimer = new SystemTimer("test-pooled", tickMs = 1, wheelSize = 3, pooled = true)
+    try {
+      verifyTaskExpiration(pooledTimer)
+      assertEquals(0, pooledTimer.size)
+      assertTrue("entries of expired tasks should be returned to the pool", pooledTimer.pooledEntries > 0)
+    } finally {
+      pooledTimer.shutdown()
+    }
+  }
+
+  @Test
+  def testCancelledTaskEntryIsReused(): Unit = {
+    val pooledTimer = new SystemTimer("test-pooled", tickMs = 1, wheelSize = 3, pooled = true)
+    try {
+      val output = new ArrayBuffer[Int]()
+      val cancelled = new TestTask(100000L, 1, new CountDownLatch(1), output)
+      pooledTimer.add(cancelled)
+      cancelled.cancel()
+      assertEquals(0, pooledTimer.size)
+      assertEquals(1, pooledTimer.pooledEntries)
+      // cancelling again must not release the entry twice
+      cancelled.cancel()
+      assertEquals(1, pooledTimer.pooledEntries)
+
+      val latch = new CountDownLatch(1)
+      val task = new TestTask(10L, 2, latch, output)
+      pooledTimer.add(task)
+      assertEquals(0, pooledTimer.pooledEntries)
+      assertEquals(1, pooledTimer.size)
+      // the entry reused by the new task is not affected by the cancelled task
+      cancelled.cancel()
+      assertEquals(1, pooledTimer.size)
+
+      while (pooledTimer.advanceClock(2000) && latch.getCount > 0) {}
+      assertTrue(latch.await(3, TimeUnit.SECONDS))
+      assertEquals(Seq(2), output)
+      // the task no longer refers to the entry, which may be reused by another task
+      assertEquals(1, pooledTimer.pooledEntries)
+      task.cancel()
+      assertEquals(1, pooledTimer.pooledEntries)
+    } finally {
+      pooledTimer.shutdown()
+    }
+  }
+
+  private def verifyTaskExpiration(timer: Timer): Unit = {
     val output = new ArrayBuffer[Int]()
 
     val tasks = new ArrayBuffer[TestTask]()
@@ -849,6 +849,65 @@ class KafkaZkClientTest extends ZooKeeperTestHarness {
       zkClient.updateLeaderAndIsr(mixedState, controllerEpoch = 4, controllerEpochZkVersion))
   }
 
+  @Test
+  def testBatchedControllerWrites(): Unit = {
+    val batchingZkClient = KafkaZkClient(zkConnect, zkAclsEnabled.getOrElse(JaasUtils.isZkSecurityEnabled), zkSessionTimeout,
+      zkConnectionTimeout, zkMaxInFlightRequests, Time.SYSTEM, controllerWriteBatchSize = 2)
+    try {
+      batchingZkClient.createRecursive(TopicZNode.path(topic1))
+
+      // Mismatch controller epoch zkVersion
+      intercept[ControllerMovedException](batchingZkClient.createTopicPartitionStatesRaw(initialLeaderIsrAndControllerEpochs,
+        controllerEpochZkVersion + 1))
+      assertTrue(zkClient.getTopicPartitionStatesRaw(topicPartitions10_11).forall(_.resultCode == Code.NONODE))
+
+      assertEquals(
+        Seq(
+          CreateResponse(Code.OK, TopicPartitionStateZNode.path(topicPartition10), Some(topicPartition10),
+            TopicPartitionStateZNode.path(topicPartition10), ResponseMetadata(0, 0)),
+          CreateResponse(Code.OK, TopicPartitionStateZNode.path(topicPartition11), Some(topicPartition11),
+            TopicPartitionStateZNode.path(topicPartition11), ResponseMetadata(0, 0))),
+        batchingZkClient.createTopicPartitionStatesRaw(initialLeaderIsrAndControllerEpochs, controllerEpochZkVersion)
+          .map(eraseMetadata).sortBy(_.path).toList)
+      val getResponses = zkClient.getTopicPartitionStatesRaw(topicPartitions10_11)
+      topicPartitions10_11.zip(getResponses) foreach {case (tp, r) => checkGetDataResponse(initialLeaderIsrAndControllerEpochs, tp, r)}
+
+      // The failed multi request is sent again one request at a time to get the result of each request
+      assertEquals(
+        Seq(
+          CreateResponse(Code.NODEEXISTS, TopicPartitionStateZNode.path(topicPartition10), Some(topicPartition10), null, ResponseMetadata(0, 0)),
+          CreateResponse(Code.NODEEXISTS, TopicPartitionStateZNode.path(topicPartition11), Some(topicPartition11), null, ResponseMetadata(0, 0))),
+        batchingZkClient.createTopicPartitionStatesRaw(initialLeaderIsrAndControllerEpochs, controllerEpochZkVersion)
+          .map(eraseMetadata).sortBy(_.path).toList)
+
+      // Mismatch controller epoch zkVersion
+      intercept[ControllerMovedException](batchingZkClient.updateLeaderAndIsr(initialLeaderIsrs, controllerEpoch = 4,
+        controllerEpochZkVersion + 1))
+
+      // successful updates
+      checkUpdateLeaderAndIsrResult(
+        leaderIsrs(state = 1, zkVersion = 1),
+        mutable.ArrayBuffer.empty,
+        Map.empty,
+        batchingZkClient.updateLeaderAndIsr(leaderIsrs(state = 1, zkVersion = 0), controllerEpoch = 4, controllerEpochZkVersion))
+
+      // A BADVERSION in the batch does not prevent the other updates of the batch from being applied
+      val mixedState = Map(
+        topicPartition10 -> LeaderAndIsr(leader = 1, leaderEpoch = 2, isr = List(4, 5), zkVersion = 1),
+        topicPartition11 -> LeaderAndIsr(leader = 0, leaderEpoch = 2, isr = List(3, 4), zkVersion = 0),
+        topicPartition20 -> LeaderAndIsr(leader = 0, leaderEpoch = 2, isr = List(3, 4), zkVersion = 0))
+
+      checkUpdateLeaderAndIsrResult(
+        leaderIsrs(state = 2, zkVersion = 2).filterKeys{_ == topicPartition10},
+        ArrayBuffer(topicPartition11),
+        Map(
+          topicPartition20 -> (classOf[NoNodeException], "KeeperErrorCode = NoNode for /brokers/topics/topic2/partitions/0/state")),
+        batchingZkClient.updateLeaderAndIsr(mixedState, controllerEpoch = 4, controllerEpochZkVersion))
+    } finally {
+      batchingZkClient.close()
+    }
+  }
+
   private def checkGetDataResponse(
       leaderIsrAndControllerEpochs: Map[TopicPartition,LeaderIsrAndControllerEpoch],
       topicPartition: TopicPartition,
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.common;
+
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.network.ListenerName;
+import org.apache.kafka.common.network.Send;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.AbstractRequestResponse;
+import org.apache.kafka.common.requests.FetchMetadata;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.apache.kafka.common.requests.MetadataResponse;
+import org.apache.kafka.common.requests.ProduceRequest;
+import org.apache.kafka.common.requests.RequestContext;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.requests.ResponseHeader;
+import org.apache.kafka.common.security.auth.KafkaPrincipal;
+import org.apache.kafka.common.security.auth.SecurityProtocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the serialization of Produce requests and Fetch responses through a Struct with the direct serialization
+ * which writes the fields straight to the buffer. Metadata responses only expose the direct serialization, so their
+ * benchmark is compared across builds.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestSerializationBenchmark {
+
+    private static final int BROKER_COUNT = 10;
+
+    @Param({"10", "100"})
+    private int topicCount;
+
+    @Param({"10", "100"})
+    private int partitionCount;
+
+    private RequestHeader produceHeader;
+    private ProduceRequest produceRequest;
+    private RequestContext fetchContext;
+    private FetchResponse<MemoryRecords> fetchResponse;
+    private MetadataResponse metadataResponse;
+    private ResponseHeader responseHeader;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<Node> brokers = new ArrayList<>();
+        for (int i = 0; i < BROKER_COUNT; i++)
+            brokers.add(new Node(i, "broker-" + i + ".kafka.example.com", 9092, "rack-" + (i % 3)));
+
+        MemoryRecords records = MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord(new byte[100]));
+        Map<TopicPartition, MemoryRecords> produceData = new HashMap<>();
+        LinkedHashMap<TopicPartition, FetchResponse.PartitionData<MemoryRecords>> fetchData = new LinkedHashMap<>();
+        List<MetadataResponse.TopicMetadata> topicMetadata = new ArrayList<>();
+        for (int topic = 0; topic < topicCount; topic++) {
+            String topicName = "topic-" + topic;
+            List<MetadataResponse.PartitionMetadata> partitionMetadata = new ArrayList<>();
+            for (int partition = 0; partition < partitionCount; partition++) {
+                TopicPartition tp = new TopicPartition(topicName, partition);
+                produceData.put(tp, records);
+                fetchData.put(tp, new FetchResponse.PartitionData<>(Errors.NONE, 1000L, 1000L, 0L, null, records));
+                List<Node> replicas = new ArrayList<>();
+                for (int replica = 0; replica < 3; replica++)
+                    replicas.add(brokers.get((partition + replica) % BROKER_COUNT));
+                partitionMetadata.add(new MetadataResponse.PartitionMetadata(Errors.NONE, partition, replicas.get(0),
+                    Optional.of(5), replicas, replicas, Collections.<Node>emptyList()));
+            }
+            topicMetadata.add(new MetadataResponse.TopicMetadata(Errors.NONE, topicName, false, partitionMetadata));
+        }
+
+        produceHeader = new RequestHeader(ApiKeys.PRODUCE, ApiKeys.PRODUCE.latestVersion(), "producer", 1);
+        produceRequest = ProduceRequest.Builder.forCurrentMagic((short) 1, 1000, produceData).build();
+        RequestHeader fetchHeader = new RequestHeader(ApiKeys.FETCH, ApiKeys.FETCH.latestVersion(), "consumer", 1);
+        fetchContext = new RequestContext(fetchHeader, "connection", InetAddress.getLoopbackAddress(),
+            KafkaPrincipal.ANONYMOUS, ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT),
+            SecurityProtocol.PLAINTEXT);
+        fetchResponse = new FetchResponse<>(Errors.NONE, fetchData, 0, FetchMetadata.INVALID_SESSION_ID);
+        metadataResponse = new MetadataResponse(brokers, "cluster", 0, topicMetadata);
+        responseHeader = new ResponseHeader(1);
+    }
+
+    @Benchmark
+    public ByteBuffer produceRequestStruct() {
+        return AbstractRequestResponse.serialize(produceHeader.toStruct(), produceRequest.toStruct());
+    }
+
+    @Benchmark
+    public ByteBuffer produceRequestDirect() {
+        return produceRequest.serialize(produceHeader);
+    }
+
+    @Benchmark
+    public ByteBuffer fetchResponseStruct() {
+        // the struct path used to build the fields of the send from the struct of the whole response
+        return AbstractRequestResponse.serialize(responseHeader.toStruct(),
+            fetchResponse.toStruct(ApiKeys.FETCH.latestVersion()));
+    }
+
+    @Benchmark
+    public Send fetchResponseDirect() {
+        return fetchContext.buildResponse(fetchResponse);
+    }
+
+    @Benchmark
+    public ByteBuffer metadataResponseDirect() {
+        return metadataResponse.serialize(ApiKeys.METADATA.latestVersion(), responseHeader);
+    }
+}
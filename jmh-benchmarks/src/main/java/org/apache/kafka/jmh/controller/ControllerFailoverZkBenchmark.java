@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.controller;
+
+import kafka.api.LeaderAndIsr;
+import kafka.controller.LeaderIsrAndControllerEpoch;
+import kafka.zk.KafkaZkClient;
+import kafka.zk.TopicZNode;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.HashMap;
+import scala.collection.immutable.List;
+import scala.collection.immutable.Map;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the ZooKeeper part of a controller failover against an embedded ZooKeeper server: the new controller reads
+ * the state of every partition and then writes a new leader for each of them, as when all the partitions were led by
+ * the failed broker. The controller writes are sent either one per request or grouped in multi requests of up to
+ * {@code writeBatchSize} writes, see {@code controller.zookeeper.write.batch.size}.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ControllerFailoverZkBenchmark {
+
+    private static final int CONTROLLER_EPOCH = 1;
+    private static final int PARTITIONS_PER_TOPIC = 100;
+    private static final int REPLICATION_FACTOR = 3;
+
+    @Param({"1000", "10000"})
+    private int partitionCount;
+
+    @Param({"1", "100"})
+    private int writeBatchSize;
+
+    private File snapshotDir;
+    private File logDir;
+    private ZooKeeperServer zookeeper;
+    private NIOServerCnxnFactory factory;
+    private KafkaZkClient zkClient;
+    private int controllerEpochZkVersion;
+    private scala.collection.Seq<TopicPartition> partitions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        snapshotDir = Files.createTempDirectory("zookeeper-snapshot").toFile();
+        logDir = Files.createTempDirectory("zookeeper-log").toFile();
+        zookeeper = new ZooKeeperServer(snapshotDir, logDir, 500);
+        factory = new NIOServerCnxnFactory();
+        factory.configure(new InetSocketAddress("127.0.0.1", 0), 0);
+        factory.startup(zookeeper);
+
+        zkClient = KafkaZkClient.apply("127.0.0.1:" + zookeeper.getClientPort(), false, 30000, 30000, 10,
+            Time.SYSTEM, "kafka.server", "SessionExpireListener", writeBatchSize);
+        zkClient.createControllerEpochRaw(CONTROLLER_EPOCH);
+        controllerEpochZkVersion = 0;
+
+        java.util.List<Object> replicas = new ArrayList<>();
+        for (int replica = 0; replica < REPLICATION_FACTOR; replica++)
+            replicas.add(replica);
+        List<Object> isr = JavaConverters.asScalaBuffer(replicas).toList();
+
+        java.util.List<TopicPartition> topicPartitions = new ArrayList<>();
+        Map<TopicPartition, LeaderIsrAndControllerEpoch> states = new HashMap<>();
+        for (int partition = 0; partition < partitionCount; partition++) {
+            TopicPartition tp = new TopicPartition("topic-" + partition / PARTITIONS_PER_TOPIC,
+                partition % PARTITIONS_PER_TOPIC);
+            if (tp.partition() == 0)
+                zkClient.makeSurePersistentPathExists(TopicZNode.path(tp.topic()));
+            topicPartitions.add(tp);
+            states = states.$plus(new scala.Tuple2<>(tp,
+                new LeaderIsrAndControllerEpoch(new LeaderAndIsr(0, 0, isr, 0), CONTROLLER_EPOCH)));
+        }
+        zkClient.createTopicPartitionStatesRaw(states, controllerEpochZkVersion);
+        partitions = JavaConverters.asScalaBuffer(topicPartitions);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        zkClient.close();
+        zookeeper.shutdown();
+        factory.shutdown();
+        Utils.delete(logDir);
+        Utils.delete(snapshotDir);
+    }
+
+    @Benchmark
+    public Object electLeaders() {
+        Map<TopicPartition, LeaderAndIsr> newLeaderAndIsrs = new HashMap<>();
+        for (java.util.Map.Entry<TopicPartition, LeaderIsrAndControllerEpoch> entry :
+                JavaConverters.mapAsJavaMap(zkClient.getTopicPartitionStates(partitions)).entrySet()) {
+            LeaderAndIsr leaderAndIsr = entry.getValue().leaderAndIsr();
+            newLeaderAndIsrs = newLeaderAndIsrs.$plus(new scala.Tuple2<>(entry.getKey(),
+                leaderAndIsr.newLeader((leaderAndIsr.leader() + 1) % REPLICATION_FACTOR)));
+        }
+        return zkClient.updateLeaderAndIsr(newLeaderAndIsrs, CONTROLLER_EPOCH, controllerEpochZkVersion);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.kafka.jmh.log;
+
+import kafka.log.OffHeapOffsetMap;
+import kafka.log.OffsetMap;
+import kafka.log.SkimpyOffsetMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of building and probing the log cleaner's offset map for the on-heap MD5 based
+ * {@link SkimpyOffsetMap} and the off-heap {@link OffHeapOffsetMap}. Each invocation clears the map, puts every key
+ * (with one duplicate pass over a tenth of them, as in a partially compacted log) and then looks every key up,
+ * mirroring how the cleaner builds the map and then consults it while recopying segments.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OffsetMapBenchmark {
+
+    private static final int KEY_COUNT = 100_000;
+
+    public enum MapType {
+        SKIMPY, DIRECT
+    }
+
+    @Param({"SKIMPY", "DIRECT"})
+    private MapType mapType;
+
+    @Param({"16", "64", "256"})
+    private int keySize;
+
+    @Param({"0.5", "0.9"})
+    private double loadFactor;
+
+    private ByteBuffer[] keys;
+
+    private OffsetMap map;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(0);
+        keys = new ByteBuffer[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            byte[] key = new byte[keySize];
+            random.nextBytes(key);
+            keys[i] = ByteBuffer.wrap(key);
+        }
+        // both implementations use 24 bytes per entry
+        int memory = (int) (KEY_COUNT / loadFactor * 24) + 24;
+        switch (mapType) {
+            case SKIMPY:
+                map = new SkimpyOffsetMap(memory, "MD5");
+                break;
+            case DIRECT:
+                map = new OffHeapOffsetMap(memory);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown map type " + mapType);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        map.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEY_COUNT)
+    public void buildAndProbe(Blackhole bh) {
+        map.clear();
+        long offset = 0;
+        for (ByteBuffer key : keys)
+            map.put(key, offset++);
+        for (int i = 0; i < KEY_COUNT; i += 10)
+            map.put(keys[i], offset++);
+        for (ByteBuffer key : keys)
+            bh.consume(map.get(key));
+    }
+}
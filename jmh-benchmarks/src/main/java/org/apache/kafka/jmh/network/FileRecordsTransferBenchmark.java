@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.network;
+
+import org.apache.kafka.common.network.PlaintextTransportLayer;
+import org.apache.kafka.common.network.SslTransportLayer;
+import org.apache.kafka.common.network.TransportLayer;
+import org.apache.kafka.common.record.FileRecords;
+import org.apache.kafka.common.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of sending a log segment over a loopback connection the way a fetch response is sent, with
+ * {@link FileRecords#writeTo} on a plaintext and on a TLS transport layer. The peer reads and discards the data on a
+ * separate thread. The TLS connection uses an anonymous cipher suite so that no key store is needed; the cost of the
+ * bulk encryption is the same as with a certificate.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileRecordsTransferBenchmark {
+
+    private static final String CIPHER_SUITE = "TLS_ECDH_anon_WITH_AES_128_CBC_SHA";
+    private static final String PROTOCOL = "TLSv1.2";
+
+    public enum Transport {
+        PLAINTEXT, SSL
+    }
+
+    @Param({"PLAINTEXT", "SSL"})
+    private Transport transport;
+
+    @Param({"1048576", "16777216"})
+    private int fileSize;
+
+    private File file;
+    private FileRecords records;
+    private ServerSocketChannel serverChannel;
+    private SocketChannel channel;
+    private Selector selector;
+    private SelectionKey key;
+    private TransportLayer transportLayer;
+    private Thread reader;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        byte[] data = new byte[fileSize];
+        new Random(0).nextBytes(data);
+        file = File.createTempFile("transfer", ".log");
+        Files.write(file.toPath(), data);
+        records = FileRecords.open(file);
+
+        SSLContext sslContext = null;
+        if (transport == Transport.SSL) {
+            // anonymous cipher suites are disabled by default
+            Security.setProperty("jdk.tls.disabledAlgorithms", "");
+            sslContext = SSLContext.getInstance(PROTOCOL);
+            sslContext.init(null, null, null);
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        channel = serverChannel.accept();
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, SelectionKey.OP_READ);
+
+        InputStream in;
+        if (sslContext != null) {
+            SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket,
+                socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+            sslSocket.setEnabledProtocols(new String[] {PROTOCOL});
+            sslSocket.setEnabledCipherSuites(new String[] {CIPHER_SUITE});
+            in = sslSocket.getInputStream();
+
+            SSLEngine engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            engine.setEnabledProtocols(new String[] {PROTOCOL});
+            engine.setEnabledCipherSuites(new String[] {CIPHER_SUITE});
+            transportLayer = SslTransportLayer.create("0", key, engine);
+        } else {
+            in = socket.getInputStream();
+            transportLayer = new PlaintextTransportLayer(key);
+        }
+
+        reader = new Thread(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                while (in.read(buffer) >= 0) {
+                    // discard the data
+                }
+            } catch (IOException e) {
+                // the connection is closed on tear down
+            } finally {
+                Utils.closeQuietly(socket, "socket");
+            }
+        }, "transfer-benchmark-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        while (!transportLayer.ready()) {
+            transportLayer.handshake();
+            if (!transportLayer.ready())
+                select();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        transportLayer.close();
+        selector.close();
+        serverChannel.close();
+        reader.join(10000);
+        records.close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Benchmark
+    public long transfer() throws IOException {
+        long written = 0;
+        while (written < fileSize) {
+            long bytes = records.writeTo(transportLayer, written, (int) (fileSize - written));
+            written += bytes;
+            if (bytes == 0 || transportLayer.hasPendingWrites()) {
+                transportLayer.addInterestOps(SelectionKey.OP_WRITE);
+                select();
+                transportLayer.removeInterestOps(SelectionKey.OP_WRITE);
+            }
+        }
+        return written;
+    }
+
+    private void select() throws IOException {
+        selector.select(100);
+        selector.selectedKeys().clear();
+    }
+}
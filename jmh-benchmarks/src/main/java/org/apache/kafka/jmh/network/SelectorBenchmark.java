@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.network;
+
+import org.apache.kafka.common.memory.MemoryPool;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.network.ListenerName;
+import org.apache.kafka.common.network.NetworkReceive;
+import org.apache.kafka.common.network.NetworkSend;
+import org.apache.kafka.common.network.PlaintextChannelBuilder;
+import org.apache.kafka.common.network.Selector;
+import org.apache.kafka.common.security.auth.SecurityProtocol;
+import org.apache.kafka.common.utils.LogContext;
+import org.apache.kafka.common.utils.Time;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the request throughput of a client and a server {@link Selector} exchanging small requests and responses
+ * over loopback connections, with the default selected-key set of the nioSelector and with the array backed set. Both
+ * selectors are polled on the benchmark thread, so the result is the cost of the selectors rather than of the threads.
+ * On Java 9 and later the array backed set is only used if the sun.nio.ch package is opened, e.g. by running with
+ * {@code -jvmArgsAppend --add-opens=java.base/sun.nio.ch=ALL-UNNAMED}.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SelectorBenchmark {
+
+    private static final int MESSAGE_SIZE = 100;
+
+    @Param({"false", "true"})
+    private boolean optimizeSelectedKeys;
+
+    @Param({"10", "100"})
+    private int connections;
+
+    private Metrics metrics;
+    private ServerSocketChannel serverChannel;
+    private Selector client;
+    private Selector server;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        metrics = new Metrics();
+        client = newSelector("client");
+        server = newSelector("server");
+        payload = new byte[MESSAGE_SIZE];
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+        for (int i = 0; i < connections; i++) {
+            String id = Integer.toString(i);
+            client.connect(id, address, Selector.USE_DEFAULT_BUFFER_SIZE, Selector.USE_DEFAULT_BUFFER_SIZE);
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            server.register(id, channel);
+        }
+        while (!allReady())
+            client.poll(100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+        serverChannel.close();
+        metrics.close();
+    }
+
+    /**
+     * Sends a request on every connection, echoes it back on the server and waits for all the responses.
+     */
+    @Benchmark
+    public int roundTrip() throws IOException {
+        for (int i = 0; i < connections; i++)
+            client.send(new NetworkSend(Integer.toString(i), ByteBuffer.wrap(payload)));
+
+        int responses = 0;
+        while (responses < connections) {
+            client.poll(0);
+            responses += client.completedReceives().size();
+            server.poll(0);
+            for (NetworkReceive receive : server.completedReceives())
+                server.send(new NetworkSend(receive.source(), receive.payload()));
+        }
+        return responses;
+    }
+
+    private boolean allReady() {
+        for (int i = 0; i < connections; i++) {
+            if (!client.isChannelReady(Integer.toString(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private Selector newSelector(String metricGrpPrefix) {
+        PlaintextChannelBuilder channelBuilder = new PlaintextChannelBuilder(ListenerName.forSecurityProtocol(SecurityProtocol.PLAINTEXT));
+        channelBuilder.configure(Collections.<String, Object>emptyMap());
+        return new Selector(NetworkReceive.UNLIMITED, Selector.NO_IDLE_TIMEOUT_MS, Selector.NO_FAILED_AUTHENTICATION_DELAY,
+            metrics, Time.SYSTEM, metricGrpPrefix, Collections.<String, String>emptyMap(), false, false, channelBuilder,
+            MemoryPool.NONE, optimizeSelectedKeys, new LogContext());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.server;
+
+import kafka.server.DelayedOperation;
+import kafka.server.DelayedOperationPurgatory;
+import kafka.utils.timer.SystemTimer;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Time;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of watching and completing delayed operations when many request handler threads use the
+ * purgatory at the same time, as with acks=all produce requests and long-poll fetch requests on many partitions.
+ * Each invocation watches an operation on a random partition with {@link DelayedOperationPurgatory#tryCompleteElseWatch}
+ * and then completes it with {@link DelayedOperationPurgatory#checkAndComplete}. A single shard has the contention of
+ * a purgatory with one watcher map and lock.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(8)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DelayedOperationPurgatoryBenchmark {
+
+    @Param({"1", "512"})
+    private int shards;
+
+    @Param({"100", "10000"})
+    private int partitionCount;
+
+    private Seq<Object>[] watchKeys;
+    private DelayedOperationPurgatory<TestOperation> purgatory;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        watchKeys = new Seq[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            Object key = new TopicPartition("topic-" + (i % 100), i / 100);
+            watchKeys[i] = JavaConverters.asScalaBuffer(Collections.singletonList(key));
+        }
+        // the operations are completed by the benchmark, so neither the timer nor the reaper are needed
+        purgatory = new DelayedOperationPurgatory<>("benchmark", new SystemTimer("benchmark", 1, 20, Time.SYSTEM.hiResClockMs()), 0, 1000,
+            false, false, shards);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        purgatory.shutdown();
+    }
+
+    @Benchmark
+    public int watchAndComplete() {
+        Seq<Object> keys = watchKeys[ThreadLocalRandom.current().nextInt(partitionCount)];
+        TestOperation operation = new TestOperation();
+        purgatory.tryCompleteElseWatch(operation, keys);
+        operation.completable = true;
+        return purgatory.checkAndComplete(keys.head());
+    }
+
+    private static class TestOperation extends DelayedOperation {
+        private volatile boolean completable = false;
+
+        TestOperation() {
+            super(30000L, Option.empty());
+        }
+
+        @Override
+        public boolean tryComplete() {
+            return completable && forceComplete();
+        }
+
+        @Override
+        public void onExpiration() {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
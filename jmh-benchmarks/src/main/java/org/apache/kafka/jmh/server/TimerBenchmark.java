@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.kafka.jmh.server;
+
+import kafka.server.DelayedOperation;
+import kafka.utils.timer.SystemTimer;
+import org.apache.kafka.common.utils.Time;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.Option;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link SystemTimer} the way the fetch purgatory does: several request handler threads add delayed operations
+ * with a timeout of up to {@code maxDelayMs} while an expiration thread advances the clock. Most operations complete
+ * before their timeout and are cancelled by the thread which added them a few operations later, the rest expire.
+ * Run with {@code -prof gc} to compare the allocation rate of the default and the pooled timer.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(8)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TimerBenchmark {
+
+    private static final int PENDING_PER_THREAD = 64;
+
+    @Param({"false", "true"})
+    private boolean pooled;
+
+    @Param({"500"})
+    private int maxDelayMs;
+
+    @Param({"0.9"})
+    private double completionRatio;
+
+    private SystemTimer timer;
+    private Thread reaper;
+    private volatile boolean running;
+
+    @State(Scope.Thread)
+    public static class PendingOperations {
+        private final TestOperation[] operations = new TestOperation[PENDING_PER_THREAD];
+        private int next = 0;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        timer = new SystemTimer("benchmark", 1, 20, Time.SYSTEM.hiResClockMs(), pooled);
+        running = true;
+        reaper = new Thread(() -> {
+            while (running)
+                timer.advanceClock(200L);
+        }, "timer-benchmark-reaper");
+        reaper.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        reaper.join();
+        timer.shutdown();
+    }
+
+    @Benchmark
+    public int addAndComplete(PendingOperations pending) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        TestOperation operation = new TestOperation(1 + random.nextInt(maxDelayMs), random.nextDouble() < completionRatio);
+        timer.add(operation);
+
+        // complete the operation added a few operations ago, unless it is one which is left to expire
+        int index = pending.next;
+        pending.next = (index + 1) % PENDING_PER_THREAD;
+        TestOperation previous = pending.operations[index];
+        pending.operations[index] = operation;
+        if (previous != null && previous.completable)
+            previous.forceComplete();
+        return timer.size();
+    }
+
+    private static class TestOperation extends DelayedOperation {
+        private final boolean completable;
+
+        TestOperation(long delayMs, boolean completable) {
+            super(delayMs, Option.empty());
+            this.completable = completable;
+        }
+
+        @Override
+        public boolean tryComplete() {
+            return false;
+        }
+
+        @Override
+        public void onExpiration() {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}